@@ -0,0 +1,53 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rates (gc.alloc.rate.norm) are reported next to the
+ * timings. Accepts the usual JMH command line options, e.g. a benchmark regex.
+ * 
+ * @author Roberto Badaro
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+        // NOOP
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(cmd);
+        if (cmd.getIncludes().isEmpty()) {
+            options.include("com\\.obadaro\\.jinah\\.mail\\.bench\\..*");
+        }
+        options.addProfiler(GCProfiler.class);
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,100 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.HtmlMail;
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.codec.MailCodec;
+
+/**
+ * Throughput of the {@link MailCodec}: encoding a mail, and decoding it from an array and in place from a
+ * direct buffer, as the outbox reads its mapped segments.
+ * 
+ * @author Roberto Badaro
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    private MailCodec codec;
+    private HtmlMail mail;
+    private byte[] encoded;
+    private ByteBuffer direct;
+
+    @Setup
+    public void setup() throws Exception {
+
+        codec = new MailCodec();
+
+        StringBuilder body = new StringBuilder("<html><body><p>Dear customer,</p>");
+        for (int i = 0; i < 20; i++) {
+            body.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>");
+        }
+        body.append("</body></html>");
+
+        mail = new HtmlMail();
+        mail.setFrom("Shop <shop@example.com>");
+        mail.addTo("customer@example.com").addCc("orders@example.com");
+        mail.setSubject("Order 123456 shipped", "UTF-8");
+        mail.setText(body.toString(), "UTF-8");
+        mail.setHeaderValue("X-Campaign", "orders");
+        mail.setHeaderValue("List-Unsubscribe", "<mailto:unsubscribe@example.com>");
+        mail.setIdempotencyKey("order-123456");
+        mail.attach(new Attachment(new byte[4096], "application/pdf", "invoice.pdf"));
+
+        encoded = codec.encode(mail);
+        direct = ByteBuffer.allocateDirect(encoded.length);
+        direct.put(encoded).flip();
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception {
+        return codec.encode(mail);
+    }
+
+    @Benchmark
+    public Mail decode() throws Exception {
+        return codec.decode(encoded);
+    }
+
+    @Benchmark
+    public Mail decodeDirect() throws Exception {
+        return codec.decode(direct.duplicate());
+    }
+}
@@ -0,0 +1,136 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.bench;
+
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.HtmlMail;
+import com.obadaro.jinah.mail.dkim.DkimSigner;
+import com.obadaro.jinah.mail.send.CountingMimeMessage;
+import com.obadaro.jinah.mail.send.MailMessages;
+import com.obadaro.jinah.mail.send.MessageFactory;
+
+/**
+ * Cost of DKIM signing on write: a new message, hashed and signed, against writing a signed message again to
+ * another envelope, which reuses its signature, and against not signing.
+ * 
+ * @author Roberto Badaro
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DkimBenchmark {
+
+    private static final OutputStream NULL = new OutputStream() {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private Session session;
+    private MessageFactory signing;
+    private HtmlMail mail;
+    private CountingMimeMessage signed;
+
+    @Setup
+    public void setup() throws Exception {
+
+        session = Session.getInstance(new Properties());
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        signing = new DkimSigner("example.com", "s1", generator.generateKeyPair().getPrivate()).factory(MailMessages
+                .factory());
+
+        StringBuilder body = new StringBuilder("<html><body><p>Dear customer,</p>");
+        for (int i = 0; i < 20; i++) {
+            body.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>");
+        }
+        body.append("</body></html>");
+
+        mail = new HtmlMail();
+        mail.setFrom("Shop <shop@example.com>");
+        mail.addTo("customer@example.com");
+        mail.setSubject("Order 123456 shipped", "UTF-8");
+        mail.setText(body.toString(), "UTF-8");
+        mail.attach(new Attachment(new byte[16384], "application/pdf", "invoice.pdf"));
+
+        signed = message(signing);
+        signed.writeTo(NULL);
+    }
+
+    @Benchmark
+    public CountingMimeMessage unsigned() throws Exception {
+
+        CountingMimeMessage msg = message(MailMessages.factory());
+        msg.writeTo(NULL);
+        return msg;
+    }
+
+    @Benchmark
+    public CountingMimeMessage signNew() throws Exception {
+
+        CountingMimeMessage msg = message(signing);
+        msg.writeTo(NULL);
+        return msg;
+    }
+
+    @Benchmark
+    public void writeSignedAgain() throws Exception {
+        signed.writeTo(NULL, new String[] { "Bcc" });
+    }
+
+    //
+    // Internal methods
+    //
+
+    private CountingMimeMessage message(MessageFactory factory) throws Exception {
+
+        CountingMimeMessage msg = (CountingMimeMessage) factory.createMessage(session, mail);
+        msg.setSentDate(new Date());
+        return msg;
+    }
+}
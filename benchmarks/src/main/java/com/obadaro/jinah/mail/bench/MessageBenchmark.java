@@ -0,0 +1,224 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.HtmlMail;
+import com.obadaro.jinah.mail.TextMail;
+import com.obadaro.jinah.mail.send.MailMessages;
+import com.obadaro.jinah.mail.send.MailPrototype;
+import com.obadaro.jinah.mail.send.MimeWriter;
+
+/**
+ * Message construction costs: address parsing, body parts and a whole message, built and written.
+ * 
+ * @author Roberto Badaro
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+
+    /** Number of "To" recipients. */
+    @Param({ "1", "50" })
+    public int recipients;
+
+    /** Attachment size in bytes. */
+    @Param({ "16384" })
+    public int attachmentSize;
+
+    private Session session;
+    private TextMail text;
+    private HtmlMail html;
+    private Attachment attachment;
+    private TextMail withAttachment;
+    private MailPrototype prototype;
+    private TextMail variant;
+    private TextMail recipientOnly;
+
+    @Setup
+    public void setup() throws Exception {
+
+        session = Session.getInstance(new Properties());
+
+        text = new TextMail();
+        text.setFrom("Sender Name <sender@example.com>");
+        for (int i = 0; i < recipients; i++) {
+            text.addTo("Recipient " + i + " <recipient" + i + "@example.com>");
+        }
+        text.setSubject("Benchmark subject with some non-ASCII: a\u00e7\u00e3o");
+        text.setText(repeat("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ", 40));
+
+        html = new HtmlMail();
+        html.setFrom(text.getFrom());
+        html.setTo(text.getTo());
+        html.setSubject(text.getSubject());
+        html.setText("<html><body>" + repeat("<p>Lorem ipsum dolor sit amet.</p>", 40) + "</body></html>");
+
+        byte[] data = new byte[attachmentSize];
+        new Random(1).nextBytes(data);
+        attachment = new Attachment(data, Attachment.OCTET_STREAM, "data.bin");
+
+        withAttachment = new TextMail();
+        withAttachment.setFrom(text.getFrom());
+        withAttachment.setTo(text.getTo());
+        withAttachment.setSubject(text.getSubject());
+        withAttachment.setText(text.getText());
+        withAttachment.attach(new Attachment(repeat("a,b,c,d\r\n", 1024).getBytes(StandardCharsets.US_ASCII),
+                "text/csv", "data.csv"));
+
+        prototype = MailPrototype.freeze(session, withAttachment);
+        variant = new TextMail();
+        variant.setTo(text.getTo());
+        variant.setText(text.getText());
+        recipientOnly = new TextMail();
+        recipientOnly.setTo(text.getTo());
+    }
+
+    @Benchmark
+    public MimeMessage createBaseMessage() throws Exception {
+        return MailMessages.createBaseMessage(session, text);
+    }
+
+    @Benchmark
+    public MimeBodyPart configureTextPart() throws Exception {
+        return MailMessages.createMimeBodyPart(text);
+    }
+
+    @Benchmark
+    public MimeBodyPart configureHtmlPart() throws Exception {
+        return MailMessages.createMimeBodyPart(html);
+    }
+
+    @Benchmark
+    public MimeBodyPart configureAttachmentPart() throws Exception {
+        return MailMessages.createMimeBodyPart(attachment);
+    }
+
+    @Benchmark
+    public MimeMessage createMessage() throws Exception {
+        return MailMessages.createMessage(session, withAttachment);
+    }
+
+    /**
+     * Builds and writes the message: javax.mail only encodes the parts when the message is saved and written.
+     */
+    @Benchmark
+    public void createAndWriteMessage(Blackhole bh) throws Exception {
+
+        MimeMessage msg = MailMessages.createMessage(session, withAttachment);
+        msg.saveChanges();
+        msg.writeTo(new NullOutputStream(bh));
+    }
+
+    /**
+     * Same message as {@link #createAndWriteMessage(Blackhole)}, written by {@link MimeWriter}.
+     */
+    @Benchmark
+    public void createAndWriteStreamed(Blackhole bh) throws Exception {
+
+        MimeMessage msg = MimeWriter.createMessage(session, withAttachment, null);
+        msg.saveChanges();
+        msg.writeTo(new NullOutputStream(bh));
+    }
+
+    /**
+     * Same message as {@link #createAndWriteMessage(Blackhole)}, from a frozen prototype.
+     */
+    @Benchmark
+    public void createAndWritePrototype(Blackhole bh) throws Exception {
+
+        MimeMessage msg = prototype.createMessage(session, variant);
+        msg.saveChanges();
+        msg.writeTo(new NullOutputStream(bh));
+    }
+
+    /**
+     * A prototype variant keeping the frozen body: only the recipient headers are set.
+     */
+    @Benchmark
+    public void createAndWritePrototypeRecipientOnly(Blackhole bh) throws Exception {
+
+        MimeMessage msg = prototype.createMessage(session, recipientOnly);
+        msg.saveChanges();
+        msg.writeTo(new NullOutputStream(bh));
+    }
+
+    //
+    // Internal methods
+    //
+
+    private static String repeat(String s, int times) {
+
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    // Inner classes
+
+    static final class NullOutputStream extends OutputStream {
+
+        private final Blackhole bh;
+
+        NullOutputStream(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            bh.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            bh.consume(b);
+        }
+    }
+}
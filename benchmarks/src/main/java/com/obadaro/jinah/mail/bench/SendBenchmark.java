@@ -0,0 +1,144 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.bench;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.TextMail;
+import com.obadaro.jinah.mail.send.BatchResult;
+import com.obadaro.jinah.mail.send.BatchSender;
+import com.obadaro.jinah.mail.send.Postman;
+import com.obadaro.jinah.mail.send.SendResult;
+import com.obadaro.jinah.mail.send.SmtpEngine;
+import com.obadaro.jinah.mail.send.SmtpSink;
+import com.obadaro.jinah.mail.send.TransportPool;
+
+/**
+ * Send throughput against an {@link SmtpSink}: a connection per mail, as {@link Postman#sendMail(Session,
+ * Mail)} does, against pooled connections, pipelined commands, parallel batches and the non-blocking
+ * {@link SmtpEngine}.
+ * 
+ * @author Roberto Badaro
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SendBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    private SmtpSink sink;
+    private Session session;
+    private Session pipelinedSession;
+    private TransportPool pool;
+    private BatchSender batchSender;
+    private SmtpEngine engine;
+    private TextMail mail;
+    private Mail[] batch;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+
+        sink = new SmtpSink();
+        session = sink.createSession();
+
+        Properties cfg = new Properties();
+        cfg.setProperty("mail.smtp.pipelining", "true");
+        pipelinedSession = sink.createSession(cfg);
+        pool = new TransportPool(8);
+        batchSender = new BatchSender(session, 4);
+        engine = new SmtpEngine(session, 1, 4);
+
+        mail = new TextMail();
+        mail.setFrom("sender@example.com");
+        mail.addTo("recipient@example.com");
+        mail.setSubject("Benchmark");
+        mail.setText("Mail content body.");
+
+        batch = new Mail[BATCH_SIZE];
+        Arrays.fill(batch, mail);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        engine.close();
+        batchSender.close();
+        pool.close();
+        sink.close();
+    }
+
+    @Benchmark
+    public void sendMail() throws Exception {
+        Postman.sendMail(session, mail);
+    }
+
+    @Benchmark
+    public void sendMailPooled() throws Exception {
+        Postman.sendMail(pool, session, mail);
+    }
+
+    @Benchmark
+    public void sendMailPooledPipelined() throws Exception {
+        Postman.sendMail(pool, pipelinedSession, mail);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public BatchResult sendBatch() throws Exception {
+        return batchSender.send(batch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void sendBatchEngine() throws Exception {
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<SendResult>[] futures = new CompletableFuture[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            futures[i] = engine.sendAsync(batch[i]);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+}
@@ -0,0 +1,80 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.obadaro.jinah.mail.TextMail;
+import com.obadaro.jinah.mail.template.MailTemplate;
+
+/**
+ * Cost of merging a personalized HTML mail from a compiled template.
+ * 
+ * @author Roberto Badaro
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TemplateBenchmark {
+
+    private MailTemplate template;
+    private InternetAddress to;
+    private Object[] values;
+
+    @Setup
+    public void setup() throws Exception {
+
+        StringBuilder body = new StringBuilder("<html><body><p>Dear ${name},</p>");
+        for (int i = 0; i < 20; i++) {
+            body.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>");
+        }
+        body.append("<p>Your order ${order} ships on ${date}.</p></body></html>");
+
+        template = new MailTemplate("Order ${order} shipped", body.toString(), true);
+        template.setFrom("shop@example.com");
+
+        to = new InternetAddress("customer@example.com");
+        values = new Object[template.getNames().length];
+        values[template.indexOf("name")] = "Ana Maria";
+        values[template.indexOf("order")] = 123456L;
+        values[template.indexOf("date")] = "2012-06-01";
+    }
+
+    @Benchmark
+    public TextMail merge() {
+        return template.merge(to, values);
+    }
+}
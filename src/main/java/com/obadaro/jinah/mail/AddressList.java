@@ -0,0 +1,158 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+import static com.obadaro.jinah.common.util.Strings.isNotBlank;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Ordered list of mail addresses, parsed and validated when added. An address already in the list (compared
+ * ignoring case) is not added again. Once built, a list may be read by several threads, e.g. of a mail sent by
+ * a batch; it must not be modified while read.
+ * 
+ * @author Roberto Badaro
+ */
+public class AddressList {
+
+    protected final List<InternetAddress> addresses;
+    protected final Set<String> keys;
+    private volatile InternetAddress[] array;
+    private volatile String string;
+
+    public AddressList() {
+
+        addresses = new ArrayList<InternetAddress>(4);
+        keys = new HashSet<String>(8);
+    }
+
+    /**
+     * Parses and adds one or more comma separated addresses.
+     * 
+     * @param address
+     *            E.g. "Name &lt;name@domain.com&gt;, other@domain.com".
+     * @return Number of addresses added (duplicates are not).
+     * @throws IllegalArgumentException
+     *             If the address is blank or invalid.
+     */
+    public int add(String address) {
+
+        checkArgument(isNotBlank(address), "address");
+
+        InternetAddress[] parsed;
+        try {
+            parsed = InternetAddress.parse(address);
+        } catch (AddressException e) {
+            throw new IllegalArgumentException("Invalid address: " + address, e);
+        }
+
+        return add(parsed);
+    }
+
+    /**
+     * @param address
+     *            Addresses to add.
+     * @return Number of addresses added (duplicates are not).
+     */
+    public int add(InternetAddress... address) {
+
+        int added = 0;
+        for (InternetAddress a : address) {
+            checkArgument(a != null && isNotBlank(a.getAddress()), "address");
+            if (keys.add(keyOf(a))) {
+                addresses.add(a);
+                added++;
+            }
+        }
+
+        if (added > 0) {
+            changed();
+        }
+        return added;
+    }
+
+    public boolean contains(InternetAddress address) {
+        return keys.contains(keyOf(address));
+    }
+
+    public int size() {
+        return addresses.size();
+    }
+
+    public boolean isEmpty() {
+        return addresses.isEmpty();
+    }
+
+    public void clear() {
+
+        addresses.clear();
+        keys.clear();
+        changed();
+    }
+
+    /**
+     * @return The addresses, in the order they were added.
+     */
+    public InternetAddress[] toArray() {
+
+        InternetAddress[] a = array;
+        if (a == null) {
+            a = addresses.toArray(new InternetAddress[addresses.size()]);
+            array = a;
+        }
+        return a.clone();
+    }
+
+    /**
+     * @return The addresses, comma separated.
+     */
+    @Override
+    public String toString() {
+
+        String s = string;
+        if (s == null) {
+            s = InternetAddress.toString(toArray());
+            string = s;
+        }
+        return s;
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected void changed() {
+
+        array = null;
+        string = null;
+    }
+
+    protected static String keyOf(InternetAddress address) {
+        return address.getAddress().toLowerCase(Locale.ROOT);
+    }
+}
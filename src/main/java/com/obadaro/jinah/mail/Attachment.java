@@ -34,7 +34,7 @@ public class Attachment extends Body {
      * Creates an attachment.
      * 
      * @param content
-     *            Attachment content.
+     *            Attachment content, or a {@link ContentSupplier} or {@link StreamSupplier} to defer it.
      * @param contentType
      *            Attachment content type. If not provided, "application/octet-stream" will be used.
      * @param label
@@ -59,7 +59,7 @@ public class Attachment extends Body {
     /**
      * 
      * @param content
-     *            Attachment content.
+     *            Attachment content, or a {@link ContentSupplier} or {@link StreamSupplier} to defer it.
      * @param type
      *            Attachment content type. If not provided, "application/octet-stream" will be used.
      */
@@ -19,6 +19,8 @@
  */
 package com.obadaro.jinah.mail;
 
+import java.io.IOException;
+
 /**
  * @author Roberto Badaro
  * 
@@ -50,10 +52,41 @@ public abstract class Body {
         return content;
     }
 
+    /**
+     * @param content
+     *            The content, or a {@link ContentSupplier} or {@link StreamSupplier} to defer it to the encoding
+     *            of the message.
+     */
     public void setContent(Object content) {
         this.content = content;
     }
 
+    /**
+     * @return If the content is built by a {@link ContentSupplier} when encoded.
+     */
+    public boolean isDeferred() {
+        return content instanceof ContentSupplier;
+    }
+
+    /**
+     * Returns the content, calling its {@link ContentSupplier} if deferred. The supplied content is not kept.
+     * 
+     * @return The content.
+     * @throws MailException
+     *             If the supplier fails.
+     */
+    public Object resolveContent() throws MailException {
+
+        if (!(content instanceof ContentSupplier)) {
+            return content;
+        }
+        try {
+            return ((ContentSupplier) content).get();
+        } catch (IOException e) {
+            throw new MailException("Error resolving deferred content.", e);
+        }
+    }
+
     public String getContentType() {
         return contentType;
     }
@@ -0,0 +1,46 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail;
+
+import java.io.IOException;
+
+/**
+ * Deferred content of a {@link Body}, e.g. HTML rendered from a template. The content is only built when the
+ * message is encoded, and not kept by the body: a mail waiting to be sent holds the supplier, not the content.
+ * 
+ * <pre>
+ * mail.setDeferredText(() -&gt; render(order), "UTF-8");
+ * mail.attach(new Attachment((ContentSupplier) () -&gt; invoice(order), "application/pdf", "invoice.pdf"));
+ * </pre>
+ * 
+ * @author Roberto Badaro
+ */
+public interface ContentSupplier {
+
+    /**
+     * Called each time the message is encoded.
+     * 
+     * @return The content: a {@code String}, {@code byte[]}, {@code Path}, {@code File}, {@link StreamSupplier}
+     *         or any object with a content handler for the type of the body.
+     * @throws IOException
+     */
+    Object get() throws IOException;
+
+}
@@ -0,0 +1,94 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An attachment whose content is a file. The file is read while the message is written to the transport, so
+ * its content is never loaded on the heap.
+ * 
+ * @author Roberto Badaro
+ */
+public class FileAttachment extends Attachment {
+
+    /**
+     * Creates an attachment named after the file, with the content type probed from it.
+     * 
+     * @param path
+     *            Attached file.
+     */
+    public FileAttachment(Path path) {
+
+        this(path, probeContentType(path), path.getFileName().toString());
+    }
+
+    /**
+     * Creates an attachment.
+     * 
+     * @param path
+     *            Attached file.
+     * @param contentType
+     *            Attachment content type. If not provided, "application/octet-stream" will be used.
+     * @param label
+     *            Used as the attachment filename.
+     */
+    public FileAttachment(Path path, String contentType, String label) {
+
+        super(path, contentType, label);
+    }
+
+    public FileAttachment(File file, String contentType, String label) {
+
+        this(file != null ? file.toPath() : null, contentType, label);
+    }
+
+    public Path getPath() {
+        return (Path) content;
+    }
+
+    @Override
+    public void setContent(Object content) {
+
+        checkArgument(content instanceof Path, "content");
+        super.setContent(content);
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected static String probeContentType(Path path) {
+
+        checkArgument(path != null, "path");
+
+        try {
+            String type = Files.probeContentType(path);
+            return (type != null ? type : OCTET_STREAM);
+        } catch (IOException e) {
+            return OCTET_STREAM;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail;
+
+/**
+ * Identity of a deferred content, implemented by a {@link ContentSupplier} or {@link StreamSupplier} alongside its
+ * own interface. Derived idempotency keys hash the id instead of building or reading the content, which the
+ * suppliers only do when the message is encoded.
+ * 
+ * <pre>
+ * class InvoiceSupplier implements ContentSupplier, IdentifiedContent {
+ *     ...
+ *     public String getContentId() {
+ *         return "invoice-" + order.getId() + "-" + order.getVersion();
+ *     }
+ * }
+ * </pre>
+ * 
+ * @author Roberto Badaro
+ */
+public interface IdentifiedContent {
+
+    /**
+     * @return An id changing whenever the supplied content does.
+     */
+    String getContentId();
+
+}
@@ -27,6 +27,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.mail.internet.InternetAddress;
+
 /**
  * A class to configure a mail to be sent.
  * 
@@ -37,13 +39,36 @@ public class Mail extends Body {
     protected Map<String, String> header;
     protected String sender;
     protected String from;
+    protected AddressList replyTo;
+    protected AddressList to;
+    protected AddressList cc;
+    protected AddressList bcc;
+
+    /**
+     * @deprecated Addresses are kept parsed, in {@link #replyTo}. Addresses appended here are still read.
+     */
+    @Deprecated
     protected StringBuilder _replyTo;
+    /**
+     * @deprecated Addresses are kept parsed, in {@link #to}. Addresses appended here are still read.
+     */
+    @Deprecated
     protected StringBuilder _to;
+    /**
+     * @deprecated Addresses are kept parsed, in {@link #cc}. Addresses appended here are still read.
+     */
+    @Deprecated
     protected StringBuilder _cc;
+    /**
+     * @deprecated Addresses are kept parsed, in {@link #bcc}. Addresses appended here are still read.
+     */
+    @Deprecated
     protected StringBuilder _bcc;
 
     protected List<Attachment> attachments;
 
+    protected String idempotencyKey;
+
     /**
      * Appends a "reply-to" mail address.
      * 
@@ -51,7 +76,7 @@ public class Mail extends Body {
      * @return A reference to this object.
      */
     public Mail addReplyTo(String mailAddress) {
-        _replyTo = append(_replyTo, mailAddress);
+        replyTo = append(replyTo, mailAddress);
         return this;
     }
 
@@ -59,10 +84,11 @@ public class Mail extends Body {
      * Appends a "To" mail address.
      * 
      * @param mailAddress
+     *            One or more comma separated addresses, validated when added. Duplicates are ignored.
      * @return A reference to this object.
      */
     public Mail addTo(String mailAddress) {
-        _to = append(_to, mailAddress);
+        to = append(to, mailAddress);
         return this;
     }
 
@@ -73,7 +99,7 @@ public class Mail extends Body {
      * @return A reference to this object.
      */
     public Mail addCc(String mailAddress) {
-        _cc = append(_cc, mailAddress);
+        cc = append(cc, mailAddress);
         return this;
     }
 
@@ -84,7 +110,40 @@ public class Mail extends Body {
      * @return A reference to this object.
      */
     public Mail addBcc(String mailAddress) {
-        _bcc = append(_bcc, mailAddress);
+        bcc = append(bcc, mailAddress);
+        return this;
+    }
+
+    /**
+     * Appends already parsed "To" addresses.
+     * 
+     * @param mailAddress
+     * @return A reference to this object.
+     */
+    public Mail addTo(InternetAddress... mailAddress) {
+        to = append(to, mailAddress);
+        return this;
+    }
+
+    /**
+     * Appends already parsed "Cc" addresses.
+     * 
+     * @param mailAddress
+     * @return A reference to this object.
+     */
+    public Mail addCc(InternetAddress... mailAddress) {
+        cc = append(cc, mailAddress);
+        return this;
+    }
+
+    /**
+     * Appends already parsed "Bcc" addresses, e.g. of a large mailing, without a string round-trip.
+     * 
+     * @param mailAddress
+     * @return A reference to this object.
+     */
+    public Mail addBcc(InternetAddress... mailAddress) {
+        bcc = append(bcc, mailAddress);
         return this;
     }
 
@@ -191,35 +250,67 @@ public class Mail extends Body {
     }
 
     public String getReplyTo() {
-        return toStringOrNull(_replyTo);
+        return toStringOrNull(addresses(replyTo, _replyTo));
     }
 
     public void setReplyTo(String replyTo) {
-        _replyTo = toStringBuilderOrNull(replyTo);
+        this.replyTo = parse(replyTo);
+        _replyTo = null;
+    }
+
+    /**
+     * @return The "reply-to" addresses or {@code null} if none.
+     */
+    public InternetAddress[] getReplyToAddresses() {
+        return toArrayOrNull(addresses(replyTo, _replyTo));
     }
 
     public String getTo() {
-        return toStringOrNull(_to);
+        return toStringOrNull(addresses(to, _to));
     }
 
     public void setTo(String to) {
-        _to = toStringBuilderOrNull(to);
+        this.to = parse(to);
+        _to = null;
+    }
+
+    /**
+     * @return The "To" addresses or {@code null} if none.
+     */
+    public InternetAddress[] getToAddresses() {
+        return toArrayOrNull(addresses(to, _to));
     }
 
     public String getCc() {
-        return toStringOrNull(_cc);
+        return toStringOrNull(addresses(cc, _cc));
     }
 
     public void setCc(String cc) {
-        _cc = toStringBuilderOrNull(cc);
+        this.cc = parse(cc);
+        _cc = null;
+    }
+
+    /**
+     * @return The "Cc" addresses or {@code null} if none.
+     */
+    public InternetAddress[] getCcAddresses() {
+        return toArrayOrNull(addresses(cc, _cc));
     }
 
     public String getBcc() {
-        return toStringOrNull(_bcc);
+        return toStringOrNull(addresses(bcc, _bcc));
     }
 
     public void setBcc(String bcc) {
-        _bcc = toStringBuilderOrNull(bcc);
+        this.bcc = parse(bcc);
+        _bcc = null;
+    }
+
+    /**
+     * @return The "Bcc" addresses or {@code null} if none.
+     */
+    public InternetAddress[] getBccAddresses() {
+        return toArrayOrNull(addresses(bcc, _bcc));
     }
 
     public String getSubject() {
@@ -243,20 +334,92 @@ public class Mail extends Body {
         this.attachments = attachments;
     }
 
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    /**
+     * Sets the identity of the mail across sends: it is written in the Message-ID, and a send of a key already
+     * confirmed is skipped by a courier with a dedup store.
+     * 
+     * @param idempotencyKey
+     *            Letters, digits and {@code !#$%&'*+-/=?^_`{|}~.}, or {@code null}.
+     */
+    public void setIdempotencyKey(String idempotencyKey) {
+
+        checkArgument(idempotencyKey == null || isAtomText(idempotencyKey), "idempotencyKey");
+        this.idempotencyKey = idempotencyKey;
+    }
+
     //
     // Internal methods
     //
 
+    protected String toStringOrNull(AddressList list) {
+
+        return (list != null && !list.isEmpty() ? list.toString() : null);
+    }
+
+    protected InternetAddress[] toArrayOrNull(AddressList list) {
+
+        return (list != null && !list.isEmpty() ? list.toArray() : null);
+    }
+
+    protected static boolean isAtomText(String s) {
+
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                    "!#$%&'*+-/=?^_`{|}~.".indexOf(c) >= 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The list with the addresses appended to a deprecated field by a subclass, if any.
+     */
+    @SuppressWarnings("deprecation")
+    protected AddressList addresses(AddressList list, StringBuilder legacy) {
+
+        if (legacy == null || legacy.length() == 0) {
+            return list;
+        }
+
+        AddressList merged = new AddressList();
+        if (list != null && !list.isEmpty()) {
+            merged.add(list.toArray());
+        }
+        merged.add(legacy.toString());
+        return merged;
+    }
+
+    /**
+     * @deprecated Use {@link #toStringOrNull(AddressList)}.
+     */
+    @Deprecated
     protected String toStringOrNull(StringBuilder sb) {
 
         return (sb != null ? sb.toString() : null);
     }
 
+    /**
+     * @deprecated Use {@link #parse(String)}.
+     */
+    @Deprecated
     protected StringBuilder toStringBuilderOrNull(String s) {
 
         return (isNotBlank(s) ? new StringBuilder(s) : null);
     }
 
+    /**
+     * @deprecated Use {@link #append(AddressList, String)}.
+     */
+    @Deprecated
     protected StringBuilder append(StringBuilder target, String address) {
 
         checkArgument(isNotBlank(address), "address");
@@ -270,4 +433,33 @@ public class Mail extends Body {
 
         return target.append(address);
     }
+
+    protected AddressList parse(String addresses) {
+
+        return (isNotBlank(addresses) ? append((AddressList) null, addresses) : null);
+    }
+
+    protected AddressList append(AddressList target, String address) {
+
+        checkArgument(isNotBlank(address), "address");
+
+        if (target == null) {
+            target = new AddressList();
+        }
+        target.add(address);
+
+        return target;
+    }
+
+    protected AddressList append(AddressList target, InternetAddress... address) {
+
+        checkArgument(address != null, "address");
+
+        if (target == null) {
+            target = new AddressList();
+        }
+        target.add(address);
+
+        return target;
+    }
 }
@@ -43,8 +43,29 @@ public class TextMail extends Mail {
         this.charset = charset;
     }
 
+    /**
+     * Sets a text built when the message is encoded.
+     * 
+     * @param text
+     * @param charset
+     */
+    public void setDeferredText(ContentSupplier text, String charset) {
+        content = text;
+        this.charset = charset;
+    }
+
+    /**
+     * @return The text, built by its supplier if deferred.
+     * @throws IllegalStateException
+     *             If the supplier fails.
+     */
     public String getText() {
-        return (String) content;
+
+        try {
+            return (String) resolveContent();
+        } catch (MailException e) {
+            throw new IllegalStateException(e.getMessage(), e.getCause());
+        }
     }
 
     public String getCharset() {
@@ -0,0 +1,702 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.codec;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.Attachment.Disposition;
+import com.obadaro.jinah.mail.Body;
+import com.obadaro.jinah.mail.HtmlMail;
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.StreamSupplier;
+import com.obadaro.jinah.mail.TextMail;
+
+/**
+ * Compact, versioned binary format of {@link Mail}, {@link TextMail}, {@link HtmlMail} and their
+ * {@link Attachment}s, to persist mails or ship them between services.
+ * <p>
+ * Strings and binary contents are prefixed by their length as a varint. Header names, content types and
+ * charsets are written as an index in a table of common values when found there, and decoded as the same
+ * (interned) instances. Attachments whose content is a {@link Path} or a {@link File} are written by reference
+ * (their path) unless {@link #setAttachmentsByReference(boolean)} is off; deferred contents are resolved and
+ * written by value. Other {@link Serializable} contents are only written and read with Java serialization if
+ * {@link #setAllowSerialized(boolean) allowed}.
+ * </p>
+ * <p>
+ * {@link #decode(ByteBuffer)} reads the fields in place from a heap, direct or mapped buffer, without copying
+ * the record first. Encoding and decoding buffers are kept per thread. A codec is thread safe once configured.
+ * </p>
+ * 
+ * @author Roberto Badaro
+ */
+public class MailCodec {
+
+    /** Format version written. Decoding accepts this version and the ones before it. */
+    public static final int VERSION = 1;
+
+    /** First byte of an encoded mail. */
+    public static final byte MAGIC = (byte) 0xB7;
+
+    private static final int MAIL = 0;
+    private static final int TEXT_MAIL = 1;
+    private static final int HTML_MAIL = 2;
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int BYTES = 2;
+    private static final int FILE = 3;
+    private static final int PATH = 4;
+    private static final int SERIALIZED = 5;
+
+    /**
+     * Header names, content types and charsets written as their index. Part of the format: values are only
+     * ever appended.
+     */
+    private static final String[] TOKENS = {
+        // Headers
+        "X-Mailer", "X-Priority", "Importance", "Priority", "Sensitivity", "Precedence", "Auto-Submitted",
+        "List-Id", "List-Unsubscribe", "List-Unsubscribe-Post", "In-Reply-To", "References", "Return-Path",
+        "Organization", "Keywords", "Comments", "Disposition-Notification-To", "Return-Receipt-To",
+        "X-Auto-Response-Suppress", "X-Campaign", "X-Entity-Ref-ID", "Feedback-ID",
+        // Charsets
+        "UTF-8", "utf-8", "ISO-8859-1", "US-ASCII", "windows-1252", "UTF-16",
+        // Content types
+        "application/octet-stream", "application/pdf", "application/zip", "application/json", "application/xml",
+        "text/plain", "text/html", "text/csv", "text/xml", "text/calendar", "text/plain; charset=UTF-8",
+        "text/html; charset=UTF-8", "image/png", "image/jpeg", "image/gif", "image/svg+xml" };
+
+    private static final Map<String, Integer> TOKEN_INDEX = new HashMap<String, Integer>(TOKENS.length * 2);
+
+    static {
+        for (int i = 0; i < TOKENS.length; i++) {
+            TOKEN_INDEX.put(TOKENS[i], i);
+        }
+    }
+
+    /** Buffers kept per thread: encoding buffer and string scratch for direct buffers. */
+    private static final int MAX_RETAINED = 64 * 1024;
+    static final ThreadLocal<Output> OUTPUT = new ThreadLocal<Output>();
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>();
+
+    protected boolean attachmentsByReference = true;
+    protected boolean allowSerialized;
+
+    /**
+     * @param buffer
+     * @return If the bytes from the buffer position start an encoded mail.
+     */
+    public static boolean isEncoded(ByteBuffer buffer) {
+        return buffer.remaining() > 1 && buffer.get(buffer.position()) == MAGIC;
+    }
+
+    /**
+     * @param mail
+     * @return The encoded mail.
+     * @throws MailException
+     *             If the mail or one of its contents is not supported, or a content can't be read.
+     */
+    public byte[] encode(Mail mail) throws MailException {
+
+        Output out = Output.acquire();
+        try {
+            encode(mail, out);
+            return out.toByteArray();
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Writes an encoded mail to a stream.
+     * 
+     * @param mail
+     * @param os
+     * @throws MailException
+     */
+    public void encode(Mail mail, OutputStream os) throws MailException {
+
+        checkArgument(os != null, "os");
+
+        Output out = Output.acquire();
+        try {
+            encode(mail, out);
+            os.write(out.buf, 0, out.pos);
+        } catch (IOException e) {
+            throw new MailException("Error writing mail.", e);
+        } finally {
+            out.release();
+        }
+    }
+
+    public Mail decode(byte[] data) throws MailException {
+
+        checkArgument(data != null, "data");
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    public Mail decode(byte[] data, int offset, int length) throws MailException {
+
+        checkArgument(data != null, "data");
+        return decode(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Decodes a mail from the buffer position, leaving the position after it.
+     * 
+     * @param buffer
+     * @return The mail.
+     * @throws MailException
+     *             If the bytes are not a well-formed encoded mail, of a known version.
+     */
+    public Mail decode(ByteBuffer buffer) throws MailException {
+
+        checkArgument(buffer != null, "buffer");
+
+        try {
+            if (buffer.get() != MAGIC) {
+                throw new MailException("Not an encoded mail.");
+            }
+            int version = buffer.get() & 0xFF;
+            if (version < 1 || version > VERSION) {
+                throw new MailException("Unsupported mail format version: " + version);
+            }
+            return decodeMail(buffer);
+
+        } catch (BufferUnderflowException e) {
+            throw new MailException("Truncated mail.", e);
+        } catch (RuntimeException e) {
+            // E.g. an address or idempotency key refused by the mail setters.
+            throw new MailException("Malformed mail.", e);
+        } catch (IOException e) {
+            throw new MailException("Error decoding mail.", e);
+        } catch (ClassNotFoundException e) {
+            throw new MailException("Error decoding mail.", e);
+        }
+    }
+
+    public boolean isAttachmentsByReference() {
+        return attachmentsByReference;
+    }
+
+    /**
+     * @param attachmentsByReference
+     *            If {@code false}, the contents of file attachments are written instead of their path, for
+     *            readers without access to the files.
+     */
+    public void setAttachmentsByReference(boolean attachmentsByReference) {
+        this.attachmentsByReference = attachmentsByReference;
+    }
+
+    public boolean isAllowSerialized() {
+        return allowSerialized;
+    }
+
+    /**
+     * @param allowSerialized
+     *            If {@code true}, contents other than strings, bytes, files and suppliers are written and read
+     *            with Java serialization. Off by default: reading serialized objects from untrusted data can run
+     *            arbitrary code, only allow it for records written and stored by trusted parties.
+     */
+    public void setAllowSerialized(boolean allowSerialized) {
+        this.allowSerialized = allowSerialized;
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected void encode(Mail mail, Output out) throws MailException {
+
+        checkArgument(mail != null, "mail");
+
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(typeOf(mail));
+
+        Map<String, String> header = mail.getHeader();
+        out.writeVarint(header != null ? header.size() : 0);
+        if (header != null) {
+            for (Entry<String, String> entry : header.entrySet()) {
+                out.writeToken(entry.getKey());
+                out.writeString(entry.getValue());
+            }
+        }
+
+        out.writeString(mail.getSender());
+        out.writeString(mail.getFrom());
+        out.writeString(mail.getReplyTo());
+        out.writeString(mail.getTo());
+        out.writeString(mail.getCc());
+        out.writeString(mail.getBcc());
+        out.writeString(mail.getSubject());
+        out.writeToken(mail.getLabelCharset());
+
+        if (mail instanceof TextMail) {
+            out.writeToken(((TextMail) mail).getCharset());
+            out.writeString((String) mail.resolveContent());
+        } else {
+            out.writeToken(mail.getContentType());
+            writeContent(out, mail);
+        }
+
+        List<Attachment> attachments = mail.getAttachments();
+        out.writeVarint(attachments != null ? attachments.size() : 0);
+        if (attachments != null) {
+            for (Attachment a : attachments) {
+                out.writeString(a.getLabel());
+                out.writeToken(a.getLabelCharset());
+                out.writeToken(a.getContentType());
+                out.write(a.getDisposition() != null ? a.getDisposition().ordinal() + 1 : 0);
+                writeContent(out, a);
+            }
+        }
+
+        out.writeString(mail.getIdempotencyKey());
+    }
+
+    protected Mail decodeMail(ByteBuffer in) throws MailException, IOException, ClassNotFoundException {
+
+        int type = in.get();
+        if (type < MAIL || type > HTML_MAIL) {
+            throw new MailException("Unknown mail type: " + type);
+        }
+        Mail mail = (type == HTML_MAIL ? new HtmlMail() : type == TEXT_MAIL ? new TextMail() : new Mail());
+
+        int headers = readCount(in);
+        if (headers > 0) {
+            Map<String, String> header = new HashMap<String, String>(headers * 2);
+            for (int i = 0; i < headers; i++) {
+                String name = readToken(in);
+                header.put(name, readString(in));
+            }
+            mail.setHeader(header);
+        }
+
+        mail.setSender(readString(in));
+        mail.setFrom(readString(in));
+        mail.setReplyTo(readString(in));
+        mail.setTo(readString(in));
+        mail.setCc(readString(in));
+        mail.setBcc(readString(in));
+        mail.setSubject(readString(in), readToken(in));
+
+        if (mail instanceof TextMail) {
+            String charset = readToken(in);
+            ((TextMail) mail).setText(readString(in), charset);
+        } else {
+            String contentType = readToken(in);
+            mail.setContent(readContent(in));
+            mail.setContentType(contentType);
+        }
+
+        int attachments = readCount(in);
+        if (attachments > 0) {
+            Disposition[] dispositions = Disposition.values();
+            List<Attachment> list = new ArrayList<Attachment>(attachments);
+            for (int i = 0; i < attachments; i++) {
+                Attachment a = new Attachment();
+                a.setLabel(readString(in));
+                a.setLabelCharset(readToken(in));
+                String contentType = readToken(in);
+                int disposition = in.get();
+                if (disposition < 0 || disposition > dispositions.length) {
+                    throw new MailException("Unknown disposition: " + disposition);
+                }
+                a.setContent(readContent(in), contentType);
+                a.setDisposition(disposition > 0 ? dispositions[disposition - 1] : null);
+                list.add(a);
+            }
+            mail.setAttachments(list);
+        }
+
+        mail.setIdempotencyKey(readString(in));
+
+        return mail;
+    }
+
+    private static int typeOf(Mail mail) throws MailException {
+
+        Class<?> type = mail.getClass();
+        if (type == HtmlMail.class) {
+            return HTML_MAIL;
+        }
+        if (type == TextMail.class) {
+            return TEXT_MAIL;
+        }
+        if (type == Mail.class) {
+            return MAIL;
+        }
+        throw new MailException("Unsupported mail type: " + type.getName());
+    }
+
+    private void writeContent(Output out, Body body) throws MailException {
+
+        Object content = body.resolveContent();
+        try {
+            if (content == null) {
+                out.write(NULL);
+
+            } else if (content instanceof String) {
+                out.write(STRING);
+                out.writeString((String) content);
+
+            } else if (content instanceof byte[]) {
+                out.write(BYTES);
+                out.writeBytes((byte[]) content);
+
+            } else if (content instanceof File || content instanceof Path) {
+                Path path = (content instanceof File ? ((File) content).toPath() : (Path) content);
+                if (attachmentsByReference) {
+                    out.write(content instanceof File ? FILE : PATH);
+                    out.writeString(content.toString());
+                } else {
+                    out.write(BYTES);
+                    out.writeBytes(Files.readAllBytes(path));
+                }
+
+            } else if (content instanceof StreamSupplier) {
+                out.write(BYTES);
+                InputStream in = ((StreamSupplier) content).open();
+                try {
+                    out.writeStream(in);
+                } finally {
+                    in.close();
+                }
+
+            } else if (content instanceof Serializable) {
+                if (!allowSerialized) {
+                    throw new MailException("Serialized content not allowed: " + content.getClass().getName());
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(bytes);
+                oos.writeObject(content);
+                oos.close();
+
+                out.write(SERIALIZED);
+                out.writeBytes(bytes.toByteArray());
+
+            } else {
+                throw new MailException("Unsupported content type: " + content.getClass().getName());
+            }
+        } catch (IOException e) {
+            throw new MailException("Error encoding content.", e);
+        }
+    }
+
+    private Object readContent(ByteBuffer in) throws MailException, IOException, ClassNotFoundException {
+
+        int type = in.get();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case BYTES:
+                return readBytes(in);
+            case FILE:
+                return new File(readString(in));
+            case PATH:
+                return Paths.get(readString(in));
+            case SERIALIZED:
+                if (!allowSerialized) {
+                    throw new MailException("Serialized content not allowed.");
+                }
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+                try {
+                    return ois.readObject();
+                } finally {
+                    ois.close();
+                }
+            default:
+                throw new MailException("Unknown content type: " + type);
+        }
+    }
+
+    static int readVarint(ByteBuffer in) throws MailException {
+
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new MailException("Malformed varint.");
+    }
+
+    /**
+     * Reads a count of entries, each taking two bytes at least: a count the remaining bytes can't hold is
+     * malformed.
+     */
+    private static int readCount(ByteBuffer in) throws MailException {
+
+        int count = readVarint(in);
+        if (count > in.remaining() / 2) {
+            throw new MailException("Malformed count: " + count);
+        }
+        return count;
+    }
+
+    private static int readLength(ByteBuffer in, int length) throws MailException {
+
+        if (length > in.remaining()) {
+            throw new MailException("Truncated mail.");
+        }
+        return length;
+    }
+
+    /**
+     * Reads a string in place from the backing array or, for a direct buffer, through a scratch array kept per
+     * thread.
+     */
+    static String readString(ByteBuffer in) throws MailException {
+
+        int n = readVarint(in);
+        if (n == 0) {
+            return null;
+        }
+        int length = readLength(in, n - 1);
+
+        if (in.hasArray()) {
+            int pos = in.position();
+            String s = new String(in.array(), in.arrayOffset() + pos, length, StandardCharsets.UTF_8);
+            in.position(pos + length);
+            return s;
+        }
+
+        byte[] scratch = SCRATCH.get();
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[Math.max(length, 1024)];
+            if (scratch.length <= MAX_RETAINED) {
+                SCRATCH.set(scratch);
+            }
+        }
+        in.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static String readToken(ByteBuffer in) throws MailException {
+
+        int n = readVarint(in);
+        if (n == 0) {
+            return null;
+        }
+        if (n <= TOKENS.length) {
+            return TOKENS[n - 1];
+        }
+
+        int length = readLength(in, n - TOKENS.length - 1);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8).intern();
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws MailException {
+
+        byte[] bytes = new byte[readLength(in, readVarint(in))];
+        in.get(bytes);
+        return bytes;
+    }
+
+    // Inner classes
+
+    /**
+     * Growable, unsynchronized output buffer.
+     */
+    protected static final class Output {
+
+        byte[] buf;
+        int pos;
+        boolean inUse;
+
+        Output(int size) {
+            buf = new byte[size];
+        }
+
+        /**
+         * @return The empty buffer of the thread, or a new one if in use (a content supplier encoding a mail).
+         */
+        static Output acquire() {
+
+            Output out = OUTPUT.get();
+            if (out == null) {
+                out = new Output(4096);
+                OUTPUT.set(out);
+            } else if (out.inUse) {
+                out = new Output(4096);
+            }
+            out.pos = 0;
+            out.inUse = true;
+            return out;
+        }
+
+        /**
+         * Ends the use of the buffer, dropping it from the thread if grown past the size retained.
+         */
+        void release() {
+
+            inUse = false;
+            if (buf.length > MAX_RETAINED && OUTPUT.get() == this) {
+                OUTPUT.remove();
+            }
+        }
+
+        void write(int b) {
+
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeVarint(int value) {
+
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        /**
+         * Writes a string: its UTF-8 length plus one ({@code 0} if null), then its bytes.
+         */
+        void writeString(String s) {
+
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+                if (s.charAt(i) >= 0x80) {
+                    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                    writeVarint(bytes.length + 1);
+                    ensure(bytes.length);
+                    System.arraycopy(bytes, 0, buf, pos, bytes.length);
+                    pos += bytes.length;
+                    return;
+                }
+            }
+
+            writeVarint(length + 1);
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                buf[pos++] = (byte) s.charAt(i);
+            }
+        }
+
+        /**
+         * Writes the index of a common value plus one, or the length of the value after the table and the
+         * value.
+         */
+        void writeToken(String s) {
+
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+
+            Integer index = TOKEN_INDEX.get(s);
+            if (index != null) {
+                writeVarint(index + 1);
+            } else {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeVarint(TOKENS.length + 1 + bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buf, pos, bytes.length);
+                pos += bytes.length;
+            }
+        }
+
+        /**
+         * Writes a stream, its length prefix reserved at its max size and fixed after.
+         */
+        void writeStream(InputStream in) throws IOException {
+
+            ensure(5);
+            int start = pos;
+            pos += 5;
+            int n;
+            while (true) {
+                ensure(8192);
+                n = in.read(buf, pos, buf.length - pos);
+                if (n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+
+            // Padded varint: continuation bits over 5 bytes.
+            int length = pos - start - 5;
+            for (int i = 0; i < 4; i++) {
+                buf[start + i] = (byte) (((length >>> (7 * i)) & 0x7F) | 0x80);
+            }
+            buf[start + 4] = (byte) (length >>> 28);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int n) {
+
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.dedup;
+
+/**
+ * Remembers the idempotency keys of the mails sent, so a mail sent again (e.g. retried after a timeout while the
+ * relay had accepted it) is skipped. A send claims its key first, then confirms it when sent or releases it when
+ * failed. Implementations must be safe for concurrent use.
+ * 
+ * @author Roberto Badaro
+ */
+public interface DedupStore {
+
+    /**
+     * Claims a key before sending its mail.
+     * 
+     * @param key
+     * @return {@link Claim#CLAIMED} if the mail may be sent; {@link Claim#CONFIRMED} if it was sent already;
+     *         {@link Claim#IN_PROGRESS} if a send of the key has not finished yet, and may still fail.
+     */
+    Claim claim(String key);
+
+    /**
+     * Records a claimed key as sent: it is not claimed again until it expires.
+     * 
+     * @param key
+     */
+    void confirm(String key);
+
+    /**
+     * Releases a claimed key whose send failed, so it may be sent again.
+     * 
+     * @param key
+     */
+    void release(String key);
+
+    /**
+     * @param key
+     * @return If the key was confirmed and has not expired.
+     */
+    boolean isConfirmed(String key);
+
+    // Inner classes
+
+    /**
+     * Outcome of a {@link DedupStore#claim(String)}.
+     */
+    enum Claim {
+
+        /** Claimed by the caller, who must confirm or release it. */
+        CLAIMED,
+
+        /** Sent already. */
+        CONFIRMED,
+
+        /** Claimed by a send in progress. */
+        IN_PROGRESS;
+
+    }
+}
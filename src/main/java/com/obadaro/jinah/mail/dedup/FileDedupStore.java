@@ -0,0 +1,266 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.dedup;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.obadaro.jinah.common.internals.Logger;
+import com.obadaro.jinah.mail.MailException;
+
+/**
+ * {@link MemoryDedupStore} whose confirmed keys survive a restart: each confirmation is appended to a file as a
+ * {@code expiresAt key} line, replayed when the store is opened. Claims stay in memory.
+ * <p>
+ * Confirmations are queued and appended by a writer thread, in batches, so a send never waits for the file.
+ * Appends are written, not forced: they survive a crash of the JVM (once the writer got to them), not of the
+ * host. The file is rewritten with the live keys when opened and, by the writer, whenever its lines reach twice
+ * {@link #getMaxKeys()}.
+ * </p>
+ * 
+ * @author Roberto Badaro
+ */
+public class FileDedupStore extends MemoryDedupStore implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(FileDedupStore.class.getName());
+
+    private static final int MAX_BATCH_CHARS = 64 * 1024;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    protected final File file;
+
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<String>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // Owned by the writer thread once started.
+    private FileChannel channel;
+    private long lines;
+
+    /**
+     * Opens a store with {@link #DEFAULT_MAX_KEYS} and {@link #DEFAULT_TTL_MILLIS}.
+     * 
+     * @param file
+     * @return The store.
+     * @throws MailException
+     */
+    public static FileDedupStore open(File file) throws MailException {
+        return new FileDedupStore(file, DEFAULT_MAX_KEYS, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param file
+     *            Created if not found.
+     * @param maxKeys
+     * @param ttlMillis
+     * @throws MailException
+     */
+    public FileDedupStore(File file, int maxKeys, long ttlMillis) throws MailException {
+
+        super(maxKeys, ttlMillis);
+
+        checkArgument(file != null, "file");
+        this.file = file;
+
+        try {
+            replay();
+            compact();
+        } catch (IOException e) {
+            throw new MailException("Error opening dedup store " + file, e);
+        }
+
+        writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                write();
+            }
+        }, "jinah-mail-dedup-" + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Confirms the key in memory and queues its line for the writer. After {@link #close()}, the key is only
+     * kept in memory.
+     */
+    @Override
+    public void confirm(String key) {
+
+        long expiresAt = now() + ttlMillis;
+        restore(key, expiresAt);
+
+        if (!closed) {
+            pending.offer(expiresAt + " " + key + "\n");
+            LockSupport.unpark(writer);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Stops the writer once the queued confirmations are written, and closes the file.
+     */
+    @Override
+    public void close() {
+
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //
+    // Internal methods
+    //
+
+    /**
+     * Writer loop: appends the queued lines in batches, compacting the file when it grew too long.
+     */
+    private void write() {
+
+        try {
+            while (true) {
+                // Read before draining: lines queued before the close are written.
+                boolean stop = closed;
+                String line = pending.poll();
+                if (line == null) {
+                    if (stop) {
+                        return;
+                    }
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                    continue;
+                }
+
+                StringBuilder batch = new StringBuilder(256);
+                int count = 0;
+                do {
+                    batch.append(line);
+                    count++;
+                } while (batch.length() < MAX_BATCH_CHARS && (line = pending.poll()) != null);
+
+                append(batch, count);
+            }
+
+        } finally {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn(e, "Error closing dedup store " + file);
+            }
+        }
+    }
+
+    private void append(CharSequence batch, int count) {
+
+        try {
+            ByteBuffer buffer = StandardCharsets.US_ASCII.encode(CharBuffer.wrap(batch));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            lines += count;
+            if (lines >= 2L * maxKeys) {
+                compact();
+            }
+        } catch (IOException e) {
+            // Kept in memory: only lost on restart.
+            LOG.warn(e, "Error writing dedup store " + file);
+        }
+    }
+
+    private void replay() throws IOException {
+
+        if (!file.exists()) {
+            return;
+        }
+
+        long now = now();
+        BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.US_ASCII);
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                int space = line.indexOf(' ');
+                if (space <= 0 || space == line.length() - 1) {
+                    // A line cut by a crash.
+                    continue;
+                }
+                try {
+                    long expiresAt = Long.parseLong(line.substring(0, space));
+                    if (expiresAt > now) {
+                        restore(line.substring(space + 1), expiresAt);
+                    }
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Rewrites the file with the live confirmed keys, replacing it atomically.
+     */
+    private void compact() throws IOException {
+
+        Path path = file.toPath();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        final StringBuilder sb = new StringBuilder(64 * 1024);
+        final long[] count = new long[1];
+        forEachConfirmed((key, expiresAt) -> {
+            sb.append(expiresAt).append(' ').append(key).append('\n');
+            count[0]++;
+        });
+
+        Files.write(tmp, sb.toString().getBytes(StandardCharsets.US_ASCII));
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        lines = count[0];
+    }
+}
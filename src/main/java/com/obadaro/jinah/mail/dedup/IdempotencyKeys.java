@@ -0,0 +1,173 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.dedup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.obadaro.jinah.common.util.Preconditions;
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.Body;
+import com.obadaro.jinah.mail.ContentSupplier;
+import com.obadaro.jinah.mail.IdentifiedContent;
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.StreamSupplier;
+import com.obadaro.jinah.mail.TextMail;
+
+/**
+ * Idempotency keys derived from the contents of a mail, for callers without an identity of their own: the
+ * same mail, sent again, gets the same key.
+ * 
+ * @author Roberto Badaro
+ */
+public final class IdempotencyKeys {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Bytes of the digest kept in the key. */
+    private static final int KEY_BYTES = 16;
+
+    private IdempotencyKeys() {
+        // NOOP
+    }
+
+    /**
+     * Derives a key from the addresses, subject, headers, body and attachments of a mail. File attachments are
+     * identified by path, size and modification time, not read. Deferred and streamed contents are neither built
+     * nor read: they are identified by their {@link IdentifiedContent#getContentId() id}.
+     * 
+     * @param mail
+     * @return 32 hexadecimal digits.
+     * @throws MailException
+     *             If a deferred or streamed content has no id, or a file attachment is missing: the mail needs an
+     *             explicit idempotency key.
+     */
+    public static String derive(Mail mail) throws MailException {
+
+        Preconditions.checkArgument(mail != null, "mail");
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        update(digest, mail.getSender());
+        update(digest, mail.getFrom());
+        update(digest, mail.getReplyTo());
+        update(digest, mail.getTo());
+        update(digest, mail.getCc());
+        update(digest, mail.getBcc());
+        update(digest, mail.getSubject());
+
+        Map<String, String> header = mail.getHeader();
+        if (header != null) {
+            for (Map.Entry<String, String> e : new TreeMap<String, String>(header).entrySet()) {
+                update(digest, e.getKey());
+                update(digest, e.getValue());
+            }
+        }
+
+        update(digest, mail instanceof TextMail ? ((TextMail) mail).getSubtype() : mail.getContentType());
+        updateContent(digest, mail);
+
+        List<Attachment> attachments = mail.getAttachments();
+        if (attachments != null) {
+            for (Attachment a : attachments) {
+                update(digest, a.getLabel());
+                update(digest, a.getContentType());
+                update(digest, a.getDisposition() != null ? a.getDisposition().name() : null);
+                updateContent(digest, a);
+            }
+        }
+
+        byte[] hash = digest.digest();
+        char[] key = new char[KEY_BYTES * 2];
+        for (int i = 0; i < KEY_BYTES; i++) {
+            key[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            key[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(key);
+    }
+
+    //
+    // Internal methods
+    //
+
+    private static void update(MessageDigest digest, String s) {
+
+        if (s == null) {
+            digest.update((byte) 0);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            updateLength(digest, bytes.length);
+            digest.update(bytes);
+        }
+    }
+
+    private static void updateContent(MessageDigest digest, Body body) throws MailException {
+
+        Object content = body.getContent();
+        if (content instanceof byte[]) {
+            byte[] bytes = (byte[]) content;
+            updateLength(digest, bytes.length);
+            digest.update(bytes);
+
+        } else if (content instanceof Path || content instanceof File) {
+            Path path = (content instanceof File ? ((File) content).toPath() : (Path) content);
+            update(digest, path.toAbsolutePath().toString());
+            try {
+                update(digest, Files.size(path) + "/" + Files.getLastModifiedTime(path).toMillis());
+            } catch (IOException e) {
+                throw new MailException("Error reading the attributes of " + path + ".", e);
+            }
+
+        } else if (content instanceof ContentSupplier || content instanceof StreamSupplier) {
+            // Suppliers are only called when the message is encoded.
+            if (!(content instanceof IdentifiedContent)) {
+                throw new MailException("Deferred content without an id: set an idempotency key on the mail.");
+            }
+            digest.update((byte) 2);
+            update(digest, ((IdentifiedContent) content).getContentId());
+
+        } else {
+            update(digest, content != null ? content.toString() : null);
+        }
+    }
+
+    private static void updateLength(MessageDigest digest, int length) {
+
+        digest.update((byte) 1);
+        digest.update((byte) (length >>> 24));
+        digest.update((byte) (length >>> 16));
+        digest.update((byte) (length >>> 8));
+        digest.update((byte) length);
+    }
+}
@@ -0,0 +1,255 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.dedup;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * In-memory {@link DedupStore}, bounded and expiring. Keys are spread over stripes, each a map in expiry order
+ * under its own lock, so concurrent sends of different keys rarely wait on each other. When a stripe is full its
+ * oldest key is evicted: a mail sent again after its key was evicted or expired is not detected.
+ * 
+ * @author Roberto Badaro
+ */
+public class MemoryDedupStore implements DedupStore {
+
+    public static final int DEFAULT_MAX_KEYS = 100000;
+    public static final long DEFAULT_TTL_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final int STRIPES = 32;
+
+    protected final int maxKeys;
+    protected final long ttlMillis;
+
+    private final Stripe[] stripes;
+
+    public MemoryDedupStore() {
+        this(DEFAULT_MAX_KEYS, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param maxKeys
+     *            Keys kept, confirmed or claimed.
+     * @param ttlMillis
+     *            Time a key is kept since it was claimed or confirmed.
+     */
+    public MemoryDedupStore(int maxKeys, long ttlMillis) {
+
+        checkArgument(maxKeys > 0, "maxKeys");
+        checkArgument(ttlMillis > 0, "ttlMillis");
+
+        this.maxKeys = maxKeys;
+        this.ttlMillis = ttlMillis;
+
+        int perStripe = Math.max(1, (maxKeys + STRIPES - 1) / STRIPES);
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    @Override
+    public Claim claim(String key) {
+
+        checkArgument(key != null, "key");
+
+        long now = now();
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            stripe.expire(now);
+            Entry entry = stripe.keys.get(key);
+            if (entry != null && entry.expiresAt > now) {
+                return (entry.confirmed ? Claim.CONFIRMED : Claim.IN_PROGRESS);
+            }
+            stripe.keys.remove(key);
+            stripe.put(key, new Entry(now + ttlMillis, false));
+            return Claim.CLAIMED;
+        }
+    }
+
+    @Override
+    public void confirm(String key) {
+        restore(key, now() + ttlMillis);
+    }
+
+    @Override
+    public void release(String key) {
+
+        checkArgument(key != null, "key");
+
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Entry entry = stripe.keys.get(key);
+            if (entry != null && !entry.confirmed) {
+                stripe.keys.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public boolean isConfirmed(String key) {
+
+        checkArgument(key != null, "key");
+
+        long now = now();
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Entry entry = stripe.keys.get(key);
+            return entry != null && entry.confirmed && entry.expiresAt > now;
+        }
+    }
+
+    /**
+     * @return Keys kept, expired ones not yet removed included.
+     */
+    public int size() {
+
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.keys.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return Keys removed before expiring, the store being full.
+     */
+    public long getEvictions() {
+
+        long evictions = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                evictions += stripe.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    //
+    // Internal methods
+    //
+
+    /**
+     * Records a key as confirmed until a given time.
+     */
+    protected void restore(String key, long expiresAt) {
+
+        checkArgument(key != null, "key");
+
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            // Reinserted at the end: stripes stay in expiry order.
+            stripe.keys.remove(key);
+            stripe.put(key, new Entry(expiresAt, true));
+        }
+    }
+
+    /**
+     * Calls {@code action} with each confirmed key and its expiry time.
+     */
+    protected void forEachConfirmed(ObjLongConsumer<String> action) {
+
+        long now = now();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Map.Entry<String, Entry> e : stripe.keys.entrySet()) {
+                    if (e.getValue().confirmed && e.getValue().expiresAt > now) {
+                        action.accept(e.getKey(), e.getValue().expiresAt);
+                    }
+                }
+            }
+        }
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private Stripe stripeOf(String key) {
+
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    // Inner classes
+
+    private static final class Entry {
+
+        final long expiresAt;
+        final boolean confirmed;
+
+        Entry(long expiresAt, boolean confirmed) {
+            this.expiresAt = expiresAt;
+            this.confirmed = confirmed;
+        }
+    }
+
+    private static final class Stripe {
+
+        final LinkedHashMap<String, Entry> keys = new LinkedHashMap<String, Entry>();
+        final int maxKeys;
+        long evictions;
+
+        Stripe(int maxKeys) {
+            this.maxKeys = maxKeys;
+        }
+
+        void put(String key, Entry entry) {
+
+            keys.put(key, entry);
+            if (keys.size() > maxKeys) {
+                Iterator<Entry> it = keys.values().iterator();
+                it.next();
+                it.remove();
+                evictions++;
+            }
+        }
+
+        /**
+         * Removes the expired keys at the head. A key restored with a later expiry holds back the next ones, which
+         * lookups check anyway.
+         */
+        void expire(long now) {
+
+            for (Iterator<Entry> it = keys.values().iterator(); it.hasNext();) {
+                if (it.next().expiresAt > now) {
+                    break;
+                }
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.dkim;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Canonicalizes and hashes a message body as it is written (RFC 6376, 3.4.3 and 3.4.4), holding no more than
+ * a small buffer. Line breaks are read as the SMTP transports write them: CRLF, a bare CR or a bare LF. The
+ * header section, up to the first empty line, may be skipped.
+ * 
+ * @author Roberto Badaro
+ */
+final class BodyHasher extends OutputStream {
+
+    private static final int CR = '\r';
+    private static final int LF = '\n';
+
+    private final MessageDigest digest;
+    private final boolean relaxed;
+    private final byte[] buffer = new byte[4096];
+    private int count;
+
+    private boolean header;
+    private int lineLength;
+    private boolean cr;
+    private boolean content;
+    private int pendingLines;
+    private boolean pendingSpace;
+
+    BodyHasher(MessageDigest digest, boolean relaxed, boolean skipHeader) {
+
+        this.digest = digest;
+        this.relaxed = relaxed;
+        this.header = skipHeader;
+    }
+
+    @Override
+    public void write(int b) {
+
+        b &= 0xFF;
+        if (cr) {
+            cr = false;
+            endOfLine();
+            if (b == LF) {
+                return;
+            }
+        }
+
+        if (b == CR) {
+            cr = true;
+        } else if (b == LF) {
+            endOfLine();
+        } else {
+            character(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+
+        for (int i = off, end = off + len; i < end; i++) {
+            write(b[i]);
+        }
+    }
+
+    /**
+     * Ends the body: the trailing empty lines are dropped and the last line ended.
+     * 
+     * @return The body hash.
+     */
+    byte[] finish() {
+
+        if (cr) {
+            cr = false;
+            endOfLine();
+        }
+        if (content || !relaxed) {
+            put(CR);
+            put(LF);
+        }
+        digest.update(buffer, 0, count);
+        count = 0;
+
+        return digest.digest();
+    }
+
+    //
+    // Internal methods
+    //
+
+    private void endOfLine() {
+
+        if (header) {
+            header = lineLength > 0;
+            lineLength = 0;
+        } else {
+            pendingLines++;
+            pendingSpace = false;
+        }
+    }
+
+    private void character(int b) {
+
+        if (header) {
+            lineLength++;
+            return;
+        }
+        if (relaxed && (b == ' ' || b == '\t')) {
+            pendingSpace = true;
+            return;
+        }
+
+        // Empty lines only count when followed by content.
+        for (; pendingLines > 0; pendingLines--) {
+            put(CR);
+            put(LF);
+        }
+        if (pendingSpace) {
+            pendingSpace = false;
+            put(' ');
+        }
+        put(b);
+        content = true;
+    }
+
+    private void put(int b) {
+
+        if (count == buffer.length) {
+            digest.update(buffer, 0, count);
+            count = 0;
+        }
+        buffer[count++] = (byte) b;
+    }
+}
@@ -0,0 +1,247 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.dkim;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+import static com.obadaro.jinah.common.util.Strings.isNotBlank;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.obadaro.jinah.mail.MailException;
+
+/**
+ * DKIM private keys by selector and domain, each one loaded and parsed once. Keys are PEM encoded: PKCS#8
+ * ({@code BEGIN PRIVATE KEY}, RSA or Ed25519) or PKCS#1 ({@code BEGIN RSA PRIVATE KEY}, as written by
+ * {@code opendkim-genkey}).
+ * 
+ * @author Roberto Badaro
+ */
+public class DkimKeys {
+
+    /** DER AlgorithmIdentifier of rsaEncryption, to read a PKCS#1 key as PKCS#8. */
+    private static final byte[] RSA_ALGORITHM = { 0x30, 0x0D, 0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86,
+            (byte) 0xF7, 0x0D, 0x01, 0x01, 0x01, 0x05, 0x00 };
+
+    protected final Loader loader;
+    protected final ConcurrentMap<String, PrivateKey> keys = new ConcurrentHashMap<String, PrivateKey>();
+
+    /**
+     * @param loader
+     *            Reads the PEM text of a key, called once per selector and domain.
+     */
+    public DkimKeys(Loader loader) {
+
+        checkArgument(loader != null, "loader");
+        this.loader = loader;
+    }
+
+    /**
+     * Keys read from {@code <directory>/<domain>/<selector>.private}, the layout of {@code opendkim-genkey -D}.
+     * 
+     * @param directory
+     * @return The key cache.
+     */
+    public static DkimKeys fromDirectory(final Path directory) {
+
+        checkArgument(directory != null, "directory");
+
+        return new DkimKeys(new Loader() {
+
+            @Override
+            public String load(String domain, String selector) throws IOException {
+
+                Path file = directory.resolve(domain).resolve(selector + ".private");
+                return (Files.isRegularFile(file) ? new String(Files.readAllBytes(file), StandardCharsets.US_ASCII)
+                        : null);
+            }
+        });
+    }
+
+    /**
+     * Returns the key of a selector, loading and parsing it on first use.
+     * 
+     * @param domain
+     * @param selector
+     * @return The private key.
+     * @throws MailException
+     *             If the key is missing or not readable.
+     */
+    public PrivateKey getKey(String domain, String selector) throws MailException {
+
+        String id = id(domain, selector);
+        PrivateKey key = keys.get(id);
+        if (key != null) {
+            return key;
+        }
+
+        String pem;
+        try {
+            pem = loader.load(domain, selector);
+        } catch (IOException e) {
+            throw new MailException("Cannot read the DKIM key of " + id, e);
+        }
+        if (pem == null) {
+            throw new MailException("No DKIM key for " + id);
+        }
+
+        key = parsePrivateKey(pem);
+        PrivateKey previous = keys.putIfAbsent(id, key);
+
+        return (previous != null ? previous : key);
+    }
+
+    /**
+     * Adds an already parsed key.
+     * 
+     * @param domain
+     * @param selector
+     * @param key
+     */
+    public void put(String domain, String selector, PrivateKey key) {
+
+        checkArgument(key != null, "key");
+        keys.put(id(domain, selector), key);
+    }
+
+    /**
+     * Drops a cached key, e.g. after a rotation, so the next use loads it again.
+     * 
+     * @param domain
+     * @param selector
+     */
+    public void invalidate(String domain, String selector) {
+        keys.remove(id(domain, selector));
+    }
+
+    /**
+     * Parses a PEM private key.
+     * 
+     * @param pem
+     * @return The key.
+     * @throws MailException
+     *             If it is not a PKCS#8 RSA or Ed25519 key nor a PKCS#1 RSA key.
+     */
+    public static PrivateKey parsePrivateKey(String pem) throws MailException {
+
+        checkArgument(isNotBlank(pem), "pem");
+
+        boolean pkcs1 = pem.contains("BEGIN RSA PRIVATE KEY");
+        StringBuilder base64 = new StringBuilder(pem.length());
+        for (String line : pem.split("\r?\n|\r")) {
+            if (!line.startsWith("-----")) {
+                base64.append(line.trim());
+            }
+        }
+
+        byte[] der;
+        try {
+            der = Base64.getDecoder().decode(base64.toString());
+        } catch (IllegalArgumentException e) {
+            throw new MailException("Not a PEM key", e);
+        }
+
+        if (pkcs1) {
+            der = toPkcs8(der);
+        }
+
+        PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(der);
+        GeneralSecurityException error = null;
+        for (String algorithm : new String[] { "RSA", "Ed25519" }) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePrivate(spec);
+            } catch (GeneralSecurityException e) {
+                error = e;
+            }
+        }
+        throw new MailException("Not an RSA nor an Ed25519 private key", error);
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected static String id(String domain, String selector) {
+
+        checkArgument(isNotBlank(domain), "domain");
+        checkArgument(isNotBlank(selector), "selector");
+
+        return selector + "._domainkey." + domain.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Wraps a PKCS#1 RSAPrivateKey in a PKCS#8 PrivateKeyInfo.
+     */
+    private static byte[] toPkcs8(byte[] pkcs1) {
+
+        ByteArrayOutputStream info = new ByteArrayOutputStream(pkcs1.length + 32);
+        info.write(0x02);
+        info.write(0x01);
+        info.write(0x00);
+        info.write(RSA_ALGORITHM, 0, RSA_ALGORITHM.length);
+        writeDer(info, 0x04, pkcs1);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(info.size() + 4);
+        writeDer(out, 0x30, info.toByteArray());
+        return out.toByteArray();
+    }
+
+    private static void writeDer(ByteArrayOutputStream out, int tag, byte[] content) {
+
+        out.write(tag);
+        int len = content.length;
+        if (len < 0x80) {
+            out.write(len);
+        } else {
+            int n = (len > 0xFFFF ? 3 : len > 0xFF ? 2 : 1);
+            out.write(0x80 | n);
+            for (int i = n - 1; i >= 0; i--) {
+                out.write(len >>> (i * 8));
+            }
+        }
+        out.write(content, 0, len);
+    }
+
+    // Inner classes
+
+    /**
+     * Source of the keys, e.g. files or a secret store.
+     */
+    public interface Loader {
+
+        /**
+         * @param domain
+         * @param selector
+         * @return The PEM text of the key or {@code null} if there is none.
+         */
+        String load(String domain, String selector) throws IOException;
+    }
+}
@@ -0,0 +1,393 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.dkim;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+import static com.obadaro.jinah.common.util.Strings.isNotBlank;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.send.CountingMimeMessage;
+import com.obadaro.jinah.mail.send.MessageFactory;
+import com.obadaro.jinah.mail.send.MessageSigner;
+
+/**
+ * Signs messages with DKIM (RFC 6376, and RFC 8463 for Ed25519 keys) when they are written. To hash the body,
+ * the write encodes the message once into memory and sends it from there (see
+ * {@link CountingMimeMessage#writeUnsigned(java.io.OutputStream)}). The hash is kept with the message, so sends
+ * of the same message to other envelopes, splits and retries neither hash the body again nor, while the signed
+ * headers do not change, sign again. The body is hashed again when its parts change, as told by their
+ * {@link #fingerprint(CountingMimeMessage)}.
+ * <p>
+ * Signing is built into message construction with {@link #factory(MessageFactory)}, e.g.
+ * {@code courier.setMessageFactory(signer.factory(MailMessages.factory()))}.
+ * <p>
+ * Ed25519 signatures need Java 15 or later, or a security provider registered for {@code Ed25519}.
+ * 
+ * @author Roberto Badaro
+ */
+public class DkimSigner implements MessageSigner {
+
+    public static final String HEADER = "DKIM-Signature";
+
+    /** Signed when present. */
+    public static final String[] DEFAULT_HEADERS = { "From", "Sender", "Reply-To", "Subject", "Date",
+            "Message-ID", "To", "Cc", "MIME-Version", "Content-Type", "Content-Transfer-Encoding", "In-Reply-To",
+            "References", "List-Id", "List-Unsubscribe", "List-Unsubscribe-Post" };
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    protected final String domain;
+    protected final String selector;
+    protected final PrivateKey key;
+    protected final boolean ed25519;
+
+    protected Canonicalization headerCanonicalization = Canonicalization.RELAXED;
+    protected Canonicalization bodyCanonicalization = Canonicalization.RELAXED;
+    protected String[] signedHeaders = DEFAULT_HEADERS;
+    protected boolean timestamp = true;
+
+    /**
+     * @param domain
+     *            Signing domain ({@code d=}).
+     * @param selector
+     *            Key selector ({@code s=}).
+     * @param key
+     *            RSA or Ed25519 private key.
+     * @throws IllegalArgumentException
+     *             If the key is Ed25519 and no Ed25519 signature is available (before Java 15).
+     */
+    public DkimSigner(String domain, String selector, PrivateKey key) {
+
+        checkArgument(isNotBlank(domain), "domain");
+        checkArgument(isNotBlank(selector), "selector");
+        checkArgument(key != null, "key");
+
+        String algorithm = key.getAlgorithm();
+        checkArgument("RSA".equals(algorithm) || "EdDSA".equals(algorithm) || "Ed25519".equals(algorithm), "key");
+
+        this.domain = domain;
+        this.selector = selector;
+        this.key = key;
+        this.ed25519 = !"RSA".equals(algorithm);
+
+        if (ed25519) {
+            try {
+                Signature.getInstance("Ed25519");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Ed25519 DKIM keys need Java 15 or later", e);
+            }
+        }
+    }
+
+    /**
+     * @param domain
+     * @param selector
+     * @param keys
+     *            Cache the key is taken from.
+     * @throws MailException
+     *             If the key is missing or not readable.
+     */
+    public DkimSigner(String domain, String selector, DkimKeys keys) throws MailException {
+        this(domain, selector, keys.getKey(domain, selector));
+    }
+
+    /**
+     * @param delegate
+     * @return Factory of the delegate messages, signed by this signer when written.
+     */
+    public MessageFactory factory(final MessageFactory delegate) {
+
+        checkArgument(delegate != null, "delegate");
+
+        return new MessageFactory() {
+
+            @Override
+            public MimeMessage createMessage(Session session, Mail mail) throws MailException {
+
+                MimeMessage msg = delegate.createMessage(session, mail);
+                if (!(msg instanceof CountingMimeMessage)) {
+                    throw new MailException("Cannot sign a " + msg.getClass().getName());
+                }
+                ((CountingMimeMessage) msg).setSigner(DkimSigner.this);
+
+                return msg;
+            }
+        };
+    }
+
+    /**
+     * Sets the {@value #HEADER} header of the message, reusing the body hash and, if the signed headers did not
+     * change, the signature of a previous write.
+     */
+    @Override
+    public void sign(CountingMimeMessage msg) throws IOException, MessagingException {
+
+        Object previous = msg.getSignatureState();
+        State state = (previous instanceof State && ((State) previous).signer == this ? (State) previous : null);
+        int fingerprint = fingerprint(msg);
+        if (state == null || state.fingerprint != fingerprint) {
+            state = new State(this, bodyHash(msg), fingerprint);
+            msg.setSignatureState(state);
+        }
+
+        StringBuilder names = new StringBuilder(128);
+        StringBuilder data = new StringBuilder(1024);
+        for (String name : signedHeaders) {
+            String[] lines = lines(msg, name);
+            // Several instances are signed from the last one up.
+            for (int i = lines.length - 1; i >= 0; i--) {
+                names.append(names.length() > 0 ? ":" : "").append(name.toLowerCase(Locale.ROOT));
+                appendCanonical(data, lines[i]);
+                data.append("\r\n");
+            }
+        }
+
+        String headerData = data.toString();
+        if (headerData.equals(state.headerData) && state.header.equals(msg.getHeader(HEADER, null))) {
+            return;
+        }
+
+        StringBuilder tags = new StringBuilder(256);
+        tags.append("v=1; a=").append(ed25519 ? "ed25519-sha256" : "rsa-sha256");
+        tags.append("; c=").append(headerCanonicalization.tag).append('/').append(bodyCanonicalization.tag);
+        tags.append("; d=").append(domain).append("; s=").append(selector).append(';');
+        if (timestamp) {
+            tags.append(" t=").append(System.currentTimeMillis() / 1000L).append(';');
+        }
+        tags.append("\r\n\th=").append(names).append(";\r\n\tbh=").append(state.bodyHash).append(";\r\n\tb=");
+
+        // The signature covers its own header, with an empty b= tag and no line break.
+        appendCanonical(data, HEADER + ": " + tags);
+        String header = tags + sign(data.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        msg.setHeader(HEADER, header);
+        state.headerData = headerData;
+        state.header = header;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getSelector() {
+        return selector;
+    }
+
+    public Canonicalization getHeaderCanonicalization() {
+        return headerCanonicalization;
+    }
+
+    public void setHeaderCanonicalization(Canonicalization headerCanonicalization) {
+
+        checkArgument(headerCanonicalization != null, "headerCanonicalization");
+        this.headerCanonicalization = headerCanonicalization;
+    }
+
+    public Canonicalization getBodyCanonicalization() {
+        return bodyCanonicalization;
+    }
+
+    public void setBodyCanonicalization(Canonicalization bodyCanonicalization) {
+
+        checkArgument(bodyCanonicalization != null, "bodyCanonicalization");
+        this.bodyCanonicalization = bodyCanonicalization;
+    }
+
+    public String[] getSignedHeaders() {
+        return signedHeaders.clone();
+    }
+
+    /**
+     * @param signedHeaders
+     *            Names of the headers signed when present; must include From.
+     */
+    public void setSignedHeaders(String... signedHeaders) {
+
+        checkArgument(signedHeaders != null, "signedHeaders");
+
+        boolean from = false;
+        for (String name : signedHeaders) {
+            checkArgument(isNotBlank(name) && !HEADER.equalsIgnoreCase(name), "signedHeaders");
+            from |= "From".equalsIgnoreCase(name);
+        }
+        checkArgument(from, "signedHeaders");
+
+        this.signedHeaders = signedHeaders.clone();
+    }
+
+    public boolean isTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @param timestamp
+     *            If the signature time ({@code t=}) is written. Default {@code true}.
+     */
+    public void setTimestamp(boolean timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    //
+    // Internal methods
+    //
+
+    /**
+     * Hashes the canonical body, streaming the message, as encoded for the write, through the hasher.
+     */
+    protected String bodyHash(CountingMimeMessage msg) throws IOException, MessagingException {
+
+        BodyHasher hasher = new BodyHasher(sha256(), bodyCanonicalization == Canonicalization.RELAXED, true);
+        msg.writeUnsigned(hasher);
+
+        return Base64.getEncoder().encodeToString(hasher.finish());
+    }
+
+    /**
+     * @return The {@link CountingMimeMessage#getContentFingerprint() fingerprint} of the content: the body is hashed
+     *         again when it changes.
+     */
+    protected int fingerprint(CountingMimeMessage msg) throws IOException, MessagingException {
+        return msg.getContentFingerprint();
+    }
+
+    protected String sign(byte[] data) throws MessagingException {
+
+        try {
+            Signature signature;
+            if (ed25519) {
+                // RFC 8463: the Ed25519 signature is of the SHA-256 hash.
+                data = sha256().digest(data);
+                signature = Signature.getInstance("Ed25519");
+            } else {
+                signature = Signature.getInstance("SHA256withRSA");
+            }
+            signature.initSign(key);
+            signature.update(data);
+
+            return Base64.getEncoder().encodeToString(signature.sign());
+
+        } catch (GeneralSecurityException e) {
+            throw new MessagingException("Cannot sign with the DKIM key of " + DkimKeys.id(domain, selector), e);
+        }
+    }
+
+    /**
+     * Appends the canonical form of a header line, without the line break.
+     */
+    protected void appendCanonical(StringBuilder sb, String line) {
+
+        if (headerCanonicalization == Canonicalization.SIMPLE) {
+            sb.append(line);
+            return;
+        }
+
+        int colon = line.indexOf(':');
+        sb.append(line.substring(0, colon).trim().toLowerCase(Locale.ROOT)).append(':');
+
+        // Unfolded, whitespace runs as one space, trimmed.
+        boolean space = false;
+        boolean start = true;
+        for (int i = colon + 1; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\r' || c == '\n') {
+                continue;
+            }
+            if (c == ' ' || c == '\t') {
+                space = !start;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(c);
+                start = false;
+            }
+        }
+    }
+
+    private static String[] lines(MimeMessage msg, String name) throws MessagingException {
+
+        List<String> lines = new ArrayList<String>(1);
+        for (Enumeration<?> e = msg.getMatchingHeaderLines(new String[] { name }); e.hasMoreElements();) {
+            lines.add((String) e.nextElement());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    private static MessageDigest sha256() {
+
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Inner classes
+
+    public enum Canonicalization {
+        /** Header and body as written, but for trailing empty body lines. */
+        SIMPLE("simple"),
+        /** Whitespace runs and header name case normalized; tolerates most relays rewriting. */
+        RELAXED("relaxed");
+
+        final String tag;
+
+        Canonicalization(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * What a message keeps of its signature: reset when its content is replaced.
+     */
+    private static final class State {
+
+        final DkimSigner signer;
+        final String bodyHash;
+        final int fingerprint;
+        String headerData;
+        String header;
+
+        State(DkimSigner signer, String bodyHash, int fingerprint) {
+            this.signer = signer;
+            this.bodyHash = bodyHash;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
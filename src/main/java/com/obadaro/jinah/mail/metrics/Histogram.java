@@ -0,0 +1,149 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.metrics;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of non-negative long values with log-linear buckets, as HdrHistogram: values below 128
+ * are exact, larger values are recorded with a relative error under 1/64 (about 1.6%). Recording is lock-free
+ * and never allocates.
+ * 
+ * @author Roberto Badaro
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB_HALF = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_HALF + SUB_HALF;
+
+    protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    protected final AtomicLong count = new AtomicLong();
+    protected final AtomicLong sum = new AtomicLong();
+    protected final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    protected final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value
+     *            Non-negative value.
+     */
+    public void record(long value) {
+
+        checkArgument(value >= 0, "value");
+
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m;
+        while (value < (m = min.get()) && !min.compareAndSet(m, value)) {
+            // Retries.
+        }
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // Retries.
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMin() {
+        return (count.get() > 0 ? min.get() : 0);
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+
+        long n = count.get();
+        return (n > 0 ? (double) sum.get() / n : 0);
+    }
+
+    /**
+     * @param percentile
+     *            From 0 to 100, e.g. 99.9.
+     * @return The highest value equivalent to the value at the percentile, or 0 if empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        checkArgument(percentile >= 0 && percentile <= 100, "percentile");
+
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the recorded values. Values recorded concurrently may be lost or partially kept.
+     */
+    public void reset() {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram[count = " + getCount() + ", p50 = " + getValueAtPercentile(50) + ", p99 = " +
+                getValueAtPercentile(99) + ", p999 = " + getValueAtPercentile(99.9) + ", max = " + getMax() + "]";
+    }
+
+    //
+    // Internal methods
+    //
+
+    static int indexOf(long value) {
+
+        int shift = Math.max(0, (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS);
+        return (shift == 0 ? (int) value : shift * SUB_HALF + (int) (value >>> shift));
+    }
+
+    static long highestValueOf(int index) {
+
+        if (index < 2 * SUB_HALF) {
+            return index;
+        }
+        int shift = index / SUB_HALF - 1;
+        long sub = index - shift * SUB_HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,167 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.metrics;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory {@link MetricsSink}: a {@link Histogram} per timer or distribution, and a counter or gauge per
+ * name, each per relay. Meant for tests, benchmarks and simple reporting, e.g. logging {@link #report()}
+ * periodically.
+ * 
+ * @author Roberto Badaro
+ */
+public class HistogramSink implements MetricsSink {
+
+    protected final ConcurrentMap<String, Histogram> times = new ConcurrentHashMap<String, Histogram>();
+    protected final ConcurrentMap<String, Histogram> values = new ConcurrentHashMap<String, Histogram>();
+    protected final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    protected final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+    @Override
+    public void recordTime(String metric, String relay, long nanos) {
+        histogram(times, key(metric, relay)).record(Math.max(0, nanos));
+    }
+
+    @Override
+    public void recordValue(String metric, String relay, long value) {
+        histogram(values, key(metric, relay)).record(Math.max(0, value));
+    }
+
+    @Override
+    public void increment(String metric, String relay) {
+
+        String key = key(metric, relay);
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    @Override
+    public void gauge(String metric, String relay, LongSupplier value) {
+        gauges.put(key(metric, relay), value);
+    }
+
+    /**
+     * @return The histogram of a timer, in nanoseconds, or {@code null} if nothing was recorded.
+     */
+    public Histogram getTimes(String metric, String relay) {
+        return times.get(key(metric, relay));
+    }
+
+    /**
+     * @return The histogram of a distribution, or {@code null} if nothing was recorded.
+     */
+    public Histogram getValues(String metric, String relay) {
+        return values.get(key(metric, relay));
+    }
+
+    public long getCount(String metric, String relay) {
+
+        LongAdder counter = counters.get(key(metric, relay));
+        return (counter != null ? counter.sum() : 0);
+    }
+
+    /**
+     * @return The current value of a gauge, or {@code 0} if not registered.
+     */
+    public long getGauge(String metric, String relay) {
+
+        LongSupplier gauge = gauges.get(key(metric, relay));
+        return (gauge != null ? gauge.getAsLong() : 0);
+    }
+
+    /**
+     * Clears histograms and counters. Gauges are kept.
+     */
+    public void reset() {
+
+        times.clear();
+        values.clear();
+        counters.clear();
+    }
+
+    /**
+     * @return One line per metric, sorted by name: timers with p50/p99/p999/max in milliseconds, distributions,
+     *         counters and gauges.
+     */
+    public String report() {
+
+        Map<String, String> lines = new TreeMap<String, String>();
+        for (Entry<String, Histogram> e : times.entrySet()) {
+            Histogram h = e.getValue();
+            lines.put(e.getKey(), String.format("count=%d p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+                h.getCount(), millis(h.getValueAtPercentile(50)), millis(h.getValueAtPercentile(99)),
+                millis(h.getValueAtPercentile(99.9)), millis(h.getMax())));
+        }
+        for (Entry<String, Histogram> e : values.entrySet()) {
+            Histogram h = e.getValue();
+            lines.put(e.getKey(), String.format("count=%d mean=%.0f p50=%d p99=%d max=%d", h.getCount(),
+                h.getMean(), h.getValueAtPercentile(50), h.getValueAtPercentile(99), h.getMax()));
+        }
+        for (Entry<String, LongAdder> e : counters.entrySet()) {
+            lines.put(e.getKey(), "count=" + e.getValue().sum());
+        }
+        for (Entry<String, LongSupplier> e : gauges.entrySet()) {
+            lines.put(e.getKey(), "value=" + e.getValue().getAsLong());
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Entry<String, String> line : lines.entrySet()) {
+            sb.append(line.getKey()).append(' ').append(line.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report();
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected static String key(String metric, String relay) {
+        return (relay != null ? metric + "{" + relay + "}" : metric);
+    }
+
+    private static Histogram histogram(ConcurrentMap<String, Histogram> map, String key) {
+
+        Histogram h = map.get(key);
+        if (h == null) {
+            h = map.computeIfAbsent(key, k -> new Histogram());
+        }
+        return h;
+    }
+
+    private static double millis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,101 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Receives the measurements of the send path. Implementations adapt them to a metrics library, or keep them in
+ * memory like {@link HistogramSink}, and must be safe for concurrent use. Every measurement is tagged with the
+ * relay it refers to ({@code protocol://user@host:port}), or {@code null} if none.
+ * 
+ * @author Roberto Badaro
+ */
+public interface MetricsSink {
+
+    /** Connection to the relay, authentication included (javax.mail authenticates while connecting). */
+    String CONNECT = "mail.connect";
+    /** Wait for and validation of a pooled connection, connecting it if needed. */
+    String BORROW = "mail.pool.borrow";
+    /** Building of the MIME message. */
+    String BUILD = "mail.build";
+    /** Transmission of the message ({@code Transport.sendMessage}), all envelopes. */
+    String TRANSMIT = "mail.transmit";
+    /** Whole send of a mail, retries included. */
+    String SEND = "mail.send";
+    /** Size of the transmitted message in bytes. */
+    String SIZE = "mail.size";
+    /** Prefix of the counters of send outcomes, e.g. "mail.result.sent". */
+    String RESULT = "mail.result.";
+    /** Retried attempts. */
+    String RETRIES = "mail.retries";
+    /** Open pooled connections. */
+    String POOL_OPEN = "mail.pool.open";
+    /** Idle pooled connections. */
+    String POOL_IDLE = "mail.pool.idle";
+    /** Mails being sent by an {@code AsyncPostman}. */
+    String IN_FLIGHT = "mail.async.inflight";
+    /** Bytes of mails waiting in an {@code Outbox}. */
+    String BACKLOG = "mail.outbox.backlog";
+
+    /** Discards every measurement. */
+    MetricsSink NOOP = new MetricsSink() {
+
+        @Override
+        public void recordTime(String metric, String relay, long nanos) {
+            // NOOP
+        }
+
+        @Override
+        public void recordValue(String metric, String relay, long value) {
+            // NOOP
+        }
+
+        @Override
+        public void increment(String metric, String relay) {
+            // NOOP
+        }
+
+        @Override
+        public void gauge(String metric, String relay, LongSupplier value) {
+            // NOOP
+        }
+    };
+
+    /**
+     * @param metric
+     * @param relay
+     * @param nanos
+     *            Elapsed time.
+     */
+    void recordTime(String metric, String relay, long nanos);
+
+    /**
+     * Records a value of a distribution, e.g. a message size.
+     */
+    void recordValue(String metric, String relay, long value);
+
+    void increment(String metric, String relay);
+
+    /**
+     * Registers a value read when reported, e.g. a pool size.
+     */
+    void gauge(String metric, String relay, LongSupplier value);
+}
@@ -0,0 +1,690 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.outbox;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.codec.MailCodec;
+import com.obadaro.jinah.mail.metrics.MetricsSink;
+
+/**
+ * A persistent, local outbox of mails: an append-only log of memory-mapped segment files, so mails enqueued
+ * survive a crash of the JVM and are sent after the restart.
+ * <p>
+ * Records are framed as {@code [length][crc32][payload]}, the payload being the delivery count, the time a
+ * requeued mail is due, if any, and the mail encoded by a {@link MailCodec}. Enqueues are made durable by group
+ * commit: the thread that finds the log not yet flushed forces every segment written since the last flush,
+ * covering the records appended meanwhile by the other threads, which just wait for it.
+ * </p>
+ * <p>
+ * Mails taken from the outbox must be acknowledged ({@link #ack(OutboxEntry)}). The position before the oldest
+ * unacknowledged record is kept in {@code outbox.ack}; on open, the outbox replays every record after it, so
+ * delivery is at-least-once. Segments fully acknowledged are deleted. When the segments reach
+ * {@link #getMaxBytes()}, enqueues and requeues block until acknowledgements free a segment, failing after
+ * {@link #getMaxBlockMillis()}.
+ * </p>
+ * 
+ * <pre>
+ * Outbox outbox = Outbox.open(new File("/var/spool/app-mail"));
+ * outbox.enqueue(mail);
+ * ...
+ * new OutboxDispatcher(outbox, courier, 4).start();
+ * </pre>
+ * 
+ * @author Roberto Badaro
+ */
+public class Outbox implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 16L * DEFAULT_SEGMENT_SIZE;
+    public static final long DEFAULT_MAX_BLOCK_MILLIS = 30000L;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String ACK_FILE = "outbox.ack";
+    private static final int FRAME_HEADER = 8;
+    /** Flag of the delivery count byte: a not-before time follows. */
+    private static final int NOT_BEFORE_FLAG = 0x80;
+    private static final int MAX_DELIVERIES = 0x7F;
+
+    protected final File dir;
+    protected final int segmentSize;
+    protected final long maxBytes;
+    protected long maxBlockMillis = DEFAULT_MAX_BLOCK_MILLIS;
+    protected boolean syncOnEnqueue = true;
+    protected MailCodec codec = new MailCodec();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition recordsAvailable = lock.newCondition();
+    private final Condition spaceAvailable = lock.newCondition();
+    private final Object flushLock = new Object();
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final TreeSet<Long> inFlight = new TreeSet<Long>();
+    private Segment current;
+    private long appendPosition;
+    private long readPosition;
+    private long committed;
+    private volatile long durablePosition;
+
+    private final RandomAccessFile ackFile;
+    private final MappedByteBuffer ackBuffer;
+    private boolean closed;
+
+    /**
+     * Opens (or creates) an outbox with the default segment size and disk usage cap.
+     * 
+     * @param dir
+     * @return The outbox, with the records not acknowledged before ready to be taken again.
+     * @throws MailException
+     */
+    public static Outbox open(File dir) throws MailException {
+        return new Outbox(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Opens (or creates) an outbox.
+     * 
+     * @param dir
+     *            Directory of the outbox files.
+     * @param segmentSize
+     *            Size of each segment file. Must not change between openings of the outbox.
+     * @param maxBytes
+     *            Disk usage cap. At least two segments.
+     * @throws MailException
+     */
+    public Outbox(File dir, int segmentSize, long maxBytes) throws MailException {
+
+        checkArgument(dir != null, "dir");
+        checkArgument(segmentSize > FRAME_HEADER, "segmentSize");
+        checkArgument(maxBytes >= 2L * segmentSize, "maxBytes");
+
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new MailException("Can't create outbox directory: " + dir);
+        }
+
+        try {
+            ackFile = new RandomAccessFile(new File(dir, ACK_FILE), "rw");
+            ackBuffer = ackFile.getChannel().map(MapMode.READ_WRITE, 0, 16);
+            long ack = ackBuffer.getLong(0);
+            committed = (ackBuffer.getLong(8) == ~ack ? ack : 0L);
+
+            recover();
+
+        } catch (IOException e) {
+            throw new MailException("Error opening outbox " + dir, e);
+        }
+    }
+
+    /**
+     * Appends a mail to the outbox. Unless {@link #isSyncOnEnqueue()} is off, returns only when the record is
+     * on disk.
+     * 
+     * @param mail
+     * @return Position of the record.
+     * @throws MailException
+     *             If the mail can't be serialized, the outbox is full or on I/O errors.
+     */
+    public long enqueue(Mail mail) throws MailException {
+
+        checkArgument(mail != null, "mail");
+        return append(mail, 0, 0L);
+    }
+
+    /**
+     * Takes the next mail, if any, without waiting.
+     * 
+     * @return The next entry or {@code null} if there is none.
+     * @throws MailException
+     *             If the record can't be read (it's acknowledged, so it's not read again).
+     */
+    public OutboxEntry poll() throws MailException {
+
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next mail, waiting for one up to the timeout.
+     * 
+     * @param timeout
+     * @param unit
+     * @return The next entry or {@code null} if the timeout elapsed or the outbox was closed.
+     * @throws MailException
+     *             If the record can't be read (it's acknowledged, so it's not read again).
+     * @throws InterruptedException
+     */
+    public OutboxEntry take(long timeout, TimeUnit unit) throws MailException, InterruptedException {
+
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            OutboxEntry entry;
+            while ((entry = next()) == null && !closed && nanos > 0L) {
+                nanos = recordsAvailable.awaitNanos(nanos);
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Acknowledges a processed mail, so it's not replayed after a restart.
+     * 
+     * @param entry
+     */
+    public void ack(OutboxEntry entry) {
+
+        checkArgument(entry != null, "entry");
+        ack(entry.getOffset());
+    }
+
+    /**
+     * Appends the mail of the entry again, at the end of the outbox, and acknowledges the entry.
+     * 
+     * @param entry
+     * @return Position of the new record.
+     * @throws MailException
+     */
+    public long requeue(OutboxEntry entry) throws MailException {
+        return requeue(entry, 0L);
+    }
+
+    /**
+     * Appends the mail of the entry again, at the end of the outbox, and acknowledges the entry. The new record
+     * counts against {@link #getMaxBytes()} like an enqueue: when the outbox is full, it waits for space up to
+     * {@link #getMaxBlockMillis()}.
+     * 
+     * @param entry
+     * @param notBefore
+     *            Time (epoch millis) the mail is due again, see {@link OutboxEntry#getNotBefore()}; {@code 0} if
+     *            due now.
+     * @return Position of the new record.
+     * @throws MailException
+     *             If the outbox is full or on I/O errors; the entry is then left unacknowledged.
+     */
+    public long requeue(OutboxEntry entry, long notBefore) throws MailException {
+
+        checkArgument(entry != null, "entry");
+        checkArgument(notBefore >= 0L, "notBefore");
+
+        long offset = append(entry.getMail(), entry.getDeliveries() + 1, notBefore);
+        ack(entry);
+        return offset;
+    }
+
+    /**
+     * @return Bytes of the records not yet acknowledged.
+     */
+    public long getBacklogBytes() {
+
+        lock.lock();
+        try {
+            return appendPosition - committed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers the {@link MetricsSink#BACKLOG} gauge.
+     * 
+     * @param metrics
+     */
+    public void registerGauges(MetricsSink metrics) {
+        metrics.gauge(MetricsSink.BACKLOG, null, this::getBacklogBytes);
+    }
+
+    /**
+     * @return Bytes taken by the segment files.
+     */
+    public long getDiskUsage() {
+
+        lock.lock();
+        try {
+            return (long) segments.size() * segmentSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the log and the acknowledged position to disk and closes the files. Threads waiting in
+     * {@link #take(long, TimeUnit)} return {@code null}.
+     */
+    @Override
+    public void close() {
+
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            recordsAvailable.signalAll();
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        synchronized (flushLock) {
+            for (Segment s : segments.values()) {
+                s.buffer.force();
+                s.close();
+            }
+            ackBuffer.force();
+            try {
+                ackFile.close();
+            } catch (IOException e) {
+                // NOOP
+            }
+        }
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxBlockMillis() {
+        return maxBlockMillis;
+    }
+
+    /**
+     * @param maxBlockMillis
+     *            Max time an enqueue waits for space when the outbox is full.
+     */
+    public void setMaxBlockMillis(long maxBlockMillis) {
+        this.maxBlockMillis = maxBlockMillis;
+    }
+
+    public boolean isSyncOnEnqueue() {
+        return syncOnEnqueue;
+    }
+
+    /**
+     * @param syncOnEnqueue
+     *            If {@code false}, enqueues return as soon as the record is in the mapped segment (it survives a
+     *            JVM crash, but not an OS crash).
+     */
+    public void setSyncOnEnqueue(boolean syncOnEnqueue) {
+        this.syncOnEnqueue = syncOnEnqueue;
+    }
+
+    public MailCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @param codec
+     *            Encodes the records, e.g. with file attachments by value.
+     */
+    public void setCodec(MailCodec codec) {
+
+        checkArgument(codec != null, "codec");
+        this.codec = codec;
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected long append(Mail mail, int deliveries, long notBefore) throws MailException {
+
+        byte[] record = codec.encode(mail);
+        byte[] prefix = new byte[notBefore > 0L ? 9 : 1];
+        prefix[0] = (byte) (Math.min(deliveries, MAX_DELIVERIES) | (notBefore > 0L ? NOT_BEFORE_FLAG : 0));
+        for (int i = 1; i < prefix.length; i++) {
+            prefix[i] = (byte) (notBefore >>> ((8 - i) * 8));
+        }
+
+        int length = prefix.length + record.length;
+        checkArgument(FRAME_HEADER + length <= segmentSize, "Mail larger than the outbox segment size.");
+
+        CRC32 crc = new CRC32();
+        crc.update(prefix);
+        crc.update(record);
+
+        long offset;
+        long end;
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new MailException("Outbox closed.");
+            }
+
+            int pos = (int) (appendPosition - current.start());
+            if (pos + FRAME_HEADER + length > segmentSize) {
+                roll();
+                pos = 0;
+            }
+
+            ByteBuffer buf = current.buffer.duplicate();
+            buf.position(pos + FRAME_HEADER);
+            buf.put(prefix);
+            buf.put(record);
+            current.buffer.putInt(pos + 4, (int) crc.getValue());
+            // Length last: a record is visible only when complete.
+            current.buffer.putInt(pos, length);
+
+            offset = appendPosition;
+            appendPosition += FRAME_HEADER + length;
+            end = appendPosition;
+            recordsAvailable.signalAll();
+
+        } finally {
+            lock.unlock();
+        }
+
+        if (syncOnEnqueue) {
+            flush(end);
+        }
+
+        return offset;
+    }
+
+    /**
+     * Group commit: forces the segments up to the current append position, unless another thread already did
+     * it past the given position.
+     */
+    protected void flush(long position) {
+
+        synchronized (flushLock) {
+            if (durablePosition >= position) {
+                return;
+            }
+
+            long upTo;
+            List<Segment> dirty;
+            lock.lock();
+            try {
+                upTo = appendPosition;
+                dirty = new ArrayList<Segment>(segments.subMap(durablePosition / segmentSize, true,
+                    upTo / segmentSize, true).values());
+            } finally {
+                lock.unlock();
+            }
+
+            for (Segment s : dirty) {
+                s.buffer.force();
+            }
+            durablePosition = upTo;
+        }
+    }
+
+    /**
+     * Reads the next record. Must be called holding the lock.
+     */
+    private OutboxEntry next() throws MailException {
+
+        while (readPosition < appendPosition) {
+            Segment s = segments.get(readPosition / segmentSize);
+            int pos = (int) (readPosition - s.start());
+
+            int length = (pos + FRAME_HEADER <= segmentSize ? s.buffer.getInt(pos) : 0);
+            if (length <= 0) {
+                // Rolled: the next record is at the start of the next segment.
+                readPosition = s.start() + segmentSize;
+                continue;
+            }
+
+            // Decoded in place from the mapped segment.
+            ByteBuffer buf = s.buffer.duplicate();
+            buf.limit(pos + FRAME_HEADER + length);
+            buf.position(pos + FRAME_HEADER);
+            int deliveries = buf.get() & 0xFF;
+            long notBefore = ((deliveries & NOT_BEFORE_FLAG) != 0 ? buf.getLong() : 0L);
+            deliveries &= MAX_DELIVERIES;
+
+            long offset = readPosition;
+            readPosition += FRAME_HEADER + length;
+            inFlight.add(offset);
+
+            boolean decoded = false;
+            try {
+                OutboxEntry entry = new OutboxEntry(offset, deliveries, notBefore, codec.decode(buf));
+                decoded = true;
+                return entry;
+            } finally {
+                if (!decoded) {
+                    // Whatever the codec throws: a record left in flight would never be compacted.
+                    ack(offset);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void ack(long offset) {
+
+        lock.lock();
+        try {
+            if (!inFlight.remove(offset)) {
+                return;
+            }
+
+            long acked = (inFlight.isEmpty() ? readPosition : inFlight.first());
+            if (acked > committed) {
+                committed = acked;
+                ackBuffer.putLong(0, acked);
+                ackBuffer.putLong(8, ~acked);
+                compact();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments fully acknowledged. Must be called holding the lock.
+     */
+    private void compact() {
+
+        boolean deleted = false;
+        while (!segments.isEmpty()) {
+            Segment s = segments.firstEntry().getValue();
+            if (s == current || s.start() + segmentSize > committed) {
+                break;
+            }
+            segments.pollFirstEntry();
+            s.close();
+            s.file.delete();
+            deleted = true;
+        }
+
+        if (deleted) {
+            spaceAvailable.signalAll();
+        }
+    }
+
+    /**
+     * Starts a new segment, waiting for space if the outbox is full. Must be called holding the lock.
+     */
+    private void roll() throws MailException {
+
+        long nanos = TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+        try {
+            while ((segments.size() + 1L) * segmentSize > maxBytes) {
+                if (closed) {
+                    throw new MailException("Outbox closed.");
+                }
+                if (nanos <= 0L) {
+                    throw new MailException("Outbox full (" + maxBytes + " bytes).");
+                }
+                nanos = spaceAvailable.awaitNanos(nanos);
+            }
+
+            current = openSegment(current.index + 1);
+            segments.put(current.index, current);
+            appendPosition = current.start();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailException("Interrupted waiting for outbox space.", e);
+        } catch (IOException e) {
+            throw new MailException("Error creating outbox segment.", e);
+        }
+    }
+
+    /**
+     * Maps the existing segments and finds the end of the log: the first record of the last segment that is
+     * incomplete or fails the CRC check (a write torn by a crash) is discarded with everything after it.
+     */
+    private void recover() throws IOException, MailException {
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    if (f.length() != segmentSize) {
+                        throw new MailException("Segment size mismatch: " + f + " (" + f.length() + " bytes).");
+                    }
+                    long index = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() -
+                            SEGMENT_SUFFIX.length()));
+                    segments.put(index, openSegment(index));
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segments.put(committed / segmentSize, openSegment(committed / segmentSize));
+        }
+
+        current = segments.lastEntry().getValue();
+        int pos = 0;
+        CRC32 crc = new CRC32();
+        while (pos + FRAME_HEADER <= segmentSize) {
+            int length = current.buffer.getInt(pos);
+            if (length <= 0 || pos + FRAME_HEADER + length > segmentSize) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer buf = current.buffer.duplicate();
+            buf.position(pos + FRAME_HEADER);
+            buf.get(payload);
+
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != current.buffer.getInt(pos + 4)) {
+                break;
+            }
+            pos += FRAME_HEADER + length;
+        }
+
+        // Clears what is left of a torn write.
+        for (int i = pos; i < segmentSize && i < pos + FRAME_HEADER; i++) {
+            current.buffer.put(i, (byte) 0);
+        }
+
+        appendPosition = current.start() + pos;
+        durablePosition = appendPosition;
+
+        long first = segments.firstKey() * segmentSize;
+        if (committed < first || committed > appendPosition) {
+            committed = Math.max(first, Math.min(committed, appendPosition));
+        }
+        readPosition = committed;
+
+        compact();
+    }
+
+    private Segment openSegment(long index) throws IOException {
+
+        File file = new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentSize);
+            MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, segmentSize);
+            return new Segment(this, index, file, raf, buffer);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    // Inner classes
+
+    static final class Segment {
+
+        final Outbox outbox;
+        final long index;
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+
+        Segment(Outbox outbox, long index, File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+
+            this.outbox = outbox;
+            this.index = index;
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        long start() {
+            return index * outbox.segmentSize;
+        }
+
+        void close() {
+
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // NOOP
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.outbox;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.obadaro.jinah.common.internals.Logger;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.send.Courier;
+import com.obadaro.jinah.mail.send.RetryPolicy;
+import com.obadaro.jinah.mail.send.SendResult;
+
+/**
+ * Background threads draining an {@link Outbox} into a {@link Courier}.
+ * <p>
+ * Each mail taken is sent and acknowledged, whatever the courier or the classifier throw. Mails failing with a
+ * transient error (see {@link RetryPolicy#classify(SendResult)}) go back to the end of the outbox, due after the
+ * classifier backoff, up to {@link #getMaxDeliveries()} times (if the outbox is full, they wait in memory
+ * instead, unacknowledged); the final outcome of every mail is reported to the listener. Mails taken before they are due wait in memory, still unacknowledged, up to
+ * {@link #getMaxDelayed()}: beyond, the dispatcher stops taking mails until the first one waiting is due, and
+ * leaves the others in the outbox.
+ * </p>
+ * 
+ * @author Roberto Badaro
+ */
+public class OutboxDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(OutboxDispatcher.class.getName());
+
+    public static final int DEFAULT_MAX_DELIVERIES = 5;
+    public static final int DEFAULT_MAX_DELAYED = 1000;
+
+    protected final Outbox outbox;
+    protected final Courier courier;
+    protected final int threads;
+
+    protected RetryPolicy classifier = new RetryPolicy();
+    protected int maxDeliveries = DEFAULT_MAX_DELIVERIES;
+    protected int maxDelayed = DEFAULT_MAX_DELAYED;
+    protected Consumer<? super SendResult> listener;
+
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final PriorityQueue<OutboxEntry> delayed = new PriorityQueue<OutboxEntry>(16,
+        new Comparator<OutboxEntry>() {
+
+            @Override
+            public int compare(OutboxEntry a, OutboxEntry b) {
+                return Long.compare(a.getNotBefore(), b.getNotBefore());
+            }
+        });
+    /** Threads taking a mail that may join {@link #delayed}. Guarded by {@code delayed}. */
+    private int taking;
+    private volatile boolean running;
+
+    /**
+     * @param outbox
+     * @param courier
+     * @param threads
+     *            Number of dispatcher threads (concurrent sends).
+     */
+    public OutboxDispatcher(Outbox outbox, Courier courier, int threads) {
+
+        checkArgument(outbox != null, "outbox");
+        checkArgument(courier != null, "courier");
+        checkArgument(threads > 0, "threads");
+
+        this.outbox = outbox;
+        this.courier = courier;
+        this.threads = threads;
+    }
+
+    /**
+     * Starts the dispatcher threads.
+     */
+    public synchronized void start() {
+
+        if (running) {
+            return;
+        }
+        running = true;
+
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, "jinah-mail-outbox-" + (i + 1));
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Stops the dispatcher threads, waiting for the sends in progress. Mails waiting to be due are left
+     * unacknowledged: they are taken again by a restart of the dispatcher or replayed on open.
+     * 
+     * @param timeoutMillis
+     *            Max time to wait for each thread.
+     * @throws InterruptedException
+     */
+    public synchronized void stop(long timeoutMillis) throws InterruptedException {
+
+        running = false;
+        for (Thread t : workers) {
+            t.join(timeoutMillis);
+        }
+        workers.clear();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getMaxDeliveries() {
+        return maxDeliveries;
+    }
+
+    /**
+     * @param maxDeliveries
+     *            Max times a mail failing with a transient error is taken from the outbox.
+     */
+    public void setMaxDeliveries(int maxDeliveries) {
+
+        checkArgument(maxDeliveries > 0, "maxDeliveries");
+        this.maxDeliveries = maxDeliveries;
+    }
+
+    public int getMaxDelayed() {
+        return maxDelayed;
+    }
+
+    /**
+     * @param maxDelayed
+     *            Max mails taken before they are due kept in memory.
+     */
+    public void setMaxDelayed(int maxDelayed) {
+
+        checkArgument(maxDelayed > 0, "maxDelayed");
+        this.maxDelayed = maxDelayed;
+    }
+
+    public RetryPolicy getClassifier() {
+        return classifier;
+    }
+
+    /**
+     * @param classifier
+     *            Policy classifying the failures as transient or permanent.
+     */
+    public void setClassifier(RetryPolicy classifier) {
+
+        checkArgument(classifier != null, "classifier");
+        this.classifier = classifier;
+    }
+
+    public Consumer<? super SendResult> getListener() {
+        return listener;
+    }
+
+    /**
+     * @param listener
+     *            Receives the final outcome of every mail (called concurrently by the dispatcher threads).
+     */
+    public void setListener(Consumer<? super SendResult> listener) {
+        this.listener = listener;
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected void dispatch() {
+
+        while (running) {
+            try {
+                OutboxEntry entry = nextDelayed();
+                if (entry == null) {
+                    if (!startTaking()) {
+                        // Full: the mails not due yet stay in the outbox.
+                        Thread.sleep(pollMillis());
+                        continue;
+                    }
+                    entry = take();
+                }
+                if (entry != null) {
+                    deliver(entry);
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (MailException e) {
+                LOG.warn(e, "Error dispatching outbox mail.");
+            } catch (RuntimeException e) {
+                LOG.warn(e, "Error dispatching outbox mail.");
+            }
+        }
+    }
+
+    /**
+     * Sends the mail of the entry, then requeues or acknowledges it: an entry is never left in flight, and never
+     * acknowledged unless its outcome is final.
+     */
+    protected void deliver(OutboxEntry entry) {
+
+        SendResult result = null;
+        boolean requeued = false;
+        try {
+            try {
+                result = courier.send(entry.getMail());
+            } catch (RuntimeException e) {
+                result = SendResult.failed(entry.getMail(), e, 0L);
+            }
+
+            if (result.getStatus() == SendResult.Status.FAILED &&
+                    classifier.classify(result) == RetryPolicy.Failure.TRANSIENT &&
+                    entry.getDeliveries() + 1 < maxDeliveries) {
+                requeue(entry);
+                requeued = true;
+            }
+
+        } finally {
+            if (!requeued) {
+                outbox.ack(entry);
+            }
+        }
+
+        if (!requeued && listener != null) {
+            try {
+                listener.accept(result);
+            } catch (RuntimeException e) {
+                LOG.warn(e, "Error notifying outbox mail outcome.");
+            }
+        }
+    }
+
+    /**
+     * Requeues the entry, due after the classifier backoff. If the outbox can't take it (e.g. full during a relay
+     * outage), the entry is kept unacknowledged in memory with the mails not due yet, so it's still replayed
+     * after a restart.
+     */
+    protected void requeue(OutboxEntry entry) {
+
+        long notBefore = System.currentTimeMillis() + retryDelayMillis(entry);
+        try {
+            outbox.requeue(entry, notBefore);
+        } catch (MailException e) {
+            keep(entry, notBefore, e);
+        } catch (RuntimeException e) {
+            keep(entry, notBefore, e);
+        }
+    }
+
+    private void keep(OutboxEntry entry, long notBefore, Exception error) {
+
+        LOG.warn(error, "Error requeuing outbox mail, kept in memory.");
+        synchronized (delayed) {
+            // May exceed maxDelayed by the number of threads: it already left the outbox.
+            delayed.add(entry.redelivered(notBefore));
+        }
+    }
+
+    /**
+     * @param entry
+     *            Entry failed with a transient error.
+     * @return Milliseconds before it is sent again.
+     */
+    protected long retryDelayMillis(OutboxEntry entry) {
+        return classifier.backoffMillis(entry.getDeliveries() + 1);
+    }
+
+    /**
+     * Reserves room in {@link #delayed} for the mail about to be taken.
+     * 
+     * @return {@code false} if there is none.
+     */
+    private boolean startTaking() {
+
+        synchronized (delayed) {
+            if (delayed.size() + taking >= maxDelayed) {
+                return false;
+            }
+            taking++;
+            return true;
+        }
+    }
+
+    /**
+     * Takes the next mail, keeping it in {@link #delayed} if not due yet.
+     * 
+     * @return The mail, if due.
+     */
+    private OutboxEntry take() throws MailException, InterruptedException {
+
+        OutboxEntry entry = null;
+        boolean due = false;
+        try {
+            entry = outbox.take(pollMillis(), TimeUnit.MILLISECONDS);
+            due = (entry != null && entry.getNotBefore() <= System.currentTimeMillis());
+            return (due ? entry : null);
+        } finally {
+            synchronized (delayed) {
+                taking--;
+                if (entry != null && !due) {
+                    delayed.add(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of mails taken before they are due.
+     */
+    int getDelayedCount() {
+
+        synchronized (delayed) {
+            return delayed.size();
+        }
+    }
+
+    private OutboxEntry nextDelayed() {
+
+        synchronized (delayed) {
+            OutboxEntry first = delayed.peek();
+            return (first != null && first.getNotBefore() <= System.currentTimeMillis() ? delayed.poll() : null);
+        }
+    }
+
+    /**
+     * Waits for new mails no longer than the first delayed one is due.
+     */
+    private long pollMillis() {
+
+        synchronized (delayed) {
+            OutboxEntry first = delayed.peek();
+            return (first == null ? 500L : Math.max(1L, Math.min(500L, first.getNotBefore() -
+                    System.currentTimeMillis())));
+        }
+    }
+}
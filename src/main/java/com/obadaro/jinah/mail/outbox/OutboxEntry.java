@@ -0,0 +1,83 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.outbox;
+
+import com.obadaro.jinah.mail.Mail;
+
+/**
+ * A mail taken from the {@link Outbox}, to be acknowledged once processed.
+ * 
+ * @author Roberto Badaro
+ */
+public final class OutboxEntry {
+
+    private final long offset;
+    private final int deliveries;
+    private final long notBefore;
+    private final Mail mail;
+
+    OutboxEntry(long offset, int deliveries, long notBefore, Mail mail) {
+
+        this.offset = offset;
+        this.deliveries = deliveries;
+        this.notBefore = notBefore;
+        this.mail = mail;
+    }
+
+    /**
+     * @return Position of the record in the outbox log.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return Number of times the mail was taken from the outbox and given back (see
+     *         {@link Outbox#requeue(OutboxEntry)}) before this one.
+     */
+    public int getDeliveries() {
+        return deliveries;
+    }
+
+    /**
+     * @return Time (epoch millis) before which the mail should not be sent, {@code 0} if due now. See
+     *         {@link Outbox#requeue(OutboxEntry, long)}.
+     */
+    public long getNotBefore() {
+        return notBefore;
+    }
+
+    public Mail getMail() {
+        return mail;
+    }
+
+    /**
+     * @return The entry given back without leaving the outbox, due again at the given time.
+     */
+    OutboxEntry redelivered(long notBefore) {
+        return new OutboxEntry(offset, deliveries + 1, notBefore, mail);
+    }
+
+    @Override
+    public String toString() {
+        return "OutboxEntry[offset = " + offset + ", deliveries = " + deliveries +
+                (notBefore > 0L ? ", notBefore = " + notBefore : "") + "]";
+    }
+}
@@ -0,0 +1,232 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Session;
+
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.metrics.MetricsSink;
+
+/**
+ * Asynchronous facade to send mails through a {@link Courier}. Each mail gets its own
+ * {@link CompletableFuture}, completed with the {@link SendResult} (failures included, the future is only
+ * completed exceptionally on unexpected errors).
+ * <p>
+ * At most {@link #getMaxInFlight()} mails are in flight at a time: {@link #sendMail(Mail)} blocks the caller
+ * while the limit is reached, so a slow relay can't pile up unbounded work in memory.
+ * </p>
+ * <p>
+ * The default executor runs each send on a virtual thread when the runtime supports them, and on a cached
+ * daemon thread pool otherwise. An {@link SmtpEngine} courier sends without the executor, on its own loops.
+ * </p>
+ * 
+ * @author Roberto Badaro
+ */
+public class AsyncPostman {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    protected final Courier courier;
+    protected final Executor executor;
+    protected final Semaphore inFlight;
+    protected final int maxInFlight;
+
+    private final boolean ownsExecutor;
+
+    public AsyncPostman(Session session, TransportPool pool) {
+        this(new SessionCourier(session, pool));
+    }
+
+    public AsyncPostman(Courier courier) {
+        this(courier, null, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param courier
+     * @param executor
+     *            Executor running the sends. If {@code null}, the default executor is created (and shut down on
+     *            {@link #close()}).
+     * @param maxInFlight
+     *            Max number of mails submitted and not yet sent.
+     */
+    public AsyncPostman(Courier courier, Executor executor, int maxInFlight) {
+
+        checkArgument(courier != null, "courier");
+        checkArgument(maxInFlight > 0, "maxInFlight");
+
+        this.courier = courier;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.ownsExecutor = (executor == null);
+        this.executor = (executor != null ? executor : defaultExecutor());
+    }
+
+    /**
+     * Submits a mail, blocking while {@link #getMaxInFlight()} mails are in flight.
+     * 
+     * @param mail
+     * @return The future send result.
+     * @throws MailException
+     *             If interrupted while waiting for an in-flight slot.
+     */
+    public CompletableFuture<SendResult> sendMail(final Mail mail) throws MailException {
+
+        checkArgument(mail != null, "mail");
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailException("Interrupted waiting for an in-flight slot.", e);
+        }
+
+        if (courier instanceof SmtpEngine) {
+            // The slot is released before the returned future completes.
+            return ((SmtpEngine) courier).sendAsync(mail).whenComplete((result, error) -> inFlight.release());
+        }
+
+        final CompletableFuture<SendResult> future = new CompletableFuture<SendResult>();
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    SendResult result;
+                    try {
+                        result = courier.send(mail);
+                    } catch (Throwable t) {
+                        inFlight.release();
+                        future.completeExceptionally(t);
+                        return;
+                    }
+                    // Released first, so a completed future means a free slot.
+                    inFlight.release();
+                    future.complete(result);
+                }
+            });
+
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Submits the mails, one future per mail, in the same order.
+     * 
+     * @param mails
+     * @return The future send results.
+     * @throws MailException
+     *             If interrupted while waiting for an in-flight slot.
+     */
+    public List<CompletableFuture<SendResult>> sendMail(Mail... mails) throws MailException {
+
+        checkArgument(mails != null, "mails");
+
+        List<CompletableFuture<SendResult>> futures = new ArrayList<CompletableFuture<SendResult>>(mails.length);
+        for (Mail mail : mails) {
+            futures.add(sendMail(mail));
+        }
+        return futures;
+    }
+
+    /**
+     * @return Number of mails submitted and not yet sent.
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Registers the {@link MetricsSink#IN_FLIGHT} gauge.
+     * 
+     * @param metrics
+     */
+    public void registerGauges(MetricsSink metrics) {
+        metrics.gauge(MetricsSink.IN_FLIGHT, null, this::getInFlight);
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public Courier getCourier() {
+        return courier;
+    }
+
+    /**
+     * Shuts down the default executor, letting the submitted mails finish. Provided executors are left
+     * untouched.
+     */
+    public void close() {
+
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    //
+    // Internal methods
+    //
+
+    /**
+     * Creates a virtual thread per task executor if the runtime has it (Java 21+), or a cached pool of daemon
+     * threads.
+     */
+    protected static ExecutorService defaultExecutor() {
+
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            // Virtual threads not supported.
+        }
+
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "jinah-mail-async-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
@@ -0,0 +1,226 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.obadaro.jinah.mail.Mail;
+
+/**
+ * Per-message results of a batch send, in the order the mails were taken from the batch. Streamed batches keep
+ * only the results of the mails not sent, and the counts of all of them.
+ * 
+ * @author Roberto Badaro
+ */
+public class BatchResult {
+
+    protected final List<SendResult> results;
+    protected final int sentCount;
+    protected final int partialCount;
+    protected final int failedCount;
+    protected final int skippedCount;
+    protected final boolean deadlineReached;
+    protected final RuntimeException sourceError;
+    protected final long elapsedNanos;
+
+    public BatchResult(List<SendResult> results, long elapsedNanos) {
+
+        this.results = Collections.unmodifiableList(results);
+        this.sentCount = count(results, SendResult.Status.SENT) + count(results, SendResult.Status.DUPLICATE);
+        this.partialCount = count(results, SendResult.Status.PARTIAL);
+        this.failedCount = count(results, SendResult.Status.FAILED);
+        this.skippedCount = count(results, SendResult.Status.SKIPPED);
+        this.deadlineReached = false;
+        this.sourceError = null;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Creates the result of a batch whose results were not all retained.
+     * 
+     * @param results
+     *            Retained results.
+     * @param sentCount
+     * @param partialCount
+     * @param failedCount
+     * @param skippedCount
+     * @param elapsedNanos
+     */
+    public BatchResult(List<SendResult> results,
+                       int sentCount,
+                       int partialCount,
+                       int failedCount,
+                       int skippedCount,
+                       long elapsedNanos) {
+
+        this(results, sentCount, partialCount, failedCount, skippedCount, false, null, elapsedNanos);
+    }
+
+    /**
+     * Creates the result of a batch whose results were not all retained, that may have been stopped early.
+     * 
+     * @param results
+     *            Retained results.
+     * @param sentCount
+     * @param partialCount
+     * @param failedCount
+     * @param skippedCount
+     * @param deadlineReached
+     *            If the deadline stopped the batch.
+     * @param sourceError
+     *            Exception thrown taking a mail from the batch, that stopped it; {@code null} if none.
+     * @param elapsedNanos
+     */
+    public BatchResult(List<SendResult> results,
+                       int sentCount,
+                       int partialCount,
+                       int failedCount,
+                       int skippedCount,
+                       boolean deadlineReached,
+                       RuntimeException sourceError,
+                       long elapsedNanos) {
+
+        this.results = Collections.unmodifiableList(results);
+        this.sentCount = sentCount;
+        this.partialCount = partialCount;
+        this.failedCount = failedCount;
+        this.skippedCount = skippedCount;
+        this.deadlineReached = deadlineReached;
+        this.sourceError = sourceError;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return The retained results (for streamed batches, only the ones of the mails not sent).
+     */
+    public List<SendResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return Number of mails taken from the batch.
+     */
+    public int size() {
+        return sentCount + partialCount + failedCount + skippedCount;
+    }
+
+    /**
+     * @return Number of mails sent, duplicates of mails already sent included.
+     */
+    public int getSentCount() {
+        return sentCount;
+    }
+
+    public int getPartialCount() {
+        return partialCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    public boolean isAllSent() {
+        return sentCount == size() && !deadlineReached && sourceError == null;
+    }
+
+    /**
+     * @return If the deadline stopped the batch: its remaining mails were skipped or, in streamed batches, left in
+     *         the source.
+     */
+    public boolean isDeadlineReached() {
+        return deadlineReached;
+    }
+
+    /**
+     * @return The exception thrown taking a mail from the batch (e.g. by its iterator or supplier), that stopped
+     *         it; {@code null} if none.
+     */
+    public RuntimeException getSourceError() {
+        return sourceError;
+    }
+
+    /**
+     * @return Results of the mails not sent to all of their recipients (partial, failed or skipped).
+     */
+    public List<SendResult> getUnsent() {
+
+        List<SendResult> unsent = new ArrayList<SendResult>();
+        for (SendResult r : results) {
+            if (!r.isSent()) {
+                unsent.add(r);
+            }
+        }
+        return unsent;
+    }
+
+    /**
+     * @return The mails not sent to any recipient (failed or skipped), e.g. to be sent again. Partial sends are
+     *         left out: sending them again would duplicate them to the recipients that accepted them; see
+     *         {@link #getUnsent()} and {@link SendResult#getRejectedRecipients()}.
+     */
+    public List<Mail> getUnsentMails() {
+
+        List<Mail> unsent = new ArrayList<Mail>();
+        for (SendResult r : results) {
+            if (!r.isSent() && r.getStatus() != SendResult.Status.PARTIAL) {
+                unsent.add(r.getMail());
+            }
+        }
+        return unsent;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult[sent = " + getSentCount() + ", partial = " + getPartialCount() + ", failed = " +
+                getFailedCount() + ", skipped = " + getSkippedCount() + ", " + getElapsedMillis() + " ms" +
+                (deadlineReached ? ", deadline reached" : "") + (sourceError != null ? ", " + sourceError : "") +
+                "]";
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected static int count(List<SendResult> results, SendResult.Status status) {
+
+        int count = 0;
+        for (SendResult r : results) {
+            if (r.getStatus() == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
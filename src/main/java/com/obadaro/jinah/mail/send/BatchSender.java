@@ -0,0 +1,504 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import javax.mail.Session;
+
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+
+/**
+ * Sends batches of mails over several concurrent connections. Each of the {@link #getConnections()} workers
+ * takes the next mail of the batch as soon as it's done with the previous one, so a slow message doesn't hold
+ * back the others.
+ * <p>
+ * Besides arrays and {@link Iterable}s, mails may be pulled from an {@link Iterator}, a {@link Stream} or a
+ * {@link Supplier}, so large batches don't have to be built up front.
+ * </p>
+ * <p>
+ * A batch may have a deadline: once it's reached no more mails are taken, and the remaining ones are reported
+ * as {@link SendResult.Status#SKIPPED} (streamed batches leave them in the iterator instead); see
+ * {@link BatchResult#isDeadlineReached()}. Sends in progress are not interrupted (they are bounded by the
+ * transport timeouts, e.g. {@code mail.smtp.timeout}).
+ * </p>
+ * <p>
+ * An exception thrown taking a mail from the batch stops it: the mails already taken are sent, and the exception
+ * is reported by {@link BatchResult#getSourceError()}.
+ * </p>
+ * 
+ * <pre>
+ * BatchSender sender = new BatchSender(session, 8);
+ * BatchResult result = sender.send(mails, 60000L);
+ * ...
+ * sender.close();
+ * </pre>
+ * 
+ * @author Roberto Badaro
+ */
+public class BatchSender {
+
+    protected final Courier courier;
+    protected final int connections;
+    protected final Executor executor;
+
+    private final TransportPool ownedPool;
+    private final boolean ownsExecutor;
+
+    /**
+     * Creates a sender with its own pool of {@code connections} transports.
+     * 
+     * @param session
+     * @param connections
+     *            Number of concurrent connections.
+     */
+    public BatchSender(Session session, int connections) {
+        this(session, new TransportPool(connections), connections, true);
+    }
+
+    /**
+     * Creates a sender sharing a pool. The pool should allow at least {@code connections} connections.
+     * 
+     * @param session
+     * @param pool
+     * @param connections
+     *            Number of concurrent connections.
+     */
+    public BatchSender(Session session, TransportPool pool, int connections) {
+        this(session, pool, connections, false);
+    }
+
+    /**
+     * Creates a sender sending through the courier.
+     * 
+     * @param courier
+     * @param connections
+     *            Number of concurrent sends.
+     * @param executor
+     *            Executor running the workers. If {@code null}, a default executor is created (and shut down on
+     *            {@link #close()}).
+     */
+    public BatchSender(Courier courier, int connections, Executor executor) {
+
+        checkArgument(courier != null, "courier");
+        checkArgument(connections > 0, "connections");
+
+        this.courier = courier;
+        this.connections = connections;
+        this.ownedPool = null;
+        this.ownsExecutor = (executor == null);
+        this.executor = (executor != null ? executor : AsyncPostman.defaultExecutor());
+    }
+
+    private BatchSender(Session session, TransportPool pool, int connections, boolean ownsPool) {
+
+        checkArgument(pool != null, "pool");
+        checkArgument(connections > 0, "connections");
+
+        this.courier = new SessionCourier(session, pool);
+        this.connections = connections;
+        this.ownedPool = (ownsPool ? pool : null);
+        this.ownsExecutor = true;
+        this.executor = AsyncPostman.defaultExecutor();
+    }
+
+    /**
+     * Sends the mails, waiting for all of them.
+     * 
+     * @param mails
+     * @return Per-message results, in the same order of the mails.
+     * @throws MailException
+     *             If interrupted.
+     */
+    public BatchResult send(Mail... mails) throws MailException {
+
+        checkArgument(mails != null, "mails");
+        return send(Arrays.asList(mails), 0L);
+    }
+
+    /**
+     * Sends the mails, waiting for all of them or for the deadline.
+     * 
+     * @param mails
+     * @param timeoutMillis
+     *            Batch deadline, relative to now. Zero or less means no deadline.
+     * @return Per-message results, in the same order of the mails.
+     * @throws MailException
+     *             If interrupted.
+     */
+    public BatchResult send(Iterable<? extends Mail> mails, long timeoutMillis) throws MailException {
+
+        checkArgument(mails != null, "mails");
+
+        Batch batch = new Batch(mails.iterator(), deadline(timeoutMillis), true, null);
+        return run(batch);
+    }
+
+    /**
+     * Sends the mails pulled from the iterator, waiting for all of them or for the deadline. Mails are taken
+     * only when a connection is free, built into messages just before being sent and not retained after
+     * that: the returned result keeps only the mails not sent, so memory stays flat regardless of the batch
+     * size. On the deadline, the mails not taken are left in the iterator: {@code hasNext()} is not called once
+     * it's reached. An exception thrown by the iterator stops the batch and is reported by the result.
+     * 
+     * @param mails
+     * @param timeoutMillis
+     *            Batch deadline, relative to now. Zero or less means no deadline.
+     * @param listener
+     *            Receives every result as soon as it's known (called concurrently by the workers). Optional.
+     * @return Results of the mails not sent and the counts of all of them.
+     * @throws MailException
+     *             If interrupted.
+     */
+    public BatchResult send(Iterator<? extends Mail> mails,
+                            long timeoutMillis,
+                            Consumer<? super SendResult> listener) throws MailException {
+
+        checkArgument(mails != null, "mails");
+
+        Batch batch = new Batch(mails, deadline(timeoutMillis), false, listener);
+        return run(batch);
+    }
+
+    /**
+     * Sends the mails of the stream. See {@link #send(Iterator, long, Consumer)}.
+     * 
+     * @param mails
+     * @param timeoutMillis
+     * @param listener
+     * @return Results of the mails not sent and the counts of all of them.
+     * @throws MailException
+     *             If interrupted.
+     */
+    public BatchResult send(Stream<? extends Mail> mails, long timeoutMillis, Consumer<? super SendResult> listener)
+            throws MailException {
+
+        checkArgument(mails != null, "mails");
+
+        try {
+            return send(mails.iterator(), timeoutMillis, listener);
+        } finally {
+            mails.close();
+        }
+    }
+
+    /**
+     * Sends the mails produced by the supplier, until it returns {@code null}. See
+     * {@link #send(Iterator, long, Consumer)}.
+     * 
+     * @param mails
+     * @param timeoutMillis
+     * @param listener
+     * @return Results of the mails not sent and the counts of all of them.
+     * @throws MailException
+     *             If interrupted.
+     */
+    public BatchResult send(Supplier<? extends Mail> mails,
+                            long timeoutMillis,
+                            Consumer<? super SendResult> listener) throws MailException {
+
+        checkArgument(mails != null, "mails");
+        return send(new SupplierIterator(mails), timeoutMillis, listener);
+    }
+
+    protected BatchResult run(Batch batch) throws MailException {
+
+        long start = System.nanoTime();
+
+        int workers = connections;
+        CountDownLatch done = new CountDownLatch(workers);
+        for (int i = 0; i < workers; i++) {
+            try {
+                executor.execute(new Worker(batch, done));
+            } catch (RejectedExecutionException e) {
+                done.countDown();
+            }
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            batch.cancel();
+            Thread.currentThread().interrupt();
+            throw new MailException("Interrupted sending batch.", e);
+        }
+
+        return batch.toResult(System.nanoTime() - start);
+    }
+
+    private static long deadline(long timeoutMillis) {
+
+        return (timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1000000L : 0L);
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public Courier getCourier() {
+        return courier;
+    }
+
+    /**
+     * Shuts down the default executor and closes the sender's own pool, if any.
+     */
+    public void close() {
+
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+        if (ownedPool != null) {
+            ownedPool.close();
+        }
+    }
+
+    // Inner classes
+
+    /**
+     * State of a running batch: the mails to take and their results, guarded by the batch lock.
+     */
+    protected static final class Batch {
+
+        final Iterator<? extends Mail> mails;
+        final long deadline;
+        final boolean retainAll;
+        final Consumer<? super SendResult> listener;
+
+        final List<SendResult> results = new ArrayList<SendResult>();
+        int sent;
+        int partial;
+        int failed;
+        int skipped;
+        boolean cancelled;
+        boolean deadlineReached;
+        RuntimeException sourceError;
+
+        Batch(Iterator<? extends Mail> mails,
+              long deadline,
+              boolean retainAll,
+              Consumer<? super SendResult> listener) {
+
+            this.mails = mails;
+            this.deadline = deadline;
+            this.retainAll = retainAll;
+            this.listener = listener;
+        }
+
+        /**
+         * @return The next mail to send or {@code null} if there are no more mails to send.
+         */
+        synchronized Slot next() {
+
+            if (cancelled) {
+                return null;
+            }
+            // Before hasNext(): it may already pull a mail from a stream or a supplier.
+            if (deadline != 0L && System.nanoTime() - deadline >= 0L) {
+                cancelled = true;
+                deadlineReached = true;
+                if (retainAll) {
+                    drain(new MailException("Batch deadline exceeded."));
+                }
+                return null;
+            }
+
+            Mail mail;
+            try {
+                if (!mails.hasNext()) {
+                    return null;
+                }
+                mail = mails.next();
+            } catch (RuntimeException e) {
+                // No telling what the source is left with: no more mails are taken.
+                cancelled = true;
+                sourceError = e;
+                return null;
+            }
+
+            int index = -1;
+            if (retainAll) {
+                // Reserves the position of the mail.
+                results.add(null);
+                index = results.size() - 1;
+            }
+            return new Slot(index, mail);
+        }
+
+        void complete(Slot slot, SendResult result) {
+
+            synchronized (this) {
+                switch (result.getStatus()) {
+                    case SENT:
+                    case DUPLICATE:
+                        sent++;
+                        break;
+                    case PARTIAL:
+                        partial++;
+                        break;
+                    case FAILED:
+                        failed++;
+                        break;
+                    default:
+                        skipped++;
+                }
+
+                if (retainAll) {
+                    results.set(slot.index, result);
+                } else if (!result.isSent()) {
+                    results.add(result);
+                }
+            }
+
+            if (listener != null) {
+                listener.accept(result);
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+        }
+
+        synchronized BatchResult toResult(long elapsedNanos) {
+
+            if (retainAll && sourceError == null) {
+                // Anything left (e.g. workers rejected by the executor) is reported as skipped.
+                drain(new MailException("Batch not completed."));
+            }
+            return new BatchResult(new ArrayList<SendResult>(results), sent, partial, failed, skipped,
+                deadlineReached, sourceError, elapsedNanos);
+        }
+
+        private void drain(MailException reason) {
+
+            try {
+                while (mails.hasNext()) {
+                    SendResult result = SendResult.skipped(mails.next(), reason);
+                    results.add(result);
+                    skipped++;
+                    if (listener != null) {
+                        listener.accept(result);
+                    }
+                }
+            } catch (RuntimeException e) {
+                sourceError = e;
+            }
+        }
+    }
+
+    /**
+     * A mail taken from the batch and its position in the results.
+     */
+    protected static final class Slot {
+
+        final int index;
+        final Mail mail;
+
+        Slot(int index, Mail mail) {
+
+            this.index = index;
+            this.mail = mail;
+        }
+    }
+
+    protected class Worker implements Runnable {
+
+        final Batch batch;
+        final CountDownLatch done;
+
+        Worker(Batch batch, CountDownLatch done) {
+
+            this.batch = batch;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                Slot slot;
+                while ((slot = batch.next()) != null) {
+                    SendResult result;
+                    try {
+                        result = courier.send(slot.mail);
+                    } catch (RuntimeException e) {
+                        result = SendResult.failed(slot.mail, e, 0L);
+                    }
+                    batch.complete(slot, result);
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Iterates over the mails of a supplier, until it returns {@code null}.
+     */
+    static final class SupplierIterator implements Iterator<Mail> {
+
+        final Supplier<? extends Mail> supplier;
+        Mail next;
+        boolean done;
+
+        SupplierIterator(Supplier<? extends Mail> supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            if (next == null && !done) {
+                next = supplier.get();
+                done = (next == null);
+            }
+            return next != null;
+        }
+
+        @Override
+        public Mail next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Mail mail = next;
+            next = null;
+            return mail;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
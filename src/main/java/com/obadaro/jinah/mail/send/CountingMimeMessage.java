@@ -0,0 +1,282 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+
+import javax.activation.DataHandler;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+
+/**
+ * A message counting the bytes it writes, so the size of a sent message is known without encoding it twice.
+ * It may also keep a fixed Message-ID, e.g. of a mail idempotency key, and be signed by a {@link MessageSigner}
+ * when written.
+ * 
+ * @author Roberto Badaro
+ */
+public class CountingMimeMessage extends MimeMessage {
+
+    private volatile long writtenBytes = -1;
+    private String fixedMessageID;
+    private MessageSigner signer;
+    private Object signatureState;
+    /** While signing a write: the message encoded for the signer, written again instead of encoding it twice. */
+    private EncodedMessage encoded;
+    private boolean signing;
+
+    public CountingMimeMessage(Session session) {
+        super(session);
+    }
+
+    public CountingMimeMessage(Session session, InputStream is) throws MessagingException {
+        super(session, is);
+    }
+
+    /**
+     * @return Bytes of the last {@link #writeTo(OutputStream, String[])}, {@code -1} if not written yet or if the
+     *         last write did not complete.
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * @param writtenBytes
+     *            Bytes of a write made without {@link #writeTo(OutputStream, String[])}.
+     */
+    protected void setWrittenBytes(long writtenBytes) {
+        this.writtenBytes = writtenBytes;
+    }
+
+    public String getFixedMessageID() {
+        return fixedMessageID;
+    }
+
+    /**
+     * @param messageID
+     *            Message-ID set when the message is saved, instead of a new one; {@code null} for a new one.
+     */
+    public void setFixedMessageID(String messageID) {
+        this.fixedMessageID = messageID;
+    }
+
+    public MessageSigner getSigner() {
+        return signer;
+    }
+
+    /**
+     * @param signer
+     *            Signer called before each write, once the message is saved; {@code null} for none.
+     */
+    public void setSigner(MessageSigner signer) {
+        this.signer = signer;
+        this.signatureState = null;
+    }
+
+    /**
+     * @return What the signer kept of its last signature, {@code null} if none or if the content of the message
+     *         was replaced since. Edits of nested parts keep the state: signers reusing a body hash must tell them
+     *         apart themselves.
+     */
+    public Object getSignatureState() {
+        return signatureState;
+    }
+
+    public void setSignatureState(Object signatureState) {
+        this.signatureState = signatureState;
+    }
+
+    /**
+     * Fingerprints the content of the message without encoding it, for signers reusing a body hash: the identity
+     * of the content of every part, with its Content-Type and Content-Transfer-Encoding headers. Catches parts
+     * replaced, added or removed, and encodings changed, e.g. by a transport converting parts to 8bit; not changes
+     * inside a content object, such as a byte array written over. Messages writing their content themselves
+     * return the identity of what they write.
+     * 
+     * @return The fingerprint, equal as long as the content written is.
+     */
+    public int getContentFingerprint() throws IOException, MessagingException {
+        return fingerprint(this);
+    }
+
+    /**
+     * Writes the message as is: not signed nor counted. For signers, e.g. to hash the body. Called by the signer
+     * of a write, the message is encoded once into a buffer and the write sends the body from it, so contents
+     * are not built twice.
+     * 
+     * @param os
+     */
+    public void writeUnsigned(OutputStream os) throws IOException, MessagingException {
+
+        if (!signing) {
+            writeMessage(os, null);
+            return;
+        }
+        if (encoded == null) {
+            EncodedMessage buffer = new EncodedMessage();
+            writeMessage(buffer, null);
+            encoded = buffer;
+        }
+        encoded.writeTo(os);
+    }
+
+    @Override
+    public void setDataHandler(DataHandler dh) throws MessagingException {
+
+        super.setDataHandler(dh);
+        signatureState = null;
+    }
+
+    @Override
+    protected void updateMessageID() throws MessagingException {
+
+        if (fixedMessageID != null) {
+            setHeader("Message-ID", fixedMessageID);
+        } else {
+            super.updateMessageID();
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+
+        writtenBytes = -1;
+        if (signer == null) {
+            CountingOutputStream counting = new CountingOutputStream(os);
+            writeMessage(counting, ignoreList);
+            writtenBytes = counting.count;
+            return;
+        }
+
+        if (!saved) {
+            saveChanges();
+        }
+        signing = true;
+        try {
+            signer.sign(this);
+
+            CountingOutputStream counting = new CountingOutputStream(os);
+            if (encoded != null) {
+                // The signature header added: the headers are written again, the body as encoded.
+                for (Enumeration<?> e = getNonMatchingHeaderLines(ignoreList); e.hasMoreElements();) {
+                    counting.write(((String) e.nextElement() + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                }
+                counting.write('\r');
+                counting.write('\n');
+                encoded.writeBody(counting);
+            } else {
+                writeMessage(counting, ignoreList);
+            }
+            writtenBytes = counting.count;
+
+        } finally {
+            signing = false;
+            encoded = null;
+        }
+    }
+
+    /**
+     * Writes the message to the counted stream, with {@link MimeMessage#writeTo(OutputStream, String[])}.
+     */
+    protected void writeMessage(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+        super.writeTo(os, ignoreList);
+    }
+
+    private static int fingerprint(MimePart part) throws IOException, MessagingException {
+
+        int h = System.identityHashCode(part.getDataHandler());
+        h = 31 * h + hashCode(part.getHeader("Content-Type", null));
+        h = 31 * h + hashCode(part.getHeader("Content-Transfer-Encoding", null));
+
+        if (part.isMimeType("multipart/*")) {
+            Object content = part.getContent();
+            if (content instanceof Multipart) {
+                Multipart multipart = (Multipart) content;
+                h = 31 * h + multipart.getCount();
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    BodyPart child = multipart.getBodyPart(i);
+                    h = 31 * h + (child instanceof MimePart ? fingerprint((MimePart) child) : 0);
+                }
+            }
+        }
+        return h;
+    }
+
+    private static int hashCode(String s) {
+        return (s != null ? s.hashCode() : 0);
+    }
+
+    // Inner classes
+
+    /**
+     * A message encoded into memory, its body after the first empty line.
+     */
+    static final class EncodedMessage extends ByteArrayOutputStream {
+
+        EncodedMessage() {
+            super(8 * 1024);
+        }
+
+        void writeBody(OutputStream os) throws IOException {
+
+            int body = count;
+            for (int i = 0; i + 3 < count; i++) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n') {
+                    body = i + 4;
+                    break;
+                }
+            }
+            os.write(buf, body, count - body);
+        }
+    }
+
+    static final class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers of a single size, for the I/O of the connections of an event loop. Not thread safe:
+ * each loop has its own pool.
+ * 
+ * @author Roberto Badaro
+ */
+final class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxIdle;
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<ByteBuffer>();
+    private long allocated;
+
+    /**
+     * @param bufferSize
+     * @param maxIdle
+     *            Buffers kept when released; the others are left to the garbage collector.
+     */
+    DirectBufferPool(int bufferSize, int maxIdle) {
+
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return A cleared buffer.
+     */
+    ByteBuffer acquire() {
+
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            allocated++;
+        }
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+
+        if (buffer != null && idle.size() < maxIdle) {
+            buffer.clear();
+            idle.push(buffer);
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return Buffers allocated since the pool was created.
+     */
+    long getAllocated() {
+        return allocated;
+    }
+
+    int getIdleCount() {
+        return idle.size();
+    }
+}
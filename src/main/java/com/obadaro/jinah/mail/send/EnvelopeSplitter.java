@@ -0,0 +1,166 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Splits the recipients of a message in SMTP envelopes of at most {@link #getMaxRecipients()} recipients,
+ * grouped by destination domain.
+ * 
+ * @author Roberto Badaro
+ */
+public class EnvelopeSplitter {
+
+    /** Every SMTP server must accept at least 100 recipients per message (RFC 5321, 4.5.3.1.8). */
+    public static final int DEFAULT_MAX_RECIPIENTS = 100;
+
+    protected final int maxRecipients;
+    protected boolean oneDomainPerEnvelope;
+
+    public EnvelopeSplitter() {
+        this(DEFAULT_MAX_RECIPIENTS);
+    }
+
+    /**
+     * @param maxRecipients
+     *            Maximum recipients per envelope, {@code 0} for no limit.
+     */
+    public EnvelopeSplitter(int maxRecipients) {
+        this(maxRecipients, false);
+    }
+
+    /**
+     * @param maxRecipients
+     *            Maximum recipients per envelope, {@code 0} for no limit.
+     * @param oneDomainPerEnvelope
+     *            See {@link #setOneDomainPerEnvelope(boolean)}.
+     */
+    public EnvelopeSplitter(int maxRecipients, boolean oneDomainPerEnvelope) {
+
+        checkArgument(maxRecipients >= 0, "maxRecipients");
+        this.maxRecipients = maxRecipients;
+        this.oneDomainPerEnvelope = oneDomainPerEnvelope;
+    }
+
+    /**
+     * Splits the recipients. Recipients of the same domain are kept together and, unless
+     * {@link #isOneDomainPerEnvelope()}, envelopes are filled with several domains.
+     * 
+     * @param recipients
+     * @return The envelopes' recipients. A single envelope if no split is needed.
+     */
+    public List<Address[]> split(Address[] recipients) {
+
+        checkArgument(recipients != null, "recipients");
+
+        if (!oneDomainPerEnvelope && (maxRecipients == 0 || recipients.length <= maxRecipients)) {
+            return Collections.singletonList(recipients);
+        }
+
+        Map<String, List<Address>> byDomain = new LinkedHashMap<String, List<Address>>();
+        for (Address address : recipients) {
+            String domain = domainOf(address);
+            List<Address> list = byDomain.get(domain);
+            if (list == null) {
+                list = new ArrayList<Address>();
+                byDomain.put(domain, list);
+            }
+            list.add(address);
+        }
+
+        int max = (maxRecipients > 0 ? maxRecipients : Integer.MAX_VALUE);
+        List<Address[]> envelopes = new ArrayList<Address[]>();
+        List<Address> current = new ArrayList<Address>(Math.min(max, recipients.length));
+
+        for (List<Address> domain : byDomain.values()) {
+            if (oneDomainPerEnvelope && !current.isEmpty()) {
+                envelopes.add(toArray(current));
+            }
+            for (Address address : domain) {
+                current.add(address);
+                if (current.size() == max) {
+                    envelopes.add(toArray(current));
+                }
+            }
+        }
+        if (!current.isEmpty()) {
+            envelopes.add(toArray(current));
+        }
+
+        return envelopes;
+    }
+
+    public int getMaxRecipients() {
+        return maxRecipients;
+    }
+
+    public boolean isOneDomainPerEnvelope() {
+        return oneDomainPerEnvelope;
+    }
+
+    /**
+     * @param oneDomainPerEnvelope
+     *            Whether each envelope holds recipients of a single domain, e.g. when the relay delivers
+     *            envelopes in parallel per destination.
+     */
+    public void setOneDomainPerEnvelope(boolean oneDomainPerEnvelope) {
+        this.oneDomainPerEnvelope = oneDomainPerEnvelope;
+    }
+
+    @Override
+    public String toString() {
+        return "EnvelopeSplitter[maxRecipients = " + maxRecipients + ", oneDomainPerEnvelope = " +
+                oneDomainPerEnvelope + "]";
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected static String domainOf(Address address) {
+
+        if (address instanceof InternetAddress) {
+            String addr = ((InternetAddress) address).getAddress();
+            int at = (addr != null ? addr.lastIndexOf('@') : -1);
+            if (at >= 0) {
+                return addr.substring(at + 1).toLowerCase(Locale.ROOT);
+            }
+        }
+        return "";
+    }
+
+    private static Address[] toArray(List<Address> list) {
+
+        Address[] array = list.toArray(new Address[list.size()]);
+        list.clear();
+        return array;
+    }
+}
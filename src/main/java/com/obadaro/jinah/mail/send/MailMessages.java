@@ -24,10 +24,13 @@ import static com.obadaro.jinah.common.util.Strings.ifBlank;
 import static com.obadaro.jinah.common.util.Strings.isAllBlank;
 import static com.obadaro.jinah.common.util.Strings.isNotBlank;
 
+import java.io.File;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import javax.activation.DataHandler;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.AddressException;
@@ -37,6 +40,7 @@ import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMessage.RecipientType;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimePart;
+import javax.mail.util.ByteArrayDataSource;
 
 import com.obadaro.jinah.common.util.Nulls;
 import com.obadaro.jinah.common.util.Strings;
@@ -45,6 +49,7 @@ import com.obadaro.jinah.mail.Attachment.Disposition;
 import com.obadaro.jinah.mail.Body;
 import com.obadaro.jinah.mail.Mail;
 import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.StreamSupplier;
 import com.obadaro.jinah.mail.TextMail;
 
 /**
@@ -56,8 +61,55 @@ public class MailMessages {
     protected static final String UTF8 = "UTF-8";
     protected static final Disposition DEFAULT_DISPOSITION = Disposition.attachment;
 
+    private static final MessageFactory DEFAULT_FACTORY = new MessageFactory() {
+
+        @Override
+        public MimeMessage createMessage(Session session, Mail mail) throws MailException {
+            return MailMessages.createMessage(session, mail);
+        }
+    };
+
+    /**
+     * @return Factory building messages with {@link #createMessage(Session, Mail)}.
+     */
+    public static MessageFactory factory() {
+        return DEFAULT_FACTORY;
+    }
+
+    /**
+     * @param cache
+     * @return Factory building messages with {@link #createMessage(Session, Mail, MimePartCache)}.
+     */
+    public static MessageFactory factory(final MimePartCache cache) {
+
+        checkArgument(cache != null, "cache");
+
+        return new MessageFactory() {
+
+            @Override
+            public MimeMessage createMessage(Session session, Mail mail) throws MailException {
+                return MailMessages.createMessage(session, mail, cache);
+            }
+        };
+    }
+
     public static MimeMessage createMessage(Session session, Mail mail) throws MailException {
 
+        return createMessage(session, mail, null);
+    }
+
+    /**
+     * Creates the message of a mail, taking the attachment parts from the cache.
+     * 
+     * @param session
+     * @param mail
+     * @param cache
+     *            Optional.
+     * @return The message.
+     * @throws MailException
+     */
+    public static MimeMessage createMessage(Session session, Mail mail, MimePartCache cache) throws MailException {
+
         MimeMessage msg = createBaseMessage(session, mail);
         applyHeaderValues(msg, mail.getHeader());
 
@@ -66,7 +118,7 @@ public class MailMessages {
             List<Attachment> attachments = mail.getAttachments();
 
             if (attachments != null && !attachments.isEmpty()) {
-                multipart = createAttachments(session, msg, attachments);
+                multipart = createAttachments(session, msg, attachments, cache);
             } else {
                 multipart = new MimeMultipart();
             }
@@ -86,6 +138,14 @@ public class MailMessages {
                                                   MimeMessage message,
                                                   List<Attachment> attachments) throws MailException {
 
+        return createAttachments(session, message, attachments, null);
+    }
+
+    public static MimeMultipart createAttachments(Session session,
+                                                  MimeMessage message,
+                                                  List<Attachment> attachments,
+                                                  MimePartCache cache) throws MailException {
+
         checkArgument(session != null, "session");
         checkArgument(message != null, "message");
 
@@ -97,7 +157,7 @@ public class MailMessages {
 
         try {
             for (Attachment attachment : attachments) {
-                mmp.addBodyPart(createMimeBodyPart(attachment));
+                mmp.addBodyPart(cache != null ? cache.getBodyPart(attachment) : createMimeBodyPart(attachment));
             }
 
             return mmp;
@@ -114,17 +174,40 @@ public class MailMessages {
         return bodyPart;
     }
 
+    /**
+     * Sets the content and headers of a part. A deferred content is resolved here, and only referenced by the
+     * part.
+     * 
+     * @param body
+     * @param bodyPart
+     * @throws MailException
+     */
     public static void configureMimePart(Body body, MimePart bodyPart) throws MailException {
 
         try {
             boolean primaryBody = (body instanceof Mail);
+            Object content = body.resolveContent();
 
             if (body instanceof TextMail) {
                 TextMail textmail = (TextMail) body;
-                bodyPart.setText(textmail.getText(), textmail.getCharset(), textmail.getSubtype());
+                bodyPart.setText((String) content, textmail.getCharset(), textmail.getSubtype());
+
+            } else if (content instanceof Path || content instanceof File) {
+                configureFilePart(body, content, bodyPart);
+
+            } else if (content instanceof StreamSupplier) {
+                // Streamed, base64 up front as files.
+                bodyPart.setDataHandler(new DataHandler(new StreamDataSource((StreamSupplier) content,
+                        body.getContentType(), body.getLabel())));
+                bodyPart.setHeader("Content-Transfer-Encoding", "base64");
+
+            } else if (content instanceof byte[]) {
+                // Raw bytes have no content handler: written through a data source instead.
+                bodyPart.setDataHandler(new DataHandler(new ByteArrayDataSource((byte[]) content,
+                        Nulls.nvl(body.getContentType(), Attachment.OCTET_STREAM))));
 
             } else {
-                bodyPart.setContent(body.getContent(), body.getContentType());
+                bodyPart.setContent(content, body.getContentType());
             }
 
             if (body instanceof Attachment) {
@@ -141,6 +224,19 @@ public class MailMessages {
         }
     }
 
+    /**
+     * Sets a file content as a data source read while the part is written. The transfer encoding is set to
+     * base64 up front, otherwise the whole file would be read once just to choose it.
+     */
+    protected static void configureFilePart(Body body, Object content, MimePart bodyPart)
+            throws MessagingException {
+
+        Path path = (content instanceof File ? ((File) content).toPath() : (Path) content);
+
+        bodyPart.setDataHandler(new DataHandler(new PathDataSource(path, body.getContentType())));
+        bodyPart.setHeader("Content-Transfer-Encoding", "base64");
+    }
+
     public static void applyHeaderValues(MimeMessage message, Map<String, String> headers)
             throws MailException {
 
@@ -165,13 +261,50 @@ public class MailMessages {
     public static MimeMessage createBaseMessage(Session session, Mail mail) throws MailException {
 
         checkArgument(session != null, "session");
+
+        return initBaseMessage(new CountingMimeMessage(session), mail);
+    }
+
+    /**
+     * Sets the addresses and subject of a mail on a message created by the caller.
+     * 
+     * @param msg
+     * @param mail
+     * @return The message.
+     * @throws MailException
+     */
+    protected static <M extends MimeMessage> M initBaseMessage(M msg, Mail mail) throws MailException {
+
         checkArgument(mail != null, "mail");
 
-        MimeMessage msg =
-                createBaseMessage(session, mail.getSender(), mail.getFrom(), mail.getReplyTo(), mail.getTo(),
-                    mail.getCc(), mail.getBcc(), mail.getSubject(), mail.getLabelCharset());
+        InternetAddress[] to = mail.getToAddresses();
+        InternetAddress[] cc = mail.getCcAddresses();
+        InternetAddress[] bcc = mail.getBccAddresses();
+
+        checkArgument(isNotBlank(mail.getFrom()), "from");
+        checkArgument(to != null || cc != null || bcc != null, "No destinatary found (to, cc or bcc).");
+        checkArgument(isNotBlank(mail.getSubject()), "subject");
+
+        try {
+            // Recipients are parsed when added to the mail: only sender and from are parsed here.
+            InternetAddress[] senderAddress = parseAddress(mail.getSender());
+            InternetAddress[] fromAddress = parseAddress(mail.getFrom());
+
+            if (mail.getIdempotencyKey() != null && msg instanceof CountingMimeMessage) {
+                ((CountingMimeMessage) msg).setFixedMessageID(messageID(mail.getIdempotencyKey(), fromAddress[0]));
+            }
+
+            //@formatter:off
+            return initBaseMessage(msg, 
+                (senderAddress != null ? senderAddress[0] : null),
+                fromAddress[0], 
+                mail.getReplyToAddresses(), to, cc, bcc, mail.getSubject(), 
+                ifBlank(mail.getLabelCharset(), UTF8));
+            //@formatter:on
 
-        return msg;
+        } catch (AddressException e) {
+            throw new MailException(e);
+        }
     }
 
     public static MimeMessage createBaseMessage(Session session,
@@ -221,9 +354,23 @@ public class MailMessages {
                                                 String subject,
                                                 String subjectCharset) throws MailException {
 
-        try {
-            MimeMessage msg = new MimeMessage(session);
+        //@formatter:off
+        return initBaseMessage(new CountingMimeMessage(session), 
+            sender, from, replyTo, to, cc, bcc, subject, subjectCharset);
+        //@formatter:on
+    }
+
+    protected static <M extends MimeMessage> M initBaseMessage(M msg,
+                                                               InternetAddress sender,
+                                                               InternetAddress from,
+                                                               InternetAddress[] replyTo,
+                                                               InternetAddress[] to,
+                                                               InternetAddress[] cc,
+                                                               InternetAddress[] bcc,
+                                                               String subject,
+                                                               String subjectCharset) throws MailException {
 
+        try {
             msg.setFrom(from);
             msg.setSubject(subject, subjectCharset);
 
@@ -250,6 +397,25 @@ public class MailMessages {
         }
     }
 
+    /**
+     * Message-ID of an idempotency key: {@code <key@domain>}, with the domain of the from address.
+     * 
+     * @param key
+     * @param from
+     *            Optional.
+     * @return The Message-ID.
+     */
+    public static String messageID(String key, InternetAddress from) {
+
+        checkArgument(isNotBlank(key), "key");
+
+        String address = (from != null ? from.getAddress() : null);
+        int at = (address != null ? address.lastIndexOf('@') : -1);
+        String domain = (at >= 0 && at < address.length() - 1 ? address.substring(at + 1) : "localhost");
+
+        return "<" + key + "@" + domain + ">";
+    }
+
     protected static InternetAddress[] parseAddress(String address) throws AddressException {
 
         return (isNotBlank(address) ? InternetAddress.parse(address) : null);
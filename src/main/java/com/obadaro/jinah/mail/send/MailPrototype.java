@@ -0,0 +1,357 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+import static com.obadaro.jinah.common.util.Strings.ifBlank;
+import static com.obadaro.jinah.common.util.Strings.isNotBlank;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMessage.RecipientType;
+import javax.mail.internet.MimeMultipart;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.send.PreEncodedBodyPart.Encoded;
+
+/**
+ * A mail frozen once into its encoded form, to send many variants of it. Headers, the multipart boundary and
+ * the attachments are encoded when the prototype is created; each message then only sets its recipients and
+ * subject and encodes its own body.
+ * <p>
+ * As a {@link MessageFactory}, only the recipients, subject, body and idempotency key of the given mail are
+ * taken: sender, headers and attachments are the prototype's. A mail without subject or body gets the prototype's.
+ * Attachments are held encoded in memory for the life of the prototype.
+ * </p>
+ * 
+ * @author Roberto Badaro
+ */
+public class MailPrototype implements MessageFactory {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    /** Headers set on each variant, never taken from the prototype. */
+    private static final String[] VARIANT_HEADERS = { "To", "Cc", "Bcc", "Subject", "Date", "Message-ID" };
+
+    protected final String[] headerLines;
+    protected final InternetAddress from;
+    protected final String subject;
+    protected final String subjectLine;
+    protected final String subjectCharset;
+    protected final Encoded body;
+    protected final byte[] head;
+    protected final byte[] tail;
+
+    protected MailPrototype(String[] headerLines,
+                            InternetAddress from,
+                            String subject,
+                            String subjectLine,
+                            String subjectCharset,
+                            Encoded body,
+                            byte[] head,
+                            byte[] tail) {
+
+        this.headerLines = headerLines;
+        this.from = from;
+        this.subject = subject;
+        this.subjectLine = subjectLine;
+        this.subjectCharset = subjectCharset;
+        this.body = body;
+        this.head = head;
+        this.tail = tail;
+    }
+
+    /**
+     * Freezes a mail. Its recipients are ignored.
+     * 
+     * @param session
+     * @param mail
+     * @return The prototype.
+     * @throws MailException
+     */
+    public static MailPrototype freeze(Session session, Mail mail) throws MailException {
+
+        return freeze(session, mail, null);
+    }
+
+    /**
+     * Freezes a mail, taking the attachment parts from the cache.
+     * 
+     * @param session
+     * @param mail
+     * @param cache
+     *            Optional.
+     * @return The prototype.
+     * @throws MailException
+     */
+    public static MailPrototype freeze(Session session, Mail mail, MimePartCache cache) throws MailException {
+
+        checkArgument(session != null, "session");
+        checkArgument(mail != null, "mail");
+        checkArgument(isNotBlank(mail.getFrom()), "from");
+
+        String charset = ifBlank(mail.getLabelCharset(), MailMessages.UTF8);
+
+        try {
+            InternetAddress[] sender = MailMessages.parseAddress(mail.getSender());
+            InternetAddress[] from = MailMessages.parseAddress(mail.getFrom());
+
+            //@formatter:off
+            MimeMessage msg = MailMessages.createBaseMessage(session, 
+                (sender != null ? sender[0] : null), 
+                from[0], 
+                mail.getReplyToAddresses(), null, null, null, mail.getSubject(), charset);
+            //@formatter:on
+            MailMessages.applyHeaderValues(msg, mail.getHeader());
+
+            // The body is written in place of a marker: the bytes around it are the frozen multipart.
+            byte[] marker = ("jinah-prototype-" + UUID.randomUUID()).getBytes(StandardCharsets.US_ASCII);
+
+            List<Attachment> attachments = mail.getAttachments();
+            MimeMultipart multipart = MailMessages.createAttachments(session, msg, attachments, cache);
+            if (multipart == null) {
+                multipart = new MimeMultipart();
+            }
+            multipart.addBodyPart(new PreEncodedBodyPart(new Encoded(new String[0], marker, 0)), 0);
+            msg.setContent(multipart);
+            msg.saveChanges();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(8 * 1024);
+            msg.writeTo(out);
+            byte[] bytes = out.toByteArray();
+
+            Encoded frozen = Encoded.parse(bytes);
+            int at = indexOf(bytes, marker, frozen.bodyOffset);
+
+            List<String> lines = new ArrayList<String>(frozen.headerLines.length);
+            String subjectLine = null;
+            for (String line : frozen.headerLines) {
+                if (isHeader(line, "Subject")) {
+                    subjectLine = line;
+                } else if (!isVariantHeader(line)) {
+                    lines.add(line);
+                }
+            }
+
+            //@formatter:off
+            return new MailPrototype(
+                lines.toArray(new String[lines.size()]), 
+                from[0],
+                mail.getSubject(), 
+                subjectLine, 
+                charset,
+                (mail.getContent() != null ? PreEncodedBodyPart.encode(mail) : null), 
+                copyOfRange(bytes, frozen.bodyOffset, at), 
+                copyOfRange(bytes, at + marker.length, bytes.length));
+            //@formatter:on
+
+        } catch (AddressException e) {
+            throw new MailException(e);
+        } catch (MessagingException e) {
+            throw new MailException(e);
+        } catch (IOException e) {
+            throw new MailException(e);
+        }
+    }
+
+    /**
+     * Creates a message for the recipients of a mail, with its subject and body if set.
+     */
+    @Override
+    public MimeMessage createMessage(Session session, Mail mail) throws MailException {
+
+        checkArgument(session != null, "session");
+        checkArgument(mail != null, "mail");
+
+        InternetAddress[] to = mail.getToAddresses();
+        InternetAddress[] cc = mail.getCcAddresses();
+        InternetAddress[] bcc = mail.getBccAddresses();
+
+        checkArgument(to != null || cc != null || bcc != null, "No destinatary found (to, cc or bcc).");
+        checkArgument(isNotBlank(mail.getSubject()) || subjectLine != null, "subject");
+        checkArgument(mail.getContent() != null || body != null, "body");
+
+        try {
+            Variant msg = new Variant(session, this, (mail.getContent() != null ? PreEncodedBodyPart.encode(mail)
+                    : body));
+
+            if (!isNotBlank(mail.getSubject()) || mail.getSubject().equals(subject)) {
+                msg.addHeaderLine(subjectLine);
+            } else {
+                msg.setSubject(mail.getSubject(), ifBlank(mail.getLabelCharset(), subjectCharset));
+            }
+            if (mail.getIdempotencyKey() != null) {
+                msg.setFixedMessageID(MailMessages.messageID(mail.getIdempotencyKey(), from));
+            }
+            if (to != null) {
+                msg.setRecipients(RecipientType.TO, to);
+            }
+            if (cc != null) {
+                msg.setRecipients(RecipientType.CC, cc);
+            }
+            if (bcc != null) {
+                msg.setRecipients(RecipientType.BCC, bcc);
+            }
+
+            return msg;
+
+        } catch (MessagingException e) {
+            throw new MailException(e);
+        }
+    }
+
+    /**
+     * @return Bytes of the frozen headers and multipart, i.e. what each variant does not encode again.
+     */
+    public int getFrozenSize() {
+
+        int size = head.length + tail.length;
+        for (String line : headerLines) {
+            size += line.length() + CRLF.length;
+        }
+        return size;
+    }
+
+    //
+    // Internal methods
+    //
+
+    private static boolean isVariantHeader(String line) {
+
+        for (String name : VARIANT_HEADERS) {
+            if (isHeader(line, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHeader(String line, String name) {
+
+        return line.length() > name.length() && line.charAt(name.length()) == ':'
+                && line.regionMatches(true, 0, name, 0, name.length());
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) throws MessagingException {
+
+        outer: for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        throw new MessagingException("Body marker not found in the frozen message.");
+    }
+
+    private static byte[] copyOfRange(byte[] bytes, int from, int to) {
+
+        byte[] copy = new byte[to - from];
+        System.arraycopy(bytes, from, copy, 0, copy.length);
+        return copy;
+    }
+
+    // Inner classes
+
+    /**
+     * A message of a prototype: its own headers, then the frozen multipart around its body part.
+     */
+    public static final class Variant extends CountingMimeMessage {
+
+        private final MailPrototype prototype;
+        private final Encoded part;
+
+        Variant(Session session, MailPrototype prototype, Encoded part) {
+
+            super(session);
+            this.prototype = prototype;
+            this.part = part;
+            for (String line : prototype.headerLines) {
+                headers.addHeaderLine(line);
+            }
+        }
+
+        @Override
+        public int getSize() {
+            return prototype.head.length + part.bytes.length + prototype.tail.length;
+        }
+
+        /**
+         * @return The identity of the prototype and body part the content is written from.
+         */
+        @Override
+        public int getContentFingerprint() {
+            return 31 * System.identityHashCode(prototype) + System.identityHashCode(part);
+        }
+
+        @Override
+        protected InputStream getContentStream() {
+
+            byte[] content = new byte[getSize()];
+            System.arraycopy(prototype.head, 0, content, 0, prototype.head.length);
+            System.arraycopy(part.bytes, 0, content, prototype.head.length, part.bytes.length);
+            System.arraycopy(prototype.tail, 0, content, prototype.head.length + part.bytes.length,
+                    prototype.tail.length);
+
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        protected void updateHeaders() throws MessagingException {
+            // Content headers are frozen: only the Message-ID.
+            updateMessageID();
+        }
+
+        @Override
+        protected void writeMessage(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+
+            if (!saved) {
+                saveChanges();
+            }
+
+            for (Enumeration<?> e = getNonMatchingHeaderLines(ignoreList); e.hasMoreElements();) {
+                os.write(((String) e.nextElement()).getBytes(StandardCharsets.ISO_8859_1));
+                os.write(CRLF);
+            }
+            os.write(CRLF);
+            os.write(prototype.head);
+            os.write(part.bytes);
+            os.write(prototype.tail);
+            os.flush();
+        }
+    }
+}
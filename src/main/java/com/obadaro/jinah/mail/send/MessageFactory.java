@@ -0,0 +1,37 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+
+/**
+ * Builds the {@link MimeMessage} of a {@link Mail} to be sent. See {@link MailMessages#factory()}.
+ * 
+ * @author Roberto Badaro
+ */
+public interface MessageFactory {
+
+    MimeMessage createMessage(Session session, Mail mail) throws MailException;
+
+}
@@ -0,0 +1,42 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.io.IOException;
+
+import javax.mail.MessagingException;
+
+/**
+ * Signs a {@link CountingMimeMessage} when it is written, e.g. with DKIM. See
+ * {@link CountingMimeMessage#setSigner(MessageSigner)}.
+ * 
+ * @author Roberto Badaro
+ */
+public interface MessageSigner {
+
+    /**
+     * Adds the signature headers to a saved message about to be written. Called on every write: a signer should
+     * keep what it computed in {@link CountingMimeMessage#getSignatureState()} and reuse it.
+     * 
+     * @param msg
+     */
+    void sign(CountingMimeMessage msg) throws IOException, MessagingException;
+
+}
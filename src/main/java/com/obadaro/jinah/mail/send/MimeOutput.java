@@ -0,0 +1,356 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Buffered output of {@link MimeWriter}, with the MIME transfer encoders writing straight into the buffer.
+ * Instances are pooled per thread: {@link #acquire(OutputStream, WritableByteChannel)} and {@link #release()}.
+ * 
+ * @author Roberto Badaro
+ */
+final class MimeOutput {
+
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    private static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    /** Encoded line length, without CRLF. */
+    private static final int LINE_LENGTH = 76;
+
+    private static final ThreadLocal<MimeOutput> POOL = new ThreadLocal<MimeOutput>();
+
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private final ByteBuffer wrapped = ByteBuffer.wrap(buf);
+    private int pos;
+    private long written;
+
+    private OutputStream os;
+    private WritableByteChannel channel;
+
+    private byte[] input;
+
+    // Encoder state.
+    private int encoding;
+    private int line;
+    private final byte[] pending = new byte[2];
+    private int pendingCount;
+    private boolean gotSpace;
+    private boolean gotCR;
+
+    static final int RAW = 0;
+    static final int BASE64_ENCODING = 1;
+    static final int QUOTED_PRINTABLE = 2;
+
+    private MimeOutput() {
+    }
+
+    /**
+     * Takes the output of the thread for a stream or a channel. A nested acquire gets a new instance.
+     */
+    static MimeOutput acquire(OutputStream os, WritableByteChannel channel) {
+
+        MimeOutput out = POOL.get();
+        if (out == null) {
+            out = new MimeOutput();
+        } else {
+            POOL.set(null);
+        }
+        out.os = os;
+        out.channel = channel;
+        out.pos = 0;
+        out.written = 0;
+
+        return out;
+    }
+
+    /**
+     * Returns the output to the pool of the thread. Unflushed bytes are discarded.
+     */
+    void release() {
+
+        os = null;
+        channel = null;
+        POOL.set(this);
+    }
+
+    /**
+     * @return A buffer to read content into, reused by every write of the thread.
+     */
+    byte[] input() {
+
+        if (input == null) {
+            input = new byte[BUFFER_SIZE];
+        }
+        return input;
+    }
+
+    long getWritten() {
+        return written + pos;
+    }
+
+    void write(int b) throws IOException {
+
+        if (pos == buf.length) {
+            drain();
+        }
+        buf[pos++] = (byte) b;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+
+        while (len > 0) {
+            if (pos == buf.length) {
+                drain();
+            }
+            int n = Math.min(len, buf.length - pos);
+            System.arraycopy(b, off, buf, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes the chars of a header, as {@code javax.mail} does: one byte each.
+     */
+    void writeAscii(String s) throws IOException {
+
+        for (int i = 0, length = s.length(); i < length; i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    void writeln(String s) throws IOException {
+
+        writeAscii(s);
+        crlf();
+    }
+
+    void crlf() throws IOException {
+
+        write('\r');
+        write('\n');
+    }
+
+    /**
+     * Writes the buffered bytes to the stream or channel.
+     */
+    void flush() throws IOException {
+
+        drain();
+        if (os != null) {
+            os.flush();
+        }
+    }
+
+    //
+    // Transfer encoders
+    //
+
+    /**
+     * Starts writing content with a transfer encoding: {@link #RAW}, {@link #BASE64_ENCODING} or
+     * {@link #QUOTED_PRINTABLE}.
+     */
+    void begin(int encoding) {
+
+        this.encoding = encoding;
+        line = 0;
+        pendingCount = 0;
+        gotSpace = false;
+        gotCR = false;
+    }
+
+    void encode(byte[] b, int off, int len) throws IOException {
+
+        switch (encoding) {
+        case BASE64_ENCODING:
+            base64(b, off, len);
+            break;
+        case QUOTED_PRINTABLE:
+            for (int i = off, end = off + len; i < end; i++) {
+                quotedPrintable(b[i] & 0xff);
+            }
+            break;
+        default:
+            write(b, off, len);
+        }
+    }
+
+    /**
+     * Ends the encoded content: pending base64 bytes are padded, a trailing quoted-printable space encoded.
+     */
+    void end() throws IOException {
+
+        if (encoding == BASE64_ENCODING && pendingCount > 0) {
+            base64Line();
+            int b0 = pending[0] & 0xff;
+            write(BASE64[b0 >> 2]);
+            if (pendingCount == 1) {
+                write(BASE64[(b0 << 4) & 0x3f]);
+                write('=');
+            } else {
+                int b1 = pending[1] & 0xff;
+                write(BASE64[((b0 << 4) | (b1 >> 4)) & 0x3f]);
+                write(BASE64[(b1 << 2) & 0x3f]);
+            }
+            write('=');
+            pendingCount = 0;
+
+        } else if (encoding == QUOTED_PRINTABLE && gotSpace) {
+            qpOutput(' ', true);
+            gotSpace = false;
+        }
+        encoding = RAW;
+    }
+
+    //
+    // Internal methods
+    //
+
+    private void drain() throws IOException {
+
+        if (pos == 0) {
+            return;
+        }
+        if (channel != null) {
+            wrapped.clear().limit(pos);
+            while (wrapped.hasRemaining()) {
+                channel.write(wrapped);
+            }
+        } else {
+            os.write(buf, 0, pos);
+        }
+        written += pos;
+        pos = 0;
+    }
+
+    private void base64(byte[] b, int off, int len) throws IOException {
+
+        int end = off + len;
+
+        // Completes a group started by the previous call.
+        if (pendingCount > 0) {
+            while (pendingCount < 2 && off < end) {
+                pending[pendingCount++] = b[off++];
+            }
+            if (off == end) {
+                return;
+            }
+            base64Group(pending[0], pending[1], b[off++]);
+            pendingCount = 0;
+        }
+
+        for (; off + 3 <= end; off += 3) {
+            base64Group(b[off], b[off + 1], b[off + 2]);
+        }
+        while (off < end) {
+            pending[pendingCount++] = b[off++];
+        }
+    }
+
+    private void base64Group(byte a, byte b, byte c) throws IOException {
+
+        base64Line();
+        if (pos + 4 > buf.length) {
+            drain();
+        }
+        int n = ((a & 0xff) << 16) | ((b & 0xff) << 8) | (c & 0xff);
+        buf[pos++] = BASE64[n >>> 18];
+        buf[pos++] = BASE64[(n >>> 12) & 0x3f];
+        buf[pos++] = BASE64[(n >>> 6) & 0x3f];
+        buf[pos++] = BASE64[n & 0x3f];
+    }
+
+    /**
+     * Breaks the line before a group that would not fit: no CRLF after the last group.
+     */
+    private void base64Line() throws IOException {
+
+        if (line + 4 > LINE_LENGTH) {
+            crlf();
+            line = 0;
+        }
+        line += 4;
+    }
+
+    /**
+     * RFC 2045 quoted-printable, one octet at a time: spaces are held until the next octet tells whether they
+     * end a line, and line breaks in the content are written as CRLF.
+     */
+    private void quotedPrintable(int c) throws IOException {
+
+        if (gotSpace) {
+            qpOutput(' ', c == '\r' || c == '\n');
+            gotSpace = false;
+        }
+
+        if (c == '\r') {
+            gotCR = true;
+            crlf();
+            line = 0;
+        } else {
+            if (c == '\n') {
+                if (!gotCR) {
+                    crlf();
+                    line = 0;
+                }
+            } else if (c == ' ') {
+                gotSpace = true;
+            } else if (c < 040 || c >= 0177 || c == '=') {
+                qpOutput(c, true);
+            } else {
+                qpOutput(c, false);
+            }
+            gotCR = false;
+        }
+    }
+
+    private void qpOutput(int c, boolean encode) throws IOException {
+
+        // The soft line break takes one of the 76 columns.
+        int max = LINE_LENGTH - 1;
+
+        if (encode) {
+            if ((line += 3) > max) {
+                write('=');
+                crlf();
+                line = 3;
+            }
+            write('=');
+            write(HEX[c >> 4]);
+            write(HEX[c & 0xf]);
+        } else {
+            if (++line > max) {
+                write('=');
+                crlf();
+                line = 1;
+            }
+            write(c);
+        }
+    }
+}
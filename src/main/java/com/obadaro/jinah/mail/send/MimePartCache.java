@@ -0,0 +1,295 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.mail.internet.MimeBodyPart;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.MailException;
+
+/**
+ * Content addressed cache of encoded attachment parts. Attachments with the same content (by SHA-256 hash),
+ * content type, disposition and file name are encoded once, and the encoded bytes are shared by every message
+ * using them (see {@link PreEncodedBodyPart}).
+ * <p>
+ * Entries are evicted in LRU order once the encoded bytes exceed {@link #getMaxBytes()}. Only {@code byte[]}
+ * and {@code String} contents are cached; content hashes are memoized per content instance, so attachment
+ * contents must not be changed after being attached.
+ * </p>
+ * 
+ * <pre>
+ * MimePartCache cache = new MimePartCache();
+ * MimeMessage msg = MailMessages.createMessage(session, mail, cache);
+ * </pre>
+ * 
+ * @author Roberto Badaro
+ */
+public class MimePartCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName(MailMessages.UTF8);
+
+    protected final long maxBytes;
+
+    private final LinkedHashMap<Key, PreEncodedBodyPart.Encoded> entries =
+            new LinkedHashMap<Key, PreEncodedBodyPart.Encoded>(64, 0.75f, true);
+    private final Map<Object, byte[]> digests = new WeakHashMap<Object, byte[]>();
+
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long uncacheable;
+
+    public MimePartCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes
+     *            Max encoded bytes kept in the cache.
+     */
+    public MimePartCache(long maxBytes) {
+
+        checkArgument(maxBytes > 0, "maxBytes");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates the body part of an attachment, reusing its encoded form if cached.
+     * 
+     * @param attachment
+     * @return The attachment body part.
+     * @throws MailException
+     */
+    public MimeBodyPart getBodyPart(Attachment attachment) throws MailException {
+
+        PreEncodedBodyPart.Encoded encoded = getEncoded(attachment);
+
+        return (encoded != null ? new PreEncodedBodyPart(encoded) : MailMessages.createMimeBodyPart(attachment));
+    }
+
+    /**
+     * Returns the encoded part of an attachment, encoding it on a miss.
+     * 
+     * @param attachment
+     * @return The encoded part or {@code null} if the attachment content can't be cached.
+     * @throws MailException
+     */
+    public PreEncodedBodyPart.Encoded getEncoded(Attachment attachment) throws MailException {
+
+        checkArgument(attachment != null, "attachment");
+
+        Key key = keyOf(attachment);
+        if (key == null) {
+            synchronized (this) {
+                uncacheable++;
+            }
+            return null;
+        }
+
+        PreEncodedBodyPart.Encoded encoded;
+        synchronized (this) {
+            encoded = entries.get(key);
+            if (encoded != null) {
+                hits++;
+                return encoded;
+            }
+            misses++;
+        }
+
+        // Encoded out of the lock: concurrent misses of the same key may encode it twice.
+        encoded = PreEncodedBodyPart.encode(attachment);
+        put(key, encoded);
+
+        return encoded;
+    }
+
+    /**
+     * Removes all entries. Counters are kept.
+     */
+    public synchronized void clear() {
+
+        entries.clear();
+        digests.clear();
+        bytes = 0L;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return Encoded bytes in the cache.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Number of attachments whose content type can't be cached.
+     */
+    public synchronized long getUncacheable() {
+        return uncacheable;
+    }
+
+    public synchronized double getHitRatio() {
+
+        long lookups = hits + misses;
+        return (lookups > 0 ? (double) hits / lookups : 0.0);
+    }
+
+    @Override
+    public String toString() {
+        return "MimePartCache[entries = " + getEntryCount() + ", bytes = " + getBytes() + ", hits = " +
+                getHits() + ", misses = " + getMisses() + ", evictions = " + getEvictions() + "]";
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected synchronized void put(Key key, PreEncodedBodyPart.Encoded encoded) {
+
+        long size = encoded.size();
+        if (size > maxBytes) {
+            return;
+        }
+
+        PreEncodedBodyPart.Encoded previous = entries.put(key, encoded);
+        if (previous != null) {
+            bytes -= previous.size();
+        }
+        bytes += size;
+
+        for (Iterator<PreEncodedBodyPart.Encoded> it = entries.values().iterator(); bytes > maxBytes &&
+                it.hasNext();) {
+            bytes -= it.next().size();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @return The cache key of the attachment or {@code null} if its content can't be cached.
+     */
+    protected Key keyOf(Attachment attachment) {
+
+        Object content = attachment.getContent();
+        if (!(content instanceof byte[]) && !(content instanceof String)) {
+            return null;
+        }
+
+        byte[] digest;
+        synchronized (this) {
+            digest = digests.get(content);
+        }
+        if (digest == null) {
+            digest = sha256(content instanceof String ? ((String) content).getBytes(UTF8) : (byte[]) content);
+            synchronized (this) {
+                digests.put(content, digest);
+            }
+        }
+
+        String disposition = (attachment.getDisposition() != null ? attachment.getDisposition().name() : null);
+        return new Key(digest, attachment.getContentType(), disposition, attachment.getLabel());
+    }
+
+    private static byte[] sha256(byte[] data) {
+
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Inner classes
+
+    protected static final class Key {
+
+        final byte[] digest;
+        final String contentType;
+        final String disposition;
+        final String filename;
+        final int hash;
+
+        Key(byte[] digest, String contentType, String disposition, String filename) {
+
+            this.digest = digest;
+            this.contentType = contentType;
+            this.disposition = disposition;
+            this.filename = filename;
+            this.hash = Arrays.hashCode(new Object[] { Arrays.hashCode(digest), contentType, disposition,
+                    filename });
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && Arrays.equals(digest, other.digest) && eq(contentType, other.contentType) &&
+                    eq(disposition, other.disposition) && eq(filename, other.filename);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        private static boolean eq(Object a, Object b) {
+            return (a == null ? b == null : a.equals(b));
+        }
+    }
+}
@@ -0,0 +1,651 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+import static com.obadaro.jinah.common.util.Strings.isNotBlank;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.HeaderTokenizer;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParameterList;
+
+import com.obadaro.jinah.common.util.Nulls;
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.Body;
+import com.obadaro.jinah.mail.ContentSupplier;
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.StreamSupplier;
+import com.obadaro.jinah.mail.TextMail;
+
+/**
+ * Writes the MIME content of a mail straight from the {@link Mail}, without the {@code MimeMultipart},
+ * {@code MimeBodyPart} and {@code DataHandler} graph of {@link MailMessages#createMessage(Session, Mail)}.
+ * Parts are encoded into a buffer pooled per thread, and files are read in chunks into it.
+ * <p>
+ * The bytes are the ones {@code javax.mail} writes for the same mail, but for the multipart boundary and the
+ * Message-ID, and a space ending quoted-printable content, which {@code javax.mail} drops. Text, {@code String}
+ * and {@code byte[]} contents, file and stream attachments are written; mails with other contents are built by
+ * {@link MailMessages}. Deferred contents are resolved while the message is written, and must resolve to one
+ * of these. Selected per send by the {@link MessageFactory}: {@link #factory()}.
+ * </p>
+ * 
+ * @author Roberto Badaro
+ */
+public class MimeWriter {
+
+    private static final String US_ASCII = "us-ascii";
+    private static final String SEVEN_BIT = "7bit";
+    private static final String QUOTED_PRINTABLE = "quoted-printable";
+    private static final String BASE64 = "base64";
+
+    /** Folding column of header parameters, as {@code javax.mail.internet.ParameterList}. */
+    private static final int FOLD_COLUMN = 76;
+
+    private static final AtomicInteger PARTS = new AtomicInteger();
+
+    private static final MessageFactory FACTORY = new MessageFactory() {
+
+        @Override
+        public MimeMessage createMessage(Session session, Mail mail) throws MailException {
+            return MimeWriter.createMessage(session, mail, null);
+        }
+    };
+
+    /**
+     * @return Factory writing messages with this writer.
+     */
+    public static MessageFactory factory() {
+        return FACTORY;
+    }
+
+    /**
+     * @param cache
+     * @return Factory writing messages with this writer, the attachments taken from the cache.
+     */
+    public static MessageFactory factory(final MimePartCache cache) {
+
+        checkArgument(cache != null, "cache");
+
+        return new MessageFactory() {
+
+            @Override
+            public MimeMessage createMessage(Session session, Mail mail) throws MailException {
+                return MimeWriter.createMessage(session, mail, cache);
+            }
+        };
+    }
+
+    /**
+     * @param mail
+     * @return If the writer handles the contents of the mail and of its attachments.
+     */
+    public static boolean supports(Mail mail) {
+
+        checkArgument(mail != null, "mail");
+
+        if (!(mail instanceof TextMail ? mail.getContent() != null : isSupported(mail))) {
+            return false;
+        }
+        List<Attachment> attachments = mail.getAttachments();
+        if (attachments != null) {
+            for (Attachment attachment : attachments) {
+                Object content = attachment.getContent();
+                if (!(isSupported(attachment) || content instanceof Path || content instanceof File ||
+                        content instanceof StreamSupplier)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a message written by this writer or, if the mail is not {@link #supports(Mail) supported}, by
+     * {@link MailMessages#createMessage(Session, Mail, MimePartCache)}.
+     * 
+     * @param session
+     * @param mail
+     * @param cache
+     *            Optional.
+     * @return The message.
+     * @throws MailException
+     */
+    public static MimeMessage createMessage(Session session, Mail mail, MimePartCache cache) throws MailException {
+
+        checkArgument(session != null, "session");
+
+        if (!supports(mail)) {
+            return MailMessages.createMessage(session, mail, cache);
+        }
+
+        StreamedMessage msg = MailMessages.initBaseMessage(new StreamedMessage(session, mail, cache), mail);
+        MailMessages.applyHeaderValues(msg, mail.getHeader());
+
+        return msg;
+    }
+
+    /**
+     * Writes the multipart content of a mail: its body, then the attachments.
+     * 
+     * @param mail
+     * @param boundary
+     * @param cache
+     *            Optional.
+     * @param os
+     * @throws IOException
+     * @throws MailException
+     */
+    public static void writeContent(Mail mail, String boundary, MimePartCache cache, OutputStream os)
+            throws IOException, MailException {
+
+        MimeOutput out = MimeOutput.acquire(os, null);
+        try {
+            writeContent(out, mail, boundary, cache);
+            out.flush();
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * @return A new multipart boundary, in the format of {@code javax.mail}.
+     */
+    public static String newBoundary() {
+
+        //@formatter:off
+        return "----=_Part_" + PARTS.getAndIncrement() + "_" 
+            + System.identityHashCode(Thread.currentThread()) + "." + System.currentTimeMillis();
+        //@formatter:on
+    }
+
+    //
+    // Internal methods
+    //
+
+    private static boolean isSupported(Body body) {
+
+        Object content = body.getContent();
+        if (content instanceof byte[] || (body.isDeferred() && body.getContentType() != null)) {
+            return true;
+        }
+        if (!(content instanceof String) || body.getContentType() == null) {
+            return false;
+        }
+        try {
+            return new ContentType(body.getContentType()).match("text/*");
+        } catch (javax.mail.internet.ParseException e) {
+            return false;
+        }
+    }
+
+    static void writeContent(MimeOutput out, Mail mail, String boundary, MimePartCache cache) throws IOException,
+            MailException {
+
+        String delimiter = "--" + boundary;
+
+        out.writeln(delimiter);
+        writePart(out, mail);
+        out.crlf();
+
+        List<Attachment> attachments = mail.getAttachments();
+        if (attachments != null) {
+            for (Attachment attachment : attachments) {
+                out.writeln(delimiter);
+                PreEncodedBodyPart.Encoded encoded = (cache != null ? cache.getEncoded(attachment) : null);
+                if (encoded != null) {
+                    out.write(encoded.bytes, 0, encoded.bytes.length);
+                } else {
+                    writePart(out, attachment);
+                }
+                out.crlf();
+            }
+        }
+
+        out.writeln(delimiter + "--");
+    }
+
+    /**
+     * Writes the headers and encoded content of a part, as {@link MailMessages#configureMimePart(Body,
+     * javax.mail.internet.MimePart)} and {@code MimeBodyPart} would.
+     */
+    private static void writePart(MimeOutput out, Body body) throws IOException, MailException {
+
+        Object content = body.resolveContent();
+        String type;
+        String encoding;
+        byte[] data = null;
+        Path path = null;
+        StreamSupplier stream = null;
+        boolean defaultCharset = false;
+
+        if (body instanceof TextMail) {
+            TextMail text = (TextMail) body;
+            String charset = text.getCharset();
+            if (charset == null) {
+                charset = (isAscii((String) content) ? US_ASCII : defaultCharset());
+            }
+            type = "text/" + text.getSubtype() + "; charset=" + MimeUtility.quote(charset, HeaderTokenizer.MIME);
+            data = ((String) content).getBytes(MimeUtility.javaCharset(charset));
+            encoding = encodingOf(data, true);
+
+        } else if (content instanceof Path || content instanceof File) {
+            path = (content instanceof File ? ((File) content).toPath() : (Path) content);
+            type = Nulls.nvl(body.getContentType(), Attachment.OCTET_STREAM);
+            encoding = BASE64;
+            defaultCharset = true;
+
+        } else if (content instanceof StreamSupplier) {
+            stream = (StreamSupplier) content;
+            type = Nulls.nvl(body.getContentType(), Attachment.OCTET_STREAM);
+            encoding = BASE64;
+            defaultCharset = true;
+
+        } else if (content instanceof String) {
+            // Text written by the content handler: in the charset of the type, us-ascii if none.
+            type = body.getContentType();
+            String charset = parse(type).getParameter("charset");
+            data = ((String) content).getBytes(MimeUtility.javaCharset(Nulls.nvl(charset, US_ASCII)));
+            encoding = encodingOf(data, true);
+            defaultCharset = true;
+
+        } else if (content instanceof byte[]) {
+            type = Nulls.nvl(body.getContentType(), Attachment.OCTET_STREAM);
+            data = (byte[]) content;
+            ContentType cType = parse(type);
+            encoding = encodingOf(data, cType.match("text/*"));
+            defaultCharset = true;
+
+        } else {
+            throw new MailException("Unsupported content: " + (content != null ? content.getClass().getName()
+                    : null));
+        }
+
+        String filename = null;
+        String disposition = null;
+        if (body instanceof Attachment) {
+            Attachment attachment = (Attachment) body;
+            disposition = Nulls.nvl(attachment.getDisposition(), MailMessages.DEFAULT_DISPOSITION).name();
+            if (isNotBlank(body.getLabel())) {
+                filename = body.getLabel();
+                disposition = parameters(disposition, "Content-Disposition", "filename", filename);
+            }
+        }
+
+        ContentType cType = null;
+        if (defaultCharset) {
+            cType = parse(type);
+            if (cType.match("text/*") && cType.getParameter("charset") == null) {
+                //@formatter:off
+                cType.setParameter("charset", 
+                    (SEVEN_BIT.equals(encoding) ? US_ASCII : defaultCharset()));
+                //@formatter:on
+            } else if (filename == null) {
+                cType = null;
+            }
+        }
+        if (filename != null) {
+            if (cType == null) {
+                cType = parse(type);
+            }
+            cType.setParameter("name", filename);
+        }
+        if (cType != null) {
+            type = format(cType);
+        }
+
+        out.writeln("Content-Type: " + type);
+        out.writeln("Content-Transfer-Encoding: " + encoding);
+        if (disposition != null) {
+            out.writeln("Content-Disposition: " + disposition);
+        }
+        out.crlf();
+
+        out.begin(transferEncoding(encoding));
+        if (path != null) {
+            writeFile(out, path);
+        } else if (stream != null) {
+            writeStream(out, stream);
+        } else {
+            out.encode(data, 0, data.length);
+        }
+        out.end();
+    }
+
+    private static void writeFile(MimeOutput out, Path path) throws IOException {
+
+        byte[] input = out.input();
+        ByteBuffer buffer = ByteBuffer.wrap(input);
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            while (channel.read(buffer) >= 0) {
+                out.encode(input, 0, buffer.position());
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void writeStream(MimeOutput out, StreamSupplier stream) throws IOException {
+
+        byte[] input = out.input();
+        InputStream in = stream.open();
+        try {
+            int n;
+            while ((n = in.read(input, 0, input.length)) >= 0) {
+                out.encode(input, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int transferEncoding(String encoding) {
+
+        if (BASE64.equals(encoding)) {
+            return MimeOutput.BASE64_ENCODING;
+        }
+        return (QUOTED_PRINTABLE.equals(encoding) ? MimeOutput.QUOTED_PRINTABLE : MimeOutput.RAW);
+    }
+
+    /**
+     * The transfer encoding {@code javax.mail} chooses for a content: 7bit if all ASCII in short lines,
+     * quoted-printable if mostly ASCII, base64 otherwise. Binary content is base64 at the first non-ASCII byte.
+     */
+    static String encodingOf(byte[] data, boolean text) {
+
+        int ascii = 0;
+        int nonAscii = 0;
+        int lineLength = 0;
+        boolean longLine = false;
+
+        for (byte value : data) {
+            int b = value & 0xff;
+            if (b == '\r' || b == '\n') {
+                lineLength = 0;
+            } else if (++lineLength > 998) {
+                longLine = true;
+            }
+            if (b >= 0177 || (b < 040 && b != '\r' && b != '\n' && b != '\t')) {
+                if (!text) {
+                    return BASE64;
+                }
+                nonAscii++;
+            } else {
+                ascii++;
+            }
+        }
+
+        if (nonAscii == 0) {
+            return (longLine ? QUOTED_PRINTABLE : SEVEN_BIT);
+        }
+        return (ascii > nonAscii ? QUOTED_PRINTABLE : BASE64);
+    }
+
+    /**
+     * The charset {@code javax.mail} gives to text without one.
+     */
+    private static String defaultCharset() {
+
+        String charset = System.getProperty("mail.mime.charset");
+        return (charset != null ? charset : MimeUtility.mimeCharset(MimeUtility.getDefaultJavaCharset()));
+    }
+
+    private static boolean isAscii(String text) {
+
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0177 || (c < 040 && c != '\r' && c != '\n' && c != '\t')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ContentType parse(String type) throws MailException {
+
+        try {
+            return new ContentType(type);
+        } catch (javax.mail.internet.ParseException e) {
+            throw new MailException(e);
+        }
+    }
+
+    private static String format(ContentType cType) {
+
+        ParameterList list = cType.getParameterList();
+        StringBuilder sb = new StringBuilder(64).append(cType.getPrimaryType()).append('/').append(
+                cType.getSubType());
+        int used = "Content-Type: ".length() + sb.length();
+
+        if (list != null) {
+            for (Enumeration<?> names = list.getNames(); names.hasMoreElements();) {
+                String name = (String) names.nextElement();
+                used = appendParameter(sb, used, name, list.get(name));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends a parameter to a header value.
+     */
+    static String parameters(String value, String header, String name, String parameter) {
+
+        StringBuilder sb = new StringBuilder(64).append(value);
+        appendParameter(sb, header.length() + 2 + sb.length(), name, parameter);
+        return sb.toString();
+    }
+
+    /**
+     * Appends a parameter, folding the line before it or within its value past 76 columns.
+     * 
+     * @return The columns used in the last line.
+     */
+    private static int appendParameter(StringBuilder sb, int used, String name, String value) {
+
+        value = MimeUtility.quote(value, HeaderTokenizer.MIME);
+
+        sb.append("; ");
+        used += 2;
+        if (used + name.length() + value.length() + 1 > FOLD_COLUMN) {
+            sb.append("\r\n\t");
+            used = 8;
+        }
+        sb.append(name).append('=');
+        used += name.length() + 1;
+
+        if (used + value.length() > FOLD_COLUMN) {
+            String folded = MimeUtility.fold(used, value);
+            sb.append(folded);
+            int lf = folded.lastIndexOf('\n');
+            used = (lf >= 0 ? used + folded.length() - lf - 1 : used + folded.length());
+        } else {
+            sb.append(value);
+            used += value.length();
+        }
+        return used;
+    }
+
+    // Inner classes
+
+    /**
+     * A message whose content is written by {@link MimeWriter}. The headers are set as for any message; the
+     * content is only produced when written.
+     */
+    public static final class StreamedMessage extends CountingMimeMessage {
+
+        private final Mail mail;
+        private final MimePartCache cache;
+        private final String boundary = newBoundary();
+        /** Writes of the content, which builds deferred contents again. */
+        private int writes;
+
+        StreamedMessage(Session session, Mail mail, MimePartCache cache) {
+
+            super(session);
+            this.mail = mail;
+            this.cache = cache;
+        }
+
+        public Mail getMail() {
+            return mail;
+        }
+
+        /**
+         * Writes the message to a channel, signed if it has a signer.
+         * 
+         * @param channel
+         * @param ignoreList
+         *            Headers not written, may be {@code null}.
+         * @return Bytes written.
+         * @throws IOException
+         * @throws MessagingException
+         */
+        public long writeTo(WritableByteChannel channel, String[] ignoreList) throws IOException,
+                MessagingException {
+
+            if (getSigner() != null) {
+                BufferedOutputStream os = new BufferedOutputStream(Channels.newOutputStream(channel), 8 * 1024);
+                writeTo(os, ignoreList);
+                os.flush();
+                return getWrittenBytes();
+            }
+
+            setWrittenBytes(-1);
+            MimeOutput out = MimeOutput.acquire(null, channel);
+            try {
+                write(out, ignoreList);
+                setWrittenBytes(out.getWritten());
+                return out.getWritten();
+            } finally {
+                out.release();
+            }
+        }
+
+        @Override
+        protected void updateHeaders() throws MessagingException {
+
+            setHeader("MIME-Version", "1.0");
+            setHeader("Content-Type", parameters("multipart/mixed", "Content-Type", "boundary", boundary));
+            updateMessageID();
+        }
+
+        /**
+         * @return The identity of the mail, cache and boundary the content is written from: the content is not
+         *         built to be fingerprinted. With deferred contents, built again by every write and maybe
+         *         different, it changes after each write.
+         */
+        @Override
+        public int getContentFingerprint() {
+
+            int h = 31 * (31 * System.identityHashCode(mail) + System.identityHashCode(cache)) + boundary.hashCode();
+            return (hasDeferredContent() ? 31 * h + writes : h);
+        }
+
+        @Override
+        protected InputStream getContentStream() throws MessagingException {
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 * 1024);
+            try {
+                writeContent(mail, boundary, cache, bytes);
+            } catch (IOException e) {
+                throw new MessagingException("Error writing the content.", e);
+            } catch (MailException e) {
+                throw new MessagingException("Error writing the content.", e);
+            }
+            return new ByteArrayInputStream(bytes.toByteArray());
+        }
+
+        @Override
+        protected void writeMessage(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+
+            MimeOutput out = MimeOutput.acquire(os, null);
+            try {
+                write(out, ignoreList);
+            } finally {
+                out.release();
+            }
+        }
+
+        private void write(MimeOutput out, String[] ignoreList) throws IOException, MessagingException {
+
+            if (!saved) {
+                saveChanges();
+            }
+
+            for (Enumeration<?> e = getNonMatchingHeaderLines(ignoreList); e.hasMoreElements();) {
+                out.writeln((String) e.nextElement());
+            }
+            out.crlf();
+
+            writes++;
+            try {
+                writeContent(out, mail, boundary, cache);
+            } catch (MailException e) {
+                throw new MessagingException("Error writing the content.", e);
+            }
+            out.flush();
+        }
+
+        private boolean hasDeferredContent() {
+
+            if (isDeferred(mail)) {
+                return true;
+            }
+            List<Attachment> attachments = mail.getAttachments();
+            if (attachments != null) {
+                for (Attachment a : attachments) {
+                    if (isDeferred(a)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static boolean isDeferred(Body body) {
+            return body.getContent() instanceof ContentSupplier || body.getContent() instanceof StreamSupplier;
+        }
+    }
+}
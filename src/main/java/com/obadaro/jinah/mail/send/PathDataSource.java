@@ -0,0 +1,80 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.activation.DataSource;
+
+import com.obadaro.jinah.common.util.Nulls;
+import com.obadaro.jinah.mail.Attachment;
+
+/**
+ * Read-only data source over a file. Each {@link #getInputStream()} opens a new {@link FileChannel}, so the
+ * file is streamed in small chunks every time the part is written.
+ * 
+ * @author Roberto Badaro
+ */
+public class PathDataSource implements DataSource {
+
+    protected final Path path;
+    protected final String contentType;
+
+    public PathDataSource(Path path, String contentType) {
+
+        checkArgument(path != null, "path");
+
+        this.path = path;
+        this.contentType = Nulls.nvl(contentType, Attachment.OCTET_STREAM);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Read-only data source: " + path);
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        Path name = path.getFileName();
+        return (name != null ? name.toString() : path.toString());
+    }
+}
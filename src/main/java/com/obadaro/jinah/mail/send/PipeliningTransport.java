@@ -0,0 +1,763 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Strings.isNotBlank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.event.TransportEvent;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPOutputStream;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.util.CRLFOutputStream;
+
+/**
+ * SMTP transport saving round-trips on high latency links. When the server advertises PIPELINING, MAIL FROM and
+ * all the RCPT TO are written at once and their replies read together; when it advertises CHUNKING, the message
+ * is sent in BDAT chunks, without dot-stuffing nor a DATA round-trip. Servers advertising neither get one
+ * command at a time, as {@link com.sun.mail.smtp.SMTPTransport} does.
+ * <p>
+ * With {@code mail.<protocol>.sendpartial}, the message itself is pipelined after the envelope: a transaction
+ * takes a single round-trip with CHUNKING, two with DATA. Otherwise the envelope replies are read first, so a
+ * rejected recipient aborts the message: two round-trips with CHUNKING, three with DATA.
+ * </p>
+ * <p>
+ * Failures are reported with the exceptions of {@link com.sun.mail.smtp.SMTPTransport}, which
+ * {@link SendResult} understands. Selected by {@code mail.<protocol>.pipelining}
+ * (see {@link Postman#getConnectedTransport(Session)}); reads the {@code host}, {@code port}, {@code auth},
+ * {@code from}, {@code localhost}, {@code connectiontimeout}, {@code timeout}, {@code ssl.enable},
+ * {@code starttls.enable} and {@code starttls.required} properties of the protocol too.
+ * </p>
+ * 
+ * @author Roberto Badaro
+ */
+public class PipeliningTransport extends Transport {
+
+    /** Bytes of a BDAT chunk. */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final String[] IGNORE_HEADERS = { "Bcc", "Content-Length" };
+
+    protected final String name;
+    protected final boolean ssl;
+
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private Map<String, String> extensions = Collections.emptyMap();
+    private boolean pipelining;
+    private boolean chunking;
+    private byte[] chunk;
+
+    /** Replies of the commands of the current transaction, by command. */
+    private final List<Reply> replies = new ArrayList<Reply>();
+    private int written;
+    private int lastReturnCode = SendResult.NO_REPLY_CODE;
+
+    public PipeliningTransport(Session session, URLName urlname) {
+
+        super(session, urlname);
+
+        name = (urlname != null && urlname.getProtocol() != null ? urlname.getProtocol() : "smtp");
+        ssl = "smtps".equals(name) || isTrue("ssl.enable");
+    }
+
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+
+        if (socket == null) {
+            throw new IllegalStateException("Not connected");
+        }
+        if (!(message instanceof MimeMessage)) {
+            throw new MessagingException("SMTP can only send RFC822 messages");
+        }
+
+        MimeMessage msg = (MimeMessage) message;
+        InternetAddress[] rcpts = toInternetAddresses(addresses);
+        boolean partial = isTrue("sendpartial");
+        boolean whole = pipelining && partial;
+        String mailFrom = "MAIL FROM:<" + envelopeFrom(session, name, msg) + ">";
+
+        replies.clear();
+        written = 0;
+
+        try {
+            command(mailFrom);
+            if (!pipelining && !replies.get(0).isPositive()) {
+                reset();
+                throw failed(msg, new SMTPSendFailedException(mailFrom, replies.get(0).code, replies.get(0).text,
+                    null, null, rcpts, null), null, rcpts, null);
+            }
+
+            for (InternetAddress rcpt : rcpts) {
+                command("RCPT TO:<" + rcpt.getAddress() + ">");
+            }
+            if (whole) {
+                if (chunking) {
+                    writeChunks(msg);
+                } else {
+                    command("DATA");
+                }
+            }
+            awaitReplies();
+
+            Reply mail = replies.get(0);
+            if (!mail.isPositive()) {
+                abortData(whole);
+                reset();
+                throw failed(msg, new SMTPSendFailedException(mailFrom, mail.code, mail.text, null, null, rcpts,
+                    null), null, rcpts, null);
+            }
+
+            List<Address> valid = new ArrayList<Address>(rcpts.length);
+            List<Address> validUnsent = new ArrayList<Address>();
+            List<Address> invalid = new ArrayList<Address>();
+            MessagingException rejected = null;
+
+            for (int i = 0; i < rcpts.length; i++) {
+                Reply rcpt = replies.get(i + 1);
+                if (rcpt.isPositive()) {
+                    valid.add(rcpts[i]);
+                    continue;
+                }
+
+                SMTPAddressFailedException e = new SMTPAddressFailedException(rcpts[i], "RCPT TO:<" +
+                        rcpts[i].getAddress() + ">", rcpt.code, rcpt.text);
+                if (rejected == null) {
+                    rejected = e;
+                } else {
+                    rejected.setNextException(e);
+                }
+                (rcpt.code >= 500 ? invalid : validUnsent).add(rcpts[i]);
+            }
+
+            Address[] unsent = toArray(valid, validUnsent);
+            if (valid.isEmpty() || (rejected != null && !partial)) {
+                abortData(whole);
+                reset();
+                throw failed(msg, new SendFailedException("Invalid Addresses", rejected, null, unsent,
+                    toArray(invalid)), null, unsent, toArray(invalid));
+            }
+
+            String endCommand;
+            Reply end;
+            int contentStart = rcpts.length + 1;
+
+            if (chunking) {
+                if (!whole) {
+                    writeChunks(msg);
+                    awaitReplies();
+                }
+                endCommand = "BDAT";
+                end = replies.get(contentStart);
+                for (int i = contentStart + 1; i < replies.size() && end.isPositive(); i++) {
+                    end = replies.get(i);
+                }
+
+            } else {
+                if (!whole) {
+                    command("DATA");
+                    awaitReplies();
+                }
+                Reply data = replies.get(contentStart);
+                if (data.code != 354) {
+                    reset();
+                    throw failed(msg, new SMTPSendFailedException("DATA", data.code, data.text, rejected, null,
+                        unsent, toArray(invalid)), null, unsent, toArray(invalid));
+                }
+                writeData(msg);
+                awaitReplies();
+                endCommand = ".";
+                end = replies.get(replies.size() - 1);
+            }
+
+            lastReturnCode = end.code;
+            if (!end.isPositive()) {
+                reset();
+                throw failed(msg, new SMTPSendFailedException(endCommand, end.code, end.text, rejected, null,
+                    unsent, toArray(invalid)), null, unsent, toArray(invalid));
+            }
+
+            Address[] sent = toArray(valid);
+            if (rejected != null) {
+                // Partially sent, as SMTPTransport reports it.
+                notifyTransportListeners(TransportEvent.MESSAGE_PARTIALLY_DELIVERED, sent, toArray(validUnsent),
+                    toArray(invalid), msg);
+                throw new SMTPSendFailedException(".", end.code, end.text, rejected, sent, toArray(validUnsent),
+                    toArray(invalid));
+            }
+            notifyTransportListeners(TransportEvent.MESSAGE_DELIVERED, sent, null, null, msg);
+
+        } catch (IOException e) {
+            closeSocket();
+            throw failed(msg, new MessagingException("IOException while sending message", e), null, rcpts, null);
+        }
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+
+        if (!super.isConnected()) {
+            return false;
+        }
+
+        if (socket != null) {
+            try {
+                // Any reply will do.
+                simpleCommand("NOOP");
+                return true;
+            } catch (IOException e) {
+                closeSocket();
+            }
+        }
+
+        try {
+            super.close();
+        } catch (MessagingException e) {
+            // NOOP
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void close() throws MessagingException {
+
+        try {
+            if (socket != null) {
+                simpleCommand("QUIT");
+            }
+        } catch (IOException e) {
+            // Closed anyway.
+        } finally {
+            closeSocket();
+            super.close();
+        }
+    }
+
+    /**
+     * @return The reply code of the last message sent.
+     */
+    public synchronized int getLastReturnCode() {
+        return lastReturnCode;
+    }
+
+    /**
+     * @return Whether the server advertised PIPELINING.
+     */
+    public synchronized boolean isPipelining() {
+        return pipelining;
+    }
+
+    /**
+     * @return Whether the server advertised CHUNKING.
+     */
+    public synchronized boolean isChunking() {
+        return chunking;
+    }
+
+    //
+    // Internal methods
+    //
+
+    @Override
+    protected synchronized boolean protocolConnect(String host, int port, String user, String password)
+            throws MessagingException {
+
+        if (host == null) {
+            host = "localhost";
+        }
+        if (port < 0) {
+            port = (ssl ? 465 : 25);
+        }
+
+        try {
+            Socket s = new Socket();
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(host, port), intValue("connectiontimeout"));
+            s.setSoTimeout(intValue("timeout"));
+            open(ssl ? tls(s, host, port) : s);
+
+            Reply greeting = readReply();
+            if (greeting.code != 220) {
+                throw new MessagingException("Could not connect to SMTP host: " + host + ", port: " + port +
+                        ", response: " + greeting.text);
+            }
+            hello();
+
+            boolean secure = ssl;
+            if (!secure && isTrue("starttls.enable") && extensions.containsKey("STARTTLS")) {
+                Reply reply = simpleCommand("STARTTLS");
+                if (reply.code != 220) {
+                    throw new MessagingException("STARTTLS failed: " + reply.text);
+                }
+                open(tls(socket, host, port));
+                hello();
+                secure = true;
+            }
+            if (!secure && isTrue("starttls.required")) {
+                throw new MessagingException("STARTTLS is required but host does not support STARTTLS");
+            }
+
+            if ((isTrue("auth") || (user != null && password != null)) && extensions.containsKey("AUTH")) {
+                if (user == null || password == null || !authenticate(user, password)) {
+                    closeSocket();
+                    return false;
+                }
+            }
+            return true;
+
+        } catch (IOException e) {
+            closeSocket();
+            throw new MessagingException("Could not connect to SMTP host: " + host + ", port: " + port, e);
+        } catch (MessagingException e) {
+            closeSocket();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a command of the transaction. Without PIPELINING, waits for its reply.
+     */
+    protected void command(String line) throws IOException {
+
+        writeLine(line);
+        written++;
+        if (!pipelining) {
+            awaitReplies();
+        }
+    }
+
+    /**
+     * Flushes the commands written and reads their replies.
+     */
+    protected void awaitReplies() throws IOException {
+
+        out.flush();
+        while (replies.size() < written) {
+            replies.add(readReply());
+        }
+    }
+
+    /**
+     * Writes a command and reads its reply, outside a transaction.
+     */
+    protected Reply simpleCommand(String line) throws IOException {
+
+        writeLine(line);
+        out.flush();
+        return readReply();
+    }
+
+    /**
+     * Writes the message as BDAT chunks. Without PIPELINING each chunk waits for its reply, and the message is
+     * abandoned on a rejected chunk.
+     */
+    protected void writeChunks(MimeMessage msg) throws IOException, MessagingException {
+
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+        }
+        ChunkStream chunks = new ChunkStream();
+        msg.writeTo(new CRLFOutputStream(chunks), IGNORE_HEADERS);
+        chunks.finish();
+    }
+
+    /**
+     * Writes the message after a DATA command, dot-stuffed, and its terminating line.
+     */
+    protected void writeData(MimeMessage msg) throws IOException, MessagingException {
+
+        SMTPOutputStream data = new SMTPOutputStream(out);
+        msg.writeTo(data, IGNORE_HEADERS);
+        data.ensureAtBOL();
+        writeLine(".");
+        written++;
+    }
+
+    /**
+     * Ends a DATA command pipelined after a failed envelope that the server accepted anyway.
+     */
+    protected void abortData(boolean whole) throws IOException {
+
+        if (whole && !chunking && replies.get(replies.size() - 1).code == 354) {
+            writeLine(".");
+            written++;
+            awaitReplies();
+        }
+    }
+
+    /**
+     * Resets the transaction after a failure.
+     */
+    protected void reset() throws IOException {
+
+        command("RSET");
+        awaitReplies();
+    }
+
+    protected Reply readReply() throws IOException {
+
+        StringBuilder text = new StringBuilder(64);
+        while (true) {
+            String line = readLine();
+            if (line.length() < 3) {
+                throw new IOException("Invalid SMTP reply: " + line);
+            }
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(line);
+
+            if (line.length() == 3 || line.charAt(3) != '-') {
+                int code;
+                try {
+                    code = Integer.parseInt(line.substring(0, 3));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid SMTP reply: " + line);
+                }
+                return new Reply(code, text.toString());
+            }
+        }
+    }
+
+    private void hello() throws IOException, MessagingException {
+
+        String local = localHost(session, name);
+        Reply reply = simpleCommand("EHLO " + local);
+
+        Map<String, String> ext = new HashMap<String, String>();
+        if (reply.code == 250) {
+            String[] lines = reply.text.split("\n");
+            for (int i = 1; i < lines.length; i++) {
+                String line = (lines[i].length() > 4 ? lines[i].substring(4) : "");
+                int sp = line.indexOf(' ');
+                ext.put((sp > 0 ? line.substring(0, sp) : line).toUpperCase(Locale.ROOT),
+                    (sp > 0 ? line.substring(sp + 1) : ""));
+            }
+        } else {
+            reply = simpleCommand("HELO " + local);
+            if (reply.code != 250) {
+                throw new MessagingException("HELO failed: " + reply.text);
+            }
+        }
+
+        extensions = ext;
+        pipelining = ext.containsKey("PIPELINING");
+        chunking = ext.containsKey("CHUNKING");
+    }
+
+    private boolean authenticate(String user, String password) throws IOException {
+
+        String mechanisms = " " + extensions.get("AUTH").toUpperCase(Locale.ROOT) + " ";
+        if (mechanisms.contains(" PLAIN ")) {
+            return simpleCommand("AUTH PLAIN " + base64("\u0000" + user + "\u0000" + password)).code == 235;
+        }
+        if (mechanisms.contains(" LOGIN ")) {
+            Reply reply = simpleCommand("AUTH LOGIN");
+            if (reply.code == 334) {
+                reply = simpleCommand(base64(user));
+            }
+            if (reply.code == 334) {
+                reply = simpleCommand(base64(password));
+            }
+            return reply.code == 235;
+        }
+        return false;
+    }
+
+    private void open(Socket s) throws IOException {
+
+        socket = s;
+        in = new BufferedInputStream(s.getInputStream(), 4 * 1024);
+        out = new BufferedOutputStream(s.getOutputStream(), 8 * 1024);
+    }
+
+    private static SSLSocket tls(Socket s, String host, int port) throws IOException {
+
+        SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(s, host, port,
+            true);
+        ssl.startHandshake();
+        return ssl;
+    }
+
+    private void closeSocket() {
+
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // NOOP
+            }
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+
+    private void writeLine(String line) throws IOException {
+
+        for (int i = 0; i < line.length(); i++) {
+            out.write(line.charAt(i));
+        }
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private String readLine() throws IOException {
+
+        StringBuilder sb = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed by the server");
+            }
+            if (b != '\r') {
+                sb.append((char) b);
+            }
+        }
+        return sb.toString();
+    }
+
+    private MessagingException failed(MimeMessage msg,
+                                      MessagingException e,
+                                      Address[] sent,
+                                      Address[] unsent,
+                                      Address[] invalid) {
+
+        notifyTransportListeners(TransportEvent.MESSAGE_NOT_DELIVERED, sent, unsent, invalid, msg);
+        return e;
+    }
+
+    /**
+     * @return The envelope sender of a message: {@code mail.<protocol>.from}, the From address or the local
+     *         address, as {@link com.sun.mail.smtp.SMTPTransport} does.
+     */
+    static String envelopeFrom(Session session, String protocol, MimeMessage msg) throws MessagingException {
+
+        String from = session.getProperty("mail." + protocol + ".from");
+        if (isNotBlank(from)) {
+            return from;
+        }
+
+        Address[] addresses = msg.getFrom();
+        if (addresses != null && addresses.length > 0 && addresses[0] instanceof InternetAddress) {
+            return ((InternetAddress) addresses[0]).getAddress();
+        }
+
+        InternetAddress local = InternetAddress.getLocalAddress(session);
+        return (local != null ? local.getAddress() : "");
+    }
+
+    /**
+     * @return The name the client greets with: {@code mail.<protocol>.localhost} or the local host name.
+     */
+    static String localHost(Session session, String protocol) {
+
+        String local = session.getProperty("mail." + protocol + ".localhost");
+        if (isNotBlank(local)) {
+            return local;
+        }
+
+        try {
+            InetAddress address = InetAddress.getLocalHost();
+            return heloName(address.getCanonicalHostName(), address);
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    /**
+     * @return {@code name}, or the address literal of {@code address} ({@code [192.0.2.1]},
+     *         {@code [IPv6:2001:db8::1]}) when the name did not resolve.
+     */
+    static String heloName(String name, InetAddress address) {
+
+        String literal = address.getHostAddress();
+        if (isNotBlank(name) && !name.equals(literal)) {
+            return name;
+        }
+
+        int scope = literal.indexOf('%');
+        if (scope >= 0) {
+            literal = literal.substring(0, scope);
+        }
+        return (address instanceof Inet6Address ? "[IPv6:" + literal + "]" : "[" + literal + "]");
+    }
+
+    private static InternetAddress[] toInternetAddresses(Address[] addresses) throws MessagingException {
+
+        if (addresses == null || addresses.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        InternetAddress[] rcpts = new InternetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            if (!(addresses[i] instanceof InternetAddress)) {
+                throw new MessagingException(addresses[i] + " is not an InternetAddress");
+            }
+            rcpts[i] = (InternetAddress) addresses[i];
+        }
+        return rcpts;
+    }
+
+    private static Address[] toArray(List<Address> list) {
+        return (list.isEmpty() ? null : list.toArray(new Address[list.size()]));
+    }
+
+    private static Address[] toArray(List<Address> first, List<Address> second) {
+
+        List<Address> all = new ArrayList<Address>(first.size() + second.size());
+        all.addAll(first);
+        all.addAll(second);
+        return toArray(all);
+    }
+
+    private static String base64(String s) {
+        return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String property(String key) {
+        return session.getProperty("mail." + name + "." + key);
+    }
+
+    private boolean isTrue(String key) {
+        return "true".equalsIgnoreCase(property(key));
+    }
+
+    private int intValue(String key) {
+
+        String value = property(key);
+        if (isNotBlank(value)) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                // Falls back to no timeout.
+            }
+        }
+        return 0;
+    }
+
+    // Inner classes
+
+    /**
+     * An SMTP reply: its code and its lines.
+     */
+    protected static final class Reply {
+
+        final int code;
+        final String text;
+
+        Reply(int code, String text) {
+
+            this.code = code;
+            this.text = text;
+        }
+
+        boolean isPositive() {
+            return code >= 200 && code < 400;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * Cuts the message in BDAT chunks.
+     */
+    private final class ChunkStream extends OutputStream {
+
+        private int count;
+        private boolean rejected;
+
+        @Override
+        public void write(int b) throws IOException {
+
+            if (count == chunk.length) {
+                send(false);
+            }
+            chunk[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            while (len > 0) {
+                if (count == chunk.length) {
+                    send(false);
+                }
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        void finish() throws IOException {
+            send(true);
+        }
+
+        private void send(boolean last) throws IOException {
+
+            if (!rejected) {
+                writeLine(last ? "BDAT " + count + " LAST" : "BDAT " + count);
+                out.write(chunk, 0, count);
+                written++;
+                if (!pipelining) {
+                    awaitReplies();
+                    rejected = !replies.get(replies.size() - 1).isPositive();
+                }
+            }
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * A connected {@link Transport} borrowed from a {@link TransportPool}. Must be given back through
+ * {@link TransportPool#release(PooledTransport)} or {@link TransportPool#invalidate(PooledTransport)}.
+ * 
+ * @author Roberto Badaro
+ */
+public final class PooledTransport {
+
+    final TransportPool.Key key;
+    final long createdAt;
+
+    Transport transport;
+
+    long lastUsed;
+    int messageCount;
+    int maxMessages;
+
+    PooledTransport(TransportPool.Key key, Transport transport, int maxMessages) {
+
+        this.key = key;
+        this.transport = transport;
+        this.maxMessages = maxMessages;
+        this.createdAt = System.currentTimeMillis();
+        this.lastUsed = createdAt;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public Session getSession() {
+        return key.session;
+    }
+
+    /**
+     * Registers a message sent through this connection.
+     * 
+     * @return {@code true} if the connection reached the configured number of messages and should be released
+     *         to be rotated.
+     */
+    public boolean messageSent() {
+
+        messageCount++;
+        return isExhausted();
+    }
+
+    /**
+     * @return {@code true} if the connection reached the configured number of messages.
+     */
+    public boolean isExhausted() {
+        return (maxMessages > 0 && messageCount >= maxMessages);
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    @Override
+    public String toString() {
+        return "PooledTransport[" + key + ", messages = " + messageCount + "]";
+    }
+
+}
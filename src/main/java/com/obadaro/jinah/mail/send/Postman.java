@@ -20,19 +20,28 @@
 package com.obadaro.jinah.mail.send;
 
 import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
-import static com.obadaro.jinah.common.util.Strings.ifBlank;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Properties;
+import java.util.Iterator;
+import java.util.List;
 
+import javax.mail.Address;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Transport;
+import javax.mail.URLName;
 import javax.mail.internet.MimeMessage;
 
 import com.obadaro.jinah.common.internals.Logger;
 import com.obadaro.jinah.mail.Mail;
 import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.metrics.MetricsSink;
+import com.sun.mail.smtp.SMTPTransport;
 
 /**
  * 
@@ -49,10 +58,27 @@ public class Postman {
 
     public static void sendMail(Session session, boolean silentFail, Mail... mails) throws MailException {
 
+        checkArgument(mails != null, "mails");
+        sendMail(session, silentFail, Arrays.asList(mails).iterator());
+    }
+
+    /**
+     * Sends the mails pulled from the iterator through a single connection. Each message is built just before
+     * being sent and dropped right after, so the iterator may produce the mails lazily (e.g. from a database
+     * cursor or a {@link java.util.stream.Stream}) and memory stays flat regardless of the batch size.
+     * 
+     * @param session
+     * @param silentFail
+     * @param mails
+     * @throws MailException
+     */
+    public static void sendMail(Session session, boolean silentFail, Iterator<? extends Mail> mails)
+            throws MailException {
+
         checkArgument(session != null, "session");
         checkArgument(mails != null, "mails");
 
-        if (mails.length == 0) {
+        if (!mails.hasNext()) {
             return;
         }
 
@@ -61,8 +87,8 @@ public class Postman {
 
         try {
             transport = getConnectedTransport(session);
-            for (Mail mail : mails) {
-                sendMail(session, transport, mail, sentDate, silentFail);
+            while (mails.hasNext()) {
+                sendMail(session, transport, mails.next(), sentDate, silentFail);
             }
 
         } catch (Exception e) {
@@ -88,21 +114,115 @@ public class Postman {
         }
     }
 
-    public static Transport getConnectedTransport(Session session) throws MailException {
+    public static void sendMail(TransportPool pool, Session session, Mail mail) throws MailException {
 
+        sendMail(pool, session, false, mail);
+    }
+
+    /**
+     * Sends the mails through a transport borrowed from the pool. The transport is given back to the pool after
+     * the batch (or rotated in the middle of it, when it reaches the pool's max messages per connection).
+     * 
+     * @param pool
+     * @param session
+     * @param silentFail
+     * @param mails
+     * @throws MailException
+     */
+    public static void sendMail(TransportPool pool, Session session, boolean silentFail, Mail... mails)
+            throws MailException {
+
+        checkArgument(mails != null, "mails");
+        sendMail(pool, session, silentFail, Arrays.asList(mails).iterator());
+    }
+
+    /**
+     * Sends the mails pulled from the iterator through a transport borrowed from the pool. Like
+     * {@link #sendMail(Session, boolean, Iterator)}, each message is built just before being sent.
+     * 
+     * @param pool
+     * @param session
+     * @param silentFail
+     * @param mails
+     * @throws MailException
+     */
+    public static void sendMail(TransportPool pool,
+                                Session session,
+                                boolean silentFail,
+                                Iterator<? extends Mail> mails) throws MailException {
+
+        checkArgument(pool != null, "pool");
         checkArgument(session != null, "session");
+        checkArgument(mails != null, "mails");
+
+        if (!mails.hasNext()) {
+            return;
+        }
+
+        Date sentDate = new Date();
+        PooledTransport pooled = null;
+        boolean failed = false;
+
+        try {
+            while (mails.hasNext()) {
+                if (pooled != null && pooled.isExhausted()) {
+                    pool.release(pooled);
+                    pooled = null;
+                }
+                if (pooled == null) {
+                    pooled = pool.borrow(session);
+                }
+                boolean sent = sendMail(session, pooled.getTransport(), mails.next(), sentDate, silentFail);
+                pooled.messageSent();
+                if (!sent && !pooled.getTransport().isConnected()) {
+                    // Connection lost: not given back to the pool, a new one is borrowed for the next mail.
+                    pool.invalidate(pooled);
+                    pooled = null;
+                }
+            }
+
+        } catch (Exception e) {
+            failed = true;
+            if (silentFail) {
+                LOG.warn(e, "Error sending mail.");
+                return;
+            }
+
+            if (e instanceof MailException) {
+                throw (MailException) e;
+            } else {
+                throw new MailException(e);
+            }
+
+        } finally {
+            // After an error the connection may be dead: a later borrow would skip its validation.
+            release(pool, pooled, failed);
+        }
+    }
 
-        Properties cfg = session.getProperties();
-        String protocol = ifBlank(cfg.getProperty("mail.transport.protocol"), "smtp");
-        boolean needsAuth = "true".equalsIgnoreCase(cfg.getProperty("mail." + protocol + ".auth"));
+    /**
+     * Opens a connection to the relay of the session: through a {@link PipeliningTransport} if
+     * {@code mail.<protocol>.pipelining} is set, otherwise through the transport of the protocol.
+     * 
+     * @param session
+     * @return The connected transport.
+     * @throws MailException
+     */
+    public static Transport getConnectedTransport(Session session) throws MailException {
+
+        TransportSettings settings = TransportSettings.of(session);
 
         try {
-            Transport transport = session.getTransport();
+            Transport transport;
+            if (settings.isPipelining()) {
+                transport = new PipeliningTransport(session, new URLName(settings.getProtocol(), settings.getHost(),
+                    settings.getPort(), null, null, null));
+            } else {
+                transport = session.getTransport(settings.getProtocol());
+            }
 
-            if (needsAuth) {
-                String usr = cfg.getProperty("mail." + protocol + ".username");
-                String pwd = cfg.getProperty("mail." + protocol + ".password");
-                transport.connect(usr, pwd);
+            if (settings.isAuthRequired()) {
+                transport.connect(settings.getUsername(), settings.getPassword());
             } else {
                 transport.connect();
             }
@@ -114,31 +234,397 @@ public class Postman {
         }
     }
 
+    public static BatchResult sendBatch(Session session, Mail... mails) {
+
+        checkArgument(mails != null, "mails");
+        return sendBatch(null, session, Arrays.asList(mails).iterator());
+    }
+
+    public static BatchResult sendBatch(Session session, Iterator<? extends Mail> mails) {
+
+        return sendBatch(null, session, mails);
+    }
+
+    /**
+     * Sends the mails through a single connection (borrowed from the pool, if given), reporting the outcome of
+     * each one: unlike {@link #sendMail(Session, boolean, Mail...)}, a failure doesn't stop the batch. If the
+     * connection is lost, it's reopened for the next mail; if it can't be opened, the remaining mails are
+     * reported as {@link SendResult.Status#SKIPPED}.
+     * 
+     * @param pool
+     *            Optional.
+     * @param session
+     * @param mails
+     * @return Per-message results, in the same order of the mails.
+     */
+    public static BatchResult sendBatch(TransportPool pool, Session session, Iterator<? extends Mail> mails) {
+
+        checkArgument(session != null, "session");
+        checkArgument(mails != null, "mails");
+
+        long start = System.nanoTime();
+        List<SendResult> results = new ArrayList<SendResult>();
+        Date sentDate = new Date();
+        PooledTransport pooled = null;
+        Transport transport = null;
+
+        try {
+            while (mails.hasNext()) {
+                Mail mail = mails.next();
+
+                if (transport == null) {
+                    try {
+                        if (pool != null) {
+                            pooled = pool.borrow(session);
+                            transport = pooled.getTransport();
+                        } else {
+                            transport = getConnectedTransport(session);
+                        }
+                    } catch (MailException e) {
+                        results.add(SendResult.failed(mail, e, 0L));
+                        while (mails.hasNext()) {
+                            results.add(SendResult.skipped(mails.next(), e));
+                        }
+                        break;
+                    }
+                }
+
+                SendResult result = send(session, transport, mail, sentDate);
+                results.add(result);
+
+                boolean lost = (result.getStatus() == SendResult.Status.FAILED && !transport.isConnected());
+                if (pooled != null) {
+                    if (pooled.messageSent() || lost) {
+                        release(pool, pooled, lost);
+                        pooled = null;
+                        transport = null;
+                    }
+                } else if (lost) {
+                    TransportPool.close(transport);
+                    transport = null;
+                }
+            }
+
+        } finally {
+            if (pooled != null) {
+                pool.release(pooled);
+            } else if (transport != null) {
+                TransportPool.close(transport);
+            }
+        }
+
+        return new BatchResult(results, System.nanoTime() - start);
+    }
+
+    /**
+     * Sends a mail through a connected transport, reporting the outcome instead of throwing.
+     * 
+     * @param session
+     * @param transport
+     * @param mail
+     * @param sentDate
+     * @return The send result.
+     */
+    public static SendResult send(Session session, Transport transport, Mail mail, Date sentDate) {
+
+        return send(session, transport, mail, sentDate, MailMessages.factory());
+    }
+
+    /**
+     * Sends a mail through a connected transport, reporting the outcome instead of throwing.
+     * 
+     * @param session
+     * @param transport
+     * @param mail
+     * @param sentDate
+     * @param factory
+     *            Builds the message of the mail.
+     * @return The send result.
+     */
+    public static SendResult send(Session session,
+                                  Transport transport,
+                                  Mail mail,
+                                  Date sentDate,
+                                  MessageFactory factory) {
+
+        return send(session, transport, mail, sentDate, factory, MetricsSink.NOOP, null);
+    }
+
+    /**
+     * Sends a mail through a connected transport, reporting the outcome instead of throwing, and the build and
+     * transmission times and the message size to the metrics.
+     * 
+     * @param session
+     * @param transport
+     * @param mail
+     * @param sentDate
+     * @param factory
+     *            Builds the message of the mail.
+     * @param metrics
+     * @param relay
+     *            Relay the measurements are tagged with.
+     * @return The send result.
+     */
+    public static SendResult send(Session session,
+                                  Transport transport,
+                                  Mail mail,
+                                  Date sentDate,
+                                  MessageFactory factory,
+                                  MetricsSink metrics,
+                                  String relay) {
+
+        return send(session, transport, mail, sentDate, factory, splitter(session), metrics, relay);
+    }
+
+    /**
+     * Sends a mail through a connected transport, like
+     * {@link #send(Session, Transport, Mail, Date, MessageFactory, MetricsSink, String)}, with the envelope
+     * splitter of the relay already built.
+     * 
+     * @param session
+     * @param transport
+     * @param mail
+     * @param sentDate
+     * @param factory
+     *            Builds the message of the mail.
+     * @param splitter
+     *            Splits the recipients in envelopes, see {@link TransportSettings#getEnvelopeSplitter()}.
+     * @param metrics
+     * @param relay
+     *            Relay the measurements are tagged with.
+     * @return The send result.
+     */
+    public static SendResult send(Session session,
+                                  Transport transport,
+                                  Mail mail,
+                                  Date sentDate,
+                                  MessageFactory factory,
+                                  EnvelopeSplitter splitter,
+                                  MetricsSink metrics,
+                                  String relay) {
+
+        long start = System.nanoTime();
+        List<Address[]> envelopes;
+        MimeMessage msg;
+
+        try {
+            msg = factory.createMessage(session, mail);
+            msg.setSentDate(sentDate);
+
+            envelopes = splitter.split(msg.getAllRecipients());
+            if (envelopes.size() > 1) {
+                msg = encoded(session, msg);
+            }
+
+        } catch (Exception e) {
+            return SendResult.failed(mail, toMailException(e), System.nanoTime() - start);
+        }
+
+        long built = System.nanoTime();
+        metrics.recordTime(MetricsSink.BUILD, relay, built - start);
+
+        SendResult result;
+        if (envelopes.size() == 1) {
+            try {
+                transport.sendMessage(msg, envelopes.get(0));
+                result = SendResult.sent(mail, lastReplyCode(transport), System.nanoTime() - start);
+            } catch (Exception e) {
+                result = failed(mail, msg, e, System.nanoTime() - start);
+            }
+        } else {
+            result = sendEnvelopes(transport, mail, msg, envelopes, start);
+        }
+
+        metrics.recordTime(MetricsSink.TRANSMIT, relay, System.nanoTime() - built);
+        if (msg instanceof CountingMimeMessage && ((CountingMimeMessage) msg).getWrittenBytes() >= 0) {
+            metrics.recordValue(MetricsSink.SIZE, relay, ((CountingMimeMessage) msg).getWrittenBytes());
+        }
+
+        return result;
+    }
+
+    /**
+     * @param transport
+     * @return The reply code of the last SMTP command or {@link SendResult#NO_REPLY_CODE}.
+     */
+    public static int lastReplyCode(Transport transport) {
+
+        if (transport instanceof SMTPTransport) {
+            return ((SMTPTransport) transport).getLastReturnCode();
+        }
+        if (transport instanceof PipeliningTransport) {
+            return ((PipeliningTransport) transport).getLastReturnCode();
+        }
+        return SendResult.NO_REPLY_CODE;
+    }
+
+    /**
+     * @param session
+     * @return The envelope splitter for the session's {@code mail.<protocol>.maxrecipients} and
+     *         {@code mail.<protocol>.envelopeperdomain}. See {@link TransportSettings#getEnvelopeSplitter()}.
+     */
+    public static EnvelopeSplitter splitter(Session session) {
+        return TransportSettings.of(session).getEnvelopeSplitter();
+    }
+
+    static void release(TransportPool pool, PooledTransport pooled, boolean lost) {
+
+        if (lost) {
+            pool.invalidate(pooled);
+        } else {
+            pool.release(pooled);
+        }
+    }
+
     protected static boolean sendMail(Session session,
                                       Transport transport,
                                       Mail mail,
                                       Date sentDate,
                                       boolean silentFail) throws MailException {
 
-        try {
-            MimeMessage msg = MailMessages.createMessage(session, mail);
-            msg.setSentDate(sentDate);
-
-            transport.sendMessage(msg, msg.getAllRecipients());
+        SendResult result = send(session, transport, mail, sentDate);
+        if (result.getStatus() == SendResult.Status.SENT) {
             return true;
+        }
 
-        } catch (Exception e) {
-            if (!silentFail) {
-                if (e instanceof MailException) {
-                    throw (MailException) e;
+        if (!silentFail) {
+            throw (MailException) result.getError();
+        } else {
+            LOG.warn(result.getError(), "Error sending mail.");
+            return false;
+        }
+    }
+
+    /**
+     * Encodes the message once, so every envelope writes the same bytes. Bcc is left out: recipients travel
+     * in the envelopes.
+     */
+    protected static MimeMessage encoded(Session session, MimeMessage msg) throws MessagingException,
+            IOException {
+
+        msg.saveChanges();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 * 1024);
+        msg.writeTo(bytes, new String[] { "Bcc" });
+
+        return new CountingMimeMessage(session, new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    /**
+     * Sends a message in several envelopes and merges their outcome (see
+     * {@link #mergeEnvelopes(Mail, List, List, long)}). Once the connection is lost, the remaining envelopes are
+     * not tried.
+     */
+    protected static SendResult sendEnvelopes(Transport transport,
+                                              Mail mail,
+                                              MimeMessage msg,
+                                              List<Address[]> envelopes,
+                                              long start) {
+
+        List<SendResult> results = new ArrayList<SendResult>(envelopes.size());
+        CountingMimeMessage counting = (msg instanceof CountingMimeMessage ? (CountingMimeMessage) msg : null);
+        long written = -1;
+        boolean connected = true;
+
+        for (Address[] envelope : envelopes) {
+            if (!connected) {
+                results.add(null);
+                continue;
+            }
+
+            if (counting != null) {
+                // Whether this envelope's data was handed over, not a previous one's (see failed).
+                counting.setWrittenBytes(-1);
+            }
+            try {
+                transport.sendMessage(msg, envelope);
+                results.add(SendResult.sent(mail, lastReplyCode(transport), 0L));
+            } catch (Exception e) {
+                results.add(failed(mail, msg, e, 0L));
+                connected = transport.isConnected();
+            }
+            if (counting != null && counting.getWrittenBytes() >= 0) {
+                written = counting.getWrittenBytes();
+            }
+        }
+
+        if (counting != null) {
+            // Message size, as measured by the caller.
+            counting.setWrittenBytes(written);
+        }
+        return mergeEnvelopes(mail, envelopes, results, System.nanoTime() - start);
+    }
+
+    /**
+     * Merges the outcome of the envelopes of a message: {@link SendResult.Status#SENT} if all were sent,
+     * {@link SendResult.Status#PARTIAL} if some were, with the recipients of the failed envelopes as unsent.
+     * 
+     * @param mail
+     * @param envelopes
+     * @param results
+     *            Result of each envelope, {@code null} if not tried.
+     * @param latencyNanos
+     * @return The result of the message.
+     */
+    static SendResult mergeEnvelopes(Mail mail, List<Address[]> envelopes, List<SendResult> results,
+                                     long latencyNanos) {
+
+        List<Address> invalid = new ArrayList<Address>();
+        List<Address> unsent = new ArrayList<Address>();
+        SendResult firstFailure = null;
+        int replyCode = SendResult.NO_REPLY_CODE;
+        boolean anySent = false;
+
+        for (int i = 0; i < envelopes.size(); i++) {
+            SendResult result = results.get(i);
+            if (result == null) {
+                unsent.addAll(Arrays.asList(envelopes.get(i)));
+
+            } else if (result.getStatus() == SendResult.Status.SENT) {
+                replyCode = result.getReplyCode();
+                anySent = true;
+
+            } else {
+                // An envelope possibly delivered is reported first: sending it again may duplicate it.
+                if (firstFailure == null || (result.isDeliveryUncertain() && !firstFailure.isDeliveryUncertain())) {
+                    firstFailure = result;
+                }
+
+                if (result.getStatus() == SendResult.Status.PARTIAL) {
+                    anySent = true;
+                    invalid.addAll(Arrays.asList(result.getInvalidRecipients()));
+                    unsent.addAll(Arrays.asList(result.getUnsentRecipients()));
                 } else {
-                    throw new MailException(e);
+                    unsent.addAll(Arrays.asList(envelopes.get(i)));
                 }
-            } else {
-                LOG.warn(e, "Error sending mail.");
-                return false;
             }
         }
+
+        if (firstFailure == null) {
+            return SendResult.sent(mail, replyCode, latencyNanos);
+        }
+
+        // Rejected recipients are reported as invalid, not as unsent too.
+        unsent.removeAll(invalid);
+        return new SendResult(mail, (anySent ? SendResult.Status.PARTIAL : SendResult.Status.FAILED),
+            firstFailure.getError(), firstFailure.getReplyCode(), invalid.toArray(new Address[invalid.size()]),
+            unsent.toArray(new Address[unsent.size()]), latencyNanos);
     }
 
+    /**
+     * Creates the result of a failed send of a message. A failure without a reply code once the message was
+     * written, so after the relay got all of it, is reported as an {@link UncertainDeliveryException}.
+     */
+    static SendResult failed(Mail mail, MimeMessage msg, Exception e, long latencyNanos) {
+
+        MailException error = toMailException(e);
+        if (msg instanceof CountingMimeMessage && ((CountingMimeMessage) msg).getWrittenBytes() >= 0 &&
+                SendResult.replyCodeOf(e) == SendResult.NO_REPLY_CODE) {
+            error = new UncertainDeliveryException(error);
+        }
+        return SendResult.failed(mail, error, latencyNanos);
+    }
+
+    private static MailException toMailException(Exception e) {
+        return (e instanceof MailException ? (MailException) e : new MailException(e));
+    }
 }
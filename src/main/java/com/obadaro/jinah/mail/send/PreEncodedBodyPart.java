@@ -0,0 +1,239 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+
+import com.obadaro.jinah.mail.Body;
+import com.obadaro.jinah.mail.MailException;
+
+/**
+ * A body part already encoded: {@link #writeTo(OutputStream)} writes the bytes as they were produced when the
+ * part was encoded, and its headers are not recomputed when the enclosing message is saved. The encoded bytes
+ * are shared by every part created from them, so the same attachment may be used by many messages at the cost
+ * of encoding it once.
+ * <p>
+ * Replacing its content (e.g. by the 8BITMIME conversion of the SMTP transport) turns it into a plain part:
+ * headers, {@code name} parameter of the Content-Type included, are then recomputed as for any other part.
+ * </p>
+ * 
+ * @author Roberto Badaro
+ */
+public class PreEncodedBodyPart extends MimeBodyPart {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    protected final Encoded encoded;
+
+    private boolean replaced;
+
+    public PreEncodedBodyPart(Encoded encoded) {
+
+        super();
+        this.encoded = encoded;
+        for (String line : encoded.headerLines) {
+            headers.addHeaderLine(line);
+        }
+    }
+
+    /**
+     * Encodes a body, as {@link MimeBodyPart#writeTo(OutputStream)} would write it in a message.
+     * 
+     * @param body
+     * @return The encoded part.
+     * @throws MailException
+     */
+    public static Encoded encode(Body body) throws MailException {
+
+        try {
+            Encoder encoder = new Encoder();
+            MailMessages.configureMimePart(body, encoder);
+            return encoder.encode();
+
+        } catch (MessagingException e) {
+            throw new MailException(e);
+        } catch (IOException e) {
+            throw new MailException(e);
+        }
+    }
+
+    public Encoded getEncoded() {
+        return encoded;
+    }
+
+    @Override
+    public void setDataHandler(DataHandler dh) throws MessagingException {
+
+        super.setDataHandler(dh);
+        replaced = true;
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException, MessagingException {
+
+        if (replaced) {
+            super.writeTo(os);
+        } else {
+            os.write(encoded.bytes);
+        }
+    }
+
+    @Override
+    public int getSize() throws MessagingException {
+        return (replaced ? super.getSize() : encoded.bytes.length - encoded.bodyOffset);
+    }
+
+    @Override
+    protected InputStream getContentStream() throws MessagingException {
+
+        if (replaced) {
+            return super.getContentStream();
+        }
+        return new ByteArrayInputStream(encoded.bytes, encoded.bodyOffset, encoded.bytes.length -
+                encoded.bodyOffset);
+    }
+
+    @Override
+    protected void updateHeaders() throws MessagingException {
+
+        // Headers were set when the part was encoded.
+        if (replaced) {
+            super.updateHeaders();
+        }
+    }
+
+    // Inner classes
+
+    /**
+     * Immutable encoded form of a body part: header lines and the bytes written for the part (headers, blank
+     * line and encoded content).
+     */
+    public static final class Encoded {
+
+        final String[] headerLines;
+        final byte[] bytes;
+        final int bodyOffset;
+
+        Encoded(String[] headerLines, byte[] bytes, int bodyOffset) {
+
+            this.headerLines = headerLines;
+            this.bytes = bytes;
+            this.bodyOffset = bodyOffset;
+        }
+
+        /**
+         * Splits the bytes of an encoded part in header lines and content.
+         */
+        static Encoded parse(byte[] bytes) throws MessagingException {
+
+            int bodyOffset = indexOf(bytes, new byte[] { '\r', '\n', '\r', '\n' });
+            if (bodyOffset >= 0) {
+                bodyOffset += 4;
+            } else if (bytes.length >= 2 && bytes[0] == CRLF[0] && bytes[1] == CRLF[1]) {
+                bodyOffset = 2;
+            } else {
+                throw new MessagingException("Invalid encoded part: no header separator.");
+            }
+
+            InternetHeaders parsed = new InternetHeaders(new ByteArrayInputStream(bytes, 0, bodyOffset));
+            List<String> lines = new ArrayList<String>();
+            for (Enumeration<?> e = parsed.getAllHeaderLines(); e.hasMoreElements();) {
+                lines.add((String) e.nextElement());
+            }
+
+            return new Encoded(lines.toArray(new String[lines.size()]), bytes, bodyOffset);
+        }
+
+        /**
+         * @return Number of bytes written for the part.
+         */
+        public int size() {
+            return bytes.length;
+        }
+
+        private static int indexOf(byte[] data, byte[] pattern) {
+
+            outer: for (int i = 0; i <= data.length - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (data[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A part being encoded, with access to {@link MimeBodyPart#updateHeaders()}.
+     */
+    private static final class Encoder extends MimeBodyPart {
+
+        Encoded encode() throws MessagingException, IOException {
+
+            updateHeaders();
+            EncodingBuffer bytes = new EncodingBuffer(4096);
+            writeTo(bytes);
+            return Encoded.parse(bytes.toByteArray());
+        }
+    }
+
+    /**
+     * Unsynchronized buffer: the transfer encoders write a byte at a time, and the lock of
+     * {@link ByteArrayOutputStream#write(int)} on each one doubles the cost of encoding a part.
+     */
+    private static final class EncodingBuffer extends ByteArrayOutputStream {
+
+        EncodingBuffer(int size) {
+            super(size);
+        }
+
+        @Override
+        public void write(int b) {
+            if (count == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length << 1);
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (count + len > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + len));
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+}
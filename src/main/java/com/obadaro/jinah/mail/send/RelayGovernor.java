@@ -0,0 +1,317 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+
+/**
+ * Rate and concurrency limits per relay account. Relays are keyed by {@link TransportSettings#getRelayName()}
+ * (protocol, host, port and username) and their limits are read from the session, see
+ * {@link TransportSettings#getRateLimit()}, {@link TransportSettings#getRateBurst()} and
+ * {@link TransportSettings#getMaxConcurrency()}. A governor is shared by all senders of an application.
+ * 
+ * <pre>
+ * mail.smtp.ratelimit = 10         # messages per second
+ * mail.smtp.ratelimit.burst = 20
+ * mail.smtp.maxconcurrency = 4     # concurrent sends
+ * </pre>
+ * 
+ * When a limit is reached, the sender waits up to {@link #getMaxWaitMillis()} ({@link Policy#BLOCK}) or fails
+ * at once ({@link Policy#FAIL_FAST}) with a {@link RelayThrottledException}.
+ * 
+ * @author Roberto Badaro
+ */
+public class RelayGovernor {
+
+    protected final ConcurrentMap<String, Relay> relays = new ConcurrentHashMap<String, Relay>();
+
+    protected volatile Policy policy = Policy.BLOCK;
+    protected volatile long maxWaitMillis = 30000;
+
+    /**
+     * Takes a send permit of the session's relay.
+     * 
+     * @param session
+     * @return The relay, whose {@link Relay#release()} must be called once the message was sent.
+     * @throws RelayThrottledException
+     *             If the permit was not available in time.
+     */
+    public Relay acquire(Session session) throws RelayThrottledException {
+
+        Relay relay = relay(session);
+        relay.acquire(policy == Policy.FAIL_FAST ? 0 : maxWaitMillis);
+        return relay;
+    }
+
+    /**
+     * @param session
+     * @return State and limits of the session's relay.
+     */
+    public Relay relay(Session session) {
+
+        TransportSettings settings = TransportSettings.of(session);
+        String name = settings.getRelayName();
+
+        Relay relay = relays.get(name);
+        if (relay == null) {
+            relay = new Relay(name, settings.getRateLimit(), settings.getRateBurst(), settings.getMaxConcurrency());
+            Relay existing = relays.putIfAbsent(name, relay);
+            if (existing != null) {
+                relay = existing;
+            }
+        }
+        return relay;
+    }
+
+    /**
+     * @return The relays seen so far, for monitoring.
+     */
+    public Collection<Relay> getRelays() {
+        return new ArrayList<Relay>(relays.values());
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(Policy policy) {
+
+        checkArgument(policy != null, "policy");
+        this.policy = policy;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @param maxWaitMillis
+     *            Maximum time a {@link Policy#BLOCK} sender waits for a permit.
+     */
+    public void setMaxWaitMillis(long maxWaitMillis) {
+
+        checkArgument(maxWaitMillis >= 0, "maxWaitMillis");
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "RelayGovernor[policy = " + policy + ", relays = " + relays.values() + "]";
+    }
+
+    // Inner classes
+
+    public enum Policy {
+        /** Waits for the permit, up to {@link RelayGovernor#getMaxWaitMillis()}. */
+        BLOCK,
+        /** Fails if the permit is not available at once. */
+        FAIL_FAST
+    }
+
+    /**
+     * Limits and state of a relay: a token bucket of {@link #getRateLimit()} messages per second holding up to
+     * {@link #getBurst()} tokens, and a semaphore of {@link #getMaxConcurrency()} permits.
+     */
+    public static final class Relay {
+
+        private final String name;
+        private final double rateLimit;
+        private final int burst;
+        private final int maxConcurrency;
+        private final Semaphore concurrency;
+
+        // Token bucket, guarded by this.
+        private double tokens;
+        private long refilledAt;
+
+        private long acquired;
+        private long waited;
+        private long rejected;
+
+        Relay(String name, double rateLimit, int burst, int maxConcurrency) {
+
+            this.name = name;
+            this.rateLimit = Math.max(0, rateLimit);
+            this.burst = (burst > 0 ? burst : (int) Math.max(1, Math.ceil(this.rateLimit)));
+            this.maxConcurrency = Math.max(0, maxConcurrency);
+            this.concurrency = (this.maxConcurrency > 0 ? new Semaphore(this.maxConcurrency, true) : null);
+            this.tokens = this.burst;
+            this.refilledAt = System.nanoTime();
+        }
+
+        /**
+         * Gives back the concurrency permit taken by {@link RelayGovernor#acquire(Session)}.
+         */
+        public void release() {
+
+            if (concurrency != null) {
+                concurrency.release();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getRateLimit() {
+            return rateLimit;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        /**
+         * @return Sends in progress, if the concurrency is limited.
+         */
+        public int getInUse() {
+            return (concurrency != null ? maxConcurrency - concurrency.availablePermits() : 0);
+        }
+
+        public synchronized double getAvailableTokens() {
+
+            if (rateLimit == 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            refill(System.nanoTime());
+            return tokens;
+        }
+
+        /**
+         * @return Permits given.
+         */
+        public synchronized long getAcquired() {
+            return acquired;
+        }
+
+        /**
+         * @return Permits given after waiting for a limit.
+         */
+        public synchronized long getWaited() {
+            return waited;
+        }
+
+        /**
+         * @return Permits refused.
+         */
+        public synchronized long getRejected() {
+            return rejected;
+        }
+
+        @Override
+        public String toString() {
+            return "Relay[" + name + ", rateLimit = " + rateLimit + "/s, burst = " + burst + ", maxConcurrency = " +
+                    maxConcurrency + ", inUse = " + getInUse() + ", acquired = " + getAcquired() + ", waited = " +
+                    getWaited() + ", rejected = " + getRejected() + "]";
+        }
+
+        //
+        // Internal methods
+        //
+
+        void acquire(long maxWaitMillis) throws RelayThrottledException {
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            boolean wait = false;
+
+            if (concurrency != null && !concurrency.tryAcquire()) {
+                wait = true;
+                boolean permit = false;
+                try {
+                    permit = (maxWaitMillis > 0 && concurrency.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!permit) {
+                    rejected();
+                    throw new RelayThrottledException(name, "Concurrency limit of " + maxConcurrency + " reached");
+                }
+            }
+
+            try {
+                while (rateLimit > 0) {
+                    long delayNanos = takeToken();
+                    if (delayNanos == 0) {
+                        break;
+                    }
+
+                    wait = true;
+                    long now = System.nanoTime();
+                    if (now + delayNanos > deadline) {
+                        rejected();
+                        throw new RelayThrottledException(name, "Rate limit of " + rateLimit + "/s reached");
+                    }
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                release();
+                rejected();
+                throw new RelayThrottledException(name, "Interrupted waiting for the rate limit");
+            } catch (RelayThrottledException e) {
+                release();
+                throw e;
+            }
+
+            synchronized (this) {
+                acquired++;
+                if (wait) {
+                    waited++;
+                }
+            }
+        }
+
+        /**
+         * @return {@code 0} if a token was taken, otherwise the time until one is available.
+         */
+        private synchronized long takeToken() {
+
+            refill(System.nanoTime());
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / rateLimit * 1e9);
+        }
+
+        private void refill(long now) {
+
+            tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * rateLimit);
+            refilledAt = now;
+        }
+
+        private synchronized void rejected() {
+            rejected++;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+
+import com.obadaro.jinah.mail.Mail;
+
+/**
+ * {@link Courier} spreading mails over several relays. Each mail goes to the healthier of two relays picked at
+ * random in proportion to their weights, health being measured by an exponentially weighted moving average
+ * (EWMA) of latency and success, and by the sends in progress.
+ * <p>
+ * A relay failing {@link #getFailureThreshold()} times in a row is taken out (its circuit opens) for
+ * {@link #getOpenMillis()}; then a single probe mail is sent to it, closing the circuit on success (only the
+ * probe does: sends started before the trip don't move the circuit). A mail
+ * failing transiently on a relay (see {@link RetryPolicy#classify(SendResult)}) is sent to another one, up to
+ * {@link #getMaxRelaysPerMail()} relays.
+ * </p>
+ * 
+ * <pre>
+ * RelayRouter router = new RelayRouter();
+ * router.addRelay(primarySession, primaryPool, 3);
+ * router.addRelay(backupSession, backupPool, 1);
+ * AsyncPostman postman = new AsyncPostman(router);
+ * </pre>
+ * 
+ * @author Roberto Badaro
+ */
+public class RelayRouter implements Courier {
+
+    /** Weight of the last sample in the moving averages. */
+    private static final double ALPHA = 0.2;
+
+    protected final List<Route> routes = new CopyOnWriteArrayList<Route>();
+
+    protected volatile RetryPolicy classifier = new RetryPolicy();
+    protected volatile int failureThreshold = 5;
+    protected volatile long openMillis = 30000;
+    protected volatile int maxRelaysPerMail = 2;
+
+    /**
+     * Adds a relay, sending through a {@link SessionCourier}.
+     * 
+     * @param session
+     * @param pool
+     *            Optional.
+     * @param weight
+     *            Share of the mails, relative to the other relays.
+     * @return The route of the relay.
+     */
+    public Route addRelay(Session session, TransportPool pool, int weight) {
+
+        checkArgument(session != null, "session");
+        return addRelay(TransportSettings.of(session).getRelayName(), new SessionCourier(session, pool), weight);
+    }
+
+    /**
+     * @param name
+     *            Name of the relay, as reported.
+     * @param courier
+     *            Sends the mails routed to the relay.
+     * @param weight
+     *            Share of the mails, relative to the other relays.
+     * @return The route of the relay.
+     */
+    public Route addRelay(String name, Courier courier, int weight) {
+
+        checkArgument(name != null, "name");
+        checkArgument(courier != null, "courier");
+        checkArgument(weight > 0, "weight");
+
+        Route route = new Route(name, courier, weight);
+        routes.add(route);
+        return route;
+    }
+
+    public boolean removeRelay(Route route) {
+        return routes.remove(route);
+    }
+
+    @Override
+    public SendResult send(Mail mail) {
+
+        checkArgument(mail != null, "mail");
+
+        long start = System.nanoTime();
+        List<Route> tried = new ArrayList<Route>(2);
+        SendResult result = null;
+        int attempts = 0;
+
+        while (tried.size() < maxRelaysPerMail) {
+            Route route = choose(tried);
+            if (route == null) {
+                break;
+            }
+            long ticket = route.tryAcquire(System.nanoTime());
+            if (ticket < 0) {
+                // Lost the probe of a half open route to another thread: chooses again.
+                continue;
+            }
+            tried.add(route);
+
+            long sendStart = System.nanoTime();
+            try {
+                result = route.courier.send(mail);
+            } catch (RuntimeException e) {
+                result = SendResult.failed(mail, e, System.nanoTime() - sendStart);
+            }
+            attempts += result.getAttempts();
+
+            // A concurrent send of the same key says nothing of the relay.
+            boolean relayFailure = (result.getStatus() == SendResult.Status.FAILED &&
+                    classifier.classify(result) == RetryPolicy.Failure.TRANSIENT &&
+                    !(result.getError() instanceof SendInProgressException));
+            route.completed(ticket, !relayFailure, System.nanoTime() - sendStart, failureThreshold, openMillis);
+
+            if (!relayFailure) {
+                break;
+            }
+        }
+
+        if (result == null) {
+            // No relay configured, or all of them out.
+            return SendResult.failed(mail, new RelayThrottledException("router", "No relay available"),
+                System.nanoTime() - start);
+        }
+        return (tried.size() > 1 ? result.afterAttempts(attempts, System.nanoTime() - start) : result);
+    }
+
+    /**
+     * @return The routes, with their health, for monitoring.
+     */
+    public List<Route> getRelays() {
+        return new ArrayList<Route>(routes);
+    }
+
+    public RetryPolicy getClassifier() {
+        return classifier;
+    }
+
+    /**
+     * @param classifier
+     *            Tells relay failures (transient) from mail failures (permanent), which don't count against the
+     *            relay.
+     */
+    public void setClassifier(RetryPolicy classifier) {
+
+        checkArgument(classifier != null, "classifier");
+        this.classifier = classifier;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+
+        checkArgument(failureThreshold > 0, "failureThreshold");
+        this.failureThreshold = failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    public void setOpenMillis(long openMillis) {
+
+        checkArgument(openMillis >= 0, "openMillis");
+        this.openMillis = openMillis;
+    }
+
+    public int getMaxRelaysPerMail() {
+        return maxRelaysPerMail;
+    }
+
+    /**
+     * @param maxRelaysPerMail
+     *            Relays tried for a mail failing transiently, {@code 1} for no failover.
+     */
+    public void setMaxRelaysPerMail(int maxRelaysPerMail) {
+
+        checkArgument(maxRelaysPerMail > 0, "maxRelaysPerMail");
+        this.maxRelaysPerMail = maxRelaysPerMail;
+    }
+
+    @Override
+    public String toString() {
+        return "RelayRouter" + routes;
+    }
+
+    //
+    // Internal methods
+    //
+
+    /**
+     * Picks two available routes at random, by weight, and takes the one of lower cost.
+     * 
+     * @return The chosen route, to be {@link Route#tryAcquire(long) acquired}, or {@code null} if none is
+     *         available.
+     */
+    protected Route choose(List<Route> excluded) {
+
+        long now = System.nanoTime();
+        List<Route> candidates = new ArrayList<Route>(routes.size());
+        int totalWeight = 0;
+        for (Route route : routes) {
+            if (!excluded.contains(route) && route.isAvailable(now)) {
+                candidates.add(route);
+                totalWeight += route.weight;
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        Route chosen = pick(candidates, totalWeight);
+        if (candidates.size() > 1) {
+            Route other = pick(candidates, totalWeight);
+            if (other != chosen && other.cost() < chosen.cost()) {
+                chosen = other;
+            }
+        }
+        return chosen;
+    }
+
+    private static Route pick(List<Route> candidates, int totalWeight) {
+
+        int r = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Route route : candidates) {
+            r -= route.weight;
+            if (r < 0) {
+                return route;
+            }
+        }
+        return candidates.get(candidates.size() - 1);
+    }
+
+    // Inner classes
+
+    public enum State {
+        /** Receiving mails. */
+        CLOSED,
+        /** Taken out after consecutive failures. */
+        OPEN,
+        /** A probe mail is being sent. */
+        HALF_OPEN
+    }
+
+    /**
+     * A relay and its health.
+     */
+    public static final class Route {
+
+        private final String name;
+        private final Courier courier;
+        private final int weight;
+
+        // Guarded by this.
+        private State state = State.CLOSED;
+        private long openUntil;
+        private int consecutiveFailures;
+        private int inFlight;
+        private double latencyNanos;
+        private double successRate = 1;
+        private long sent;
+        private long failed;
+        private long trips;
+        // Changes with the state: tells the sends started in the current one (e.g. the probe) from late ones.
+        private long generation;
+
+        Route(String name, Courier courier, int weight) {
+
+            this.name = name;
+            this.courier = courier;
+            this.weight = weight;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Courier getCourier() {
+            return courier;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public synchronized State getState() {
+            return state;
+        }
+
+        /**
+         * @return Moving average of the send latency.
+         */
+        public synchronized double getLatencyMillis() {
+            return latencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        /**
+         * @return Moving average of the successful sends ratio, from 0 to 1.
+         */
+        public synchronized double getSuccessRate() {
+            return successRate;
+        }
+
+        public synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * @return Mails sent through the relay (not failing because of it).
+         */
+        public synchronized long getSent() {
+            return sent;
+        }
+
+        /**
+         * @return Relay failures.
+         */
+        public synchronized long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return Times the circuit opened.
+         */
+        public synchronized long getTrips() {
+            return trips;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Route[" + name + ", " + state + ", weight = " + weight + ", latency = " +
+                    Math.round(getLatencyMillis()) + " ms, successRate = " + successRate + ", inFlight = " +
+                    inFlight + "]";
+        }
+
+        //
+        // Internal methods
+        //
+
+        synchronized boolean isAvailable(long now) {
+            return (state == State.CLOSED || (state == State.OPEN && now - openUntil >= 0));
+        }
+
+        /**
+         * Marks a send as in progress.
+         * 
+         * @return Ticket of the send, to {@link #completed(long, boolean, long, int, long) complete} it, or
+         *         {@code -1} if the route is not available.
+         */
+        synchronized long tryAcquire(long now) {
+
+            if (state == State.OPEN) {
+                if (now - openUntil < 0) {
+                    return -1L;
+                }
+                setState(State.HALF_OPEN);
+            } else if (state == State.HALF_OPEN) {
+                return -1L;
+            }
+            inFlight++;
+            return generation;
+        }
+
+        synchronized double cost() {
+
+            // Unknown latency (no sample yet) counts as 1 ms, so new relays get mails.
+            double latency = Math.max(latencyNanos, TimeUnit.MILLISECONDS.toNanos(1));
+            return latency * (inFlight + 1) / (weight * Math.max(successRate, 0.05));
+        }
+
+        synchronized void completed(long ticket,
+                                    boolean success,
+                                    long nanos,
+                                    int failureThreshold,
+                                    long openMillis) {
+
+            inFlight--;
+            latencyNanos = (latencyNanos == 0 ? nanos : latencyNanos + ALPHA * (nanos - latencyNanos));
+            successRate += ALPHA * ((success ? 1 : 0) - successRate);
+            if (success) {
+                sent++;
+            } else {
+                failed++;
+            }
+
+            if (ticket != generation) {
+                // Started before the last state change (e.g. before the trip, while the probe is in progress):
+                // only the sends of the current state move the circuit.
+                return;
+            }
+
+            if (success) {
+                consecutiveFailures = 0;
+                if (state == State.HALF_OPEN) {
+                    setState(State.CLOSED);
+                }
+            } else {
+                consecutiveFailures++;
+                if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                    setState(State.OPEN);
+                    openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openMillis);
+                    trips++;
+                }
+            }
+        }
+
+        private void setState(State state) {
+
+            this.state = state;
+            generation++;
+            consecutiveFailures = 0;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+/**
+ * Limits retries to a fraction of the sends, so a relay already failing isn't overloaded by a retry storm.
+ * Each first attempt deposits {@code ratio} tokens (up to {@code maxTokens}) and each retry withdraws one; once
+ * the tokens are exhausted, failures are no longer retried until enough new sends come in.
+ * <p>
+ * A budget may be shared by several couriers of the same relay.
+ * </p>
+ * 
+ * @author Roberto Badaro
+ */
+public class RetryBudget {
+
+    public static final double DEFAULT_RATIO = 0.2;
+    public static final int DEFAULT_MAX_TOKENS = 100;
+
+    protected final double ratio;
+    protected final double maxTokens;
+
+    private double tokens;
+    private long retries;
+    private long rejected;
+
+    /**
+     * Creates a budget allowing retries for 20% of the sends.
+     */
+    public RetryBudget() {
+        this(DEFAULT_RATIO, DEFAULT_MAX_TOKENS);
+    }
+
+    /**
+     * @param ratio
+     *            Retries allowed per send (e.g. 0.2 for one retry every five sends).
+     * @param maxTokens
+     *            Max retries saved up while the relay is healthy. Also the initial number of tokens.
+     */
+    public RetryBudget(double ratio, int maxTokens) {
+
+        checkArgument(ratio >= 0.0, "ratio");
+        checkArgument(maxTokens >= 0, "maxTokens");
+
+        this.ratio = ratio;
+        this.maxTokens = maxTokens;
+        this.tokens = maxTokens;
+    }
+
+    /**
+     * Registers a first attempt.
+     */
+    public synchronized void deposit() {
+        tokens = Math.min(maxTokens, tokens + ratio);
+    }
+
+    /**
+     * Asks for a retry.
+     * 
+     * @return {@code true} if the retry is allowed (and was charged to the budget).
+     */
+    public synchronized boolean tryWithdraw() {
+
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            retries++;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    public synchronized double getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @return Number of retries allowed so far.
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return Number of retries denied so far.
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryBudget[tokens = " + getTokens() + ", retries = " + getRetries() + ", rejected = " +
+                getRejected() + "]";
+    }
+}
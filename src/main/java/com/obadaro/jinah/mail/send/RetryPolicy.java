@@ -0,0 +1,224 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.internet.AddressException;
+
+/**
+ * Decides whether a failed send is retried and how long to wait before retrying.
+ * <p>
+ * Failures are classified by the SMTP reply code ({@code 4xx} transient, {@code 5xx} permanent) or, lacking
+ * one, by the exception: I/O errors (connection refused or reset, timeouts) are transient; authentication and
+ * address errors, as well as anything else, are permanent. Partial sends are never retried, to not duplicate
+ * the mail to the recipients that accepted it.
+ * </p>
+ * <p>
+ * Retries wait an exponential backoff ({@code initialBackoff * multiplier ^ (attempt - 1)}, limited to
+ * {@code maxBackoff}) with full jitter, and are charged to an optional {@link RetryBudget}.
+ * </p>
+ * 
+ * @author Roberto Badaro
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 500L;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000L;
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+
+    protected int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    protected long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    protected long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    protected double multiplier = DEFAULT_MULTIPLIER;
+    protected RetryBudget budget;
+
+    /**
+     * Creates a policy with the default settings and no budget.
+     */
+    public RetryPolicy() {
+        // NOOP
+    }
+
+    /**
+     * @param maxAttempts
+     *            Max attempts, the first one included.
+     * @param budget
+     *            Optional.
+     */
+    public RetryPolicy(int maxAttempts, RetryBudget budget) {
+
+        setMaxAttempts(maxAttempts);
+        this.budget = budget;
+    }
+
+    /**
+     * Classifies a send failure.
+     * 
+     * @param result
+     * @return The kind of failure, or {@code null} if the result isn't a failure.
+     */
+    public Failure classify(SendResult result) {
+
+        switch (result.getStatus()) {
+            case FAILED:
+                return classify(result.getReplyCode(), result.getError());
+            case PARTIAL:
+                return Failure.PERMANENT;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Classifies a send failure by its reply code or, if unknown, by its exception.
+     * 
+     * @param replyCode
+     *            SMTP reply code or {@link SendResult#NO_REPLY_CODE}.
+     * @param error
+     * @return The kind of failure.
+     */
+    public Failure classify(int replyCode, Throwable error) {
+
+        if (replyCode >= 400 && replyCode < 500) {
+            return Failure.TRANSIENT;
+        }
+        if (replyCode >= 500) {
+            return Failure.PERMANENT;
+        }
+
+        for (Throwable t : SendResult.chain(error)) {
+            if (t instanceof AuthenticationFailedException || t instanceof AddressException ||
+                    t instanceof IllegalArgumentException) {
+                return Failure.PERMANENT;
+            }
+            if (t instanceof IOException || t instanceof RelayThrottledException ||
+                    t instanceof SendInProgressException || t instanceof UncertainDeliveryException) {
+                return Failure.TRANSIENT;
+            }
+        }
+
+        return Failure.PERMANENT;
+    }
+
+    /**
+     * Decides whether a failed attempt is retried, charging the retry to the budget.
+     * 
+     * @param result
+     *            Result of the attempt.
+     * @param attempt
+     *            Number of the attempt, starting at 1.
+     * @return {@code true} if the mail should be sent again.
+     */
+    public boolean shouldRetry(SendResult result, int attempt) {
+
+        if (attempt >= maxAttempts || classify(result) != Failure.TRANSIENT) {
+            return false;
+        }
+        return (budget == null || budget.tryWithdraw());
+    }
+
+    /**
+     * Registers a first attempt in the budget, if any.
+     */
+    public void attempted() {
+
+        if (budget != null) {
+            budget.deposit();
+        }
+    }
+
+    /**
+     * Computes the wait before the next attempt: a random value between zero and the exponential backoff of
+     * the attempt ("full jitter"), so clients failing together don't retry together.
+     * 
+     * @param attempt
+     *            Number of the failed attempt, starting at 1.
+     * @return Milliseconds to wait.
+     */
+    public long backoffMillis(int attempt) {
+
+        double backoff = initialBackoffMillis * Math.pow(multiplier, Math.max(0, attempt - 1));
+        long limit = (long) Math.min(backoff, maxBackoffMillis);
+        return (limit > 0 ? ThreadLocalRandom.current().nextLong(limit + 1) : 0L);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param maxAttempts
+     *            Max attempts, the first one included.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+
+        checkArgument(maxAttempts > 0, "maxAttempts");
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public void setInitialBackoffMillis(long initialBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public void setMultiplier(double multiplier) {
+
+        checkArgument(multiplier >= 1.0, "multiplier");
+        this.multiplier = multiplier;
+    }
+
+    public RetryBudget getBudget() {
+        return budget;
+    }
+
+    public void setBudget(RetryBudget budget) {
+        this.budget = budget;
+    }
+
+    // Inner classes
+
+    public enum Failure {
+        /** May succeed if retried later (4xx replies, connection errors, timeouts). */
+        TRANSIENT,
+        /** Will fail again (5xx replies, invalid addresses, authentication errors). */
+        PERMANENT
+    }
+}
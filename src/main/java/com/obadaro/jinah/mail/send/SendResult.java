@@ -0,0 +1,328 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import com.obadaro.jinah.mail.Mail;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Outcome of sending a {@link Mail}: status, SMTP reply code, recipients rejected by the server and latency.
+ * 
+ * @author Roberto Badaro
+ */
+public class SendResult {
+
+    /** Reply code when not known. */
+    public static final int NO_REPLY_CODE = -1;
+
+    private static final Address[] NO_ADDRESSES = new Address[0];
+
+    protected final Mail mail;
+    protected final Status status;
+    protected final Exception error;
+    protected final int replyCode;
+    protected final Address[] invalidRecipients;
+    protected final Address[] unsentRecipients;
+    protected final long latencyNanos;
+    protected final int attempts;
+
+    public SendResult(Mail mail,
+                      Status status,
+                      Exception error,
+                      int replyCode,
+                      Address[] invalidRecipients,
+                      Address[] unsentRecipients,
+                      long latencyNanos) {
+
+        this(mail, status, error, replyCode, invalidRecipients, unsentRecipients, latencyNanos, 1);
+    }
+
+    protected SendResult(Mail mail,
+                         Status status,
+                         Exception error,
+                         int replyCode,
+                         Address[] invalidRecipients,
+                         Address[] unsentRecipients,
+                         long latencyNanos,
+                         int attempts) {
+
+        this.mail = mail;
+        this.status = status;
+        this.error = error;
+        this.replyCode = replyCode;
+        this.invalidRecipients = (invalidRecipients != null ? invalidRecipients : NO_ADDRESSES);
+        this.unsentRecipients = (unsentRecipients != null ? unsentRecipients : NO_ADDRESSES);
+        this.latencyNanos = latencyNanos;
+        this.attempts = attempts;
+    }
+
+    public static SendResult sent(Mail mail, long latencyNanos) {
+        return sent(mail, NO_REPLY_CODE, latencyNanos);
+    }
+
+    public static SendResult sent(Mail mail, int replyCode, long latencyNanos) {
+        return new SendResult(mail, Status.SENT, null, replyCode, null, null, latencyNanos);
+    }
+
+    /**
+     * Creates the result of a failed send, extracting the reply code and the rejected recipients from the error
+     * (and its causes). If the server accepted some of the recipients (see {@code mail.smtp.sendpartial}), the
+     * status is {@link Status#PARTIAL}.
+     * 
+     * @param mail
+     * @param error
+     * @param latencyNanos
+     * @return The send result.
+     */
+    public static SendResult failed(Mail mail, Exception error, long latencyNanos) {
+
+        SendFailedException sfe = find(error, SendFailedException.class);
+        Address[] invalid = null;
+        Address[] unsent = null;
+        Status status = Status.FAILED;
+
+        if (sfe != null) {
+            invalid = sfe.getInvalidAddresses();
+            unsent = sfe.getValidUnsentAddresses();
+            Address[] sent = sfe.getValidSentAddresses();
+            if (sent != null && sent.length > 0) {
+                status = Status.PARTIAL;
+            }
+        }
+
+        return new SendResult(mail, status, error, replyCodeOf(error), invalid, unsent, latencyNanos);
+    }
+
+    /**
+     * @param mail
+     * @return Result of a mail not sent again, its idempotency key being already sent.
+     */
+    public static SendResult duplicate(Mail mail) {
+        return new SendResult(mail, Status.DUPLICATE, null, NO_REPLY_CODE, null, null, 0L);
+    }
+
+    public static SendResult skipped(Mail mail, Exception reason) {
+        return new SendResult(mail, Status.SKIPPED, reason, NO_REPLY_CODE, null, null, 0L);
+    }
+
+    /**
+     * Finds the SMTP reply code of a send failure: the code of the failed command, of the first rejected
+     * recipient or, lacking those, a code leading a server response used as exception message.
+     * 
+     * @param error
+     * @return The reply code or {@link #NO_REPLY_CODE}.
+     */
+    public static int replyCodeOf(Throwable error) {
+
+        SMTPSendFailedException sfe = find(error, SMTPSendFailedException.class);
+        if (sfe != null) {
+            return sfe.getReturnCode();
+        }
+
+        SMTPAddressFailedException afe = find(error, SMTPAddressFailedException.class);
+        if (afe != null) {
+            return afe.getReturnCode();
+        }
+
+        for (Throwable t : chain(error)) {
+            String msg = t.getMessage();
+            if (msg != null && msg.length() >= 3 && isReplyCode(msg)) {
+                return Integer.parseInt(msg.substring(0, 3));
+            }
+        }
+
+        return NO_REPLY_CODE;
+    }
+
+    /**
+     * Returns a copy of this result after a number of attempts.
+     * 
+     * @param attempts
+     * @param totalLatencyNanos
+     *            Latency of all the attempts, backoff included.
+     * @return The result of the last attempt.
+     */
+    public SendResult afterAttempts(int attempts, long totalLatencyNanos) {
+
+        return new SendResult(mail, status, error, replyCode, invalidRecipients, unsentRecipients,
+            totalLatencyNanos, attempts);
+    }
+
+    public Mail getMail() {
+        return mail;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return If the mail reached all of its recipients: by this send or, for a duplicate, by an earlier one.
+     */
+    public boolean isSent() {
+        return status == Status.SENT || status == Status.DUPLICATE;
+    }
+
+    /**
+     * @return If the send failed after the whole message was handed to the relay, without a reply to it: the
+     *         relay may have accepted it. See {@link UncertainDeliveryException}.
+     */
+    public boolean isDeliveryUncertain() {
+        return status == Status.FAILED && find(error, UncertainDeliveryException.class) != null;
+    }
+
+    /**
+     * @return The failure (or skip) cause or {@code null} if the mail was sent.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return The SMTP reply code of the last command (e.g. 250 on success) or {@link #NO_REPLY_CODE}.
+     */
+    public int getReplyCode() {
+        return replyCode;
+    }
+
+    /**
+     * @return Recipients rejected by the server. Never {@code null}.
+     */
+    public Address[] getInvalidRecipients() {
+        return invalidRecipients.clone();
+    }
+
+    /**
+     * @return Valid recipients the message was not sent to. Never {@code null}.
+     */
+    public Address[] getUnsentRecipients() {
+        return unsentRecipients.clone();
+    }
+
+    /**
+     * @return Recipients the message was not delivered to: the invalid and the unsent ones. Never {@code null}.
+     */
+    public Address[] getRejectedRecipients() {
+
+        Address[] rejected = new Address[invalidRecipients.length + unsentRecipients.length];
+        System.arraycopy(invalidRecipients, 0, rejected, 0, invalidRecipients.length);
+        System.arraycopy(unsentRecipients, 0, rejected, invalidRecipients.length, unsentRecipients.length);
+        return rejected;
+    }
+
+    /**
+     * @return Number of attempts, retries included. Zero if skipped or a duplicate.
+     */
+    public int getAttempts() {
+        return (status == Status.SKIPPED || status == Status.DUPLICATE ? 0 : attempts);
+    }
+
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    public long getLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder("SendResult[").append(status);
+        if (replyCode != NO_REPLY_CODE) {
+            sb.append(", ").append(replyCode);
+        }
+        sb.append(", ").append(getLatencyMillis()).append(" ms");
+        if (attempts > 1) {
+            sb.append(", attempts = ").append(attempts);
+        }
+        if (invalidRecipients.length > 0 || unsentRecipients.length > 0) {
+            sb.append(", rejected = ").append(getRejectedRecipients().length);
+        }
+        if (error != null) {
+            sb.append(", ").append(error);
+        }
+        return sb.append(']').toString();
+    }
+
+    //
+    // Internal methods
+    //
+
+    /**
+     * Returns the exception and its causes, following both {@link Throwable#getCause()} and
+     * {@link MessagingException#getNextException()}.
+     */
+    protected static List<Throwable> chain(Throwable error) {
+
+        List<Throwable> chain = new ArrayList<Throwable>(4);
+        Throwable t = error;
+        while (t != null && !chain.contains(t) && chain.size() < 16) {
+            chain.add(t);
+            Throwable next = t.getCause();
+            if (next == null && t instanceof MessagingException) {
+                next = ((MessagingException) t).getNextException();
+            }
+            t = next;
+        }
+        return chain;
+    }
+
+    protected static <T extends Throwable> T find(Throwable error, Class<T> type) {
+
+        for (Throwable t : chain(error)) {
+            if (type.isInstance(t)) {
+                return type.cast(t);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isReplyCode(String msg) {
+
+        char c = msg.charAt(0);
+        return c >= '2' && c <= '5' && Character.isDigit(msg.charAt(1)) && Character.isDigit(msg.charAt(2)) &&
+                (msg.length() == 3 || msg.charAt(3) == ' ' || msg.charAt(3) == '-');
+    }
+
+    // Inner classes
+
+    public enum Status {
+        /** Sent to all recipients. */
+        SENT,
+        /** Sent to some of the recipients; see {@link SendResult#getRejectedRecipients()}. */
+        PARTIAL,
+        /** Send attempted and failed. */
+        FAILED,
+        /** Not attempted, e.g. the batch deadline was reached first. */
+        SKIPPED,
+        /** Not attempted: a send of the same idempotency key was confirmed. */
+        DUPLICATE
+    }
+}
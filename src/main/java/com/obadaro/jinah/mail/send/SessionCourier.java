@@ -0,0 +1,344 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.util.Date;
+import java.util.Locale;
+
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.dedup.DedupStore;
+import com.obadaro.jinah.mail.dedup.IdempotencyKeys;
+import com.obadaro.jinah.mail.metrics.MetricsSink;
+
+/**
+ * {@link Courier} sending through the relay of a {@link Session}. With a {@link TransportPool}, connections are
+ * borrowed from the pool; otherwise each mail opens and closes its own connection, like
+ * {@link Postman#sendMail(Session, Mail)}.
+ * <p>
+ * Failed sends are retried according to the {@link RetryPolicy}, if any. When the connection was dropped, the
+ * retry reconnects it, keeping its slot in the pool. Unexpected exceptions (e.g. from a closed pool) are not
+ * thrown, but reported as failed results.
+ * </p>
+ * <p>
+ * With a {@link RelayGovernor}, each attempt takes a permit of the relay first.
+ * </p>
+ * <p>
+ * With a {@link DedupStore}, a mail with an idempotency key is sent at most once per key: a send failing after
+ * the relay got the whole message, without a reply to it, is neither retried nor sent again (see
+ * {@link SendResult#isDeliveryUncertain()}).
+ * </p>
+ * 
+ * @author Roberto Badaro
+ */
+public class SessionCourier implements Courier {
+
+    protected final Session session;
+    protected final TransportPool pool;
+    protected RetryPolicy retryPolicy;
+    protected RelayGovernor governor;
+    protected MessageFactory messageFactory = MailMessages.factory();
+    protected MetricsSink metrics = MetricsSink.NOOP;
+    protected DedupStore dedupStore;
+    protected boolean deriveKeys;
+    protected final String relayName;
+    protected final EnvelopeSplitter splitter;
+
+    public SessionCourier(Session session) {
+        this(session, null);
+    }
+
+    public SessionCourier(Session session, TransportPool pool) {
+
+        checkArgument(session != null, "session");
+
+        this.session = session;
+        this.pool = pool;
+        TransportSettings settings = TransportSettings.of(session);
+        this.relayName = settings.getRelayName();
+        this.splitter = settings.getEnvelopeSplitter();
+    }
+
+    @Override
+    public SendResult send(Mail mail) {
+
+        checkArgument(mail != null, "mail");
+
+        String key = mail.getIdempotencyKey();
+        if (key == null && deriveKeys && dedupStore != null) {
+            // Kept in the mail: written as its Message-ID.
+            try {
+                key = IdempotencyKeys.derive(mail);
+            } catch (MailException e) {
+                metrics.increment(MetricsSink.RESULT + "failed", relayName);
+                return SendResult.failed(mail, e, 0L);
+            }
+            mail.setIdempotencyKey(key);
+        }
+        if (key == null || dedupStore == null) {
+            return sendAttempts(mail);
+        }
+
+        switch (dedupStore.claim(key)) {
+            case CONFIRMED:
+                metrics.increment(MetricsSink.RESULT + "duplicate", relayName);
+                return SendResult.duplicate(mail);
+            case IN_PROGRESS:
+                // Not sent yet, and that send may fail: retried later, not counted as sent.
+                metrics.increment(MetricsSink.RESULT + "failed", relayName);
+                return SendResult.failed(mail, new SendInProgressException(key), 0L);
+            default:
+                break;
+        }
+
+        SendResult result = null;
+        try {
+            result = sendAttempts(mail);
+            return result;
+        } finally {
+            if (result != null && (result.getStatus() != SendResult.Status.FAILED || result.isDeliveryUncertain())) {
+                // A partial send reached some recipients, an uncertain one may have reached them all: sending it
+                // again could duplicate it.
+                dedupStore.confirm(key);
+            } else {
+                dedupStore.release(key);
+            }
+        }
+    }
+
+    public DedupStore getDedupStore() {
+        return dedupStore;
+    }
+
+    /**
+     * @param dedupStore
+     *            Claims the idempotency keys of the mails: a mail whose key was already sent is skipped as
+     *            {@link SendResult.Status#DUPLICATE}; one whose key is being sent fails with a transient
+     *            {@link SendInProgressException}, to be retried. If {@code null}, mails are always sent.
+     */
+    public void setDedupStore(DedupStore dedupStore) {
+        this.dedupStore = dedupStore;
+    }
+
+    public boolean isDeriveKeys() {
+        return deriveKeys;
+    }
+
+    /**
+     * @param deriveKeys
+     *            If {@code true}, mails without an idempotency key get one {@link IdempotencyKeys#derive(Mail)
+     *            derived from their contents}. Mails with deferred contents and no key fail, unless the contents
+     *            are {@link com.obadaro.jinah.mail.IdentifiedContent identified}.
+     */
+    public void setDeriveKeys(boolean deriveKeys) {
+        this.deriveKeys = deriveKeys;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @param retryPolicy
+     *            Policy to retry failed sends. If {@code null}, sends are not retried.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RelayGovernor getGovernor() {
+        return governor;
+    }
+
+    /**
+     * @param governor
+     *            Rate and concurrency limits of the relay, shared with other senders. If {@code null}, sends are
+     *            not limited.
+     */
+    public void setGovernor(RelayGovernor governor) {
+        this.governor = governor;
+    }
+
+    public MetricsSink getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics
+     *            Receives the send measurements, tagged with the relay name, and the pool gauges.
+     */
+    public void setMetrics(MetricsSink metrics) {
+
+        checkArgument(metrics != null, "metrics");
+        this.metrics = metrics;
+
+        if (pool != null) {
+            metrics.gauge(MetricsSink.POOL_OPEN, relayName, pool::getOpenCount);
+            metrics.gauge(MetricsSink.POOL_IDLE, relayName, pool::getIdleCount);
+        }
+    }
+
+    /**
+     * @return Name of the relay ({@link TransportSettings#getRelayName()}).
+     */
+    public String getRelayName() {
+        return relayName;
+    }
+
+    public MessageFactory getMessageFactory() {
+        return messageFactory;
+    }
+
+    /**
+     * @param messageFactory
+     *            Builds the messages of the mails, e.g. {@link MailMessages#factory(MimePartCache)}.
+     */
+    public void setMessageFactory(MessageFactory messageFactory) {
+
+        checkArgument(messageFactory != null, "messageFactory");
+        this.messageFactory = messageFactory;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public TransportPool getPool() {
+        return pool;
+    }
+
+    //
+    // Internal methods
+    //
+
+    /**
+     * @return If sends of the mail are deduplicated: an uncertain send is then not retried.
+     */
+    protected boolean isDeduplicated(Mail mail) {
+        return dedupStore != null && mail.getIdempotencyKey() != null;
+    }
+
+    /**
+     * Sends the mail, retrying failed attempts.
+     */
+    protected SendResult sendAttempts(Mail mail) {
+
+        if (retryPolicy != null) {
+            retryPolicy.attempted();
+        }
+
+        long start = System.nanoTime();
+        Date sentDate = new Date();
+        PooledTransport pooled = null;
+        Transport transport = null;
+        SendResult result;
+        int attempt = 0;
+
+        try {
+            while (true) {
+                attempt++;
+                RelayGovernor.Relay relay = null;
+                try {
+                    if (governor != null) {
+                        relay = governor.acquire(session);
+                    }
+
+                    if (transport == null) {
+                        long connectStart = System.nanoTime();
+                        if (pool == null) {
+                            transport = Postman.getConnectedTransport(session);
+                            metrics.recordTime(MetricsSink.CONNECT, relayName, System.nanoTime() - connectStart);
+                        } else if (pooled == null) {
+                            pooled = pool.borrow(session);
+                            transport = pooled.getTransport();
+                            metrics.recordTime(MetricsSink.BORROW, relayName, System.nanoTime() - connectStart);
+                        } else {
+                            // Connection dropped: reconnects keeping the slot.
+                            pool.reconnect(pooled);
+                            transport = pooled.getTransport();
+                            metrics.recordTime(MetricsSink.CONNECT, relayName, System.nanoTime() - connectStart);
+                        }
+                    }
+
+                    result = Postman.send(session, transport, mail, sentDate, messageFactory, splitter, metrics,
+                        relayName);
+                    if (pooled != null) {
+                        pooled.messageSent();
+                    }
+
+                } catch (MailException e) {
+                    result = SendResult.failed(mail, e, 0L);
+                } catch (RuntimeException e) {
+                    // E.g. the pool was closed, or a bug building the message: reported as a permanent failure,
+                    // dropping the connection in an unknown state.
+                    result = SendResult.failed(mail, e, 0L);
+                    if (transport != null) {
+                        if (pooled == null) {
+                            TransportPool.close(transport);
+                        }
+                        transport = null;
+                    }
+                } finally {
+                    if (relay != null) {
+                        relay.release();
+                    }
+                }
+
+                if (result.getStatus() == SendResult.Status.FAILED && transport != null &&
+                        !transport.isConnected()) {
+                    if (pooled == null) {
+                        TransportPool.close(transport);
+                    }
+                    transport = null;
+                }
+
+                if (retryPolicy == null || !retryPolicy.shouldRetry(result, attempt) ||
+                        (result.isDeliveryUncertain() && isDeduplicated(mail))) {
+                    break;
+                }
+
+                metrics.increment(MetricsSink.RETRIES, relayName);
+                try {
+                    Thread.sleep(retryPolicy.backoffMillis(attempt));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            metrics.recordTime(MetricsSink.SEND, relayName, System.nanoTime() - start);
+            metrics.increment(MetricsSink.RESULT + result.getStatus().name().toLowerCase(Locale.ROOT), relayName);
+
+            return (attempt > 1 ? result.afterAttempts(attempt, System.nanoTime() - start) : result);
+
+        } finally {
+            if (pooled != null) {
+                Postman.release(pool, pooled, transport == null);
+            } else if (transport != null) {
+                TransportPool.close(transport);
+            }
+        }
+    }
+}
@@ -0,0 +1,965 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.send.PipeliningTransport.Reply;
+import com.obadaro.jinah.mail.send.SmtpEngine.EventLoop;
+import com.obadaro.jinah.mail.send.SmtpEngine.Job;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * A non-blocking connection of an {@link SmtpEngine}: the SMTP state machine, driven by the selector events of
+ * its loop. Sends the mails handed by the loop one at a time, with the transaction rules of the
+ * {@link PipeliningTransport}.
+ * 
+ * @author Roberto Badaro
+ */
+final class SmtpConnection {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SmtpEngine engine;
+    private final EventLoop loop;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private SSLEngine ssl;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+    private final StringBuilder line = new StringBuilder(128);
+    private final StringBuilder reply = new StringBuilder(128);
+
+    private State state = State.CONNECTING;
+    private boolean greeted;
+    private boolean tlsPending;
+    private boolean secure;
+    private boolean established;
+    private int authStep;
+    private Map<String, String> extensions = Collections.emptyMap();
+    private boolean pipelining;
+    private boolean chunking;
+    private int transactions;
+
+    /** Time the awaited event is due, {@code 0} if none. */
+    long deadline;
+
+    private Job job;
+    private int envelope;
+    private List<SendResult> results;
+
+    private Phase phase;
+    private InternetAddress[] rcpts;
+    private final List<Reply> replies = new ArrayList<Reply>();
+    private int written;
+    private int nextRcpt;
+    private boolean whole;
+    private String endCommand;
+    private int replyCode;
+    private MessagingException failure;
+    private MessagingException rejected;
+    private final List<Address> valid = new ArrayList<Address>();
+    private final List<Address> validUnsent = new ArrayList<Address>();
+    private final List<Address> invalid = new ArrayList<Address>();
+
+    SmtpConnection(SmtpEngine engine, EventLoop loop) {
+
+        this.engine = engine;
+        this.loop = loop;
+    }
+
+    /**
+     * Starts connecting.
+     */
+    void open() {
+
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(loop.selector, 0, this);
+
+            deadline = (engine.connectTimeoutMillis > 0 ? now() + engine.connectTimeoutMillis : now() +
+                    engine.timeoutMillis);
+            if (channel.connect(engine.address)) {
+                connected();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (UnresolvedAddressException e) {
+            fail(new IOException("Unknown SMTP host: " + engine.address.getHostString(), e));
+        }
+    }
+
+    /**
+     * Handles the selector events of the connection.
+     */
+    void handle(SelectionKey k) {
+
+        try {
+            if (k.isValid() && k.isConnectable()) {
+                channel.finishConnect();
+                connected();
+            }
+            if (k.isValid() && k.isReadable()) {
+                read();
+            }
+            if (k.isValid() && k.isWritable()) {
+                if (state == State.HANDSHAKE) {
+                    handshake();
+                } else {
+                    flush();
+                }
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Sends a mail, envelope after envelope.
+     */
+    void start(Job job) {
+
+        this.job = job;
+        envelope = 0;
+        results = new ArrayList<SendResult>(job.envelopes.size());
+        try {
+            beginEnvelope();
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Says goodbye and closes.
+     */
+    void quit() {
+
+        try {
+            state = State.QUIT;
+            command("QUIT");
+            flush();
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    void timeout() {
+        fail(new SocketTimeoutException(state == State.CONNECTING ? "Connect timed out" : "Read timed out"));
+    }
+
+    /**
+     * Closes the connection. The mail being sent fails, or is queued again if the connection was found closed
+     * before it got any reply; without a mail, a mail waiting for a connection that could not be opened fails.
+     */
+    void fail(Exception cause) {
+
+        if (state == State.CLOSED) {
+            return;
+        }
+        boolean quitting = (state == State.QUIT);
+        state = State.CLOSED;
+        deadline = 0;
+
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // NOOP
+            }
+        }
+        releaseBuffers(true);
+        loop.removed(this);
+        engine.openConnections.decrementAndGet();
+
+        Job failed = job;
+        job = null;
+
+        if (failed != null) {
+            if (!failed.retried && transactions > 0 && envelope == 0 && replies.isEmpty()) {
+                // Reused connection closed by the server meanwhile.
+                failed.retried = true;
+                engine.pending.add(failed);
+            } else {
+                results.add(SendResult.failed(failed.mail, SmtpEngine.toMailException(wrap(cause)), 0L));
+                engine.complete(failed, result(failed));
+            }
+        } else if (!established && !quitting) {
+            Job waiting = engine.pending.poll();
+            if (waiting != null) {
+                engine.complete(waiting, SendResult.failed(waiting.mail, SmtpEngine.toMailException(wrap(cause)),
+                    System.nanoTime() - waiting.start));
+            }
+        }
+
+        if (!engine.pending.isEmpty()) {
+            engine.dispatch();
+        }
+    }
+
+    //
+    // Internal methods
+    //
+
+    private void connected() throws IOException {
+
+        key.interestOps(SelectionKey.OP_READ);
+        deadline = now() + engine.timeoutMillis;
+        if (engine.ssl) {
+            startTls();
+        } else {
+            state = State.GREETING;
+        }
+    }
+
+    private void read() throws IOException, MessagingException {
+
+        acquireBuffers();
+        int n = channel.read(netIn);
+        if (n < 0) {
+            throw new EOFException("Connection closed by the server");
+        }
+        if (deadline > 0) {
+            deadline = now() + engine.timeoutMillis;
+        }
+
+        if (ssl != null) {
+            if (state == State.HANDSHAKE) {
+                handshake();
+                if (state == State.HANDSHAKE || state == State.CLOSED) {
+                    return;
+                }
+            }
+            while (unwrap() && state != State.CLOSED) {
+                parse();
+            }
+        }
+        parse();
+
+        if (tlsPending) {
+            // The server waits for the handshake: nothing else was sent.
+            tlsPending = false;
+            netIn.clear();
+            startTls();
+        } else if (state == State.IDLE) {
+            releaseBuffers(false);
+        }
+    }
+
+    /**
+     * Decrypts the bytes read.
+     * 
+     * @return Whether the replies must be parsed to make room for more.
+     */
+    private boolean unwrap() throws IOException {
+
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = ssl.unwrap(netIn, appIn);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new EOFException("TLS session closed by the server");
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    return true;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    // A record not yet complete.
+                    break;
+                }
+                runTasks(result);
+            }
+            return false;
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    /**
+     * Parses the replies received.
+     */
+    private void parse() throws IOException, MessagingException {
+
+        ByteBuffer buffer = appIn;
+        buffer.flip();
+        while (buffer.hasRemaining() && state != State.CLOSED && !tlsPending) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                String text = line.toString();
+                line.setLength(0);
+                onLine(text);
+            } else if (b != '\r') {
+                line.append((char) (b & 0xff));
+            }
+        }
+        if (state != State.CLOSED) {
+            buffer.clear();
+        }
+    }
+
+    private void onLine(String text) throws IOException, MessagingException {
+
+        if (text.length() < 3) {
+            throw new IOException("Invalid SMTP reply: " + text);
+        }
+        if (reply.length() > 0) {
+            reply.append('\n');
+        }
+        reply.append(text);
+
+        if (text.length() == 3 || text.charAt(3) != '-') {
+            int code;
+            try {
+                code = Integer.parseInt(text.substring(0, 3));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid SMTP reply: " + text);
+            }
+            Reply r = new Reply(code, reply.toString());
+            reply.setLength(0);
+            onReply(r);
+        }
+    }
+
+    private void onReply(Reply r) throws IOException, MessagingException {
+
+        switch (state) {
+        case GREETING:
+            if (r.code != 220) {
+                throw new MessagingException("Could not connect to SMTP host: " + engine.address + ", response: " +
+                        r.text);
+            }
+            greeted = true;
+            hello("EHLO");
+            break;
+
+        case EHLO:
+            if (r.code == 250) {
+                extensions(r);
+                afterHello();
+            } else {
+                hello("HELO");
+            }
+            break;
+
+        case HELO:
+            if (r.code != 250) {
+                throw new MessagingException("HELO failed: " + r.text);
+            }
+            extensions = Collections.emptyMap();
+            pipelining = false;
+            chunking = false;
+            afterHello();
+            break;
+
+        case STARTTLS:
+            if (r.code != 220) {
+                throw new MessagingException("STARTTLS failed: " + r.text);
+            }
+            tlsPending = true;
+            break;
+
+        case AUTH:
+            authenticate(r);
+            break;
+
+        case TRANSACTION:
+            onTransactionReply(r);
+            break;
+
+        case QUIT:
+            fail(null);
+            break;
+
+        default:
+            // Unsolicited, e.g. 421 before the server closes an idle connection.
+            if (r.code == 421) {
+                fail(new IOException(r.text));
+            }
+        }
+    }
+
+    private void hello(String verb) throws IOException {
+
+        state = (verb.equals("EHLO") ? State.EHLO : State.HELO);
+        command(verb + " " + engine.localHost);
+        flush();
+    }
+
+    private void extensions(Reply r) {
+
+        Map<String, String> ext = new HashMap<String, String>();
+        String[] lines = r.text.split("\n");
+        for (int i = 1; i < lines.length; i++) {
+            String l = (lines[i].length() > 4 ? lines[i].substring(4) : "");
+            int sp = l.indexOf(' ');
+            ext.put((sp > 0 ? l.substring(0, sp) : l).toUpperCase(Locale.ROOT), (sp > 0 ? l.substring(sp + 1) : ""));
+        }
+        extensions = ext;
+        pipelining = ext.containsKey("PIPELINING");
+        chunking = ext.containsKey("CHUNKING");
+    }
+
+    private void afterHello() throws IOException, MessagingException {
+
+        if (!secure && engine.startTls && extensions.containsKey("STARTTLS")) {
+            state = State.STARTTLS;
+            command("STARTTLS");
+            flush();
+            return;
+        }
+        if (!secure && engine.startTlsRequired) {
+            throw new MessagingException("STARTTLS is required but host does not support STARTTLS");
+        }
+
+        String user = engine.settings.getUsername();
+        String password = engine.settings.getPassword();
+        if ((engine.auth || (user != null && password != null)) && extensions.containsKey("AUTH")) {
+            if (user == null || password == null) {
+                throw new AuthenticationFailedException("No credentials for " + engine.relayName);
+            }
+
+            String mechanisms = " " + extensions.get("AUTH").toUpperCase(Locale.ROOT) + " ";
+            state = State.AUTH;
+            if (mechanisms.contains(" PLAIN ")) {
+                authStep = 2;
+                command("AUTH PLAIN " + base64("\u0000" + user + "\u0000" + password));
+            } else if (mechanisms.contains(" LOGIN ")) {
+                authStep = 0;
+                command("AUTH LOGIN");
+            } else {
+                throw new AuthenticationFailedException("No supported authentication mechanism");
+            }
+            flush();
+            return;
+        }
+
+        ready();
+    }
+
+    private void authenticate(Reply r) throws IOException, MessagingException {
+
+        if (r.code == 235) {
+            ready();
+        } else if (r.code == 334 && authStep < 2) {
+            command(base64(authStep == 0 ? engine.settings.getUsername() : engine.settings.getPassword()));
+            authStep++;
+            flush();
+        } else {
+            throw new AuthenticationFailedException(r.text);
+        }
+    }
+
+    private void ready() {
+
+        established = true;
+        next();
+    }
+
+    /**
+     * Takes the next mail or parks the connection.
+     */
+    private void next() {
+
+        state = State.IDLE;
+        deadline = 0;
+        loop.idle(this);
+    }
+
+    private void beginEnvelope() throws IOException {
+
+        rcpts = job.recipients.get(envelope);
+        replies.clear();
+        written = 0;
+        nextRcpt = 0;
+        replyCode = SendResult.NO_REPLY_CODE;
+        failure = null;
+        rejected = null;
+        valid.clear();
+        validUnsent.clear();
+        invalid.clear();
+        whole = pipelining && engine.sendPartial;
+
+        acquireBuffers();
+        state = State.TRANSACTION;
+        phase = Phase.ENVELOPE;
+        command(job.mailFrom);
+        if (pipelining) {
+            while (nextRcpt < rcpts.length) {
+                rcpt();
+            }
+            if (whole) {
+                content();
+                phase = Phase.ENVELOPE;
+            }
+        }
+        flush();
+    }
+
+    private void onTransactionReply(Reply r) throws IOException {
+
+        replies.add(r);
+        if (replies.size() < written) {
+            return;
+        }
+
+        switch (phase) {
+        case ENVELOPE:
+            if (!pipelining && (replies.size() > 1 || r.isPositive()) && nextRcpt < rcpts.length) {
+                rcpt();
+                flush();
+            } else {
+                envelopeReplies();
+            }
+            break;
+
+        case DATA:
+            if (r.code != 354) {
+                failure = new SMTPSendFailedException("DATA", r.code, r.text, rejected, null, unsent(),
+                    toArray(invalid));
+                reset();
+            } else {
+                data();
+            }
+            break;
+
+        case END:
+            end(r);
+            break;
+
+        case RESET:
+            envelopeDone();
+            break;
+        }
+    }
+
+    /**
+     * Evaluates the replies to the envelope and goes on with the content, or resets.
+     */
+    private void envelopeReplies() throws IOException {
+
+        Reply mail = replies.get(0);
+        if (!mail.isPositive()) {
+            failure = new SMTPSendFailedException(job.mailFrom, mail.code, mail.text, null, null, rcpts, null);
+            abort();
+            return;
+        }
+
+        for (int i = 0; i < rcpts.length; i++) {
+            Reply rcpt = replies.get(i + 1);
+            if (rcpt.isPositive()) {
+                valid.add(rcpts[i]);
+                continue;
+            }
+
+            SMTPAddressFailedException e = new SMTPAddressFailedException(rcpts[i], "RCPT TO:<" +
+                    rcpts[i].getAddress() + ">", rcpt.code, rcpt.text);
+            if (rejected == null) {
+                rejected = e;
+            } else {
+                rejected.setNextException(e);
+            }
+            (rcpt.code >= 500 ? invalid : validUnsent).add(rcpts[i]);
+        }
+
+        if (valid.isEmpty() || (rejected != null && !engine.sendPartial)) {
+            failure = new SendFailedException("Invalid Addresses", rejected, null, unsent(), toArray(invalid));
+            abort();
+            return;
+        }
+
+        if (whole) {
+            Reply content = replies.get(rcpts.length + 1);
+            if (chunking) {
+                end(content);
+            } else if (content.code == 354) {
+                data();
+            } else {
+                failure = new SMTPSendFailedException("DATA", content.code, content.text, rejected, null,
+                    unsent(), toArray(invalid));
+                reset();
+            }
+        } else {
+            content();
+            flush();
+        }
+    }
+
+    private void rcpt() {
+        command("RCPT TO:<" + rcpts[nextRcpt++].getAddress() + ">");
+    }
+
+    /**
+     * Writes the message with BDAT or the DATA command.
+     */
+    private void content() {
+
+        if (chunking) {
+            command("BDAT " + job.content.length + " LAST");
+            output.add(ByteBuffer.wrap(job.content));
+            endCommand = "BDAT";
+            phase = Phase.END;
+        } else {
+            command("DATA");
+            phase = Phase.DATA;
+        }
+    }
+
+    private void data() throws IOException {
+
+        output.add(ByteBuffer.wrap(job.stuffed()));
+        written++;
+        endCommand = ".";
+        phase = Phase.END;
+        flush();
+    }
+
+    private void end(Reply r) throws IOException {
+
+        if (!r.isPositive()) {
+            failure = new SMTPSendFailedException(endCommand, r.code, r.text, rejected, null, unsent(),
+                toArray(invalid));
+            reset();
+            return;
+        }
+
+        replyCode = r.code;
+        if (rejected != null) {
+            // Partially sent, as SMTPTransport reports it.
+            failure = new SMTPSendFailedException(".", r.code, r.text, rejected, toArray(valid),
+                toArray(validUnsent), toArray(invalid));
+        }
+        envelopeDone();
+    }
+
+    /**
+     * Ends a DATA command pipelined after a failed envelope, if the server accepted it anyway, and resets.
+     */
+    private void abort() throws IOException {
+
+        if (whole && !chunking && replies.get(replies.size() - 1).code == 354) {
+            command(".");
+        }
+        reset();
+    }
+
+    private void reset() throws IOException {
+
+        command("RSET");
+        phase = Phase.RESET;
+        flush();
+    }
+
+    private void envelopeDone() throws IOException {
+
+        transactions++;
+        long latency = System.nanoTime() - job.start;
+        results.add(failure == null ? SendResult.sent(job.mail, replyCode, latency) : SendResult.failed(job.mail,
+            new MailException(failure), latency));
+
+        if (++envelope < job.envelopes.size()) {
+            beginEnvelope();
+            return;
+        }
+
+        Job done = job;
+        job = null;
+        engine.complete(done, result(done));
+        next();
+    }
+
+    /**
+     * @return The result of a mail from the results of its envelopes.
+     */
+    private SendResult result(Job done) {
+
+        long latency = System.nanoTime() - done.start;
+        if (done.envelopes.size() == 1) {
+            SendResult r = results.get(0);
+            return new SendResult(done.mail, r.getStatus(), r.getError(), r.getReplyCode(),
+                r.getInvalidRecipients(), r.getUnsentRecipients(), latency);
+        }
+
+        while (results.size() < done.envelopes.size()) {
+            results.add(null);
+        }
+        return Postman.mergeEnvelopes(done.mail, done.envelopes, results, latency);
+    }
+
+    private Address[] unsent() {
+
+        List<Address> all = new ArrayList<Address>(valid.size() + validUnsent.size());
+        all.addAll(valid);
+        all.addAll(validUnsent);
+        return toArray(all);
+    }
+
+    private static Address[] toArray(List<Address> list) {
+        return (list.isEmpty() ? null : list.toArray(new Address[list.size()]));
+    }
+
+    private void command(String text) {
+
+        byte[] bytes = new byte[text.length() + 2];
+        for (int i = 0; i < text.length(); i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        bytes[bytes.length - 2] = '\r';
+        bytes[bytes.length - 1] = '\n';
+
+        output.add(ByteBuffer.wrap(bytes));
+        written++;
+        deadline = now() + engine.timeoutMillis;
+    }
+
+    /**
+     * Writes the pending output, encrypted if on TLS, as far as the socket takes it.
+     */
+    private void flush() throws IOException {
+
+        acquireBuffers();
+        while (true) {
+            while (!output.isEmpty()) {
+                ByteBuffer src = output.peek();
+                if (!src.hasRemaining()) {
+                    output.poll();
+                    continue;
+                }
+
+                if (ssl == null) {
+                    if (!netOut.hasRemaining()) {
+                        break;
+                    }
+                    int limit = src.limit();
+                    src.limit(src.position() + Math.min(src.remaining(), netOut.remaining()));
+                    netOut.put(src);
+                    src.limit(limit);
+                } else {
+                    SSLEngineResult result = ssl.wrap(src, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("TLS session closed");
+                    }
+                    if (result.getStatus() != SSLEngineResult.Status.OK) {
+                        break;
+                    }
+                }
+            }
+
+            if (!writeNet()) {
+                return;
+            }
+            if (output.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Whether the network buffer was fully written. If not, waits for the socket to be writable.
+     */
+    private boolean writeNet() throws IOException {
+
+        netOut.flip();
+        if (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        boolean drained = !netOut.hasRemaining();
+        netOut.compact();
+
+        int ops = key.interestOps();
+        key.interestOps(drained ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE);
+        return drained;
+    }
+
+    private void startTls() throws IOException {
+
+        String host = engine.address.getHostString();
+        ssl = engine.getSslContext().createSSLEngine(host, engine.address.getPort());
+        ssl.setUseClientMode(true);
+
+        acquireBuffers();
+        state = State.HANDSHAKE;
+        deadline = now() + engine.timeoutMillis;
+        ssl.beginHandshake();
+        handshake();
+    }
+
+    /**
+     * Advances the TLS handshake as far as the available bytes allow.
+     */
+    private void handshake() throws IOException {
+
+        while (true) {
+            SSLEngineResult result;
+            switch (ssl.getHandshakeStatus()) {
+            case NEED_TASK:
+                runTasks(null);
+                break;
+
+            case NEED_WRAP:
+                result = ssl.wrap(EMPTY, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS handshake failed");
+                }
+                if (!writeNet()) {
+                    return;
+                }
+                break;
+
+            case FINISHED:
+            case NOT_HANDSHAKING:
+                if (!writeNet()) {
+                    return;
+                }
+                secure = true;
+                if (greeted) {
+                    hello("EHLO");
+                } else {
+                    state = State.GREETING;
+                }
+                return;
+
+            default:
+                netIn.flip();
+                try {
+                    result = ssl.unwrap(netIn, appIn);
+                } finally {
+                    netIn.compact();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS handshake failed");
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    // Waits for more bytes.
+                    return;
+                }
+            }
+        }
+    }
+
+    private void runTasks(SSLEngineResult result) {
+
+        if (result == null || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            Runnable task;
+            while ((task = ssl.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private void acquireBuffers() {
+
+        if (netIn == null) {
+            netIn = loop.buffers.acquire();
+        }
+        if (netOut == null) {
+            netOut = loop.buffers.acquire();
+        }
+        if (appIn == null) {
+            appIn = (ssl != null ? loop.buffers.acquire() : netIn);
+        } else if (ssl != null && appIn == netIn) {
+            appIn = loop.buffers.acquire();
+        }
+    }
+
+    /**
+     * Gives the buffers back to the pool, if holding no data or if closing.
+     */
+    private void releaseBuffers(boolean closing) {
+
+        if (netIn == null) {
+            return;
+        }
+        if (!closing && (netIn.position() > 0 || netOut.position() > 0 || appIn.position() > 0 ||
+                !output.isEmpty())) {
+            return;
+        }
+
+        loop.buffers.release(netIn);
+        loop.buffers.release(netOut);
+        if (appIn != netIn) {
+            loop.buffers.release(appIn);
+        }
+        netIn = null;
+        netOut = null;
+        appIn = null;
+    }
+
+    private static Exception wrap(Exception cause) {
+
+        if (cause instanceof MessagingException || cause instanceof MailException) {
+            return cause;
+        }
+        return new MessagingException("IOException while sending message", cause);
+    }
+
+    private static String base64(String s) {
+        return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    // Inner classes
+
+    private enum State {
+        CONNECTING, HANDSHAKE, GREETING, EHLO, HELO, STARTTLS, AUTH, IDLE, TRANSACTION, QUIT, CLOSED
+    }
+
+    private enum Phase {
+        ENVELOPE, DATA, END, RESET
+    }
+}
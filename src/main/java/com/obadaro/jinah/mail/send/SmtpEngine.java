@@ -0,0 +1,754 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.net.ssl.SSLContext;
+
+import com.obadaro.jinah.common.internals.Logger;
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.metrics.MetricsSink;
+import com.sun.mail.util.CRLFOutputStream;
+
+/**
+ * Non-blocking SMTP client sending to the relay of a {@link Session}. Connections are multiplexed on a few event
+ * loop threads instead of a thread blocked in socket I/O per connection, with TLS through an {@link
+ * javax.net.ssl.SSLEngine} and direct buffers pooled per loop. Idle connections hold no buffer.
+ * <p>
+ * Mails are queued and taken by the first idle connection; a new connection is opened while there are less than
+ * {@code maxConnections}. Like the {@link PipeliningTransport}, envelopes are pipelined and messages sent with
+ * BDAT when the server allows it, and failures are reported as {@link SessionCourier} reports them.
+ * </p>
+ * <p>
+ * Messages are built and encoded by the thread submitting the mail, the loops only move bytes. Futures are
+ * completed by the loop threads: dependent actions must not block. Reads the {@code host}, {@code port},
+ * {@code auth}, {@code from}, {@code localhost}, {@code sendpartial}, {@code maxrecipients},
+ * {@code connectiontimeout}, {@code timeout}, {@code ssl.enable}, {@code starttls.enable} and
+ * {@code starttls.required} properties of the session protocol.
+ * </p>
+ * 
+ * <pre>
+ * SmtpEngine engine = new SmtpEngine(session, 2, 500);
+ * CompletableFuture&lt;SendResult&gt; result = engine.sendAsync(mail);
+ * ...
+ * engine.close();
+ * </pre>
+ * 
+ * @author Roberto Badaro
+ */
+public class SmtpEngine implements Courier, Closeable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+
+    /** Reply timeout when {@code mail.<protocol>.timeout} is not set. */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    /** Time {@link #close()} lets the mails submitted finish. */
+    public static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 60000;
+
+    static final int BUFFER_SIZE = 32 * 1024;
+
+    private static final Logger LOG = Logger.getLogger(SmtpEngine.class.getName());
+
+    private static final String[] IGNORE_HEADERS = { "Bcc", "Content-Length" };
+
+    protected final Session session;
+    protected final TransportSettings settings;
+    protected final String relayName;
+    protected final int maxConnections;
+    protected MessageFactory messageFactory = MailMessages.factory();
+    protected MetricsSink metrics = MetricsSink.NOOP;
+
+    final String protocol;
+    final InetSocketAddress address;
+    final boolean ssl;
+    final boolean startTls;
+    final boolean startTlsRequired;
+    final boolean auth;
+    final boolean sendPartial;
+    final String localHost;
+    final int connectTimeoutMillis;
+    final int timeoutMillis;
+
+    /** Mails waiting for a connection. */
+    final ConcurrentLinkedQueue<Job> pending = new ConcurrentLinkedQueue<Job>();
+    final AtomicInteger openConnections = new AtomicInteger();
+
+    final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile SSLContext sslContext;
+    private volatile boolean closed;
+    /** Set when a loop stopped on an error: mails are failed instead of queued. */
+    private volatile Exception broken;
+
+    /**
+     * Creates an engine with a loop per two processors and {@link #DEFAULT_MAX_CONNECTIONS}.
+     * 
+     * @param session
+     * @throws MailException
+     *             If the loops could not be opened.
+     */
+    public SmtpEngine(Session session) throws MailException {
+        this(session, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param session
+     * @param threads
+     *            Event loop threads.
+     * @param maxConnections
+     *            Max connections open to the relay.
+     * @throws MailException
+     *             If the loops could not be opened.
+     */
+    public SmtpEngine(Session session, int threads, int maxConnections) throws MailException {
+
+        checkArgument(session != null, "session");
+        checkArgument(threads > 0, "threads");
+        checkArgument(maxConnections > 0, "maxConnections");
+
+        this.session = session;
+        this.settings = TransportSettings.of(session);
+        this.relayName = settings.getRelayName();
+        this.maxConnections = maxConnections;
+
+        protocol = settings.getProtocol();
+        ssl = "smtps".equals(protocol) || isTrue("ssl.enable");
+        startTls = isTrue("starttls.enable");
+        startTlsRequired = isTrue("starttls.required");
+        auth = settings.isAuthRequired();
+        sendPartial = isTrue("sendpartial");
+        localHost = PipeliningTransport.localHost(session, protocol);
+        connectTimeoutMillis = intValue("connectiontimeout", 0);
+        timeoutMillis = intValue("timeout", DEFAULT_TIMEOUT_MILLIS);
+
+        String host = (settings.getHost() != null ? settings.getHost() : "localhost");
+        address = new InetSocketAddress(host, settings.getPort() > 0 ? settings.getPort() : (ssl ? 465 : 25));
+
+        loops = new EventLoop[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new EventLoop("smtp-engine-" + relayName + "-" + i);
+            }
+        } catch (IOException e) {
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    try {
+                        loop.selector.close();
+                    } catch (IOException ignored) {
+                        // NOOP
+                    }
+                }
+            }
+            throw new MailException("Error opening the event loops.", e);
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Submits a mail. The message is built by the calling thread and queued for the next idle connection.
+     * 
+     * @param mail
+     * @return The future send result, never completed exceptionally: failures are reported by the result.
+     */
+    public CompletableFuture<SendResult> sendAsync(Mail mail) {
+
+        checkArgument(mail != null, "mail");
+
+        long start = System.nanoTime();
+        CompletableFuture<SendResult> future = new CompletableFuture<SendResult>();
+
+        inFlight.incrementAndGet();
+        if (closed) {
+            complete(mail, future, SendResult.skipped(mail, new MailException("Engine closed.")), 0);
+            return future;
+        }
+        if (broken != null) {
+            complete(mail, future, SendResult.failed(mail, toMailException(broken), 0L), 0);
+            return future;
+        }
+
+        Job job;
+        try {
+            job = prepare(mail, start, future);
+        } catch (Exception e) {
+            complete(mail, future, SendResult.failed(mail, toMailException(e), System.nanoTime() - start), 0);
+            return future;
+        }
+        metrics.recordTime(MetricsSink.BUILD, relayName, System.nanoTime() - start);
+
+        pending.add(job);
+        if (broken != null) {
+            // The loop died after the check above, and may have drained the queue before the add.
+            failPending(broken);
+            return future;
+        }
+        dispatch();
+        return future;
+    }
+
+    /**
+     * Sends a mail, waiting for its result.
+     */
+    @Override
+    public SendResult send(Mail mail) {
+        return sendAsync(mail).join();
+    }
+
+    /**
+     * @return Mails submitted and not yet sent.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return Connections open, or being opened, to the relay.
+     */
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * @return Connections open and waiting for mails.
+     */
+    public int getIdleConnections() {
+
+        int idle = 0;
+        for (EventLoop loop : loops) {
+            idle += loop.idle;
+        }
+        return idle;
+    }
+
+    /**
+     * @return The error that stopped a loop, or {@code null} if the engine is working.
+     */
+    public Exception getError() {
+        return broken;
+    }
+
+    /**
+     * Lets the mails submitted finish, for up to {@link #DEFAULT_CLOSE_TIMEOUT_MILLIS}, then closes the connections
+     * and stops the loops.
+     */
+    @Override
+    public void close() {
+        close(DEFAULT_CLOSE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Lets the mails submitted finish, then closes the connections and stops the loops. Mails not sent in time are
+     * failed.
+     * 
+     * @param timeoutMillis
+     *            Max time to wait for the mails submitted.
+     */
+    public void close(long timeoutMillis) {
+
+        closed = true;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            long wait;
+            while (inFlight.get() > 0 && (wait = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(Math.min(wait, 1000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        boolean abort = (inFlight.get() > 0);
+        for (EventLoop loop : loops) {
+            loop.execute(abort ? loop::abort : loop::shutdown);
+        }
+        for (EventLoop loop : loops) {
+            try {
+                loop.thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public String getRelayName() {
+        return relayName;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public MessageFactory getMessageFactory() {
+        return messageFactory;
+    }
+
+    /**
+     * @param messageFactory
+     *            Builds the messages of the mails, e.g. {@link MailMessages#factory(MimePartCache)}.
+     */
+    public void setMessageFactory(MessageFactory messageFactory) {
+
+        checkArgument(messageFactory != null, "messageFactory");
+        this.messageFactory = messageFactory;
+    }
+
+    public MetricsSink getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics
+     *            Receives the send measurements, tagged with the relay name, and the connection gauges.
+     */
+    public void setMetrics(MetricsSink metrics) {
+
+        checkArgument(metrics != null, "metrics");
+        this.metrics = metrics;
+
+        metrics.gauge(MetricsSink.POOL_OPEN, relayName, this::getOpenConnections);
+        metrics.gauge(MetricsSink.POOL_IDLE, relayName, this::getIdleConnections);
+        metrics.gauge(MetricsSink.IN_FLIGHT, relayName, this::getInFlight);
+    }
+
+    //
+    // Internal methods
+    //
+
+    /**
+     * Builds and encodes the message of a mail.
+     */
+    protected Job prepare(Mail mail, long start, CompletableFuture<SendResult> future) throws MailException,
+            MessagingException, IOException {
+
+        MimeMessage msg = messageFactory.createMessage(session, mail);
+        msg.setSentDate(new Date());
+
+        Address[] recipients = msg.getAllRecipients();
+        if (recipients == null || recipients.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        List<Address[]> envelopes = settings.getEnvelopeSplitter().split(recipients);
+        List<InternetAddress[]> rcpts = new ArrayList<InternetAddress[]>(envelopes.size());
+        for (Address[] envelope : envelopes) {
+            InternetAddress[] addresses = new InternetAddress[envelope.length];
+            for (int i = 0; i < envelope.length; i++) {
+                if (!(envelope[i] instanceof InternetAddress)) {
+                    throw new MessagingException(envelope[i] + " is not an InternetAddress");
+                }
+                addresses[i] = (InternetAddress) envelope[i];
+            }
+            rcpts.add(addresses);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 * 1024);
+        msg.writeTo(new CRLFOutputStream(bytes), IGNORE_HEADERS);
+
+        return new Job(mail, "MAIL FROM:<" + PipeliningTransport.envelopeFrom(session, protocol, msg) + ">",
+            envelopes, rcpts, bytes.toByteArray(), start, future);
+    }
+
+    /**
+     * Wakes a loop with an idle connection or, if none, opens a connection for the pending mails.
+     */
+    void dispatch() {
+
+        for (EventLoop loop : loops) {
+            if (loop.idle > 0) {
+                loop.wakeIdle();
+                return;
+            }
+        }
+
+        int open;
+        while ((open = openConnections.get()) < maxConnections) {
+            if (openConnections.compareAndSet(open, open + 1)) {
+                EventLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+                loop.execute(loop::open);
+                return;
+            }
+        }
+        // All the connections are busy: the first to finish takes the mail.
+    }
+
+    void complete(Job job, SendResult result) {
+        complete(job.mail, job.future, result, job.content.length);
+    }
+
+    SSLContext getSslContext() throws IOException {
+
+        if (sslContext == null) {
+            try {
+                sslContext = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("TLS not available.", e);
+            }
+        }
+        return sslContext;
+    }
+
+    static MailException toMailException(Exception e) {
+        return (e instanceof MailException ? (MailException) e : new MailException(e));
+    }
+
+    private void complete(Mail mail, CompletableFuture<SendResult> future, SendResult result, int size) {
+
+        metrics.recordTime(MetricsSink.SEND, relayName, result.getLatencyNanos());
+        metrics.increment(MetricsSink.RESULT + result.getStatus().name().toLowerCase(Locale.ROOT), relayName);
+        if (result.getStatus() == SendResult.Status.SENT) {
+            metrics.recordValue(MetricsSink.SIZE, relayName, size);
+        }
+
+        int left = inFlight.decrementAndGet();
+        try {
+            future.complete(result);
+        } catch (RuntimeException e) {
+            LOG.warn(e, "Error completing a send.");
+        }
+
+        if (left == 0 && closed) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Fails the mails waiting for a connection.
+     */
+    private void failPending(Exception cause) {
+
+        Job job;
+        while ((job = pending.poll()) != null) {
+            complete(job, SendResult.failed(job.mail, toMailException(cause), System.nanoTime() - job.start));
+        }
+    }
+
+    private boolean isTrue(String key) {
+        return "true".equalsIgnoreCase(session.getProperty("mail." + protocol + "." + key));
+    }
+
+    private int intValue(String key, int defaultValue) {
+
+        String value = session.getProperty("mail." + protocol + "." + key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                // Falls back to the default value.
+            }
+        }
+        return defaultValue;
+    }
+
+    // Inner classes
+
+    /**
+     * A mail being sent: its encoded message and envelopes.
+     */
+    static final class Job {
+
+        final Mail mail;
+        final String mailFrom;
+        final List<Address[]> envelopes;
+        final List<InternetAddress[]> recipients;
+        final byte[] content;
+        final long start;
+        final CompletableFuture<SendResult> future;
+        boolean retried;
+        private byte[] stuffed;
+
+        Job(Mail mail,
+            String mailFrom,
+            List<Address[]> envelopes,
+            List<InternetAddress[]> recipients,
+            byte[] content,
+            long start,
+            CompletableFuture<SendResult> future) {
+
+            this.mail = mail;
+            this.mailFrom = mailFrom;
+            this.envelopes = envelopes;
+            this.recipients = recipients;
+            this.content = content;
+            this.start = start;
+            this.future = future;
+        }
+
+        /**
+         * @return The content dot-stuffed, with its terminating line, for DATA.
+         */
+        byte[] stuffed() {
+
+            if (stuffed == null) {
+                int dots = 0;
+                for (int i = 0; i < content.length; i++) {
+                    if (content[i] == '.' && (i == 0 || content[i - 1] == '\n')) {
+                        dots++;
+                    }
+                }
+
+                boolean atBol = (content.length == 0 || content[content.length - 1] == '\n');
+                byte[] bytes = new byte[content.length + dots + (atBol ? 3 : 5)];
+                int n = 0;
+                for (int i = 0; i < content.length; i++) {
+                    if (content[i] == '.' && (i == 0 || content[i - 1] == '\n')) {
+                        bytes[n++] = '.';
+                    }
+                    bytes[n++] = content[i];
+                }
+                if (!atBol) {
+                    bytes[n++] = '\r';
+                    bytes[n++] = '\n';
+                }
+                bytes[n++] = '.';
+                bytes[n++] = '\r';
+                bytes[n++] = '\n';
+                stuffed = bytes;
+            }
+            return stuffed;
+        }
+    }
+
+    /**
+     * A selector thread and its connections. Connections are only touched by their loop thread.
+     */
+    final class EventLoop implements Runnable {
+
+        private static final long SELECT_MILLIS = 1000;
+
+        final Thread thread;
+        final Selector selector;
+        final DirectBufferPool buffers = new DirectBufferPool(BUFFER_SIZE, 64);
+
+        /** Idle connections of the loop, read by the submitting threads. */
+        volatile int idle;
+
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean wakeScheduled = new AtomicBoolean();
+        private final List<SmtpConnection> connections = new ArrayList<SmtpConnection>();
+        private final ArrayDeque<SmtpConnection> idleConnections = new ArrayDeque<SmtpConnection>();
+        private boolean stopping;
+
+        EventLoop(String name) throws IOException {
+
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                while (true) {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    if (stopping && connections.isEmpty()) {
+                        break;
+                    }
+
+                    selector.select(checkTimeouts());
+
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        ((SmtpConnection) key.attachment()).handle(key);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn(e, "Error in the SMTP event loop.");
+                broken = e;
+            } catch (RuntimeException e) {
+                LOG.warn(e, "Error in the SMTP event loop.");
+                broken = e;
+            } finally {
+                if (broken == null && !stopping) {
+                    broken = new MailException("SMTP event loop stopped.");
+                }
+                for (SmtpConnection conn : new ArrayList<SmtpConnection>(connections)) {
+                    conn.fail(new IOException("Engine closed."));
+                }
+                // Nothing takes the queued mails once a loop is gone, or once the engine is closed.
+                failPending(broken != null ? broken : new MailException("Engine closed."));
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // NOOP
+                }
+            }
+        }
+
+        void execute(Runnable task) {
+
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void wakeIdle() {
+
+            if (wakeScheduled.compareAndSet(false, true)) {
+                execute(this::assignIdle);
+            }
+        }
+
+        void open() {
+
+            if (stopping) {
+                openConnections.decrementAndGet();
+                return;
+            }
+            SmtpConnection conn = new SmtpConnection(SmtpEngine.this, this);
+            connections.add(conn);
+            conn.open();
+        }
+
+        /**
+         * Hands pending mails to the idle connections.
+         */
+        void assignIdle() {
+
+            wakeScheduled.set(false);
+            while (!idleConnections.isEmpty()) {
+                Job job = pending.poll();
+                if (job == null) {
+                    break;
+                }
+                SmtpConnection conn = idleConnections.poll();
+                idle = idleConnections.size();
+                conn.start(job);
+            }
+        }
+
+        /**
+         * Parks an idle connection, unless a mail is waiting.
+         */
+        void idle(SmtpConnection conn) {
+
+            if (stopping) {
+                conn.quit();
+                return;
+            }
+
+            idleConnections.add(conn);
+            idle = idleConnections.size();
+
+            // A mail queued while the connection was finishing.
+            Job job = pending.poll();
+            if (job != null) {
+                idleConnections.remove(conn);
+                idle = idleConnections.size();
+                conn.start(job);
+            }
+        }
+
+        void removed(SmtpConnection conn) {
+
+            connections.remove(conn);
+            if (idleConnections.remove(conn)) {
+                idle = idleConnections.size();
+            }
+        }
+
+        void shutdown() {
+
+            stopping = true;
+            SmtpConnection conn;
+            while ((conn = idleConnections.poll()) != null) {
+                conn.quit();
+            }
+            idle = 0;
+            selector.wakeup();
+        }
+
+        /**
+         * Stops the loop, failing the mails being sent.
+         */
+        void abort() {
+
+            stopping = true;
+            for (SmtpConnection conn : new ArrayList<SmtpConnection>(connections)) {
+                conn.fail(new IOException("Engine closed before the send finished."));
+            }
+            idle = 0;
+        }
+
+        /**
+         * Fails the connections past their deadline.
+         * 
+         * @return Milliseconds to the next deadline.
+         */
+        private long checkTimeouts() {
+
+            long now = System.currentTimeMillis();
+            long wait = SELECT_MILLIS;
+            for (int i = connections.size() - 1; i >= 0 && i < connections.size(); i--) {
+                SmtpConnection conn = connections.get(i);
+                if (conn.deadline > 0) {
+                    if (conn.deadline <= now) {
+                        conn.timeout();
+                    } else {
+                        wait = Math.min(wait, conn.deadline - now);
+                    }
+                }
+            }
+            return Math.max(1, wait);
+        }
+    }
+}
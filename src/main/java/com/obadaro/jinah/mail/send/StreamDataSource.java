@@ -0,0 +1,73 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+import com.obadaro.jinah.common.util.Nulls;
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.StreamSupplier;
+
+/**
+ * Read-only data source over a {@link StreamSupplier}, opened every time the part is written.
+ * 
+ * @author Roberto Badaro
+ */
+public class StreamDataSource implements DataSource {
+
+    protected final StreamSupplier supplier;
+    protected final String contentType;
+    protected final String name;
+
+    public StreamDataSource(StreamSupplier supplier, String contentType, String name) {
+
+        checkArgument(supplier != null, "supplier");
+
+        this.supplier = supplier;
+        this.contentType = Nulls.nvl(contentType, Attachment.OCTET_STREAM);
+        this.name = name;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return supplier.open();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Read-only data source: " + name);
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
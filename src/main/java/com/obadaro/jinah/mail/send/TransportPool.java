@@ -0,0 +1,544 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import com.obadaro.jinah.mail.MailException;
+
+/**
+ * A bounded pool of connected {@link Transport}s, keyed by {@link Session}, host and user.
+ * <p>
+ * Idle connections are checked before reuse ({@link Transport#isConnected()}, which issues a NOOP on SMTP
+ * transports), evicted after {@link #getMaxIdleMillis()} and rotated after
+ * {@link #getMaxMessagesPerConnection()} messages. Connections given back less than
+ * {@link #getValidationIntervalMillis()} ago are reused without the check, so borrowing per message doesn't
+ * add a round-trip to each one.
+ * </p>
+ * 
+ * <pre>
+ * TransportPool pool = new TransportPool();
+ * Postman.sendMail(pool, session, false, mails);
+ * ...
+ * pool.close();
+ * </pre>
+ * 
+ * @author Roberto Badaro
+ */
+public class TransportPool {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    public static final long DEFAULT_MAX_IDLE_MILLIS = 30000L;
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 30000L;
+    public static final int DEFAULT_MAX_MESSAGES = 500;
+    public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 500L;
+
+    protected final ConcurrentMap<Key, Slots> slots = new ConcurrentHashMap<Key, Slots>();
+
+    protected int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    protected long maxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+    protected long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+    protected int maxMessagesPerConnection = DEFAULT_MAX_MESSAGES;
+    protected boolean validateOnBorrow = true;
+    protected long validationIntervalMillis = DEFAULT_VALIDATION_INTERVAL_MILLIS;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool with the default settings.
+     */
+    public TransportPool() {
+        // NOOP
+    }
+
+    /**
+     * Creates a pool.
+     * 
+     * @param maxConnections
+     *            Max connections per session/host/user.
+     */
+    public TransportPool(int maxConnections) {
+        setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Borrows a connected transport, reusing an idle one when available. Waits up to
+     * {@link #getMaxWaitMillis()} when all connections of the key are in use.
+     * 
+     * @param session
+     * @return A connected transport.
+     * @throws MailException
+     *             If the transport can't be connected or the wait time was exceeded.
+     */
+    public PooledTransport borrow(Session session) throws MailException {
+
+        checkArgument(session != null, "session");
+        if (closed) {
+            throw new IllegalStateException("TransportPool closed.");
+        }
+
+        Key key = new Key(session, TransportSettings.of(session));
+        Slots s = slotsOf(key);
+
+        List<PooledTransport> discarded = new ArrayList<PooledTransport>(2);
+        try {
+            PooledTransport pt = s.acquire(maxWaitMillis, maxIdleMillis, discarded);
+            closeAll(discarded);
+            discarded.clear();
+
+            while (pt != null) {
+                if (!needsValidation(pt) || pt.transport.isConnected()) {
+                    pt.maxMessages = maxMessagesPerConnection;
+                    return pt;
+                }
+                // Dead connection: tries the next idle one, or reuses its slot for a new connection.
+                pt = s.replaceDead(pt, maxIdleMillis, discarded);
+                closeAll(discarded);
+                discarded.clear();
+            }
+
+            // A slot was reserved for a new connection.
+            try {
+                Transport transport = Postman.getConnectedTransport(session);
+                return new PooledTransport(key, transport, maxMessagesPerConnection);
+            } catch (MailException e) {
+                s.free();
+                throw e;
+            } catch (RuntimeException e) {
+                s.free();
+                throw e;
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailException("Interrupted waiting for a transport.", e);
+        }
+    }
+
+    /**
+     * Gives a transport back to the pool. Exhausted transports (see {@link PooledTransport#isExhausted()}) are
+     * closed, so the next borrow opens a fresh connection.
+     * 
+     * @param pooled
+     */
+    public void release(PooledTransport pooled) {
+
+        if (pooled == null) {
+            return;
+        }
+        if (closed || pooled.isExhausted()) {
+            invalidate(pooled);
+            return;
+        }
+
+        pooled.lastUsed = System.currentTimeMillis();
+        List<PooledTransport> discarded = new ArrayList<PooledTransport>(2);
+        slotsOf(pooled.key).giveBack(pooled, maxIdleMillis, discarded);
+        closeAll(discarded);
+    }
+
+    /**
+     * Closes a broken transport and frees its slot.
+     * 
+     * @param pooled
+     */
+    public void invalidate(PooledTransport pooled) {
+
+        if (pooled == null) {
+            return;
+        }
+        List<PooledTransport> discarded = new ArrayList<PooledTransport>(1);
+        slotsOf(pooled.key).discard(pooled, discarded);
+        closeAll(discarded);
+    }
+
+    /**
+     * Reconnects a transport keeping its slot, e.g. after the connection was dropped by the server.
+     * 
+     * @param pooled
+     * @throws MailException
+     */
+    public void reconnect(PooledTransport pooled) throws MailException {
+
+        checkArgument(pooled != null, "pooled");
+
+        close(pooled.transport);
+        Transport transport = Postman.getConnectedTransport(pooled.key.session);
+        replace(pooled, transport);
+    }
+
+    /**
+     * Closes the connections idle for more than {@link #getMaxIdleMillis()}. Idle connections are also evicted
+     * on {@link #borrow(Session)} and {@link #release(PooledTransport)}; this method is meant to be called
+     * periodically by applications with long quiet periods.
+     * 
+     * @return Number of evicted connections.
+     */
+    public int evictIdle() {
+
+        List<PooledTransport> discarded = new ArrayList<PooledTransport>();
+        for (Slots s : slots.values()) {
+            s.evict(maxIdleMillis, discarded);
+        }
+        closeAll(discarded);
+        return discarded.size();
+    }
+
+    /**
+     * @return Number of connections open, idle or in use.
+     */
+    public int getOpenCount() {
+
+        int count = 0;
+        for (Slots s : slots.values()) {
+            count += s.open;
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of idle connections.
+     */
+    public int getIdleCount() {
+
+        int count = 0;
+        for (Slots s : slots.values()) {
+            count += s.idleCount();
+        }
+        return count;
+    }
+
+    /**
+     * Closes all idle connections. Connections in use are closed when released.
+     */
+    public void close() {
+
+        closed = true;
+        List<PooledTransport> discarded = new ArrayList<PooledTransport>();
+        for (Slots s : slots.values()) {
+            s.evict(-1, discarded);
+        }
+        closeAll(discarded);
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param maxConnections
+     *            Max connections per session/host/user.
+     */
+    public void setMaxConnections(int maxConnections) {
+
+        checkArgument(maxConnections > 0, "maxConnections");
+        this.maxConnections = maxConnections;
+    }
+
+    public long getMaxIdleMillis() {
+        return maxIdleMillis;
+    }
+
+    public void setMaxIdleMillis(long maxIdleMillis) {
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public int getMaxMessagesPerConnection() {
+        return maxMessagesPerConnection;
+    }
+
+    /**
+     * @param maxMessagesPerConnection
+     *            Messages sent before a connection is rotated. Zero or less means unlimited.
+     */
+    public void setMaxMessagesPerConnection(int maxMessagesPerConnection) {
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+    }
+
+    public boolean isValidateOnBorrow() {
+        return validateOnBorrow;
+    }
+
+    public void setValidateOnBorrow(boolean validateOnBorrow) {
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    public long getValidationIntervalMillis() {
+        return validationIntervalMillis;
+    }
+
+    /**
+     * @param validationIntervalMillis
+     *            Connections idle for less than this are reused without being checked.
+     */
+    public void setValidationIntervalMillis(long validationIntervalMillis) {
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected Slots slotsOf(Key key) {
+
+        Slots s = slots.get(key);
+        if (s == null) {
+            Slots created = new Slots(this);
+            s = slots.putIfAbsent(key, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        return s;
+    }
+
+    protected boolean needsValidation(PooledTransport pooled) {
+
+        return validateOnBorrow && System.currentTimeMillis() - pooled.lastUsed >= validationIntervalMillis;
+    }
+
+    private void replace(PooledTransport pooled, Transport transport) {
+
+        pooled.transport = transport;
+        pooled.messageCount = 0;
+        pooled.lastUsed = System.currentTimeMillis();
+    }
+
+    static void closeAll(List<PooledTransport> transports) {
+
+        for (PooledTransport pt : transports) {
+            close(pt.transport);
+        }
+    }
+
+    static void close(Transport transport) {
+
+        try {
+            transport.close();
+        } catch (final Exception e) {
+            // NOOP
+        }
+    }
+
+    // Inner classes
+
+    /**
+     * Pool key: session (by identity), host, port and user.
+     */
+    static final class Key {
+
+        final Session session;
+        final String host;
+        final int port;
+        final String user;
+
+        Key(Session session, TransportSettings settings) {
+
+            this.session = session;
+            this.host = settings.getHost();
+            this.port = settings.getPort();
+            this.user = settings.getUsername();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return session == other.session && port == other.port && eq(host, other.host) && eq(user, other.user);
+        }
+
+        @Override
+        public int hashCode() {
+
+            int h = System.identityHashCode(session);
+            h = 31 * h + (host != null ? host.hashCode() : 0);
+            h = 31 * h + port;
+            return 31 * h + (user != null ? user.hashCode() : 0);
+        }
+
+        @Override
+        public String toString() {
+            return (user != null ? user + "@" : "") + host + (port > 0 ? ":" + port : "");
+        }
+
+        private static boolean eq(Object a, Object b) {
+            return (a == null ? b == null : a.equals(b));
+        }
+    }
+
+    /**
+     * Connections of a key. Idle connections are kept in LIFO order, so the least recently used ones are at the
+     * tail and are the first to be evicted.
+     */
+    static final class Slots {
+
+        final TransportPool pool;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition available = lock.newCondition();
+        final ArrayDeque<PooledTransport> idle = new ArrayDeque<PooledTransport>();
+        volatile int open;
+
+        Slots(TransportPool pool) {
+            this.pool = pool;
+        }
+
+        /**
+         * Takes an idle connection or reserves a slot for a new one (returns {@code null}).
+         */
+        PooledTransport acquire(long maxWaitMillis, long maxIdleMillis, List<PooledTransport> discarded)
+                throws InterruptedException, MailException {
+
+            long nanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            lock.lock();
+            try {
+                while (true) {
+                    evict(maxIdleMillis, discarded);
+                    PooledTransport pt = idle.pollFirst();
+                    if (pt != null) {
+                        return pt;
+                    }
+                    if (open < pool.maxConnections) {
+                        open++;
+                        return null;
+                    }
+                    if (nanos <= 0L) {
+                        throw new MailException("Timeout waiting for a transport (" + maxWaitMillis + " ms).");
+                    }
+                    nanos = available.awaitNanos(nanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Discards a dead connection and takes an idle one, or keeps its slot reserved for a new connection
+         * (returns {@code null}). A single step: no other thread can take the slot in between.
+         */
+        PooledTransport replaceDead(PooledTransport dead, long maxIdleMillis, List<PooledTransport> discarded) {
+
+            lock.lock();
+            try {
+                discarded.add(dead);
+                evict(maxIdleMillis, discarded);
+                PooledTransport pt = idle.pollFirst();
+                if (pt != null) {
+                    // The slot of the dead one is free.
+                    open--;
+                    available.signal();
+                }
+                return pt;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void giveBack(PooledTransport pt, long maxIdleMillis, List<PooledTransport> discarded) {
+
+            lock.lock();
+            try {
+                idle.addFirst(pt);
+                evict(maxIdleMillis, discarded);
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void discard(PooledTransport pt, List<PooledTransport> discarded) {
+
+            lock.lock();
+            try {
+                open--;
+                discarded.add(pt);
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void free() {
+
+            lock.lock();
+            try {
+                open--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Removes connections idle for more than maxIdleMillis (all of them when negative).
+         */
+        void evict(long maxIdleMillis, List<PooledTransport> discarded) {
+
+            lock.lock();
+            try {
+                long limit = System.currentTimeMillis() - maxIdleMillis;
+                PooledTransport pt;
+                while ((pt = idle.peekLast()) != null && (maxIdleMillis < 0 || pt.lastUsed < limit)) {
+                    idle.pollLast();
+                    open--;
+                    discarded.add(pt);
+                    available.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int idleCount() {
+
+            lock.lock();
+            try {
+                return idle.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+import static com.obadaro.jinah.common.util.Strings.ifBlank;
+import static com.obadaro.jinah.common.util.Strings.isNotBlank;
+
+import java.util.Properties;
+
+import javax.mail.Session;
+
+/**
+ * Transport related settings read from the {@code mail.<protocol>.*} properties of a {@link Session}.
+ * 
+ * @author Roberto Badaro
+ */
+public final class TransportSettings {
+
+    private final String protocol;
+    private final String host;
+    private final int port;
+    private final boolean needsAuth;
+    private final String username;
+    private final String password;
+    private final int maxRecipients;
+    private final boolean envelopePerDomain;
+    private final double rateLimit;
+    private final int rateBurst;
+    private final int maxConcurrency;
+    private final boolean pipelining;
+    private final EnvelopeSplitter envelopeSplitter;
+
+    private TransportSettings(String protocol,
+                              String host,
+                              int port,
+                              boolean needsAuth,
+                              String username,
+                              String password,
+                              int maxRecipients,
+                              boolean envelopePerDomain,
+                              double rateLimit,
+                              int rateBurst,
+                              int maxConcurrency,
+                              boolean pipelining) {
+
+        this.protocol = protocol;
+        this.host = host;
+        this.port = port;
+        this.needsAuth = needsAuth;
+        this.username = username;
+        this.password = password;
+        this.maxRecipients = maxRecipients;
+        this.envelopePerDomain = envelopePerDomain;
+        this.rateLimit = rateLimit;
+        this.rateBurst = rateBurst;
+        this.maxConcurrency = maxConcurrency;
+        this.pipelining = pipelining;
+        this.envelopeSplitter = new EnvelopeSplitter(Math.max(0, maxRecipients), envelopePerDomain);
+    }
+
+    /**
+     * Reads the transport settings of the session.
+     * 
+     * @param session
+     * @return Transport settings of the session.
+     */
+    public static TransportSettings of(Session session) {
+
+        checkArgument(session != null, "session");
+
+        Properties cfg = session.getProperties();
+        String protocol = ifBlank(cfg.getProperty("mail.transport.protocol"), "smtp");
+        String host = ifBlank(cfg.getProperty("mail." + protocol + ".host"), cfg.getProperty("mail.host"));
+        boolean needsAuth = "true".equalsIgnoreCase(cfg.getProperty("mail." + protocol + ".auth"));
+
+        String usr = null;
+        String pwd = null;
+        if (needsAuth) {
+            usr = cfg.getProperty("mail." + protocol + ".username");
+            pwd = cfg.getProperty("mail." + protocol + ".password");
+        }
+
+        String prefix = "mail." + protocol + ".";
+        return new TransportSettings(protocol, host, intValue(cfg, prefix + "port", -1), needsAuth, usr, pwd,
+            intValue(cfg, prefix + "maxrecipients", EnvelopeSplitter.DEFAULT_MAX_RECIPIENTS),
+            "true".equalsIgnoreCase(cfg.getProperty(prefix + "envelopeperdomain")),
+            doubleValue(cfg, prefix + "ratelimit", 0), intValue(cfg, prefix + "ratelimit.burst", 0),
+            intValue(cfg, prefix + "maxconcurrency", 0), "true".equalsIgnoreCase(cfg.getProperty(prefix +
+                    "pipelining")));
+    }
+
+    /**
+     * Returns a description of the relay ({@code protocol://user@host:port}), suitable as a key for per relay
+     * state or to be reported.
+     */
+    public String getRelayName() {
+
+        StringBuilder sb = new StringBuilder(protocol).append("://");
+        if (username != null) {
+            sb.append(username).append('@');
+        }
+        sb.append(host != null ? host : "localhost");
+        if (port > 0) {
+            sb.append(':').append(port);
+        }
+        return sb.toString();
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isAuthRequired() {
+        return needsAuth;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * @return Maximum recipients per envelope ({@code mail.<protocol>.maxrecipients}), {@code 0} for no limit.
+     */
+    public int getMaxRecipients() {
+        return maxRecipients;
+    }
+
+    /**
+     * @return Whether each envelope holds recipients of a single domain ({@code mail.<protocol>.envelopeperdomain}),
+     *         see {@link EnvelopeSplitter#setOneDomainPerEnvelope(boolean)}.
+     */
+    public boolean isEnvelopePerDomain() {
+        return envelopePerDomain;
+    }
+
+    /**
+     * @return Splitter of the envelopes per {@link #getMaxRecipients()} and {@link #isEnvelopePerDomain()}.
+     *         Shared by the users of these settings: not to be modified.
+     */
+    public EnvelopeSplitter getEnvelopeSplitter() {
+        return envelopeSplitter;
+    }
+
+    /**
+     * @return Messages per second allowed by the relay ({@code mail.<protocol>.ratelimit}), {@code 0} for no
+     *         limit.
+     */
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * @return Messages that may be sent at once after an idle period ({@code mail.<protocol>.ratelimit.burst}),
+     *         {@code 0} for the default.
+     */
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    /**
+     * @return Concurrent sends allowed by the relay ({@code mail.<protocol>.maxconcurrency}), {@code 0} for no
+     *         limit.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return Whether to send through a {@link PipeliningTransport} ({@code mail.<protocol>.pipelining}).
+     */
+    public boolean isPipelining() {
+        return pipelining;
+    }
+
+    @Override
+    public String toString() {
+        return getRelayName();
+    }
+
+    //
+    // Internal methods
+    //
+
+    private static int intValue(Properties cfg, String key, int defaultValue) {
+
+        String value = cfg.getProperty(key);
+        if (isNotBlank(value)) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                // Falls back to the default value.
+            }
+        }
+        return defaultValue;
+    }
+
+    private static double doubleValue(Properties cfg, String key, double defaultValue) {
+
+        String value = cfg.getProperty(key);
+        if (isNotBlank(value)) {
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                // Falls back to the default value.
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,38 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import com.obadaro.jinah.mail.MailException;
+
+/**
+ * Reported when a send failed after the whole message was handed to the relay, without a reply to it, e.g. on a
+ * timeout after the end of DATA: the relay may have accepted the mail. The failure is transient, but sending the
+ * mail again may duplicate it.
+ * 
+ * @author Roberto Badaro
+ */
+public class UncertainDeliveryException extends MailException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UncertainDeliveryException(Throwable cause) {
+        super("Message handed to the relay without a reply", cause);
+    }
+}
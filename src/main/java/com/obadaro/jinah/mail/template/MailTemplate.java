@@ -0,0 +1,263 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.template;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.internet.InternetAddress;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.HtmlMail;
+import com.obadaro.jinah.mail.TextMail;
+
+/**
+ * Subject and body templates of a mailing, compiled once and merged per recipient into {@link TextMail}s or
+ * {@link HtmlMail}s. HTML bodies escape their values. Rendering reuses a buffer per thread, so a merge
+ * allocates little more than the subject and body strings. Attachments and headers are shared by all the
+ * merged mails, so their encoded parts can be reused (see {@code MimePartCache}).
+ * 
+ * <pre>
+ * MailTemplate t = new MailTemplate("Your order ${order}", "&lt;p&gt;Hello ${name}&lt;/p&gt;", true);
+ * t.setFrom("shop@example.com");
+ * int name = t.indexOf("name"), order = t.indexOf("order");
+ * Object[] values = new Object[t.getNames().length];
+ * for (Customer c : customers) {
+ *     values[name] = c.getName();
+ *     values[order] = c.getOrder();
+ *     send(t.merge(c.getAddress(), values));
+ * }
+ * </pre>
+ * 
+ * @author Roberto Badaro
+ */
+public class MailTemplate {
+
+    /** Buffers larger than this are not kept for reuse. */
+    private static final int MAX_BUFFER = 256 * 1024;
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(4096);
+        }
+    };
+
+    protected final Template subject;
+    protected final Template body;
+    protected final boolean html;
+    protected final String[] names;
+
+    protected String from;
+    protected String charset = DEFAULT_CHARSET;
+    protected List<Attachment> attachments;
+    protected Map<String, String> header;
+
+    /**
+     * @param subject
+     *            Subject template. Line breaks in the values rendered are replaced with spaces.
+     * @param body
+     *            Body template.
+     * @param html
+     *            Whether the body is HTML.
+     */
+    public MailTemplate(String subject, String body, boolean html) {
+
+        List<String> shared = new ArrayList<String>();
+        this.subject = Template.compile(subject, Template.Escape.HEADER, shared);
+        this.body = Template.compile(body, (html ? Template.Escape.HTML : Template.Escape.NONE), shared);
+        this.html = html;
+        this.names = shared.toArray(new String[shared.size()]);
+    }
+
+    /**
+     * @return Placeholder names of subject and body, in the order of the values taken by
+     *         {@link #merge(InternetAddress, Object[])}.
+     */
+    public String[] getNames() {
+        return names.clone();
+    }
+
+    /**
+     * @return Index of the placeholder in the values array, {@code -1} if not used.
+     */
+    public int indexOf(String name) {
+
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Merges the mail of a recipient.
+     * 
+     * @param to
+     *            Recipient address.
+     * @param values
+     *            Values by placeholder index, see {@link #getNames()}.
+     * @return A new mail.
+     */
+    public TextMail merge(InternetAddress to, Object[] values) {
+
+        checkArgument(to != null, "to");
+        checkArgument(values != null, "values");
+
+        TextMail mail = newMail();
+        mail.addTo(to);
+
+        StringBuilder sb = buffer();
+        mail.setSubject(subject.render(values, sb).toString(), charset);
+        sb.setLength(0);
+        mail.setText(body.render(values, sb).toString(), charset);
+        release(sb);
+
+        return mail;
+    }
+
+    /**
+     * Merges the mail of a recipient, looking up each value by name.
+     * 
+     * @param to
+     *            Recipient address(es).
+     * @param values
+     * @return A new mail.
+     */
+    public TextMail merge(String to, Map<String, ?> values) {
+
+        checkArgument(values != null, "values");
+
+        TextMail mail = newMail();
+        mail.addTo(to);
+
+        StringBuilder sb = buffer();
+        mail.setSubject(subject.render(values, sb).toString(), charset);
+        sb.setLength(0);
+        mail.setText(body.render(values, sb).toString(), charset);
+        release(sb);
+
+        return mail;
+    }
+
+    public Template getSubject() {
+        return subject;
+    }
+
+    public Template getBody() {
+        return body;
+    }
+
+    public boolean isHtml() {
+        return html;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public void setFrom(String from) {
+        this.from = from;
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    /**
+     * @param charset
+     *            Charset of subject and body, UTF-8 if not set or {@code null}.
+     */
+    public void setCharset(String charset) {
+        this.charset = (charset != null ? charset : DEFAULT_CHARSET);
+    }
+
+    /**
+     * Adds an attachment shared by all the merged mails.
+     * 
+     * @param attachment
+     * @return A reference to this object.
+     */
+    public MailTemplate attach(Attachment attachment) {
+
+        checkArgument(attachment != null, "attachment");
+
+        if (attachments == null) {
+            attachments = new ArrayList<Attachment>(3);
+        }
+        attachments.add(attachment);
+        return this;
+    }
+
+    /**
+     * Sets a header value of all the merged mails.
+     * 
+     * @param name
+     * @param value
+     * @return A reference to this object.
+     */
+    public MailTemplate setHeaderValue(String name, String value) {
+
+        if (header == null) {
+            header = new HashMap<String, String>(3);
+        }
+        header.put(name, value);
+        return this;
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected TextMail newMail() {
+
+        TextMail mail = (html ? new HtmlMail() : new TextMail());
+        mail.setFrom(from);
+        if (attachments != null) {
+            mail.setAttachments(new ArrayList<Attachment>(attachments));
+        }
+        if (header != null) {
+            mail.setHeader(new HashMap<String, String>(header));
+        }
+        return mail;
+    }
+
+    private static StringBuilder buffer() {
+
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        return sb;
+    }
+
+    private static void release(StringBuilder sb) {
+
+        sb.setLength(0);
+        if (sb.capacity() > MAX_BUFFER) {
+            BUFFER.remove();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.template;
+
+import static com.obadaro.jinah.common.util.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A text with {@code ${name}} placeholders, parsed once into literal segments and placeholder slots. Rendering
+ * appends the segments and the values to a caller's buffer, without parsing or intermediate strings.
+ * {@code $${} renders a literal {@code ${}. A missing ({@code null}) value renders as nothing.
+ * 
+ * <pre>
+ * Template t = Template.compile("Hello ${name}, your order ${order} has shipped.");
+ * t.render(values, buffer);
+ * </pre>
+ * 
+ * @author Roberto Badaro
+ */
+public final class Template {
+
+    private final String source;
+    private final Escape escape;
+    private final String[] literals;
+    private final int[] slots;
+    private final List<String> names;
+    private final int literalLength;
+
+    private Template(String source, Escape escape, String[] literals, int[] slots, List<String> names) {
+
+        this.source = source;
+        this.escape = escape;
+        this.literals = literals;
+        this.slots = slots;
+        this.names = names;
+
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    public static Template compile(String source) {
+        return compile(source, Escape.NONE);
+    }
+
+    /**
+     * @param source
+     * @param escape
+     *            Escaping of the values, e.g. {@link Escape#HTML} for HTML bodies.
+     * @return The compiled template.
+     * @throws IllegalArgumentException
+     *             If a placeholder is not closed or has no name.
+     */
+    public static Template compile(String source, Escape escape) {
+        return compile(source, escape, new ArrayList<String>());
+    }
+
+    /**
+     * Compiles a template whose placeholders are numbered in a shared list of names, so templates rendered
+     * together take the same values array.
+     */
+    static Template compile(String source, Escape escape, List<String> names) {
+
+        checkArgument(source != null, "source");
+        checkArgument(escape != null, "escape");
+
+        List<String> literals = new ArrayList<String>();
+        List<Integer> slots = new ArrayList<Integer>();
+        StringBuilder literal = new StringBuilder();
+
+        int i = 0;
+        while (i < source.length()) {
+            if (source.startsWith("$${", i)) {
+                literal.append("${");
+                i += 3;
+            } else if (source.startsWith("${", i)) {
+                int end = source.indexOf('}', i + 2);
+                checkArgument(end > 0, "Placeholder not closed at " + i + ": " + source);
+
+                String name = source.substring(i + 2, end).trim();
+                checkArgument(!name.isEmpty(), "Placeholder without name at " + i + ": " + source);
+
+                int slot = names.indexOf(name);
+                if (slot < 0) {
+                    slot = names.size();
+                    names.add(name);
+                }
+                literals.add(literal.toString());
+                literal.setLength(0);
+                slots.add(slot);
+                i = end + 1;
+            } else {
+                literal.append(source.charAt(i++));
+            }
+        }
+        literals.add(literal.toString());
+
+        int[] slotArray = new int[slots.size()];
+        for (int s = 0; s < slotArray.length; s++) {
+            slotArray[s] = slots.get(s);
+        }
+
+        return new Template(source, escape, literals.toArray(new String[literals.size()]), slotArray, names);
+    }
+
+    /**
+     * @return Placeholder names, in the order of the values taken by {@link #render(Object[], StringBuilder)}.
+     */
+    public String[] getNames() {
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * @return Index of the placeholder in the values array, {@code -1} if not used.
+     */
+    public int indexOf(String name) {
+        return names.indexOf(name);
+    }
+
+    /**
+     * Renders the template.
+     * 
+     * @param values
+     *            Values by placeholder index, see {@link #getNames()}.
+     * @param out
+     * @return {@code out}
+     */
+    public StringBuilder render(Object[] values, StringBuilder out) {
+
+        checkArgument(values != null, "values");
+
+        out.ensureCapacity(out.length() + literalLength + 16 * slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            out.append(literals[i]);
+            int slot = slots[i];
+            if (slot < values.length) {
+                append(out, values[slot]);
+            }
+        }
+        return out.append(literals[slots.length]);
+    }
+
+    /**
+     * Renders the template, looking up each value by name.
+     */
+    public StringBuilder render(Map<String, ?> values, StringBuilder out) {
+
+        checkArgument(values != null, "values");
+
+        out.ensureCapacity(out.length() + literalLength + 16 * slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            out.append(literals[i]);
+            append(out, values.get(names.get(slots[i])));
+        }
+        return out.append(literals[slots.length]);
+    }
+
+    public String render(Map<String, ?> values) {
+        return render(values, new StringBuilder()).toString();
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public Escape getEscape() {
+        return escape;
+    }
+
+    /**
+     * @return Whether the template has no placeholder, so it always renders the same text.
+     */
+    public boolean isConstant() {
+        return slots.length == 0;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    //
+    // Internal methods
+    //
+
+    private void append(StringBuilder out, Object value) {
+
+        if (value == null) {
+            return;
+        }
+        if (escape == Escape.NONE) {
+            if (value instanceof CharSequence) {
+                out.append((CharSequence) value);
+            } else if (value instanceof Long || value instanceof Integer) {
+                out.append(((Number) value).longValue());
+            } else {
+                out.append(value);
+            }
+        } else {
+            escape.append(out, (value instanceof CharSequence ? (CharSequence) value : value.toString()));
+        }
+    }
+
+    // Inner classes
+
+    public enum Escape {
+
+        NONE {
+
+            @Override
+            void append(StringBuilder out, CharSequence value) {
+                out.append(value);
+            }
+        },
+
+        /** Escapes {@code & < > " '}. */
+        HTML {
+
+            @Override
+            void append(StringBuilder out, CharSequence value) {
+
+                for (int i = 0, n = value.length(); i < n; i++) {
+                    char c = value.charAt(i);
+                    switch (c) {
+                    case '&':
+                        out.append("&amp;");
+                        break;
+                    case '<':
+                        out.append("&lt;");
+                        break;
+                    case '>':
+                        out.append("&gt;");
+                        break;
+                    case '"':
+                        out.append("&quot;");
+                        break;
+                    case '\'':
+                        out.append("&#39;");
+                        break;
+                    default:
+                        out.append(c);
+                    }
+                }
+            }
+        },
+
+        /** Replaces line breaks with spaces, so values can't start header lines of their own. */
+        HEADER {
+
+            @Override
+            void append(StringBuilder out, CharSequence value) {
+
+                for (int i = 0, n = value.length(); i < n; i++) {
+                    char c = value.charAt(i);
+                    out.append(c == '\r' || c == '\n' ? ' ' : c);
+                }
+            }
+        };
+
+        abstract void append(StringBuilder out, CharSequence value);
+    }
+}
@@ -0,0 +1,240 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.Attachment.Disposition;
+import com.obadaro.jinah.mail.ContentSupplier;
+import com.obadaro.jinah.mail.FileAttachment;
+import com.obadaro.jinah.mail.HtmlMail;
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.StreamSupplier;
+import com.obadaro.jinah.mail.TextMail;
+
+/**
+ * MailCodec test class.
+ * 
+ * @author Roberto Badaro
+ */
+public class MailCodecTest {
+
+    private final MailCodec codec = new MailCodec();
+
+    @Test
+    public void tRoundTrip() throws Exception {
+
+        HtmlMail mail = new HtmlMail();
+        mail.setSender("sender@email.com");
+        mail.setFrom("From \u00c1gua <from@email.com>");
+        mail.addReplyTo("reply@email.com");
+        mail.addTo("to@email.com").addTo("to2@email.com").addCc("cc@email.com").addBcc("bcc@email.com");
+        mail.setSubject("Pedido n\u00ba 42 \u2713", "UTF-8");
+        mail.setText("<p>Ol\u00e1, mundo.</p>", "UTF-8");
+        mail.setHeaderValue("X-Mailer", "jinah");
+        mail.setHeaderValue("X-Custom-Tracking", "t-1");
+        mail.setIdempotencyKey("order-42");
+
+        byte[] data = new byte[300];
+        new Random(3).nextBytes(data);
+        mail.attach(new Attachment(data, "application/pdf", "order.pdf"));
+        Attachment inline = new Attachment("<svg/>", "image/svg+xml", "logo.svg");
+        inline.setDisposition(Disposition.inline);
+        mail.attach(inline);
+
+        byte[] encoded = codec.encode(mail);
+        assertSameMail(mail, codec.decode(encoded));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length + 2);
+        direct.put((byte) 7).put(encoded).put((byte) 7).flip();
+        direct.position(1);
+        Assert.assertTrue(MailCodec.isEncoded(direct));
+        Mail copy = codec.decode(direct);
+        assertSameMail(mail, copy);
+        Assert.assertEquals(encoded.length + 1, direct.position());
+
+        // Header names decoded as interned instances.
+        for (String name : copy.getHeader().keySet()) {
+            Assert.assertSame(name.intern(), name);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encode(copy, out);
+        Assert.assertArrayEquals(encoded, out.toByteArray());
+    }
+
+    @Test
+    public void tContents() throws Exception {
+
+        Mail mail = new Mail();
+        mail.setFrom("from@email.com");
+        mail.addTo("to@email.com");
+        mail.setSubject("Contents");
+        mail.setContent(Arrays.asList("a", "b"));
+        mail.setContentType("application/x-list");
+
+        Path file = Files.createTempFile("jinah-codec", ".bin");
+        try {
+            Files.write(file, new byte[] { 1, 2, 3 });
+            mail.attach(new FileAttachment(file, "application/octet-stream", "file.bin"));
+            mail.attach(new Attachment((ContentSupplier) () -> "deferred", "text/plain", "a.txt"));
+            mail.attach(new Attachment((StreamSupplier) () -> new ByteArrayInputStream(new byte[20000]), null,
+                    "b.bin"));
+
+            try {
+                codec.encode(mail);
+                Assert.fail();
+            } catch (MailException e) {
+                // Expected: serialized contents are off by default.
+            }
+            codec.setAllowSerialized(true);
+            byte[] encoded = codec.encode(mail);
+            try {
+                new MailCodec().decode(encoded);
+                Assert.fail();
+            } catch (MailException e) {
+                // Expected: nor read.
+            }
+
+            Mail copy = codec.decode(encoded);
+            Assert.assertEquals(Arrays.asList("a", "b"), copy.getContent());
+            Assert.assertEquals("application/x-list", copy.getContentType());
+            Assert.assertEquals(file, copy.getAttachments().get(0).getContent());
+            Assert.assertEquals("deferred", copy.getAttachments().get(1).getContent());
+            Assert.assertArrayEquals(new byte[20000], (byte[]) copy.getAttachments().get(2).getContent());
+
+            codec.setAttachmentsByReference(false);
+            copy = codec.decode(codec.encode(mail));
+            Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) copy.getAttachments().get(0).getContent());
+
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void tRetainedBuffer() throws Exception {
+
+        Mail mail = new Mail();
+        mail.setFrom("from@email.com");
+        mail.setContentType("application/octet-stream");
+        mail.setContent(new byte[100]);
+        codec.encode(mail);
+        Assert.assertNotNull(MailCodec.OUTPUT.get());
+
+        mail.setContent(new byte[200 * 1024]);
+        codec.encode(mail);
+        Assert.assertNull(MailCodec.OUTPUT.get());
+    }
+
+    @Test
+    public void tCompactAndMalformed() throws Exception {
+
+        TextMail mail = new TextMail();
+        mail.setFrom("from@email.com");
+        mail.addTo("to@email.com");
+        mail.setSubject("Hi");
+        mail.setText("Body.", "UTF-8");
+
+        byte[] encoded = codec.encode(mail);
+        // Magic, version and type, the from and to addresses, subject and text with their length, and a byte per
+        // empty field: 49 bytes.
+        Assert.assertEquals(49, encoded.length);
+
+        byte[] version = encoded.clone();
+        version[1] = 9;
+        assertMalformed(version);
+        assertMalformed(Arrays.copyOf(encoded, encoded.length - 3));
+        assertMalformed(new byte[] { 2, 1, 0 });
+
+        // Header and attachment counts past what the record holds.
+        byte max = (byte) 0xFF;
+        assertMalformed(new byte[] { MailCodec.MAGIC, 1, 1, max, max, max, max, 7, 0, 0, 0, 0 });
+        assertMalformed(new byte[] { MailCodec.MAGIC, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, max, max, max, max, 7,
+            0, 0 });
+        assertMalformed(new byte[] { MailCodec.MAGIC, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 3, 0, 0, 0, 0 });
+
+        // Fields refused by the mail setters: an idempotency key that is not atom text.
+        mail.setIdempotencyKey("key1");
+        byte[] key = codec.encode(mail);
+        key[key.length - 3] = ' ';
+        assertMalformed(key);
+
+        try {
+            codec.encode(new TextMail() {
+                // An unknown subclass.
+            });
+            Assert.fail();
+        } catch (MailException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Unsupported mail type"));
+        }
+    }
+
+    //
+    // Internal methods
+    //
+
+    private void assertMalformed(byte[] data) {
+
+        try {
+            codec.decode(data);
+            Assert.fail();
+        } catch (MailException e) {
+            // Expected.
+        }
+    }
+
+    private static void assertSameMail(HtmlMail mail, Mail decoded) {
+
+        HtmlMail copy = (HtmlMail) decoded;
+        Assert.assertEquals(mail.getSender(), copy.getSender());
+        Assert.assertEquals(mail.getFrom(), copy.getFrom());
+        Assert.assertEquals(mail.getReplyTo(), copy.getReplyTo());
+        Assert.assertEquals(mail.getTo(), copy.getTo());
+        Assert.assertEquals(mail.getCc(), copy.getCc());
+        Assert.assertEquals(mail.getBcc(), copy.getBcc());
+        Assert.assertEquals(mail.getSubject(), copy.getSubject());
+        Assert.assertEquals(mail.getLabelCharset(), copy.getLabelCharset());
+        Assert.assertEquals(mail.getText(), copy.getText());
+        Assert.assertEquals(mail.getCharset(), copy.getCharset());
+        Assert.assertEquals(mail.getHeader(), copy.getHeader());
+        Assert.assertEquals(mail.getIdempotencyKey(), copy.getIdempotencyKey());
+
+        Assert.assertEquals(2, copy.getAttachments().size());
+        Attachment pdf = copy.getAttachments().get(0);
+        Assert.assertArrayEquals((byte[]) mail.getAttachments().get(0).getContent(), (byte[]) pdf.getContent());
+        Assert.assertEquals("application/pdf", pdf.getContentType());
+        Assert.assertEquals("order.pdf", pdf.getLabel());
+        Assert.assertEquals(Disposition.attachment, pdf.getDisposition());
+        Assert.assertEquals(Disposition.inline, copy.getAttachments().get(1).getDisposition());
+        Assert.assertEquals("<svg/>", copy.getAttachments().get(1).getContent());
+    }
+}
@@ -0,0 +1,228 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.dedup;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.ContentSupplier;
+import com.obadaro.jinah.mail.IdentifiedContent;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.TextMail;
+import com.obadaro.jinah.mail.dedup.DedupStore.Claim;
+
+/**
+ * Dedup stores test class.
+ * 
+ * @author Roberto Badaro
+ */
+public class DedupStoreTest {
+
+    @Test
+    public void tClaim() throws Exception {
+
+        MemoryDedupStore store = new MemoryDedupStore();
+
+        Assert.assertEquals(Claim.CLAIMED, store.claim("a"));
+        // Claimed, not yet confirmed: a concurrent send of the same key must wait for its outcome.
+        Assert.assertEquals(Claim.IN_PROGRESS, store.claim("a"));
+        Assert.assertFalse(store.isConfirmed("a"));
+
+        store.release("a");
+        Assert.assertEquals(Claim.CLAIMED, store.claim("a"));
+        store.confirm("a");
+        Assert.assertTrue(store.isConfirmed("a"));
+        store.release("a");
+        Assert.assertEquals(Claim.CONFIRMED, store.claim("a"));
+    }
+
+    @Test
+    public void tExpiryAndEviction() throws Exception {
+
+        final long[] now = { 1000L };
+        MemoryDedupStore store = new MemoryDedupStore(64, 100) {
+
+            @Override
+            protected long now() {
+                return now[0];
+            }
+        };
+
+        store.claim("a");
+        store.confirm("a");
+        now[0] += 100;
+        Assert.assertFalse(store.isConfirmed("a"));
+        Assert.assertEquals(Claim.CLAIMED, store.claim("a"));
+
+        for (int i = 0; i < 1000; i++) {
+            store.claim("k" + i);
+        }
+        Assert.assertTrue(store.size() <= 64);
+        Assert.assertTrue(store.getEvictions() > 0);
+    }
+
+    @Test
+    public void tFileStore() throws Exception {
+
+        File file = File.createTempFile("dedup", ".log");
+        try {
+            FileDedupStore store = new FileDedupStore(file, 1000, 60000);
+            for (int i = 0; i < 40; i++) {
+                store.claim("k" + (i % 20));
+                store.confirm("k" + (i % 20));
+            }
+            store.claim("pending");
+            store.close();
+
+            store = new FileDedupStore(file, 1000, 60000);
+            Assert.assertTrue(store.isConfirmed("k19"));
+            Assert.assertEquals(Claim.CONFIRMED, store.claim("k19"));
+            Assert.assertEquals(Claim.CLAIMED, store.claim("pending"));
+            // Compacted on open: a line per key.
+            Assert.assertEquals(20, Files.readAllLines(file.toPath()).size());
+            store.close();
+
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void tFileStoreConcurrent() throws Exception {
+
+        File file = File.createTempFile("dedup", ".log");
+        try {
+            // Confirmed by several threads, compacted by the writer.
+            final FileDedupStore store = new FileDedupStore(file, 50, 60000);
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int base = t * 1000;
+                threads[t] = new Thread() {
+
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 500; i++) {
+                            store.confirm("k" + (base + i));
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            store.close();
+
+            Assert.assertTrue(Files.readAllLines(file.toPath()).size() < 2000);
+            FileDedupStore reopened = new FileDedupStore(file, 50, 60000);
+            // Kept per stripe: a few more than maxKeys.
+            Assert.assertTrue(reopened.size() > 0 && reopened.size() <= 100);
+            reopened.close();
+
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void tDerive() throws Exception {
+
+        TextMail a = mail();
+        TextMail b = mail();
+        Assert.assertEquals(32, IdempotencyKeys.derive(a).length());
+        Assert.assertEquals(IdempotencyKeys.derive(a), IdempotencyKeys.derive(b));
+
+        b.addCc("cc@email.com");
+        Assert.assertNotEquals(IdempotencyKeys.derive(a), IdempotencyKeys.derive(b));
+
+        a.attach(new Attachment(new byte[] { 1 }, "application/octet-stream", "a.bin"));
+        b = mail();
+        b.attach(new Attachment(new byte[] { 2 }, "application/octet-stream", "a.bin"));
+        Assert.assertNotEquals(IdempotencyKeys.derive(a), IdempotencyKeys.derive(b));
+    }
+
+    @Test
+    public void tDeriveDeferred() throws Exception {
+
+        TextMail a = mail();
+        Invoice invoice = new Invoice("invoice-42-1");
+        a.attach(new Attachment(invoice, "application/pdf", "invoice.pdf"));
+        TextMail b = mail();
+        b.attach(new Attachment(new Invoice("invoice-42-1"), "application/pdf", "invoice.pdf"));
+
+        Assert.assertEquals(IdempotencyKeys.derive(a), IdempotencyKeys.derive(b));
+        Assert.assertEquals(0, invoice.calls);
+
+        b = mail();
+        b.attach(new Attachment(new Invoice("invoice-42-2"), "application/pdf", "invoice.pdf"));
+        Assert.assertNotEquals(IdempotencyKeys.derive(a), IdempotencyKeys.derive(b));
+
+        b = mail();
+        b.setDeferredText(() -> "Deferred text.", "UTF-8");
+        try {
+            IdempotencyKeys.derive(b);
+            Assert.fail();
+        } catch (MailException e) {
+            // Expected: no id to derive the key from.
+        }
+    }
+
+    //
+    // Internal methods
+    //
+
+    private static TextMail mail() {
+
+        TextMail mail = new TextMail();
+        mail.setFrom("from@email.com");
+        mail.addTo("to@email.com");
+        mail.setSubject("Test");
+        mail.setText("Mail content body.");
+        return mail;
+    }
+
+    // Inner classes
+
+    private static class Invoice implements ContentSupplier, IdentifiedContent {
+
+        final String id;
+        int calls;
+
+        Invoice(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public Object get() {
+            calls++;
+            return id.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public String getContentId() {
+            return id;
+        }
+    }
+}
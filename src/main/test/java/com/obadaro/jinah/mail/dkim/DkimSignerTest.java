@@ -0,0 +1,490 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.ContentSupplier;
+import com.obadaro.jinah.mail.HtmlMail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.dkim.DkimSigner.Canonicalization;
+import com.obadaro.jinah.mail.send.CountingMimeMessage;
+import com.obadaro.jinah.mail.send.MailMessages;
+import com.obadaro.jinah.mail.send.MimeWriter;
+import com.obadaro.jinah.mail.send.MimeWriter.StreamedMessage;
+import com.obadaro.jinah.mail.send.SendResult;
+import com.obadaro.jinah.mail.send.SessionCourier;
+import com.obadaro.jinah.mail.send.SmtpSink;
+
+/**
+ * DkimSigner test class. Signatures are checked offline against test keys by a verifier written apart from the
+ * signer, straight from RFC 6376.
+ * 
+ * @author Roberto Badaro
+ */
+public class DkimSignerTest {
+
+    private static KeyPair rsa;
+
+    private final Session session = Session.getInstance(System.getProperties());
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        rsa = generator.generateKeyPair();
+    }
+
+    @Test
+    public void tSignAndVerify() throws Exception {
+
+        DkimSigner signer = new DkimSigner("email.com", "s1", rsa.getPrivate());
+        CountingMimeMessage msg = (CountingMimeMessage) signer.factory(MailMessages.factory()).createMessage(
+            session, mail());
+        msg.setSentDate(new Date());
+
+        byte[] signed = write(msg);
+        Assert.assertTrue(verify(signed, rsa.getPublic()));
+
+        String header = msg.getHeader(DkimSigner.HEADER, null);
+        Assert.assertTrue(header.contains("a=rsa-sha256; c=relaxed/relaxed; d=email.com; s=s1;"));
+        Assert.assertTrue(header.contains("h=from:reply-to:subject:date:message-id:to:cc:mime-version:content-type;"));
+
+        // A relay rewriting whitespace does not break a relaxed signature; one changing the body does.
+        String text = new String(signed, StandardCharsets.ISO_8859_1);
+        Assert.assertTrue(verify(text.replace("\r\nSubject: ", "\r\nSubject:   ").getBytes(
+            StandardCharsets.ISO_8859_1), rsa.getPublic()));
+        Assert.assertFalse(verify(text.replace("Ol=C3=A1", "Ola").getBytes(StandardCharsets.ISO_8859_1),
+            rsa.getPublic()));
+        Assert.assertFalse(verify(text.replace("to@email.com", "other@email.com").getBytes(
+            StandardCharsets.ISO_8859_1), rsa.getPublic()));
+    }
+
+    @Test
+    public void tSimpleAndEd25519() throws Exception {
+
+        DkimSigner signer = new DkimSigner("email.com", "s1", rsa.getPrivate());
+        signer.setHeaderCanonicalization(Canonicalization.SIMPLE);
+        signer.setBodyCanonicalization(Canonicalization.SIMPLE);
+        signer.setTimestamp(false);
+
+        CountingMimeMessage msg = (CountingMimeMessage) MailMessages.createMessage(session, mail());
+        msg.setSigner(signer);
+        byte[] signed = write(msg);
+        Assert.assertTrue(verify(signed, rsa.getPublic()));
+        Assert.assertFalse(verify(new String(signed, StandardCharsets.ISO_8859_1).replace("\r\nSubject: ",
+            "\r\nSubject:  ").getBytes(StandardCharsets.ISO_8859_1), rsa.getPublic()));
+
+        KeyPair ed;
+        try {
+            ed = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+        } catch (Exception e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        msg.setSigner(new DkimSigner("email.com", "s2", ed.getPrivate()));
+        signed = write(msg);
+        Assert.assertTrue(msg.getHeader(DkimSigner.HEADER, null).contains("a=ed25519-sha256;"));
+        Assert.assertTrue(verify(signed, ed.getPublic()));
+    }
+
+    @Test
+    public void tBodyHashReused() throws Exception {
+
+        final AtomicInteger hashes = new AtomicInteger();
+        final AtomicInteger signatures = new AtomicInteger();
+        DkimSigner signer = new DkimSigner("email.com", "s1", rsa.getPrivate()) {
+
+            @Override
+            protected String bodyHash(CountingMimeMessage msg) throws java.io.IOException,
+                    javax.mail.MessagingException {
+
+                hashes.incrementAndGet();
+                return super.bodyHash(msg);
+            }
+
+            @Override
+            protected String sign(byte[] data) throws javax.mail.MessagingException {
+
+                signatures.incrementAndGet();
+                return super.sign(data);
+            }
+        };
+        CountingMimeMessage msg = (CountingMimeMessage) signer.factory(MailMessages.factory()).createMessage(
+            session, mail());
+
+        // Other envelopes, e.g. split recipients or retries: neither hashed nor signed again.
+        byte[] first = write(msg);
+        String header = msg.getHeader(DkimSigner.HEADER, null);
+        msg.writeTo(new ByteArrayOutputStream(), new String[] { "Bcc" });
+        Assert.assertArrayEquals(first, write(msg));
+        Assert.assertEquals(header, msg.getHeader(DkimSigner.HEADER, null));
+        Assert.assertEquals(1, hashes.get());
+        Assert.assertEquals(1, signatures.get());
+
+        // Signed headers changed: signed again, same body hash.
+        msg.setSubject("Other subject");
+        Assert.assertTrue(verify(write(msg), rsa.getPublic()));
+        Assert.assertNotEquals(header, msg.getHeader(DkimSigner.HEADER, null));
+        Assert.assertEquals(bodyHash(header), bodyHash(msg.getHeader(DkimSigner.HEADER, null)));
+        Assert.assertEquals(1, hashes.get());
+        Assert.assertEquals(2, signatures.get());
+
+        // Nested part re-encoded, e.g. by a transport converting it to 8bit, or replaced: hashed again.
+        part(msg, "text/html").setHeader("Content-Transfer-Encoding", "8bit");
+        Assert.assertTrue(verify(write(msg), rsa.getPublic()));
+        Assert.assertNotEquals(header, msg.getHeader(DkimSigner.HEADER, null));
+        Assert.assertEquals(2, hashes.get());
+
+        part(msg, "text/csv").setText("c,d\r\n3,4\r\n");
+        msg.saveChanges();
+        Assert.assertTrue(verify(write(msg), rsa.getPublic()));
+        Assert.assertEquals(3, hashes.get());
+
+        // Content replaced: hashed again.
+        msg.setText("Other content.");
+        msg.saveChanges();
+        Assert.assertTrue(verify(write(msg), rsa.getPublic()));
+        Assert.assertEquals(4, hashes.get());
+    }
+
+    @Test
+    public void tStreamedMessage() throws Exception {
+
+        // Not deterministic: the body hashed must be the one written.
+        final AtomicInteger calls = new AtomicInteger();
+        HtmlMail mail = mail();
+        mail.attach(new Attachment((ContentSupplier) () -> {
+            return ("x,y\r\n" + calls.incrementAndGet() + ",z\r\n").getBytes(StandardCharsets.US_ASCII);
+        }, "text/csv", "deferred.csv"));
+
+        DkimSigner signer = new DkimSigner("email.com", "s1", rsa.getPrivate());
+        StreamedMessage msg = (StreamedMessage) signer.factory(MimeWriter.factory()).createMessage(session, mail);
+
+        // Built once per write, for the body hash and the write; deferred contents are hashed again by each write.
+        byte[] first = write(msg);
+        Assert.assertTrue(verify(first, rsa.getPublic()));
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(first.length, msg.getWrittenBytes());
+
+        // Written to a channel: signed and counted as well.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = msg.writeTo(Channels.newChannel(out), null);
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(out.size(), written);
+        Assert.assertEquals(written, msg.getWrittenBytes());
+        Assert.assertTrue(verify(out.toByteArray(), rsa.getPublic()));
+    }
+
+    @Test
+    public void tKnownAnswers() throws Exception {
+
+        // RFC 6376, 3.4.3 and 3.4.4: the empty body.
+        Assert.assertEquals("47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=", hash("", true));
+        Assert.assertEquals("frcCV1k9oG9oKj3dpUqdJg1PxRT2RSN/XKdLCPjaYaY=", hash("", false));
+
+        // Trailing whitespace and empty lines, with CRLF and bare LF line breaks.
+        String body = "Hi  there \t\r\n \r\n\r\nBye.\t\r\n\r\n \r\n\r\n";
+        Assert.assertEquals("K1veXXwP/cXHzs234aU4ALC/+LwXBSkLaMOeP+ZEwXA=", hash(body, true));
+        Assert.assertEquals("xxjuvF0fmn1jLbSzpo/Iaf9NIwuG4WztWcG7VoRlX1I=", hash(body, false));
+        Assert.assertEquals(hash(body, true), hash(body.replace("\r\n", "\n"), true));
+        Assert.assertEquals(hash(body, false), hash(body.replace("\r\n", "\n"), false));
+
+        // RFC 8463, Appendix A: the body hash, then the signature with the example key.
+        String message = "From: Joe SixPack <joe@football.example.com>\r\n" +
+                "To: Suzie Q <suzie@shopping.example.net>\r\n" + "Subject: Is dinner ready?\r\n" +
+                "Date: Fri, 11 Jul 2003 21:00:37 -0700 (PDT)\r\n" +
+                "Message-ID: <20030712040037.46341.5F8J@football.example.com>\r\n" + "\r\n" + "Hi.\r\n" +
+                "\r\n" + "We lost the game.  Are you hungry yet?\r\n" + "\r\n" + "Joe.\r\n";
+        BodyHasher hasher = new BodyHasher(MessageDigest.getInstance("SHA-256"), true, true);
+        hasher.write(message.getBytes(StandardCharsets.US_ASCII));
+        Assert.assertEquals("2jUSOH9NhtVGCQWNr9BrIAPreKQjO6Sn7XIkfJVOzv8=", Base64.getEncoder().encodeToString(
+            hasher.finish()));
+
+        PrivateKey key;
+        try {
+            // PKCS#8 of the private key nWGxne/9WmC6hEr0kuwsxERJxWl7MmkZcDusAxyuf2A=
+            key = KeyFactory.getInstance("Ed25519").generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder()
+                    .decode("MC4CAQAwBQYDK2VwBCIEIJ1hsZ3v/VpguoRK9JLsLMREScVpezJpGXA7rAMcrn9g")));
+        } catch (Exception e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        DkimSigner signer = new DkimSigner("football.example.com", "brisbane", key);
+        StringBuilder data = new StringBuilder();
+        for (String line : message.substring(0, message.indexOf("\r\n\r\n")).split("\r\n")) {
+            signer.appendCanonical(data, line);
+            data.append("\r\n");
+        }
+        signer.appendCanonical(data, "DKIM-Signature: v=1; a=ed25519-sha256; c=relaxed/relaxed;\r\n" +
+                " d=football.example.com; i=@football.example.com;\r\n" +
+                " q=dns/txt; s=brisbane; t=1528637909; h=from : to :\r\n" +
+                " subject : date : message-id : from : subject : date;\r\n" +
+                " bh=2jUSOH9NhtVGCQWNr9BrIAPreKQjO6Sn7XIkfJVOzv8=;\r\n" + " b=");
+        Assert.assertEquals("/gCrinpcQOoIfuHNQIbq4pgh9kyIK3AQUdt9OdqQehSwhEIug4D11BusFa3bT3FY5OsU7ZbnKELq+eXdp1Q1Dw==",
+            signer.sign(data.toString().getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    public void tSend() throws Exception {
+
+        SmtpSink sink = new SmtpSink();
+        try {
+            sink.setKeepMessages(true);
+            SessionCourier courier = new SessionCourier(sink.createSession());
+            courier.setMessageFactory(new DkimSigner("email.com", "s1", rsa.getPrivate()).factory(MailMessages
+                    .factory()));
+
+            SendResult result = courier.send(mail());
+            Assert.assertTrue(result.toString(), result.isSent());
+            Assert.assertTrue(verify(sink.getMessages().get(0), rsa.getPublic()));
+        } finally {
+            sink.close();
+        }
+    }
+
+    @Test
+    public void tKeys() throws Exception {
+
+        final byte[] pkcs8 = rsa.getPrivate().getEncoded();
+        final AtomicInteger loads = new AtomicInteger();
+        DkimKeys keys = new DkimKeys(new DkimKeys.Loader() {
+
+            @Override
+            public String load(String domain, String selector) {
+
+                loads.incrementAndGet();
+                if (!"s1".equals(selector)) {
+                    return null;
+                }
+                // PKCS#1, as opendkim-genkey writes: the PKCS#8 key without its 26 bytes of algorithm header.
+                return pem("RSA PRIVATE KEY", Arrays.copyOfRange(pkcs8, 26, pkcs8.length));
+            }
+        });
+
+        PrivateKey key = keys.getKey("Email.com", "s1");
+        Assert.assertArrayEquals(pkcs8, key.getEncoded());
+        Assert.assertSame(key, keys.getKey("email.com", "s1"));
+        Assert.assertSame(key, new DkimSigner("email.com", "s1", keys).key);
+        Assert.assertEquals(1, loads.get());
+
+        keys.invalidate("email.com", "s1");
+        Assert.assertNotSame(key, keys.getKey("email.com", "s1"));
+        Assert.assertEquals(2, loads.get());
+
+        Assert.assertArrayEquals(pkcs8, DkimKeys.parsePrivateKey(pem("PRIVATE KEY", pkcs8)).getEncoded());
+        try {
+            keys.getKey("email.com", "s2");
+            Assert.fail();
+        } catch (MailException e) {
+            Assert.assertTrue(e.getMessage().contains("s2._domainkey.email.com"));
+        }
+    }
+
+    //
+    // Internal methods
+    //
+
+    private static HtmlMail mail() {
+
+        HtmlMail mail = new HtmlMail();
+        mail.setFrom("from@email.com");
+        mail.addReplyTo("reply@email.com");
+        mail.addTo("to@email.com").addCc("cc@email.com").addBcc("bcc@email.com");
+        mail.setSubject("Pedido n\u00ba 42", "UTF-8");
+        mail.setText("<p>Ol\u00e1,   mundo. \t</p>\n\n\n", "UTF-8");
+        mail.attach(new Attachment("a,b\r\n1,2\r\n".getBytes(StandardCharsets.US_ASCII), "text/csv", "order.csv"));
+        return mail;
+    }
+
+    private static byte[] write(CountingMimeMessage msg) throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.writeTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return The body hash of a body without header.
+     */
+    private static String hash(String body, boolean relaxed) throws Exception {
+
+        BodyHasher hasher = new BodyHasher(MessageDigest.getInstance("SHA-256"), relaxed, false);
+        hasher.write(body.getBytes(StandardCharsets.US_ASCII));
+        return Base64.getEncoder().encodeToString(hasher.finish());
+    }
+
+    /**
+     * @return The first part of the type, nested in the message.
+     */
+    private static MimeBodyPart part(Part parent, String type) throws Exception {
+
+        if (parent instanceof MimeBodyPart && parent.isMimeType(type)) {
+            return (MimeBodyPart) parent;
+        }
+        if (parent.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) parent.getContent();
+            for (int i = 0; i < multipart.getCount(); i++) {
+                MimeBodyPart part = part(multipart.getBodyPart(i), type);
+                if (part != null) {
+                    return part;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String pem(String type, byte[] der) {
+
+        return "-----BEGIN " + type + "-----\n" + Base64.getMimeEncoder().encodeToString(der) + "\n-----END " + type +
+                "-----\n";
+    }
+
+    private static String bodyHash(String header) {
+        return tags(header).get("bh");
+    }
+
+    private static Map<String, String> tags(String value) {
+
+        Map<String, String> tags = new HashMap<String, String>();
+        for (String tag : value.split(";")) {
+            int eq = tag.indexOf('=');
+            if (eq > 0) {
+                tags.put(tag.substring(0, eq).trim(), tag.substring(eq + 1).replaceAll("[ \t\r\n]", ""));
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Verifies the DKIM-Signature of a message as received.
+     */
+    private static boolean verify(byte[] message, PublicKey key) throws Exception {
+
+        String text = new String(message, StandardCharsets.ISO_8859_1).replaceAll("\r?\n", "\r\n");
+        int split = text.indexOf("\r\n\r\n");
+        String body = text.substring(split + 4);
+
+        // Header fields, unfolded later.
+        List<String> fields = new ArrayList<String>();
+        for (String line : text.substring(0, split + 2).split("\r\n")) {
+            if (line.startsWith(" ") || line.startsWith("\t")) {
+                fields.set(fields.size() - 1, fields.get(fields.size() - 1) + "\r\n" + line);
+            } else {
+                fields.add(line);
+            }
+        }
+
+        String signatureField = null;
+        for (String field : fields) {
+            if (field.toLowerCase(Locale.ROOT).startsWith("dkim-signature:")) {
+                signatureField = field;
+            }
+        }
+        Map<String, String> tags = tags(signatureField.substring(signatureField.indexOf(':') + 1));
+        String[] c = tags.get("c").split("/");
+        boolean relaxedHeader = c[0].equals("relaxed");
+
+        // Body
+        if (c[1].equals("relaxed")) {
+            StringBuilder sb = new StringBuilder();
+            for (String line : body.split("\r\n", -1)) {
+                sb.append(line.replaceAll("[ \t]+", " ").replaceAll(" $", "")).append("\r\n");
+            }
+            body = sb.toString().replaceAll("(\r\n)+$", "");
+            body = (body.isEmpty() ? "" : body + "\r\n");
+        } else {
+            body = body.replaceAll("(\r\n)+$", "") + "\r\n";
+        }
+        byte[] bh = MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.ISO_8859_1));
+        if (!Base64.getEncoder().encodeToString(bh).equals(tags.get("bh"))) {
+            return false;
+        }
+
+        // Headers, several instances from the last one up.
+        StringBuilder data = new StringBuilder();
+        Map<String, Integer> used = new HashMap<String, Integer>();
+        for (String name : tags.get("h").split(":")) {
+            int skip = (used.containsKey(name) ? used.get(name) : 0);
+            used.put(name, skip + 1);
+            for (int i = fields.size() - 1; i >= 0; i--) {
+                String field = fields.get(i);
+                if (field.toLowerCase(Locale.ROOT).startsWith(name + ":") && skip-- == 0) {
+                    data.append(canonical(field, relaxedHeader)).append("\r\n");
+                    break;
+                }
+            }
+        }
+        data.append(canonical(signatureField.replaceAll("([;:]\\s*b=)[^;]*$", "$1"), relaxedHeader));
+
+        byte[] signed = data.toString().getBytes(StandardCharsets.ISO_8859_1);
+        Signature signature;
+        if (tags.get("a").equals("ed25519-sha256")) {
+            signature = Signature.getInstance("Ed25519");
+            signed = MessageDigest.getInstance("SHA-256").digest(signed);
+        } else {
+            signature = Signature.getInstance("SHA256withRSA");
+        }
+        signature.initVerify(key);
+        signature.update(signed);
+        return signature.verify(Base64.getDecoder().decode(tags.get("b")));
+    }
+
+    private static String canonical(String field, boolean relaxed) {
+
+        if (!relaxed) {
+            return field;
+        }
+        int colon = field.indexOf(':');
+        return field.substring(0, colon).trim().toLowerCase(Locale.ROOT) + ":" +
+                field.substring(colon + 1).replace("\r\n", "").replaceAll("[ \t]+", " ").trim();
+    }
+}
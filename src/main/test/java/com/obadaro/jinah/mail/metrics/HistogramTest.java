@@ -0,0 +1,65 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Histogram test class.
+ * 
+ * @author Roberto Badaro
+ */
+public class HistogramTest {
+
+    @Test
+    public void tBuckets() {
+
+        for (long v : new long[] { 0, 1, 127, 128, 129, 255, 256, 1000, 123456789L, Long.MAX_VALUE }) {
+            int index = Histogram.indexOf(v);
+            Assert.assertTrue(v + "", Histogram.highestValueOf(index) >= v);
+            Assert.assertTrue(v + "", index == 0 || Histogram.highestValueOf(index - 1) < v);
+        }
+    }
+
+    @Test
+    public void tPercentiles() {
+
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 100000; v++) {
+            h.record(v * 1000);
+        }
+
+        Assert.assertEquals(100000, h.getCount());
+        Assert.assertEquals(1000, h.getMin());
+        Assert.assertEquals(100000000L, h.getMax());
+        assertNear(50000000L, h.getValueAtPercentile(50));
+        assertNear(99000000L, h.getValueAtPercentile(99));
+        assertNear(99900000L, h.getValueAtPercentile(99.9));
+        Assert.assertEquals(h.getMax(), h.getValueAtPercentile(100));
+
+        h.reset();
+        Assert.assertEquals(0, h.getValueAtPercentile(99));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        Assert.assertTrue(expected + " ~ " + actual, Math.abs(actual - expected) <= expected / 64);
+    }
+}
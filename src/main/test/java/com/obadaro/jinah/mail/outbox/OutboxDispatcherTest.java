@@ -0,0 +1,279 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.outbox;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.TextMail;
+import com.obadaro.jinah.mail.send.Courier;
+import com.obadaro.jinah.mail.send.SendResult;
+
+/**
+ * OutboxDispatcher test class.
+ * 
+ * @author Roberto Badaro
+ */
+public class OutboxDispatcherTest {
+
+    private File dir;
+    private Outbox outbox;
+    private final List<SendResult> outcomes = new CopyOnWriteArrayList<SendResult>();
+    private final List<Long> attempts = new CopyOnWriteArrayList<Long>();
+
+    @Before
+    public void prepare() throws Exception {
+
+        dir = Files.createTempDirectory("outbox").toFile();
+        outbox = new Outbox(dir, 4096, 4 * 4096);
+    }
+
+    @After
+    public void cleanup() {
+
+        outbox.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void tTransient() throws Exception {
+
+        // Two 451 replies, then sent: each retry due after the delay.
+        OutboxDispatcher dispatcher = dispatcher(new Courier() {
+
+            @Override
+            public SendResult send(Mail mail) {
+
+                attempts.add(System.nanoTime());
+                if (attempts.size() <= 2) {
+                    return new SendResult(mail, SendResult.Status.FAILED, null, 451, null, null, 0L);
+                }
+                return SendResult.sent(mail, 250, 0L);
+            }
+        });
+        outbox.enqueue(mail());
+
+        awaitOutcomes(1);
+        dispatcher.stop(1000);
+
+        Assert.assertEquals(3, attempts.size());
+        Assert.assertEquals(SendResult.Status.SENT, outcomes.get(0).getStatus());
+        for (int i = 1; i < attempts.size(); i++) {
+            Assert.assertTrue(attempts.get(i) - attempts.get(i - 1) >= TimeUnit.MILLISECONDS.toNanos(150));
+        }
+        Assert.assertEquals(0L, outbox.getBacklogBytes());
+    }
+
+    @Test
+    public void tMaxDelayed() throws Exception {
+
+        // Every mail fails once: only one requeued mail waits in memory, the others wait in the outbox.
+        final List<Integer> delayedCounts = new CopyOnWriteArrayList<Integer>();
+        final OutboxDispatcher[] dispatcher = new OutboxDispatcher[1];
+        dispatcher[0] = dispatcher(new Courier() {
+
+            @Override
+            public SendResult send(Mail mail) {
+
+                delayedCounts.add(dispatcher[0].getDelayedCount());
+                attempts.add(System.nanoTime());
+                if (attempts.size() <= 4) {
+                    return new SendResult(mail, SendResult.Status.FAILED, null, 451, null, null, 0L);
+                }
+                return SendResult.sent(mail, 250, 0L);
+            }
+        }, 1);
+        for (int i = 0; i < 4; i++) {
+            outbox.enqueue(mail());
+        }
+
+        awaitOutcomes(4);
+        dispatcher[0].stop(1000);
+
+        Assert.assertEquals(8, attempts.size());
+        for (int count : delayedCounts) {
+            Assert.assertTrue(count <= 1);
+        }
+        Assert.assertEquals(0L, outbox.getBacklogBytes());
+    }
+
+    @Test
+    public void tFullOutbox() throws Exception {
+
+        outbox.setMaxBlockMillis(10);
+        int enqueued = 0;
+        try {
+            while (true) {
+                TextMail mail = mail();
+                mail.setSubject("Test " + enqueued);
+                outbox.enqueue(mail);
+                enqueued++;
+            }
+        } catch (MailException e) {
+            // Full.
+        }
+
+        // Every mail fails once while the outbox is full: the ones that can't be requeued wait in memory.
+        final Set<String> failed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        OutboxDispatcher dispatcher = dispatcher(new Courier() {
+
+            @Override
+            public SendResult send(Mail mail) {
+
+                attempts.add(System.nanoTime());
+                if (failed.add(mail.getSubject())) {
+                    return new SendResult(mail, SendResult.Status.FAILED, null, 451, null, null, 0L);
+                }
+                return SendResult.sent(mail, 250, 0L);
+            }
+        });
+
+        awaitOutcomes(enqueued);
+        dispatcher.stop(1000);
+
+        Assert.assertEquals(2 * enqueued, attempts.size());
+        for (SendResult outcome : outcomes) {
+            Assert.assertEquals(SendResult.Status.SENT, outcome.getStatus());
+        }
+        Assert.assertEquals(0L, outbox.getBacklogBytes());
+    }
+
+    @Test
+    public void tPermanent() throws Exception {
+
+        OutboxDispatcher dispatcher = dispatcher(new Courier() {
+
+            @Override
+            public SendResult send(Mail mail) {
+
+                attempts.add(System.nanoTime());
+                return new SendResult(mail, SendResult.Status.FAILED, null, 550, null, null, 0L);
+            }
+        });
+        outbox.enqueue(mail());
+
+        awaitOutcomes(1);
+        dispatcher.stop(1000);
+
+        Assert.assertEquals(1, attempts.size());
+        Assert.assertEquals(550, outcomes.get(0).getReplyCode());
+        Assert.assertEquals(0L, outbox.getBacklogBytes());
+    }
+
+    @Test
+    public void tThrowingCourier() throws Exception {
+
+        OutboxDispatcher dispatcher = dispatcher(new Courier() {
+
+            @Override
+            public SendResult send(Mail mail) {
+                throw new IllegalStateException("broken courier");
+            }
+        });
+        // A throwing listener does not keep the entries in flight either.
+        final Consumer<? super SendResult> listener = dispatcher.getListener();
+        dispatcher.setListener(new Consumer<SendResult>() {
+
+            @Override
+            public void accept(SendResult result) {
+                listener.accept(result);
+                throw new IllegalStateException("broken listener");
+            }
+        });
+        outbox.enqueue(mail());
+        outbox.enqueue(mail());
+
+        awaitOutcomes(2);
+        dispatcher.stop(1000);
+
+        Assert.assertEquals(SendResult.Status.FAILED, outcomes.get(0).getStatus());
+        Assert.assertTrue(outcomes.get(0).getError() instanceof IllegalStateException);
+        Assert.assertEquals(0L, outbox.getBacklogBytes());
+    }
+
+    //
+    // Internal methods
+    //
+
+    private OutboxDispatcher dispatcher(Courier courier) {
+        return dispatcher(courier, OutboxDispatcher.DEFAULT_MAX_DELAYED);
+    }
+
+    private OutboxDispatcher dispatcher(Courier courier, int maxDelayed) {
+
+        OutboxDispatcher dispatcher = new OutboxDispatcher(outbox, courier, 2) {
+
+            @Override
+            protected long retryDelayMillis(OutboxEntry entry) {
+                return 200L;
+            }
+        };
+        dispatcher.setMaxDelayed(maxDelayed);
+        dispatcher.setListener(new Consumer<SendResult>() {
+
+            @Override
+            public void accept(SendResult result) {
+                outcomes.add(result);
+            }
+        });
+        dispatcher.start();
+        return dispatcher;
+    }
+
+    private void awaitOutcomes(int count) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (outcomes.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Entries are acknowledged before the listener is called.
+        Assert.assertEquals(count, outcomes.size());
+    }
+
+    private static TextMail mail() {
+
+        TextMail mail = new TextMail();
+        mail.setFrom("from@email.com");
+        mail.addTo("to@email.com");
+        mail.setSubject("Test");
+        mail.setText("Mail content body.");
+        return mail;
+    }
+}
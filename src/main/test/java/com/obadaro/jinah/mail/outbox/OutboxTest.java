@@ -0,0 +1,217 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.outbox;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.HtmlMail;
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.TextMail;
+import com.obadaro.jinah.mail.codec.MailCodec;
+
+/**
+ * Outbox test class.
+ * 
+ * @author Roberto Badaro
+ */
+public class OutboxTest {
+
+    private File dir;
+
+    @Before
+    public void prepare() throws Exception {
+        dir = Files.createTempDirectory("outbox").toFile();
+    }
+
+    @After
+    public void cleanup() {
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void tRoundTrip() throws Exception {
+
+        Outbox outbox = new Outbox(dir, 4096, 4 * 4096);
+
+        HtmlMail mail = new HtmlMail();
+        mail.setFrom("from@email.com");
+        mail.addTo("to@email.com").addTo("to2@email.com").addBcc("bcc@email.com");
+        mail.setSubject("Test", "ISO-8859-1");
+        mail.setText("<p>Mail content body.</p>", "UTF-8");
+        mail.setHeaderValue("X-Campaign", "42");
+        mail.setIdempotencyKey("campaign-42.1");
+        mail.attach(new Attachment(new byte[] { 1, 2, 3 }, "application/octet-stream", "data.bin"));
+
+        outbox.enqueue(mail);
+
+        OutboxEntry entry = outbox.poll();
+        Assert.assertNotNull(entry);
+        Assert.assertNull(outbox.poll());
+
+        HtmlMail copy = (HtmlMail) entry.getMail();
+        Assert.assertEquals(mail.getFrom(), copy.getFrom());
+        Assert.assertEquals(mail.getTo(), copy.getTo());
+        Assert.assertEquals(mail.getBcc(), copy.getBcc());
+        Assert.assertEquals(mail.getSubject(), copy.getSubject());
+        Assert.assertEquals(mail.getLabelCharset(), copy.getLabelCharset());
+        Assert.assertEquals(mail.getText(), copy.getText());
+        Assert.assertEquals(mail.getCharset(), copy.getCharset());
+        Assert.assertEquals("42", copy.getHeaderValue("X-Campaign"));
+        Assert.assertEquals("campaign-42.1", copy.getIdempotencyKey());
+        Assert.assertEquals(1, copy.getAttachments().size());
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) copy.getAttachments().get(0).getContent());
+
+        outbox.close();
+    }
+
+    @Test
+    public void tReplay() throws Exception {
+
+        Outbox outbox = new Outbox(dir, 4096, 4 * 4096);
+        for (int i = 0; i < 5; i++) {
+            outbox.enqueue(mail(i));
+        }
+
+        OutboxEntry first = outbox.poll();
+        OutboxEntry second = outbox.poll();
+        outbox.ack(second);
+        outbox.close();
+
+        // Nothing before the oldest entry not acknowledged was acknowledged: all five are replayed.
+        outbox = new Outbox(dir, 4096, 4 * 4096);
+        Assert.assertEquals(first.getOffset(), outbox.poll().getOffset());
+        outbox.close();
+
+        outbox = new Outbox(dir, 4096, 4 * 4096);
+        int count = 0;
+        OutboxEntry entry;
+        while ((entry = outbox.poll()) != null) {
+            outbox.ack(entry);
+            count++;
+        }
+        Assert.assertEquals(5, count);
+        outbox.close();
+
+        outbox = new Outbox(dir, 4096, 4 * 4096);
+        Assert.assertNull(outbox.poll());
+        Assert.assertEquals(0L, outbox.getBacklogBytes());
+        outbox.close();
+    }
+
+    @Test
+    public void tCompactAndBackpressure() throws Exception {
+
+        Outbox outbox = new Outbox(dir, 4096, 2 * 4096);
+        outbox.setMaxBlockMillis(10);
+
+        int enqueued = 0;
+        try {
+            while (true) {
+                outbox.enqueue(mail(enqueued));
+                enqueued++;
+            }
+        } catch (MailException e) {
+            // Full.
+        }
+        Assert.assertTrue(enqueued > 2);
+        Assert.assertEquals(2 * 4096, outbox.getDiskUsage());
+
+        // A requeue counts against the cap too; the entry is left in flight.
+        OutboxEntry first = outbox.poll();
+        try {
+            outbox.requeue(first, System.currentTimeMillis() + 60000L);
+            Assert.fail();
+        } catch (MailException e) {
+            // Full.
+        }
+        Assert.assertEquals(2 * 4096, outbox.getDiskUsage());
+        outbox.ack(first);
+
+        // Acknowledging the first segment frees space.
+        OutboxEntry entry;
+        int taken = 1;
+        while ((entry = outbox.take(10, TimeUnit.MILLISECONDS)) != null) {
+            outbox.ack(entry);
+            taken++;
+        }
+        Assert.assertEquals(enqueued, taken);
+        Assert.assertEquals(4096, outbox.getDiskUsage());
+
+        outbox.enqueue(mail(enqueued));
+        entry = outbox.poll();
+        outbox.requeue(entry, System.currentTimeMillis() + 60000L);
+        entry = outbox.poll();
+        Assert.assertEquals(1, entry.getDeliveries());
+        Assert.assertTrue(entry.getNotBefore() > System.currentTimeMillis());
+        outbox.close();
+    }
+
+    @Test
+    public void tUnreadableRecord() throws Exception {
+
+        Outbox outbox = new Outbox(dir, 4096, 4 * 4096);
+        outbox.setCodec(new MailCodec() {
+
+            @Override
+            public Mail decode(ByteBuffer buffer) throws MailException {
+                throw new IllegalStateException("broken codec");
+            }
+        });
+        outbox.enqueue(mail(0));
+
+        try {
+            outbox.poll();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        // Acknowledged all the same: it does not hold back the acknowledged position.
+        Assert.assertEquals(0L, outbox.getBacklogBytes());
+        Assert.assertNull(outbox.poll());
+        outbox.close();
+    }
+
+    private TextMail mail(int i) {
+
+        TextMail mail = new TextMail();
+        mail.setFrom("from@email.com");
+        mail.addTo("to" + i + "@email.com");
+        mail.setSubject("Test " + i);
+        mail.setText("Mail content body, with enough text to take some room in the segment: " + i);
+        return mail;
+    }
+}
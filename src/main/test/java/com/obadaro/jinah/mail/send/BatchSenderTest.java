@@ -0,0 +1,185 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.mail.send.TestMails.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.mail.Session;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.TextMail;
+
+/**
+ * BatchSender test class.
+ * 
+ * @author Roberto Badaro
+ */
+public class BatchSenderTest {
+
+    private Session session;
+
+    @Before
+    public void prepare() throws Exception {
+        session = CountingTransport.createSession();
+    }
+
+    @Test
+    public void tBatch() throws Exception {
+
+        BatchSender sender = new BatchSender(session, 3);
+        BatchResult result = sender.send(mail(), mail(), mail(), mail(), mail(), mail(), mail());
+        sender.close();
+
+        Assert.assertTrue(result.isAllSent());
+        Assert.assertEquals(7, result.size());
+        Assert.assertEquals(7, CountingTransport.SENT.get());
+        Assert.assertTrue(CountingTransport.CONNECTS.get() <= 3);
+    }
+
+    @Test
+    public void tStreamedBatch() throws Exception {
+
+        final AtomicInteger produced = new AtomicInteger();
+        final AtomicInteger reported = new AtomicInteger();
+
+        BatchSender sender = new BatchSender(session, 2);
+        BatchResult result = sender.send(new Supplier<Mail>() {
+
+            @Override
+            public Mail get() {
+                return (produced.incrementAndGet() <= 20 ? mail() : null);
+            }
+        }, 0L, new Consumer<SendResult>() {
+
+            @Override
+            public void accept(SendResult r) {
+                reported.incrementAndGet();
+            }
+        });
+        sender.close();
+
+        Assert.assertEquals(20, result.getSentCount());
+        Assert.assertTrue(result.getResults().isEmpty());
+        Assert.assertEquals(20, reported.get());
+        Assert.assertEquals(20, CountingTransport.SENT.get());
+    }
+
+    @Test
+    public void tStreamedBatchStopped() throws Exception {
+
+        final AtomicInteger produced = new AtomicInteger();
+        final AtomicInteger reported = new AtomicInteger();
+
+        // On the deadline, no mail is pulled from the supplier and lost.
+        BatchSender sender = new BatchSender(session, 1);
+        BatchResult result = sender.send(new Supplier<Mail>() {
+
+            @Override
+            public Mail get() {
+                produced.incrementAndGet();
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return mail();
+            }
+        }, 100L, new Consumer<SendResult>() {
+
+            @Override
+            public void accept(SendResult r) {
+                reported.incrementAndGet();
+            }
+        });
+
+        Assert.assertTrue(result.isDeadlineReached());
+        Assert.assertFalse(result.isAllSent());
+        Assert.assertEquals(produced.get(), reported.get());
+        Assert.assertEquals(produced.get(), result.getSentCount());
+
+        // An exception thrown by the source stops the batch and is reported.
+        final RuntimeException error = new IllegalStateException("source");
+        reported.set(0);
+        result = sender.send(new Supplier<Mail>() {
+
+            int count;
+
+            @Override
+            public Mail get() {
+                if (++count > 3) {
+                    throw error;
+                }
+                return mail();
+            }
+        }, 0L, new Consumer<SendResult>() {
+
+            @Override
+            public void accept(SendResult r) {
+                reported.incrementAndGet();
+            }
+        });
+        sender.close();
+
+        Assert.assertSame(error, result.getSourceError());
+        Assert.assertFalse(result.isDeadlineReached());
+        Assert.assertFalse(result.isAllSent());
+        Assert.assertEquals(3, result.getSentCount());
+        Assert.assertEquals(3, reported.get());
+    }
+
+    @Test
+    public void tBatchResults() throws Exception {
+
+        TextMail rejected = mail();
+        rejected.addTo("reject@email.com");
+
+        BatchResult result = Postman.sendBatch(session, mail(), rejected, mail());
+
+        Assert.assertEquals(3, result.size());
+        Assert.assertEquals(2, result.getSentCount());
+        Assert.assertEquals(1, result.getFailedCount());
+        Assert.assertSame(rejected, result.getUnsentMails().get(0));
+
+        SendResult failed = result.getResults().get(1);
+        Assert.assertEquals(550, failed.getReplyCode());
+        Assert.assertEquals(1, failed.getInvalidRecipients().length);
+        Assert.assertEquals("reject@email.com", failed.getInvalidRecipients()[0].toString());
+        Assert.assertEquals(1, failed.getUnsentRecipients().length);
+
+        // Partial sends are not to be sent again as a whole.
+        TextMail partial = mail();
+        List<SendResult> results = new ArrayList<SendResult>(result.getResults());
+        results.add(new SendResult(partial, SendResult.Status.PARTIAL, null, 550, null, null, 0L));
+        result = new BatchResult(results, 0L);
+        Assert.assertEquals(2, result.getUnsent().size());
+        Assert.assertEquals(1, result.getUnsentMails().size());
+        Assert.assertSame(rejected, result.getUnsentMails().get(0));
+    }
+}
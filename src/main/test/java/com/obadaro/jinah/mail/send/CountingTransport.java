@@ -0,0 +1,114 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Provider;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Transport for tests, counting connections and messages without any network. Mails to {@code drop@} addresses
+ * drop the connection, {@code reject@} addresses are refused with a 550, and while {@link #BUSY} is positive
+ * messages fail with a 451.
+ * 
+ * @author Roberto Badaro
+ */
+public class CountingTransport extends Transport {
+
+    static final AtomicInteger CONNECTS = new AtomicInteger();
+    static final AtomicInteger SENT = new AtomicInteger();
+    static final AtomicInteger BUSY = new AtomicInteger();
+
+    public CountingTransport(Session session, URLName urlname) {
+        super(session, urlname);
+    }
+
+    /**
+     * Resets the counters and creates a session sending through this transport.
+     */
+    public static Session createSession() {
+
+        Properties cfg = new Properties();
+        cfg.setProperty("mail.smtp.host", "relay.test");
+        Session session = Session.getInstance(cfg);
+        try {
+            session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", CountingTransport.class.getName(),
+                "jinah", "1.0"));
+        } catch (NoSuchProviderException e) {
+            throw new IllegalStateException(e);
+        }
+
+        CONNECTS.set(0);
+        SENT.set(0);
+        BUSY.set(0);
+        return session;
+    }
+
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password) {
+
+        CONNECTS.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void sendMessage(Message msg, Address[] addresses) throws MessagingException {
+
+        if (BUSY.getAndDecrement() > 0) {
+            throw new SMTPSendFailedException("DATA", 451, "451 4.3.0 Try again later", null, null,
+                addresses, null);
+        }
+
+        if (addresses[0].toString().startsWith("drop@")) {
+            close();
+            throw new MessagingException("Connection reset", new SocketException("Connection reset"));
+        }
+
+        List<Address> valid = new ArrayList<Address>();
+        List<Address> invalid = new ArrayList<Address>();
+        for (Address address : addresses) {
+            (address.toString().startsWith("reject@") ? invalid : valid).add(address);
+        }
+
+        if (!invalid.isEmpty()) {
+            InternetAddress rejected = (InternetAddress) invalid.get(0);
+            throw new SendFailedException("Invalid Addresses", new SMTPAddressFailedException(rejected,
+                "RCPT TO:<" + rejected.getAddress() + ">", 550, "550 5.1.1 User unknown"), null,
+                valid.toArray(new Address[valid.size()]), invalid.toArray(new Address[invalid.size()]));
+        }
+        SENT.incrementAndGet();
+    }
+}
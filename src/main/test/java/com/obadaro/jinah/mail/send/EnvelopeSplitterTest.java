@@ -0,0 +1,115 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.mail.send.TestMails.mail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Session;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.Mail;
+
+/**
+ * EnvelopeSplitter test class, sending to an {@link SmtpSink}.
+ * 
+ * @author Roberto Badaro
+ */
+public class EnvelopeSplitterTest {
+
+    private SmtpSink sink;
+
+    @Before
+    public void prepare() throws Exception {
+        sink = new SmtpSink();
+    }
+
+    @After
+    public void dispose() throws Exception {
+        sink.close();
+    }
+
+    @Test
+    public void tEnvelopes() throws Exception {
+
+        Properties cfg = new Properties();
+        cfg.setProperty("mail.smtp.maxrecipients", "3");
+        Session session = sink.createSession(cfg);
+        sink.setKeepMessages(true);
+
+        Mail mail = mail("a1@x.com");
+        mail.addTo("b1@y.com").addCc("a2@X.com").addBcc("b2@y.com, a3@x.com, b3@y.com, a4@x.com");
+
+        List<Address[]> envelopes = Postman.splitter(session).split(MailMessages.createMessage(session, mail)
+                .getAllRecipients());
+        Assert.assertEquals(3, envelopes.size());
+        Assert.assertEquals("a1@x.com", envelopes.get(0)[0].toString());
+        Assert.assertEquals("b1@y.com", envelopes.get(1)[1].toString());
+
+        SendResult result = new SessionCourier(session).send(mail);
+
+        Assert.assertEquals(SendResult.Status.SENT, result.getStatus());
+        Assert.assertEquals(3, sink.getMessageCount());
+        Assert.assertEquals(7, sink.getRecipientCount());
+
+        List<byte[]> messages = sink.getMessages();
+        Assert.assertArrayEquals(messages.get(0), messages.get(2));
+        Assert.assertFalse(new String(messages.get(0), StandardCharsets.ISO_8859_1).contains("Bcc:"));
+
+        sink.failNext("MAIL", "451 4.3.0 Try again later");
+        result = new SessionCourier(session).send(mail);
+
+        Assert.assertEquals(SendResult.Status.PARTIAL, result.getStatus());
+        Assert.assertEquals(451, result.getReplyCode());
+        Assert.assertEquals(3, result.getUnsentRecipients().length);
+        Assert.assertEquals(5, sink.getMessageCount());
+    }
+
+    @Test
+    public void tEnvelopePerDomain() throws Exception {
+
+        Properties cfg = new Properties();
+        cfg.setProperty("mail.smtp.envelopeperdomain", "true");
+        Session session = sink.createSession(cfg);
+
+        Mail mail = mail("a1@x.com");
+        mail.addTo("b1@y.com").addCc("a2@X.com");
+
+        EnvelopeSplitter splitter = TransportSettings.of(session).getEnvelopeSplitter();
+        Assert.assertTrue(splitter.isOneDomainPerEnvelope());
+        List<Address[]> envelopes = splitter.split(MailMessages.createMessage(session, mail).getAllRecipients());
+        Assert.assertEquals(2, envelopes.size());
+        Assert.assertEquals(2, envelopes.get(0).length);
+
+        SendResult result = new SessionCourier(session).send(mail);
+
+        Assert.assertEquals(SendResult.Status.SENT, result.getStatus());
+        Assert.assertEquals(2, sink.getMessageCount());
+        Assert.assertEquals(3, sink.getRecipientCount());
+    }
+}
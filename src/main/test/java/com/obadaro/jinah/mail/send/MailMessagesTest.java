@@ -19,19 +19,29 @@
  */
 package com.obadaro.jinah.mail.send;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Properties;
+import java.util.Random;
 
+import javax.activation.DataHandler;
 import javax.mail.Address;
 import javax.mail.Message.RecipientType;
 import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.FileAttachment;
 import com.obadaro.jinah.mail.TextMail;
 
 /**
@@ -111,4 +121,228 @@ public class MailMessagesTest {
         Assert.assertTrue(mmp.getBodyPart(0).getContent().equals(body));
         Assert.assertTrue(mmp.getBodyPart(1).getContent().equals(body2));
     }
+
+    @Test
+    public void tCachedAttachment() throws Exception {
+
+        MimePartCache cache = new MimePartCache();
+        String body2 = "<data><section>section</section></data>";
+        MimeMessage[] msgs = new MimeMessage[2];
+
+        for (int i = 0; i < msgs.length; i++) {
+            TextMail mail = new TextMail();
+            mail.setFrom("from@email.com");
+            mail.addTo("to" + i + "@email.com");
+            mail.setSubject("Test");
+            mail.setText("Mail content body.");
+            mail.attach(new Attachment(body2, "text/xml", "data.xml"));
+
+            msgs[i] = MailMessages.factory(cache).createMessage(session, mail);
+            msgs[i].saveChanges();
+        }
+
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getEntryCount());
+
+        MimeMultipart mmp = (MimeMultipart) msgs[1].getContent();
+        Assert.assertEquals(body2, mmp.getBodyPart(1).getContent());
+        Assert.assertEquals("data.xml", mmp.getBodyPart(1).getFileName());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msgs[1].writeTo(out);
+
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+        mmp = (MimeMultipart) parsed.getContent();
+        Assert.assertEquals(2, mmp.getCount());
+        Assert.assertEquals(body2, mmp.getBodyPart(1).getContent());
+    }
+
+    @Test
+    public void tCachedBinaryAttachment() throws Exception {
+
+        MimePartCache cache = new MimePartCache();
+        byte[] data = new byte[] { 0, 1, 2, (byte) 0xff };
+
+        MimeBodyPart part = cache.getBodyPart(new Attachment(data, Attachment.OCTET_STREAM, "data.bin"));
+        cache.getBodyPart(new Attachment(data.clone(), Attachment.OCTET_STREAM, "data.bin"));
+        Assert.assertTrue(part instanceof PreEncodedBodyPart);
+        Assert.assertEquals(1, cache.getHits());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        part.writeTo(out);
+        MimeBodyPart parsed = new MimeBodyPart(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals("data.bin", parsed.getFileName());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        parsed.getDataHandler().writeTo(content);
+        Assert.assertArrayEquals(data, content.toByteArray());
+
+        // Same output as an uncached part, name parameter included.
+        Assert.assertArrayEquals(write(MailMessages.createMimeBodyPart(new Attachment(data,
+            Attachment.OCTET_STREAM, "data.bin"))), out.toByteArray());
+
+        // A replaced content keeps it.
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(new byte[] { 3 }, Attachment.OCTET_STREAM)));
+        write(part);
+        Assert.assertEquals("application/octet-stream; name=data.bin", part.getContentType());
+    }
+
+    @Test
+    public void tFileAttachment() throws Exception {
+
+        byte[] data = new byte[300 * 1024];
+        new Random(7).nextBytes(data);
+
+        Path file = Files.createTempFile("jinah-mail", ".bin");
+        try {
+            Files.write(file, data);
+
+            TextMail mail = new TextMail();
+            mail.setFrom("from@email.com");
+            mail.addTo("to@email.com");
+            mail.setSubject("Test");
+            mail.setText("Mail content body.");
+            mail.attach(new FileAttachment(file, Attachment.OCTET_STREAM, "data.bin"));
+
+            MimeMessage msg = MailMessages.createMessage(session, mail);
+            msg.saveChanges();
+
+            MimeBodyPart part = (MimeBodyPart) ((MimeMultipart) msg.getContent()).getBodyPart(1);
+            Assert.assertEquals("base64", part.getEncoding());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            msg.writeTo(out);
+
+            MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+            part = (MimeBodyPart) ((MimeMultipart) parsed.getContent()).getBodyPart(1);
+            Assert.assertEquals("data.bin", part.getFileName());
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            part.getDataHandler().writeTo(content);
+            Assert.assertArrayEquals(data, content.toByteArray());
+
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void tAddresses() throws Exception {
+
+        TextMail mail = new TextMail();
+        mail.setFrom("from@email.com");
+        mail.setSubject("Test");
+        mail.setText("Mail content body.");
+
+        mail.addTo("To <to@email.com>, to2@email.com").addTo("TO@email.com");
+        mail.addBcc(new InternetAddress("bcc@email.com"), new InternetAddress("bcc@email.com"));
+
+        Assert.assertEquals(2, mail.getToAddresses().length);
+        Assert.assertEquals("To <to@email.com>, to2@email.com", mail.getTo());
+        Assert.assertEquals(1, mail.getBccAddresses().length);
+        Assert.assertNull(mail.getCc());
+
+        try {
+            mail.addCc("not an address@");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertNull(mail.getCcAddresses());
+        }
+
+        MimeMessage msg = MailMessages.createBaseMessage(session, mail);
+        Assert.assertEquals(2, msg.getRecipients(RecipientType.TO).length);
+        Assert.assertEquals(1, msg.getRecipients(RecipientType.BCC).length);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void tLegacyAddressFields() throws Exception {
+
+        // A subclass still appending to the old fields.
+        TextMail mail = new TextMail() {
+            {
+                _to = append(_to, "legacy@email.com");
+                _cc = append(_cc, "cc@email.com");
+            }
+        };
+        mail.addTo("to@email.com").addTo("LEGACY@email.com");
+
+        Assert.assertEquals("to@email.com, LEGACY@email.com", mail.getTo());
+        Assert.assertEquals(1, mail.getCcAddresses().length);
+
+        mail.setCc(null);
+        Assert.assertNull(mail.getCc());
+    }
+
+    @Test
+    public void tPrototype() throws Exception {
+
+        TextMail template = new TextMail();
+        template.setFrom("from@email.com");
+        template.setSubject("Campaign");
+        template.setText("Default body.");
+        template.setHeaderValue("X-Campaign", "c1");
+        template.attach(new Attachment("<data/>", "text/xml", "data.xml"));
+
+        MailPrototype prototype = MailPrototype.freeze(session, template);
+        Assert.assertTrue(prototype.getFrozenSize() > 0);
+
+        TextMail variant = new TextMail();
+        variant.addTo("to@email.com").addBcc("bcc@email.com");
+        variant.setText("Dear To, \u00e9t\u00e9.", "UTF-8");
+
+        MimeMessage msg = prototype.createMessage(session, variant);
+        msg.saveChanges();
+        String messageId = msg.getMessageID();
+        Assert.assertEquals(2, msg.getAllRecipients().length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.writeTo(out, new String[] { "Bcc" });
+        Assert.assertEquals(out.size(), ((CountingMimeMessage) msg).getWrittenBytes());
+
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals("from@email.com", parsed.getFrom()[0].toString());
+        Assert.assertEquals("to@email.com", parsed.getRecipients(RecipientType.TO)[0].toString());
+        Assert.assertNull(parsed.getRecipients(RecipientType.BCC));
+        Assert.assertEquals("Campaign", parsed.getSubject());
+        Assert.assertEquals("c1", parsed.getHeader("X-Campaign", null));
+        Assert.assertEquals(messageId, parsed.getMessageID());
+
+        MimeMultipart mmp = (MimeMultipart) parsed.getContent();
+        Assert.assertEquals(2, mmp.getCount());
+        Assert.assertEquals(variant.getText(), mmp.getBodyPart(0).getContent());
+        Assert.assertEquals("<data/>", mmp.getBodyPart(1).getContent());
+        Assert.assertEquals("data.xml", mmp.getBodyPart(1).getFileName());
+
+        // Without body nor subject, the prototype's; a new message id each time.
+        TextMail other = new TextMail();
+        other.addTo("other@email.com");
+        other.setSubject("Other");
+
+        MimeMessage msg2 = prototype.createMessage(session, other);
+        msg2.saveChanges();
+        Assert.assertNotEquals(messageId, msg2.getMessageID());
+        Assert.assertEquals("Other", msg2.getSubject());
+        Assert.assertEquals("Default body.", ((MimeMultipart) msg2.getContent()).getBodyPart(0).getContent());
+    }
+
+    //
+    // Internal methods
+    //
+
+    /**
+     * Writes a part as in a saved message, with its headers updated.
+     */
+    private byte[] write(MimeBodyPart part) throws Exception {
+
+        MimeMultipart mp = new MimeMultipart();
+        mp.addBodyPart(part);
+        MimeMessage msg = new MimeMessage(session);
+        msg.setContent(mp);
+        msg.saveChanges();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        part.writeTo(out);
+        return out.toByteArray();
+    }
 }
@@ -0,0 +1,269 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.Attachment.Disposition;
+import com.obadaro.jinah.mail.ContentSupplier;
+import com.obadaro.jinah.mail.FileAttachment;
+import com.obadaro.jinah.mail.HtmlMail;
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.StreamSupplier;
+import com.obadaro.jinah.mail.TextMail;
+
+/**
+ * MimeWriter test class: the written bytes are compared to those of {@link MailMessages}.
+ * 
+ * @author Roberto Badaro
+ */
+public class MimeWriterTest {
+
+    private Session session;
+
+    @Before
+    public void prepare() {
+        session = Session.getInstance(new Properties());
+    }
+
+    @Test
+    public void tText() throws Exception {
+
+        assertSameBytes(text("Mail content body.", null));
+        assertSameBytes(text("Line one\r\nline two\nline three\r\n", "UTF-8"));
+        assertSameBytes(text("Accents: \u00e9t\u00e9, \u00e7a = ok.  \r\nTrailing space \r\nend", "UTF-8"));
+        assertSameBytes(text("\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8\u3002", "UTF-8"));
+        assertSameBytes(text(repeat("Long line without breaks. ", 60) + "end.", null));
+        assertSameBytes(text(repeat("Soft breaks = encoded chars, \u00e0 \u00e8 ", 30) + "end.", "ISO-8859-1"));
+
+        HtmlMail html = new HtmlMail();
+        html.setFrom("from@email.com");
+        html.addTo("to@email.com");
+        html.setSubject("Html");
+        html.setText("<html><body><p>Caf\u00e9</p></body></html>", "UTF-8");
+        assertSameBytes(html);
+    }
+
+    @Test
+    public void tQuotedPrintableTrailingSpace() throws Exception {
+
+        // javax.mail drops the last space of quoted-printable content: it is only written on close.
+        MimeMessage msg = MimeWriter.createMessage(session, text("Caf\u00e9 au lait ", "UTF-8"), null);
+        msg.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.writeTo(out);
+
+        String written = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+        Assert.assertTrue(written.contains("Caf=C3=A9 au lait=20\r\n"));
+    }
+
+    @Test
+    public void tAttachments() throws Exception {
+
+        Random random = new Random(11);
+
+        TextMail mail = text("Mail content body.", null);
+        mail.setHeaderValue("X-Campaign", "c1");
+        mail.attach(new Attachment("<data><section>section</section></data>", "text/xml", "data.xml"));
+        mail.attach(new Attachment("<p>inline</p>", "text/html; charset=UTF-8", null));
+        for (int size = 0; size < 6; size++) {
+            byte[] data = new byte[100 + size];
+            random.nextBytes(data);
+            mail.attach(new Attachment(data, Attachment.OCTET_STREAM, "data" + size + ".bin"));
+        }
+        mail.attach(new Attachment(repeat("a,b,c,d\r\n", 200).getBytes(StandardCharsets.US_ASCII), "text/csv",
+                "data.csv"));
+        mail.attach(new Attachment(repeat("abcd", 300).getBytes(StandardCharsets.US_ASCII), null, "long.txt"));
+
+        Attachment inline = new Attachment(new byte[] { 1, 2, 3 }, "image/png",
+                "a rather long file name, with spaces and (specials) to be quoted and folded.png");
+        inline.setDisposition(Disposition.inline);
+        mail.attach(inline);
+
+        assertSameBytes(mail);
+    }
+
+    @Test
+    public void tFileAttachment() throws Exception {
+
+        byte[] data = new byte[100 * 1024 + 1];
+        new Random(5).nextBytes(data);
+
+        Path file = Files.createTempFile("jinah-mail", ".bin");
+        try {
+            Files.write(file, data);
+
+            TextMail mail = text("Mail content body.", null);
+            mail.attach(new FileAttachment(file, Attachment.OCTET_STREAM, "data.bin"));
+            mail.attach(new FileAttachment(file, "text/plain", "data.txt"));
+
+            assertSameBytes(mail);
+
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void tDeferredContent() throws Exception {
+
+        final byte[] data = new byte[20 * 1024];
+        new Random(7).nextBytes(data);
+        final AtomicInteger calls = new AtomicInteger();
+
+        TextMail mail = text(null, "UTF-8");
+        mail.setDeferredText(() -> {
+            calls.incrementAndGet();
+            return "Rendered body, caf\u00e9.";
+        }, "UTF-8");
+        mail.attach(new Attachment((ContentSupplier) () -> {
+            calls.incrementAndGet();
+            return data;
+        }, Attachment.OCTET_STREAM, "data.bin"));
+        mail.attach(new Attachment((StreamSupplier) () -> {
+            calls.incrementAndGet();
+            return new ByteArrayInputStream(data);
+        }, "application/pdf", "data.pdf"));
+
+        // Resolved when written, not kept by the mail.
+        MimeMessage msg = MimeWriter.createMessage(session, mail, null);
+        Assert.assertEquals(0, calls.get());
+        normalized(msg);
+        Assert.assertEquals(3, calls.get());
+        Assert.assertTrue(mail.isDeferred());
+
+        assertSameBytes(mail);
+
+        TextMail eager = text("Rendered body, caf\u00e9.", "UTF-8");
+        eager.attach(new Attachment(data, Attachment.OCTET_STREAM, "data.bin"));
+        eager.attach(new Attachment(data, "application/pdf", "data.pdf"));
+        Assert.assertEquals(normalized(MailMessages.createMessage(session, eager)).replaceAll("Date: [^\r]*\r\n",
+            ""), normalized(MailMessages.createMessage(session, mail)).replaceAll("Date: [^\r]*\r\n", ""));
+    }
+
+    @Test
+    public void tChannelAndCache() throws Exception {
+
+        MimePartCache cache = new MimePartCache();
+        TextMail mail = text("Mail content body.", null);
+        mail.attach(new Attachment(new byte[] { 0, 1, 2 }, Attachment.OCTET_STREAM, "data.bin"));
+
+        MimeMessage msg = MimeWriter.factory(cache).createMessage(session, mail);
+        Assert.assertTrue(msg instanceof MimeWriter.StreamedMessage);
+        msg.saveChanges();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        msg.writeTo(stream);
+
+        ByteArrayOutputStream channel = new ByteArrayOutputStream();
+        long written = ((MimeWriter.StreamedMessage) msg).writeTo(Channels.newChannel(channel), null);
+
+        Assert.assertArrayEquals(stream.toByteArray(), channel.toByteArray());
+        Assert.assertEquals(stream.size(), written);
+        Assert.assertEquals(stream.size(), ((CountingMimeMessage) msg).getWrittenBytes());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void tSend() throws Exception {
+
+        SmtpSink sink = new SmtpSink();
+        try {
+            sink.setKeepMessages(true);
+            SessionCourier courier = new SessionCourier(sink.createSession());
+            courier.setMessageFactory(MimeWriter.factory());
+
+            Mail mail = text("Mail content body.", null).addBcc("bcc@email.com");
+            Assert.assertEquals(SendResult.Status.SENT, courier.send(mail).getStatus());
+
+            String sent = new String(sink.getMessages().get(0), StandardCharsets.ISO_8859_1);
+            Assert.assertEquals(2, sink.getRecipientCount());
+            Assert.assertTrue(sent.contains("Mail content body."));
+            Assert.assertFalse(sent.contains("bcc@email.com"));
+
+        } finally {
+            sink.close();
+        }
+    }
+
+    //
+    // Internal methods
+    //
+
+    private void assertSameBytes(Mail mail) throws Exception {
+
+        Assert.assertTrue(MimeWriter.supports(mail));
+
+        MimeMessage expected = MailMessages.createMessage(session, mail);
+        MimeMessage actual = MimeWriter.createMessage(session, mail, null);
+        Assert.assertTrue(actual instanceof MimeWriter.StreamedMessage);
+
+        Assert.assertEquals(normalized(expected), normalized(actual));
+    }
+
+    private static String normalized(MimeMessage msg) throws Exception {
+
+        msg.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.writeTo(out);
+
+        String boundary = new ContentType(msg.getContentType()).getParameter("boundary");
+        String text = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+
+        return text.replace(boundary, "BOUNDARY").replaceAll("Message-ID: [^\r]*\r\n", "");
+    }
+
+    private static TextMail text(String text, String charset) {
+
+        TextMail mail = new TextMail();
+        mail.setFrom("From Name <from@email.com>");
+        mail.addTo("to@email.com");
+        mail.setSubject("Test \u00e7");
+        mail.setText(text, charset);
+        return mail;
+    }
+
+    private static String repeat(String s, int times) {
+
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,194 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.net.InetAddress;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.TextMail;
+
+/**
+ * PipeliningTransport test class, sending to an {@link SmtpSink}.
+ * 
+ * @author Roberto Badaro
+ */
+public class PipeliningTransportTest {
+
+    private SmtpSink sink;
+
+    @Before
+    public void prepare() throws Exception {
+        sink = new SmtpSink();
+    }
+
+    @After
+    public void dispose() throws Exception {
+        sink.close();
+    }
+
+    @Test
+    public void tRoundTrips() throws Exception {
+
+        sink.setLatencyMillis(40);
+        sink.setKeepMessages(true);
+
+        Session plain = sink.createSession();
+        Session pipelined = session(true);
+        MimeMessage msg = MailMessages.factory().createMessage(plain, mail(5));
+
+        long plainNanos = send(Postman.getConnectedTransport(plain), msg);
+        Transport transport = Postman.getConnectedTransport(pipelined);
+        long pipelinedNanos = send(transport, msg);
+
+        // MAIL, RCPT x5, DATA and the message against a single round-trip.
+        Assert.assertTrue(((PipeliningTransport) transport).isChunking());
+        Assert.assertTrue(pipelinedNanos * 3 < plainNanos);
+        Assert.assertEquals(2, sink.getMessageCount());
+        Assert.assertArrayEquals(sink.getMessages().get(0), sink.getMessages().get(1));
+    }
+
+    @Test
+    public void tRejectedRecipient() throws Exception {
+
+        sink.failNext("RCPT", "550 5.1.1 No such user");
+        TransportPool pool = new TransportPool(1);
+        SessionCourier courier = new SessionCourier(session(false), pool);
+
+        SendResult result = courier.send(mail(3));
+        Assert.assertEquals(SendResult.Status.FAILED, result.getStatus());
+        Assert.assertEquals(550, result.getReplyCode());
+        Assert.assertEquals(0, sink.getMessageCount());
+
+        // Same connection, transaction reset.
+        Assert.assertEquals(SendResult.Status.SENT, courier.send(mail(3)).getStatus());
+        Assert.assertEquals(1, sink.getConnectionCount());
+
+        courier = new SessionCourier(session(true));
+        sink.failNext("RCPT", "550 5.1.1 No such user");
+        result = courier.send(mail(3));
+        Assert.assertEquals(SendResult.Status.PARTIAL, result.getStatus());
+        Assert.assertEquals(1, result.getInvalidRecipients().length);
+        Assert.assertEquals(5, sink.getRecipientCount());
+
+        pool.close();
+    }
+
+    @Test
+    public void tFallback() throws Exception {
+
+        sink.setKeepMessages(true);
+        sink.setReply("EHLO", "250 sink.localhost");
+
+        Session session = session(false);
+        TextMail mail = mail(1);
+        mail.setText("First line.\n.\n..dotted\nEnd.", "UTF-8");
+        MimeMessage msg = MailMessages.factory().createMessage(session, mail);
+
+        Transport transport = Postman.getConnectedTransport(session);
+        send(transport, msg);
+        Assert.assertFalse(((PipeliningTransport) transport).isPipelining());
+        Assert.assertFalse(((PipeliningTransport) transport).isChunking());
+
+        sink.setReply("EHLO", null);
+        send(Postman.getConnectedTransport(sink.createSession()), msg);
+
+        Assert.assertEquals(2, sink.getMessageCount());
+        Assert.assertArrayEquals(sink.getMessages().get(1), sink.getMessages().get(0));
+    }
+
+    @Test
+    public void tAuth() throws Exception {
+
+        sink.setCredentials("user", "secret");
+        Transport transport = Postman.getConnectedTransport(session(false));
+        Assert.assertTrue(transport.isConnected());
+        transport.close();
+
+        sink.setCredentials("user", "other");
+        Session session = session(false);
+        sink.setCredentials("user", "secret");
+        try {
+            Postman.getConnectedTransport(session);
+            Assert.fail();
+        } catch (MailException e) {
+            Assert.assertEquals(1, sink.getRejectedCount());
+        }
+    }
+
+    @Test
+    public void tHeloName() throws Exception {
+
+        InetAddress v4 = InetAddress.getByAddress(new byte[] { (byte) 192, 0, 2, 1 });
+        InetAddress v6 = InetAddress.getByName("2001:db8::1");
+
+        Assert.assertEquals("web01", PipeliningTransport.heloName("web01", v4));
+        Assert.assertEquals("mx.example.com", PipeliningTransport.heloName("mx.example.com", v6));
+        Assert.assertEquals("[192.0.2.1]", PipeliningTransport.heloName("192.0.2.1", v4));
+        Assert.assertEquals("[IPv6:2001:db8:0:0:0:0:0:1]", PipeliningTransport.heloName(v6.getHostAddress(), v6));
+    }
+
+    //
+    // Internal methods
+    //
+
+    private Session session(boolean sendPartial) {
+
+        Properties cfg = new Properties();
+        cfg.setProperty("mail.smtp.pipelining", "true");
+        cfg.setProperty("mail.smtp.sendpartial", String.valueOf(sendPartial));
+        return sink.createSession(cfg);
+    }
+
+    /**
+     * @return Nanoseconds taken by the send, connection apart.
+     */
+    private static long send(Transport transport, MimeMessage msg) throws Exception {
+
+        try {
+            long start = System.nanoTime();
+            transport.sendMessage(msg, msg.getAllRecipients());
+            return System.nanoTime() - start;
+        } finally {
+            transport.close();
+        }
+    }
+
+    private static TextMail mail(int recipients) {
+
+        TextMail mail = new TextMail();
+        mail.setFrom("from@email.com");
+        for (int i = 0; i < recipients; i++) {
+            mail.addTo("to" + i + "@email.com");
+        }
+        mail.setSubject("Test");
+        mail.setText("Mail content body.", "UTF-8");
+        return mail;
+    }
+}
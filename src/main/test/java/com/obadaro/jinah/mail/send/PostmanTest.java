@@ -0,0 +1,295 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.mail.send.TestMails.mail;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Session;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.MailException;
+
+/**
+ * Postman test class, sending to an {@link SmtpSink}.
+ * 
+ * @author Roberto Badaro
+ */
+public class PostmanTest {
+
+    private SmtpSink sink;
+
+    @Before
+    public void prepare() throws Exception {
+        sink = new SmtpSink();
+    }
+
+    @After
+    public void dispose() throws Exception {
+        sink.close();
+    }
+
+    @Test
+    public void tSendMail() throws Exception {
+
+        sink.setKeepMessages(true);
+        Postman.sendMail(sink.createSession(), mail("to@email.com"));
+
+        Assert.assertEquals(1, sink.getMessageCount());
+        Assert.assertEquals(1, sink.getConnectionCount());
+        Assert.assertTrue(new String(sink.getMessages().get(0), StandardCharsets.ISO_8859_1)
+                .contains("Subject: Test"));
+    }
+
+    @Test
+    public void tAuth() throws Exception {
+
+        sink.setCredentials("user", "secret");
+        Postman.sendMail(sink.createSession(), mail("to@email.com"));
+        Assert.assertEquals(1, sink.getMessageCount());
+
+        sink.setCredentials("user", "other");
+        Session session = sink.createSession();
+        sink.setCredentials("user", "secret");
+        try {
+            Postman.sendMail(session, mail("to@email.com"));
+            Assert.fail();
+        } catch (MailException e) {
+            Assert.assertEquals(1, sink.getMessageCount());
+        }
+    }
+
+    @Test
+    public void tBatchWithRejections() throws Exception {
+
+        sink.failNext("RCPT", "550 5.1.1 No such user");
+        sink.failNext("DATA", "554 5.7.1 Rejected");
+
+        BatchResult result = Postman.sendBatch(sink.createSession(), mail("a@email.com"), mail("b@email.com"),
+            mail("c@email.com"), mail("d@email.com"));
+
+        Assert.assertEquals(2, result.getSentCount());
+        Assert.assertEquals(2, result.getFailedCount());
+        Assert.assertEquals(550, result.getResults().get(0).getReplyCode());
+        Assert.assertEquals(554, result.getResults().get(1).getReplyCode());
+        Assert.assertEquals(2, sink.getMessageCount());
+        Assert.assertEquals(1, sink.getConnectionCount());
+    }
+
+    @Test
+    public void tTransientRetried() throws Exception {
+
+        sink.failNext("MAIL", "451 4.3.0 Try again later");
+
+        RetryPolicy policy = new RetryPolicy();
+        policy.setInitialBackoffMillis(1);
+        SessionCourier courier = new SessionCourier(sink.createSession());
+        courier.setRetryPolicy(policy);
+
+        SendResult result = courier.send(mail("to@email.com"));
+
+        Assert.assertEquals(SendResult.Status.SENT, result.getStatus());
+        Assert.assertEquals(2, result.getAttempts());
+        Assert.assertEquals(1, sink.getMessageCount());
+    }
+
+    @Test
+    public void tLoad() throws Exception {
+
+        sink.setLatencyMillis(1);
+
+        List<Mail> mails = new ArrayList<Mail>();
+        for (int i = 0; i < 200; i++) {
+            mails.add(mail("to" + i + "@email.com"));
+        }
+
+        BatchSender sender = new BatchSender(sink.createSession(), 4);
+        BatchResult result = sender.send(mails.toArray(new Mail[mails.size()]));
+        sender.close();
+
+        Assert.assertTrue(result.isAllSent());
+        Assert.assertEquals(200, sink.getMessageCount());
+        Assert.assertTrue(sink.getConnectionCount() <= 4);
+    }
+
+    @Test
+    public void tPipelinedChunks() throws Exception {
+
+        String body = "Subject: chunked\r\n\r\nHello\r\n";
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), sink.getPort());
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.ISO_8859_1));
+            OutputStream out = socket.getOutputStream();
+
+            Assert.assertTrue(in.readLine().startsWith("220"));
+            out.write("EHLO client\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            String line;
+            boolean chunking = false;
+            while ((line = in.readLine()).startsWith("250-")) {
+                chunking |= line.equals("250-CHUNKING");
+            }
+            Assert.assertTrue(chunking);
+
+            // Whole transaction in a single write.
+            out.write(("MAIL FROM:<a@email.com>\r\nRCPT TO:<b@email.com>\r\nBDAT 10\r\n" + body.substring(0, 10)
+                    + "BDAT " + (body.length() - 10) + " LAST\r\n" + body.substring(10) + "QUIT\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+
+            for (int i = 0; i < 4; i++) {
+                Assert.assertTrue(in.readLine().startsWith("250"));
+            }
+            Assert.assertTrue(in.readLine().startsWith("221"));
+
+        } finally {
+            socket.close();
+        }
+
+        Assert.assertEquals(1, sink.getMessageCount());
+        Assert.assertEquals(body.length(), sink.getAcceptedBytes());
+    }
+
+    @Test
+    public void tAsyncBackpressure() throws Exception {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger sent = new AtomicInteger();
+        final AsyncPostman postman = new AsyncPostman(new Courier() {
+
+            @Override
+            public SendResult send(Mail mail) {
+
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sent.incrementAndGet();
+                return SendResult.sent(mail, 0L);
+            }
+        }, null, 2);
+
+        try {
+            List<CompletableFuture<SendResult>> futures = postman.sendMail(mail("a@email.com"), mail("b@email.com"));
+            Assert.assertEquals(2, postman.getInFlight());
+
+            // The third submit waits for a slot.
+            final CompletableFuture<CompletableFuture<SendResult>> third =
+                    new CompletableFuture<CompletableFuture<SendResult>>();
+            Thread submitter = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        third.complete(postman.sendMail(mail("c@email.com")));
+                    } catch (MailException e) {
+                        third.completeExceptionally(e);
+                    }
+                }
+            };
+            submitter.start();
+            Thread.sleep(200);
+            Assert.assertFalse(third.isDone());
+            Assert.assertEquals(2, postman.getInFlight());
+
+            release.countDown();
+            Assert.assertTrue(third.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS).isSent());
+            for (CompletableFuture<SendResult> future : futures) {
+                Assert.assertTrue(future.get(5, TimeUnit.SECONDS).isSent());
+            }
+            Assert.assertEquals(3, sent.get());
+            Assert.assertEquals(0, postman.getInFlight());
+
+        } finally {
+            release.countDown();
+            postman.close();
+        }
+    }
+
+    @Test
+    public void tAsyncFailures() throws Exception {
+
+        // A failed send is a result.
+        sink.failNext("DATA", "554 5.7.1 Rejected");
+        AsyncPostman postman = new AsyncPostman(new SessionCourier(sink.createSession()));
+        try {
+            SendResult result = postman.sendMail(mail("a@email.com")).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(SendResult.Status.FAILED, result.getStatus());
+            Assert.assertEquals(554, result.getReplyCode());
+        } finally {
+            postman.close();
+        }
+
+        // An unexpected error completes the future exceptionally, releasing the slot.
+        postman = new AsyncPostman(new Courier() {
+
+            @Override
+            public SendResult send(Mail mail) {
+                throw new IllegalStateException("broken courier");
+            }
+        }, null, 1);
+        try {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    postman.sendMail(mail("a@email.com")).get(5, TimeUnit.SECONDS);
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+            Assert.assertEquals(0, postman.getInFlight());
+        } finally {
+            postman.close();
+        }
+
+        // So does a rejected submit.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        postman = new AsyncPostman(new SessionCourier(sink.createSession()), executor, 1);
+        try {
+            postman.sendMail(mail("a@email.com")).get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        Assert.assertEquals(0, postman.getInFlight());
+    }
+}
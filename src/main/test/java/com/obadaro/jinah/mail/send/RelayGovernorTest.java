@@ -0,0 +1,98 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.mail.send.TestMails.mail;
+
+import java.util.Properties;
+
+import javax.mail.Session;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * RelayGovernor test class, sending to an {@link SmtpSink}.
+ * 
+ * @author Roberto Badaro
+ */
+public class RelayGovernorTest {
+
+    private SmtpSink sink;
+
+    @Before
+    public void prepare() throws Exception {
+        sink = new SmtpSink();
+    }
+
+    @After
+    public void dispose() throws Exception {
+        sink.close();
+    }
+
+    @Test
+    public void tGovernor() throws Exception {
+
+        Properties cfg = new Properties();
+        cfg.setProperty("mail.smtp.ratelimit", "50");
+        cfg.setProperty("mail.smtp.ratelimit.burst", "5");
+        Session session = sink.createSession(cfg);
+
+        RelayGovernor governor = new RelayGovernor();
+        SessionCourier courier = new SessionCourier(session, new TransportPool(1));
+        courier.setGovernor(governor);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 15; i++) {
+            Assert.assertEquals(SendResult.Status.SENT, courier.send(mail("to@email.com")).getStatus());
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        courier.getPool().close();
+
+        RelayGovernor.Relay relay = governor.relay(session);
+        Assert.assertTrue("elapsed " + elapsedMillis, elapsedMillis >= 180);
+        Assert.assertEquals(15, relay.getAcquired());
+        // Permits refill while connecting and sending: not all of the last 10 sends wait.
+        Assert.assertTrue(relay.getWaited() > 0);
+
+        cfg.setProperty("mail.smtp.ratelimit", "0");
+        cfg.setProperty("mail.smtp.maxconcurrency", "1");
+        cfg.setProperty("mail.smtp.username", "other");
+        cfg.setProperty("mail.smtp.auth", "true");
+        session = Session.getInstance(cfg);
+        governor.setPolicy(RelayGovernor.Policy.FAIL_FAST);
+
+        relay = governor.acquire(session);
+        try {
+            governor.acquire(session);
+            Assert.fail();
+        } catch (RelayThrottledException e) {
+            Assert.assertEquals(RetryPolicy.Failure.TRANSIENT, new RetryPolicy().classify(
+                SendResult.failed(null, e, 0L)));
+        }
+        Assert.assertEquals(1, relay.getInUse());
+        relay.release();
+        governor.acquire(session).release();
+
+        Assert.assertEquals(2, governor.getRelays().size());
+    }
+}
@@ -0,0 +1,119 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.mail.send.TestMails.mail;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * RelayRouter test class, sending to an {@link SmtpSink}.
+ * 
+ * @author Roberto Badaro
+ */
+public class RelayRouterTest {
+
+    private SmtpSink sink;
+
+    @Before
+    public void prepare() throws Exception {
+        sink = new SmtpSink();
+    }
+
+    @After
+    public void dispose() throws Exception {
+        sink.close();
+    }
+
+    @Test
+    public void tFailover() throws Exception {
+
+        SmtpSink down = new SmtpSink();
+        try {
+            down.setReply("MAIL", "421 4.3.2 Service not available");
+
+            RelayRouter router = new RelayRouter();
+            router.setFailureThreshold(2);
+            router.setOpenMillis(50);
+            RelayRouter.Route good = router.addRelay(sink.createSession(), null, 1);
+            RelayRouter.Route bad = router.addRelay(down.createSession(), null, 5);
+
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals(SendResult.Status.SENT, router.send(mail("to@email.com")).getStatus());
+            }
+
+            Assert.assertEquals(20, sink.getMessageCount());
+            Assert.assertEquals(RelayRouter.State.OPEN, bad.getState());
+            Assert.assertTrue(bad.getFailed() >= 2);
+            Assert.assertEquals(20, good.getSent());
+
+            down.setReply("MAIL", null);
+            Thread.sleep(60);
+            for (int i = 0; i < 20 && bad.getState() != RelayRouter.State.CLOSED; i++) {
+                router.send(mail("to@email.com"));
+            }
+            Assert.assertEquals(RelayRouter.State.CLOSED, bad.getState());
+            Assert.assertTrue(down.getMessageCount() > 0);
+
+        } finally {
+            down.close();
+        }
+    }
+
+    @Test
+    public void tLateSuccess() throws Exception {
+
+        RelayRouter router = new RelayRouter();
+        RelayRouter.Route route = router.addRelay(sink.createSession(), null, 1);
+
+        // Five sends in flight: two fail and trip the circuit, the third succeeds late.
+        long now = System.nanoTime();
+        long[] tickets = new long[5];
+        for (int i = 0; i < tickets.length; i++) {
+            tickets[i] = route.tryAcquire(now);
+            Assert.assertTrue(tickets[i] >= 0);
+        }
+        route.completed(tickets[0], false, 1000L, 2, 50L);
+        route.completed(tickets[1], false, 1000L, 2, 50L);
+        Assert.assertEquals(RelayRouter.State.OPEN, route.getState());
+        route.completed(tickets[2], true, 1000L, 2, 50L);
+        Assert.assertEquals(RelayRouter.State.OPEN, route.getState());
+        Assert.assertEquals(-1L, route.tryAcquire(System.nanoTime()));
+
+        // While the probe is in progress, late sends move nothing: only the probe closes the circuit.
+        Thread.sleep(60);
+        long probe = route.tryAcquire(System.nanoTime());
+        Assert.assertTrue(probe >= 0);
+        Assert.assertEquals(RelayRouter.State.HALF_OPEN, route.getState());
+        route.completed(tickets[3], true, 1000L, 2, 50L);
+        route.completed(tickets[4], false, 1000L, 2, 50L);
+        Assert.assertEquals(RelayRouter.State.HALF_OPEN, route.getState());
+        route.completed(probe, true, 1000L, 2, 50L);
+        Assert.assertEquals(RelayRouter.State.CLOSED, route.getState());
+        Assert.assertEquals(0, route.getInFlight());
+
+        // Without relays, mails fail.
+        SendResult result = new RelayRouter().send(mail("to@email.com"));
+        Assert.assertEquals(SendResult.Status.FAILED, result.getStatus());
+    }
+}
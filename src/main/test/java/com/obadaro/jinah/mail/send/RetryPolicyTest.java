@@ -0,0 +1,76 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.mail.send.TestMails.mail;
+
+import javax.mail.Session;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.TextMail;
+
+/**
+ * RetryPolicy test class.
+ * 
+ * @author Roberto Badaro
+ */
+public class RetryPolicyTest {
+
+    private Session session;
+
+    @Before
+    public void prepare() throws Exception {
+        session = CountingTransport.createSession();
+    }
+
+    @Test
+    public void tRetry() throws Exception {
+
+        RetryPolicy policy = new RetryPolicy(3, new RetryBudget());
+        policy.setInitialBackoffMillis(1);
+
+        SessionCourier courier = new SessionCourier(session, new TransportPool(1));
+        courier.setRetryPolicy(policy);
+
+        // Transient (4xx) failures are retried.
+        CountingTransport.BUSY.set(2);
+        SendResult result = courier.send(mail());
+        Assert.assertTrue(result.isSent());
+        Assert.assertEquals(3, result.getAttempts());
+
+        // Permanent (5xx) failures are not.
+        TextMail rejected = mail();
+        rejected.addTo("reject@email.com");
+        result = courier.send(rejected);
+        Assert.assertEquals(SendResult.Status.FAILED, result.getStatus());
+        Assert.assertEquals(RetryPolicy.Failure.PERMANENT, policy.classify(result));
+        Assert.assertEquals(1, result.getAttempts());
+
+        // A closed pool fails the send instead of throwing.
+        courier.getPool().close();
+        result = courier.send(mail());
+        Assert.assertEquals(SendResult.Status.FAILED, result.getStatus());
+        Assert.assertTrue(result.getError() instanceof IllegalStateException);
+        Assert.assertEquals(1, result.getAttempts());
+    }
+}
@@ -0,0 +1,202 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.mail.send.TestMails.mail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.Mail;
+import com.obadaro.jinah.mail.TextMail;
+import com.obadaro.jinah.mail.dedup.DedupStore;
+import com.obadaro.jinah.mail.dedup.MemoryDedupStore;
+import com.obadaro.jinah.mail.metrics.HistogramSink;
+import com.obadaro.jinah.mail.metrics.MetricsSink;
+
+/**
+ * SessionCourier test class, sending to an {@link SmtpSink}.
+ * 
+ * @author Roberto Badaro
+ */
+public class SessionCourierTest {
+
+    private SmtpSink sink;
+
+    @Before
+    public void prepare() throws Exception {
+        sink = new SmtpSink();
+    }
+
+    @After
+    public void dispose() throws Exception {
+        sink.close();
+    }
+
+    @Test
+    public void tMetrics() throws Exception {
+
+        HistogramSink metrics = new HistogramSink();
+        SessionCourier courier = new SessionCourier(sink.createSession(), new TransportPool(2));
+        courier.setMetrics(metrics);
+        String relay = courier.getRelayName();
+
+        sink.failNext("RCPT", "550 5.1.1 No such user");
+        for (int i = 0; i < 10; i++) {
+            courier.send(mail("to@email.com"));
+        }
+
+        Assert.assertEquals(9, metrics.getCount(MetricsSink.RESULT + "sent", relay));
+        Assert.assertEquals(1, metrics.getCount(MetricsSink.RESULT + "failed", relay));
+        Assert.assertEquals(10, metrics.getTimes(MetricsSink.SEND, relay).getCount());
+        Assert.assertEquals(10, metrics.getTimes(MetricsSink.BUILD, relay).getCount());
+        Assert.assertEquals(10, metrics.getTimes(MetricsSink.BORROW, relay).getCount());
+        Assert.assertEquals(1, metrics.getGauge(MetricsSink.POOL_OPEN, relay));
+        Assert.assertEquals(9, metrics.getValues(MetricsSink.SIZE, relay).getCount());
+        Assert.assertEquals(sink.getAcceptedBytes() / 9.0, metrics.getValues(MetricsSink.SIZE, relay).getMean(), 2);
+        Assert.assertTrue(metrics.report().contains(MetricsSink.TRANSMIT + "{" + relay + "} count=10"));
+
+        courier.getPool().close();
+    }
+
+    @Test
+    public void tIdempotencyKey() throws Exception {
+
+        sink.setKeepMessages(true);
+        SessionCourier courier = new SessionCourier(sink.createSession());
+        MemoryDedupStore store = new MemoryDedupStore();
+        courier.setDedupStore(store);
+
+        Mail mail = mail("to@email.com");
+        mail.setIdempotencyKey("order-42");
+        Assert.assertEquals(SendResult.Status.SENT, courier.send(mail).getStatus());
+        Assert.assertEquals(SendResult.Status.DUPLICATE, courier.send(mail).getStatus());
+        Assert.assertEquals(1, sink.getMessageCount());
+        Assert.assertTrue(new String(sink.getMessages().get(0), StandardCharsets.ISO_8859_1)
+                .contains("Message-ID: <order-42@email.com>"));
+
+        // A key being sent: a transient failure, not a duplicate, as that send may still fail.
+        Mail racing = mail("racing@email.com");
+        racing.setIdempotencyKey("order-43");
+        Assert.assertEquals(DedupStore.Claim.CLAIMED, store.claim("order-43"));
+        SendResult result = courier.send(racing);
+        Assert.assertEquals(SendResult.Status.FAILED, result.getStatus());
+        Assert.assertFalse(result.isSent());
+        Assert.assertEquals(RetryPolicy.Failure.TRANSIENT, new RetryPolicy().classify(result));
+        store.release("order-43");
+        Assert.assertEquals(SendResult.Status.SENT, courier.send(racing).getStatus());
+        Assert.assertEquals(2, sink.getMessageCount());
+
+        // Failed sends release the key.
+        courier.setDeriveKeys(true);
+        sink.failNext("RCPT", "550 5.1.1 No such user");
+        Assert.assertEquals(SendResult.Status.FAILED, courier.send(mail("other@email.com")).getStatus());
+        Assert.assertEquals(SendResult.Status.SENT, courier.send(mail("other@email.com")).getStatus());
+        Assert.assertEquals(SendResult.Status.DUPLICATE, courier.send(mail("other@email.com")).getStatus());
+        Assert.assertEquals(3, sink.getMessageCount());
+
+        // Deferred contents are not built to derive the key: they need an id.
+        TextMail deferred = (TextMail) mail("deferred@email.com");
+        AtomicInteger calls = new AtomicInteger();
+        deferred.setDeferredText(() -> "Call " + calls.incrementAndGet(), "UTF-8");
+        Assert.assertEquals(SendResult.Status.FAILED, courier.send(deferred).getStatus());
+        Assert.assertEquals(0, calls.get());
+        Assert.assertEquals(3, sink.getMessageCount());
+
+        deferred.setIdempotencyKey("deferred-1");
+        Assert.assertEquals(SendResult.Status.SENT, courier.send(deferred).getStatus());
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void tUncertainDelivery() throws Exception {
+
+        RetryPolicy policy = new RetryPolicy();
+        policy.setInitialBackoffMillis(1);
+        SessionCourier courier = new SessionCourier(sink.createSession());
+        courier.setDedupStore(new MemoryDedupStore());
+        courier.setRetryPolicy(policy);
+
+        // The relay got the whole message, the reply was lost: not retried, and the key is kept.
+        Mail mail = mail("to@email.com");
+        mail.setIdempotencyKey("order-44");
+        sink.dropNextReply("DATA");
+        SendResult result = courier.send(mail);
+        Assert.assertEquals(SendResult.Status.FAILED, result.getStatus());
+        Assert.assertTrue(result.isDeliveryUncertain());
+        Assert.assertEquals(RetryPolicy.Failure.TRANSIENT, new RetryPolicy().classify(result));
+        Assert.assertEquals(1, result.getAttempts());
+        Assert.assertEquals(SendResult.Status.DUPLICATE, courier.send(mail).getStatus());
+        Assert.assertEquals(1, sink.getMessageCount());
+
+        // Concurrent sends of a key do not trip the circuit of a healthy relay.
+        RelayRouter router = new RelayRouter();
+        router.setFailureThreshold(2);
+        RelayRouter.Route route = router.addRelay("relay", courier, 1);
+        MemoryDedupStore store = (MemoryDedupStore) courier.getDedupStore();
+        Mail racing = mail("racing@email.com");
+        racing.setIdempotencyKey("order-46");
+        Assert.assertEquals(DedupStore.Claim.CLAIMED, store.claim("order-46"));
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(router.send(racing).getError() instanceof SendInProgressException);
+        }
+        Assert.assertEquals(RelayRouter.State.CLOSED, route.getState());
+        store.release("order-46");
+
+        // Failed before the data: the key is released.
+        Mail other = mail("other@email.com");
+        other.setIdempotencyKey("order-45");
+        sink.failNext("MAIL", "451 4.3.0 Try again later");
+        result = courier.send(other);
+        Assert.assertEquals(SendResult.Status.SENT, result.getStatus());
+        Assert.assertEquals(2, result.getAttempts());
+        Assert.assertEquals(2, sink.getMessageCount());
+    }
+
+    @Test
+    public void tUncertainEnvelope() throws Exception {
+
+        Properties cfg = new Properties();
+        cfg.setProperty("mail.smtp.maxrecipients", "1");
+        SessionCourier courier = new SessionCourier(sink.createSession(cfg));
+        MemoryDedupStore store = new MemoryDedupStore();
+        courier.setDedupStore(store);
+
+        // The data of the first envelope was refused, the connection dropped before the data of the second:
+        // nothing was delivered, the key is released.
+        Mail mail = mail("a@x.com");
+        mail.addTo("b@y.com");
+        mail.setIdempotencyKey("order-47");
+        sink.failNext("DATA", "554 5.6.0 Message refused");
+        sink.failNext("MAIL", "250 2.1.0 OK");
+        sink.dropNextReply("MAIL");
+        SendResult result = courier.send(mail);
+        Assert.assertEquals(SendResult.Status.FAILED, result.getStatus());
+        Assert.assertFalse(result.isDeliveryUncertain());
+        Assert.assertEquals(0, sink.getMessageCount());
+        Assert.assertEquals(DedupStore.Claim.CLAIMED, store.claim("order-47"));
+    }
+}
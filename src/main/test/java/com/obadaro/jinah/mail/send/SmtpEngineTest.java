@@ -0,0 +1,243 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.TextMail;
+
+/**
+ * SmtpEngine test class, sending to an {@link SmtpSink}.
+ * 
+ * @author Roberto Badaro
+ */
+public class SmtpEngineTest {
+
+    private SmtpSink sink;
+
+    @Before
+    public void prepare() throws Exception {
+        sink = new SmtpSink();
+    }
+
+    @After
+    public void dispose() throws Exception {
+        sink.close();
+    }
+
+    @Test
+    public void tConcurrentSends() throws Exception {
+
+        sink.setLatencyMillis(5);
+        SmtpEngine engine = new SmtpEngine(session(false), 2, 8);
+
+        List<CompletableFuture<SendResult>> futures = new ArrayList<CompletableFuture<SendResult>>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(engine.sendAsync(mail(2)));
+        }
+        for (CompletableFuture<SendResult> future : futures) {
+            Assert.assertEquals(SendResult.Status.SENT, future.get().getStatus());
+        }
+
+        Assert.assertEquals(200, sink.getMessageCount());
+        Assert.assertTrue(sink.getConnectionCount() <= 8);
+        Assert.assertEquals(0, engine.getInFlight());
+
+        engine.close();
+        Assert.assertEquals(0, engine.getOpenConnections());
+    }
+
+    @Test
+    public void tRejectedRecipient() throws Exception {
+
+        SmtpEngine engine = new SmtpEngine(session(false), 1, 1);
+
+        sink.failNext("RCPT", "550 5.1.1 No such user");
+        SendResult result = engine.send(mail(3));
+        Assert.assertEquals(SendResult.Status.FAILED, result.getStatus());
+        Assert.assertEquals(550, result.getReplyCode());
+        Assert.assertEquals(0, sink.getMessageCount());
+
+        // Same connection, transaction reset.
+        Assert.assertEquals(SendResult.Status.SENT, engine.send(mail(3)).getStatus());
+        Assert.assertEquals(1, sink.getConnectionCount());
+        engine.close();
+
+        engine = new SmtpEngine(session(true), 1, 1);
+        sink.failNext("RCPT", "550 5.1.1 No such user");
+        result = engine.send(mail(3));
+        Assert.assertEquals(SendResult.Status.PARTIAL, result.getStatus());
+        Assert.assertEquals(1, result.getInvalidRecipients().length);
+        engine.close();
+    }
+
+    @Test
+    public void tFallback() throws Exception {
+
+        sink.setKeepMessages(true);
+        TextMail mail = mail(1);
+        mail.setText("First line.\n.\n..dotted\nEnd.", "UTF-8");
+        final MimeMessage msg = MailMessages.factory().createMessage(sink.createSession(), mail);
+        MessageFactory factory = (session, m) -> msg;
+
+        SmtpEngine engine = new SmtpEngine(session(false), 1, 1);
+        engine.setMessageFactory(factory);
+        Assert.assertEquals(SendResult.Status.SENT, engine.send(mail).getStatus());
+        engine.close();
+
+        // DATA, dot-stuffed, one command at a time.
+        sink.setReply("EHLO", "250 sink.localhost");
+        engine = new SmtpEngine(session(false), 1, 1);
+        engine.setMessageFactory(factory);
+        Assert.assertEquals(SendResult.Status.SENT, engine.send(mail).getStatus());
+        engine.close();
+
+        Assert.assertEquals(2, sink.getMessageCount());
+        Assert.assertEquals(withoutDate(sink.getMessages().get(0)), withoutDate(sink.getMessages().get(1)));
+    }
+
+    @Test
+    public void tAuthAndConnectFailure() throws Exception {
+
+        sink.setCredentials("user", "secret");
+        SmtpEngine engine = new SmtpEngine(session(false), 1, 1);
+        Assert.assertEquals(SendResult.Status.SENT, engine.send(mail(1)).getStatus());
+        engine.close();
+
+        sink.setCredentials("user", "other");
+        Session session = session(false);
+        sink.setCredentials("user", "secret");
+        engine = new SmtpEngine(session, 1, 1);
+        SendResult result = engine.send(mail(1));
+        Assert.assertEquals(SendResult.Status.FAILED, result.getStatus());
+        Assert.assertEquals(1, sink.getRejectedCount());
+        engine.close();
+
+        session = session(false);
+        sink.close();
+        engine = new SmtpEngine(session, 1, 1);
+        result = engine.send(mail(1));
+        Assert.assertEquals(SendResult.Status.FAILED, result.getStatus());
+        Assert.assertEquals(0, engine.getOpenConnections());
+        engine.close();
+    }
+
+    @Test
+    public void tAsyncPostman() throws Exception {
+
+        SmtpEngine engine = new SmtpEngine(session(false), 1, 4);
+        AsyncPostman postman = new AsyncPostman(engine, null, 16);
+
+        List<CompletableFuture<SendResult>> futures = new ArrayList<CompletableFuture<SendResult>>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(postman.sendMail(mail(1)));
+        }
+        engine.close();
+
+        for (CompletableFuture<SendResult> future : futures) {
+            Assert.assertTrue(future.isDone());
+            Assert.assertTrue(future.get().isSent());
+        }
+        Assert.assertEquals(0, postman.getInFlight());
+        Assert.assertEquals(50, sink.getMessageCount());
+        postman.close();
+    }
+
+    @Test
+    public void tLoopFailure() throws Exception {
+
+        sink.setLatencyMillis(3000);
+        SmtpEngine engine = new SmtpEngine(session(false), 1, 1);
+        CompletableFuture<SendResult> sending = engine.sendAsync(mail(1));
+        CompletableFuture<SendResult> waiting = engine.sendAsync(mail(1));
+
+        engine.loops[0].execute(() -> {
+            throw new IllegalStateException("Broken loop.");
+        });
+
+        Assert.assertEquals(SendResult.Status.FAILED, sending.get(2, TimeUnit.SECONDS).getStatus());
+        Assert.assertEquals(SendResult.Status.FAILED, waiting.get(2, TimeUnit.SECONDS).getStatus());
+        Assert.assertTrue(engine.getError() instanceof IllegalStateException);
+
+        CompletableFuture<SendResult> late = engine.sendAsync(mail(1));
+        Assert.assertTrue(late.isDone());
+        Assert.assertEquals(SendResult.Status.FAILED, late.get().getStatus());
+        Assert.assertEquals(0, engine.getInFlight());
+        engine.close();
+    }
+
+    @Test
+    public void tCloseTimeout() throws Exception {
+
+        sink.setLatencyMillis(3000);
+        SmtpEngine engine = new SmtpEngine(session(false), 1, 1);
+        CompletableFuture<SendResult> sending = engine.sendAsync(mail(1));
+        CompletableFuture<SendResult> waiting = engine.sendAsync(mail(1));
+
+        long start = System.currentTimeMillis();
+        engine.close(200);
+        Assert.assertTrue(System.currentTimeMillis() - start < 2500);
+
+        Assert.assertEquals(SendResult.Status.FAILED, sending.get(1, TimeUnit.SECONDS).getStatus());
+        Assert.assertEquals(SendResult.Status.FAILED, waiting.get(1, TimeUnit.SECONDS).getStatus());
+        Assert.assertEquals(0, engine.getInFlight());
+        Assert.assertEquals(0, engine.getOpenConnections());
+    }
+
+    //
+    // Internal methods
+    //
+
+    private Session session(boolean sendPartial) {
+
+        Properties cfg = new Properties();
+        cfg.setProperty("mail.smtp.sendpartial", String.valueOf(sendPartial));
+        return sink.createSession(cfg);
+    }
+
+    private static String withoutDate(byte[] message) {
+        return new String(message, StandardCharsets.ISO_8859_1).replaceFirst("Date: [^\r]*\r\n", "");
+    }
+
+    private static TextMail mail(int recipients) {
+
+        TextMail mail = new TextMail();
+        mail.setFrom("from@email.com");
+        for (int i = 0; i < recipients; i++) {
+            mail.addTo("to" + i + "@email.com");
+        }
+        mail.setSubject("Test");
+        mail.setText("Mail content body.", "UTF-8");
+        return mail;
+    }
+}
@@ -0,0 +1,743 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Session;
+
+/**
+ * Embedded SMTP server for tests and load tests: accepts every message and discards it, unless told to keep
+ * it. Runs a single selector thread on the loopback interface and speaks EHLO, AUTH PLAIN/LOGIN, PIPELINING,
+ * 8BITMIME, SIZE and CHUNKING (BDAT).
+ * <p>
+ * Replies may be delayed ({@link #setLatencyMillis(long)}) and replaced ({@link #setReply(String, String)},
+ * {@link #failNext(String, String)}). A reply set for DATA or BDAT replaces the reply given at the end of the
+ * message, which is then not counted as accepted.
+ * 
+ * <pre>
+ * SmtpSink sink = new SmtpSink();
+ * Session session = sink.createSession();
+ * sink.failNext("RCPT", "550 5.1.1 No such user");
+ * ...
+ * sink.close();
+ * </pre>
+ * 
+ * @author Roberto Badaro
+ */
+public class SmtpSink implements Closeable {
+
+    private static final String HOSTNAME = "sink.localhost";
+    /** Reply closing the connection instead, compared by identity. */
+    private static final String DROP = new String("DROP");
+
+    protected final ServerSocketChannel server;
+    protected final Selector selector;
+    protected final Thread thread;
+
+    protected final AtomicLong connections = new AtomicLong();
+    protected final AtomicLong commands = new AtomicLong();
+    protected final AtomicLong messages = new AtomicLong();
+    protected final AtomicLong recipients = new AtomicLong();
+    protected final AtomicLong acceptedBytes = new AtomicLong();
+    protected final AtomicLong rejected = new AtomicLong();
+
+    protected final Map<String, String> replies = Collections.synchronizedMap(new HashMap<String, String>());
+    protected final Map<String, Deque<String>> nextReplies = new HashMap<String, Deque<String>>();
+    protected final ConcurrentLinkedQueue<byte[]> kept = new ConcurrentLinkedQueue<byte[]>();
+
+    protected volatile long latencyMillis;
+    protected volatile boolean keepMessages;
+    protected volatile String username;
+    protected volatile String password;
+    protected volatile boolean closed;
+    protected volatile Exception error;
+
+    public SmtpSink() throws IOException {
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "smtp-sink-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * @return A session sending to this sink, authenticating if credentials were set.
+     */
+    public Session createSession() {
+        return createSession(new Properties());
+    }
+
+    /**
+     * @param cfg
+     *            Additional session properties.
+     * @return A session sending to this sink, authenticating if credentials were set.
+     */
+    public Session createSession(Properties cfg) {
+
+        Properties props = new Properties();
+        props.putAll(cfg);
+        props.setProperty("mail.transport.protocol", "smtp");
+        props.setProperty("mail.smtp.host", "127.0.0.1");
+        props.setProperty("mail.smtp.port", String.valueOf(getPort()));
+        if (username != null) {
+            props.setProperty("mail.smtp.auth", "true");
+            props.setProperty("mail.smtp.username", username);
+            props.setProperty("mail.smtp.password", password);
+        }
+        return Session.getInstance(props);
+    }
+
+    /**
+     * Requires the given credentials on AUTH. Without credentials any AUTH succeeds.
+     */
+    public void setCredentials(String username, String password) {
+
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * @param latencyMillis
+     *            Delay of every reply.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param keepMessages
+     *            Whether to keep the accepted messages, see {@link #getMessages()}.
+     */
+    public void setKeepMessages(boolean keepMessages) {
+        this.keepMessages = keepMessages;
+    }
+
+    /**
+     * Replaces the reply to a command until cleared.
+     * 
+     * @param verb
+     *            Command verb, e.g. "RCPT".
+     * @param reply
+     *            Reply line, e.g. "451 4.3.0 Try again later", or {@code null} to clear.
+     */
+    public void setReply(String verb, String reply) {
+
+        if (reply != null) {
+            replies.put(verb.toUpperCase(), reply);
+        } else {
+            replies.remove(verb.toUpperCase());
+        }
+    }
+
+    /**
+     * Replaces the reply to the next occurrence of a command.
+     * 
+     * @param verb
+     *            Command verb, e.g. "RCPT".
+     * @param reply
+     *            Reply line.
+     */
+    public void failNext(String verb, String reply) {
+
+        synchronized (nextReplies) {
+            Deque<String> queue = nextReplies.get(verb.toUpperCase());
+            if (queue == null) {
+                queue = new ArrayDeque<String>();
+                nextReplies.put(verb.toUpperCase(), queue);
+            }
+            queue.add(reply);
+        }
+    }
+
+    /**
+     * Closes the connection instead of replying to the next occurrence of a command. For "DATA" and "BDAT", at
+     * the end of the message: the message is accepted, the reply lost.
+     * 
+     * @param verb
+     *            Command verb, e.g. "MAIL" or "DATA".
+     */
+    public void dropNextReply(String verb) {
+        failNext(verb, DROP);
+    }
+
+    public long getConnectionCount() {
+        return connections.get();
+    }
+
+    public long getCommandCount() {
+        return commands.get();
+    }
+
+    /**
+     * @return Number of accepted messages.
+     */
+    public long getMessageCount() {
+        return messages.get();
+    }
+
+    /**
+     * @return Number of recipients of accepted messages.
+     */
+    public long getRecipientCount() {
+        return recipients.get();
+    }
+
+    /**
+     * @return Content bytes of accepted messages, after dot-unstuffing.
+     */
+    public long getAcceptedBytes() {
+        return acceptedBytes.get();
+    }
+
+    /**
+     * @return Number of commands answered with a 4xx or 5xx reply.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return Contents of the accepted messages, if kept.
+     */
+    public List<byte[]> getMessages() {
+        return new ArrayList<byte[]>(kept);
+    }
+
+    /**
+     * Clears counters, kept messages and replaced replies.
+     */
+    public void reset() {
+
+        connections.set(0);
+        commands.set(0);
+        messages.set(0);
+        recipients.set(0);
+        acceptedBytes.set(0);
+        rejected.set(0);
+        replies.clear();
+        synchronized (nextReplies) {
+            nextReplies.clear();
+        }
+        kept.clear();
+    }
+
+    /**
+     * @return The error that stopped the sink, {@code null} if none.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * Stops the sink.
+     * 
+     * @throws IOException
+     *             If the sink stopped on an error before, so the test using it fails.
+     */
+    @Override
+    public void close() throws IOException {
+
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (error != null) {
+            throw new IOException("SMTP sink stopped on an error.", error);
+        }
+    }
+
+    //
+    // Internal methods
+    //
+
+    protected void loop() {
+
+        try {
+            while (!closed) {
+                long now = System.currentTimeMillis();
+                long wait = 0;
+
+                for (SelectionKey key : selector.keys()) {
+                    Connection conn = (Connection) key.attachment();
+                    if (conn != null && key.isValid() && conn.hasOutput()) {
+                        if (conn.readyAt <= now) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        } else {
+                            long left = conn.readyAt - now;
+                            wait = (wait == 0 ? left : Math.min(wait, left));
+                        }
+                    }
+                }
+
+                selector.select(wait);
+
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection conn = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                conn.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.write();
+                            }
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = e;
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // Ignored.
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignored.
+            }
+        }
+    }
+
+    protected void accept() throws IOException {
+
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        connections.incrementAndGet();
+
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Connection conn = new Connection(key);
+        key.attach(conn);
+        conn.reply("220 " + HOSTNAME + " ESMTP sink");
+    }
+
+    /**
+     * @return The replaced reply of a command, or {@code null} to answer normally.
+     */
+    protected String replaced(String verb) {
+
+        synchronized (nextReplies) {
+            Deque<String> queue = nextReplies.get(verb);
+            if (queue != null && !queue.isEmpty()) {
+                return queue.poll();
+            }
+        }
+        return replies.get(verb);
+    }
+
+    private static boolean isPositive(String reply) {
+        return reply.charAt(0) == '2' || reply.charAt(0) == '3';
+    }
+
+    // Inner classes
+
+    protected enum State {
+        COMMAND, DATA, BDAT, AUTH_PLAIN, AUTH_USER, AUTH_PASSWORD
+    }
+
+    /**
+     * State of a client connection.
+     */
+    protected final class Connection {
+
+        final SelectionKey key;
+        final SocketChannel channel;
+
+        ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        ByteBuffer out = ByteBuffer.allocate(4 * 1024);
+        long readyAt;
+
+        State state = State.COMMAND;
+        int rcpts;
+        long size;
+        long chunkLeft;
+        boolean lastChunk;
+        String authUser;
+        ByteArrayOutputStream content;
+
+        Connection(SelectionKey key) {
+
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+            out.flip();
+        }
+
+        boolean hasOutput() {
+            return out.hasRemaining();
+        }
+
+        void read() throws IOException {
+
+            if (!in.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+
+            int n = channel.read(in);
+            if (n < 0) {
+                key.cancel();
+                channel.close();
+                return;
+            }
+
+            in.flip();
+            process();
+            in.compact();
+        }
+
+        void write() throws IOException {
+
+            channel.write(out);
+            if (!out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+                if (state == null) {
+                    key.cancel();
+                    channel.close();
+                }
+            }
+        }
+
+        void process() throws IOException {
+
+            while (state != null) {
+                if (state == State.BDAT) {
+                    int n = (int) Math.min(chunkLeft, in.remaining());
+                    if (n == 0 && chunkLeft > 0) {
+                        return;
+                    }
+                    consume(in, n);
+                    chunkLeft -= n;
+                    if (chunkLeft == 0) {
+                        state = State.COMMAND;
+                        if (lastChunk) {
+                            endMessage("BDAT");
+                        } else {
+                            reply("250 2.0.0 " + n + " octets received");
+                        }
+                    }
+                    continue;
+                }
+
+                int eol = indexOfCrlf(in);
+                if (eol < 0) {
+                    return;
+                }
+
+                int length = eol - in.position();
+                if (state == State.DATA) {
+                    if (length == 1 && in.get(in.position()) == '.') {
+                        in.position(eol + 2);
+                        state = State.COMMAND;
+                        endMessage("DATA");
+                    } else {
+                        if (length > 0 && in.get(in.position()) == '.') {
+                            in.get();
+                            length--;
+                        }
+                        consume(in, length + 2);
+                    }
+                    continue;
+                }
+
+                byte[] bytes = new byte[length];
+                in.get(bytes);
+                in.position(in.position() + 2);
+                line(new String(bytes, StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        void line(String line) throws IOException {
+
+            if (state == State.AUTH_PLAIN) {
+                state = State.COMMAND;
+                authPlain(line);
+                return;
+            } else if (state == State.AUTH_USER) {
+                authUser = decode(line);
+                state = State.AUTH_PASSWORD;
+                reply("334 " + encode("Password:"));
+                return;
+            } else if (state == State.AUTH_PASSWORD) {
+                state = State.COMMAND;
+                authenticated(authUser, decode(line));
+                return;
+            }
+
+            commands.incrementAndGet();
+
+            int sp = line.indexOf(' ');
+            String verb = (sp > 0 ? line.substring(0, sp) : line).toUpperCase();
+            String args = (sp > 0 ? line.substring(sp + 1).trim() : "");
+
+            if ("BDAT".equals(verb)) {
+                String[] parts = args.split("\\s+");
+                chunkLeft = Long.parseLong(parts[0]);
+                lastChunk = (parts.length > 1 && "LAST".equalsIgnoreCase(parts[1]));
+                state = State.BDAT;
+                if (content == null && keepMessages) {
+                    content = new ByteArrayOutputStream();
+                }
+                return;
+            }
+
+            String replaced = ("DATA".equals(verb) ? null : replaced(verb));
+            if (replaced == DROP) {
+                drop();
+                return;
+            }
+            if (replaced != null) {
+                reply(replaced);
+                if ("QUIT".equals(verb)) {
+                    state = null;
+                }
+                return;
+            }
+
+            if ("EHLO".equals(verb)) {
+                resetTransaction();
+                reply("250-" + HOSTNAME + "\r\n250-PIPELINING\r\n250-8BITMIME\r\n250-SIZE 0\r\n"
+                        + "250-AUTH PLAIN LOGIN\r\n250-CHUNKING\r\n250 ENHANCEDSTATUSCODES");
+            } else if ("HELO".equals(verb)) {
+                resetTransaction();
+                reply("250 " + HOSTNAME);
+            } else if ("AUTH".equals(verb)) {
+                auth(args);
+            } else if ("MAIL".equals(verb)) {
+                resetTransaction();
+                reply("250 2.1.0 OK");
+            } else if ("RCPT".equals(verb)) {
+                rcpts++;
+                reply("250 2.1.5 OK");
+            } else if ("DATA".equals(verb)) {
+                if (rcpts == 0) {
+                    reply("554 5.5.1 No valid recipients");
+                } else {
+                    state = State.DATA;
+                    if (keepMessages) {
+                        content = new ByteArrayOutputStream();
+                    }
+                    reply("354 End data with <CR><LF>.<CR><LF>");
+                }
+            } else if ("RSET".equals(verb)) {
+                resetTransaction();
+                reply("250 2.0.0 OK");
+            } else if ("NOOP".equals(verb)) {
+                reply("250 2.0.0 OK");
+            } else if ("QUIT".equals(verb)) {
+                reply("221 2.0.0 Bye");
+                state = null;
+            } else {
+                reply("502 5.5.2 Command not implemented");
+            }
+        }
+
+        void auth(String args) {
+
+            String[] parts = args.split("\\s+");
+            if ("PLAIN".equalsIgnoreCase(parts[0])) {
+                if (parts.length > 1) {
+                    authPlain(parts[1]);
+                } else {
+                    state = State.AUTH_PLAIN;
+                    reply("334 ");
+                }
+            } else if ("LOGIN".equalsIgnoreCase(parts[0])) {
+                if (parts.length > 1) {
+                    authUser = decode(parts[1]);
+                    state = State.AUTH_PASSWORD;
+                    reply("334 " + encode("Password:"));
+                } else {
+                    state = State.AUTH_USER;
+                    reply("334 " + encode("Username:"));
+                }
+            } else {
+                reply("504 5.5.4 Unrecognized authentication type");
+            }
+        }
+
+        void authPlain(String response) {
+
+            // authzid NUL authcid NUL passwd
+            String[] parts = decode(response).split("\u0000", -1);
+            if (parts.length == 3) {
+                authenticated(parts[1], parts[2]);
+            } else {
+                reply("501 5.5.2 Invalid AUTH PLAIN response");
+            }
+        }
+
+        void authenticated(String user, String pass) {
+
+            if (username == null || (username.equals(user) && password.equals(pass))) {
+                reply("235 2.7.0 Authentication successful");
+            } else {
+                reply("535 5.7.8 Authentication credentials invalid");
+            }
+        }
+
+        void endMessage(String verb) throws IOException {
+
+            String replaced = replaced(verb);
+            if (replaced == null || replaced == DROP || isPositive(replaced)) {
+                messages.incrementAndGet();
+                recipients.addAndGet(rcpts);
+                acceptedBytes.addAndGet(size);
+                if (content != null) {
+                    kept.add(content.toByteArray());
+                }
+            }
+            resetTransaction();
+            if (replaced == DROP) {
+                drop();
+                return;
+            }
+            reply(replaced != null ? replaced : "250 2.0.0 OK queued");
+        }
+
+        void drop() throws IOException {
+
+            state = null;
+            key.cancel();
+            channel.close();
+        }
+
+        void resetTransaction() {
+
+            rcpts = 0;
+            size = 0;
+            content = null;
+        }
+
+        void consume(ByteBuffer buf, int n) {
+
+            size += n;
+            if (content != null) {
+                content.write(buf.array(), buf.arrayOffset() + buf.position(), n);
+            }
+            buf.position(buf.position() + n);
+        }
+
+        void reply(String reply) {
+
+            if (!isPositive(reply)) {
+                rejected.incrementAndGet();
+            }
+
+            byte[] bytes = (reply + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            if (!out.hasRemaining()) {
+                readyAt = System.currentTimeMillis() + latencyMillis;
+            }
+
+            out.compact();
+            if (out.remaining() < bytes.length) {
+                ByteBuffer larger = ByteBuffer.allocate(out.capacity() + bytes.length * 2);
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+            out.put(bytes);
+            out.flip();
+
+            if (latencyMillis == 0) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private int indexOfCrlf(ByteBuffer buf) {
+
+            for (int i = buf.position(); i < buf.limit() - 1; i++) {
+                if (buf.get(i) == '\r' && buf.get(i + 1) == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static String decode(String base64) {
+        return new String(Base64.getDecoder().decode(base64.trim()), StandardCharsets.UTF_8);
+    }
+
+    private static String encode(String s) {
+        return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
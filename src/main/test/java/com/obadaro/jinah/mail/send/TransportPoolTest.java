@@ -0,0 +1,190 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.send;
+
+import static com.obadaro.jinah.mail.send.TestMails.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.mail.Session;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.MailException;
+import com.obadaro.jinah.mail.TextMail;
+
+/**
+ * TransportPool test class.
+ * 
+ * @author Roberto Badaro
+ */
+public class TransportPoolTest {
+
+    private Session session;
+
+    @Before
+    public void prepare() throws Exception {
+        session = CountingTransport.createSession();
+    }
+
+    @Test
+    public void tReuse() throws Exception {
+
+        TransportPool pool = new TransportPool(2);
+
+        PooledTransport pt = pool.borrow(session);
+        pool.release(pt);
+        PooledTransport pt2 = pool.borrow(session);
+
+        Assert.assertSame(pt, pt2);
+        Assert.assertEquals(1, CountingTransport.CONNECTS.get());
+
+        pool.release(pt2);
+        pool.close();
+        Assert.assertEquals(0, pool.getOpenCount());
+    }
+
+    @Test
+    public void tRotate() throws Exception {
+
+        TransportPool pool = new TransportPool(1);
+        pool.setMaxMessagesPerConnection(2);
+
+        Postman.sendMail(pool, session, false, mail(), mail(), mail(), mail(), mail());
+
+        Assert.assertEquals(5, CountingTransport.SENT.get());
+        Assert.assertEquals(3, CountingTransport.CONNECTS.get());
+        Assert.assertEquals(1, pool.getOpenCount());
+        pool.close();
+    }
+
+    @Test
+    public void tValidateAndEvict() throws Exception {
+
+        TransportPool pool = new TransportPool(1);
+        pool.setValidationIntervalMillis(0);
+
+        PooledTransport pt = pool.borrow(session);
+        pt.getTransport().close();
+        pool.release(pt);
+
+        PooledTransport pt2 = pool.borrow(session);
+        Assert.assertNotSame(pt, pt2);
+        pool.release(pt2);
+
+        pool.setMaxIdleMillis(0);
+        Thread.sleep(5);
+        Assert.assertEquals(1, pool.evictIdle());
+        Assert.assertEquals(0, pool.getOpenCount());
+    }
+
+    @Test
+    public void tDeadConnectionSlot() throws Exception {
+
+        final TransportPool pool = new TransportPool(2);
+        pool.setValidationIntervalMillis(0);
+        pool.setMaxWaitMillis(5000);
+
+        for (int i = 0; i < 20; i++) {
+            PooledTransport a = pool.borrow(session);
+            PooledTransport b = pool.borrow(session);
+            a.getTransport().close();
+
+            // Two waiters: the one taking the dead connection must not open a third one while the other waits.
+            final List<PooledTransport> borrowed = new CopyOnWriteArrayList<PooledTransport>();
+            List<Thread> waiters = new ArrayList<Thread>();
+            for (int j = 0; j < 2; j++) {
+                Thread t = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            borrowed.add(pool.borrow(session));
+                        } catch (MailException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                });
+                t.start();
+                waiters.add(t);
+            }
+            Thread.sleep(10);
+            pool.release(a);
+
+            while (borrowed.isEmpty()) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(10);
+            Assert.assertTrue(pool.getOpenCount() <= 2);
+
+            pool.release(b);
+            for (Thread t : waiters) {
+                t.join();
+            }
+            Assert.assertEquals(2, pool.getOpenCount());
+            for (PooledTransport pt : borrowed) {
+                pool.release(pt);
+            }
+        }
+        pool.close();
+    }
+
+    @Test
+    public void tDroppedConnection() throws Exception {
+
+        TransportPool pool = new TransportPool(1);
+        TextMail dropped = new TextMail();
+        dropped.setFrom("from@email.com");
+        dropped.addTo("drop@email.com");
+        dropped.setSubject("Test");
+        dropped.setText("Mail content body.");
+
+        // Reopened for the next mail.
+        Postman.sendMail(pool, session, true, mail(), dropped, mail());
+        Assert.assertEquals(2, CountingTransport.SENT.get());
+        Assert.assertEquals(2, CountingTransport.CONNECTS.get());
+        Assert.assertEquals(1, pool.getOpenCount());
+
+        // Not given back to the pool after a failure.
+        try {
+            Postman.sendMail(pool, session, false, dropped);
+            Assert.fail();
+        } catch (MailException e) {
+            Assert.assertEquals(0, pool.getOpenCount());
+        }
+        Postman.sendMail(pool, session, false, mail());
+        Assert.assertEquals(3, CountingTransport.CONNECTS.get());
+        pool.close();
+    }
+
+    @Test(expected = MailException.class)
+    public void tBounded() throws Exception {
+
+        TransportPool pool = new TransportPool(1);
+        pool.setMaxWaitMillis(10);
+
+        pool.borrow(session);
+        pool.borrow(session);
+    }
+}
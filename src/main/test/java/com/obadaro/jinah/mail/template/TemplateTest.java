@@ -0,0 +1,140 @@
+/* 
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright 2010-2012 Roberto Badaro 
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.mail.template;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.obadaro.jinah.mail.Attachment;
+import com.obadaro.jinah.mail.HtmlMail;
+import com.obadaro.jinah.mail.TextMail;
+import com.obadaro.jinah.mail.send.MailMessages;
+
+/**
+ * Template test class.
+ * 
+ * @author Roberto Badaro
+ */
+public class TemplateTest {
+
+    @Test
+    public void tRender() {
+
+        Template t = Template.compile("Hi ${name}, ${ count } new. $${literal} ${name}!");
+        Assert.assertArrayEquals(new String[] { "name", "count" }, t.getNames());
+
+        StringBuilder sb = new StringBuilder();
+        Assert.assertEquals("Hi Ana, 3 new. ${literal} Ana!", t.render(new Object[] { "Ana", 3 }, sb).toString());
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("name", "Bob");
+        Assert.assertEquals("Hi Bob,  new. ${literal} Bob!", t.render(values));
+
+        Assert.assertTrue(Template.compile("no placeholders").isConstant());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tNotClosed() {
+        Template.compile("Hi ${name");
+    }
+
+    @Test
+    public void tMerge() throws Exception {
+
+        Attachment terms = new Attachment("terms", "text/plain", "terms.txt");
+
+        MailTemplate t = new MailTemplate("Order ${order}", "<p>Hello ${name}, order ${order}</p>", true);
+        t.setFrom("shop@email.com");
+        t.attach(terms);
+
+        Assert.assertArrayEquals(new String[] { "order", "name" }, t.getNames());
+
+        Object[] values = new Object[2];
+        values[t.indexOf("order")] = 42L;
+        values[t.indexOf("name")] = "<Ana & Bob>";
+
+        TextMail mail = t.merge(new InternetAddress("ana@email.com"), values);
+
+        Assert.assertTrue(mail instanceof HtmlMail);
+        Assert.assertEquals("Order 42", mail.getSubject());
+        Assert.assertEquals("<p>Hello &lt;Ana &amp; Bob&gt;, order 42</p>", mail.getText());
+        Assert.assertEquals("ana@email.com", mail.getTo());
+        Assert.assertSame(terms, mail.getAttachments().get(0));
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("order", 43);
+        map.put("name", "Carl");
+        mail = t.merge("carl@email.com", map);
+        Assert.assertEquals("Order 43", mail.getSubject());
+        Assert.assertEquals("<p>Hello Carl, order 43</p>", mail.getText());
+    }
+
+    @Test
+    public void tSubjectInjection() throws Exception {
+
+        MailTemplate t = new MailTemplate("Order ${order}", "Hello ${name},\r\n\r\norder ${order}.", false);
+        t.setFrom("shop@email.com");
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("order", "1\r\nX-Injected: yes");
+        values.put("name", "Ana");
+        TextMail mail = t.merge("ana@email.com", values);
+        Assert.assertEquals("Order 1  X-Injected: yes", mail.getSubject());
+        // Line breaks are kept in the body.
+        Assert.assertEquals("Hello Ana,\r\n\r\norder 1\r\nX-Injected: yes.", mail.getText());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MailMessages.createMessage(Session.getInstance(new Properties()), mail).writeTo(out);
+        String text = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+        String header = text.substring(0, text.indexOf("\r\n\r\n") + 2);
+        Assert.assertTrue(header.contains("\r\nSubject: Order 1  X-Injected: yes\r\n"));
+        Assert.assertFalse(header.contains("\r\nX-Injected"));
+    }
+
+    @Test
+    public void tCharset() throws Exception {
+
+        MailTemplate t = new MailTemplate("Pedido ${order}", "Ol\u00e1 ${name}, pedido ${order}.", false);
+        t.setFrom("shop@email.com");
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("order", 42);
+        values.put("name", "Jo\u00e3o");
+        TextMail mail = t.merge("joao@email.com", values);
+        Assert.assertEquals("UTF-8", mail.getCharset());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MailMessages.createMessage(Session.getInstance(new Properties()), mail).writeTo(out);
+        String text = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+        Assert.assertTrue(text.contains("charset=UTF-8"));
+
+        t.setCharset("ISO-8859-1");
+        Assert.assertEquals("ISO-8859-1", t.merge("joao@email.com", values).getCharset());
+    }
+}